@@ -43,7 +43,9 @@ import com.mwebster.exchange.adapter.ContactsSyncAdapter;
 import com.mwebster.exchange.adapter.EmailSyncAdapter;
 import com.mwebster.exchange.adapter.FolderSyncParser;
 import com.mwebster.exchange.adapter.GalParser;
+import com.mwebster.exchange.adapter.GetItemEstimateParser;
 import com.mwebster.exchange.adapter.MeetingResponseParser;
+import com.mwebster.exchange.adapter.MoveItemsParser;
 import com.mwebster.exchange.adapter.PingParser;
 import com.mwebster.exchange.adapter.ProvisionParser;
 import com.mwebster.exchange.adapter.Serializer;
@@ -99,6 +101,7 @@ import java.net.URLEncoder;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
 public class EasSyncService extends AbstractSyncService {
@@ -107,6 +110,11 @@ public class EasSyncService extends AbstractSyncService {
 
     private static final String EMAIL_WINDOW_SIZE = "5";
     public static final String PIM_WINDOW_SIZE = "4";
+    // When the server estimates that many emails are pending, we use a larger window (aiming at
+    // about ESTIMATE_ROUNDS round trips), but never larger than EMAIL_WINDOW_SIZE_MAX
+    private static final int EMAIL_WINDOW_SIZE_MIN = 5;
+    private static final int EMAIL_WINDOW_SIZE_MAX = 25;
+    private static final int ESTIMATE_ROUNDS = 10;
     private static final String WHERE_ACCOUNT_KEY_AND_SERVER_ID =
         MailboxColumns.ACCOUNT_KEY + "=? and " + MailboxColumns.SERVER_ID + "=?";
     private static final String WHERE_ACCOUNT_AND_SYNC_INTERVAL_PING =
@@ -161,6 +169,10 @@ public class EasSyncService extends AbstractSyncService {
     static private final int MAX_LOOPING_COUNT = 100;
 
     static private final int PROTOCOL_PING_STATUS_COMPLETED = 1;
+    static private final int PROTOCOL_PING_STATUS_CHANGES_FOUND = 2;
+
+    // Accounts whose servers don't support GetItemEstimate (400 or 501); we don't ask them again
+    static private final HashSet<Long> sNoEstimateAccounts = new HashSet<Long>();
 
     // The amount of time we allow for a thread to release its post lock after receiving an alert
     static private final int POST_LOCK_TIMEOUT = 10*SECONDS;
@@ -193,6 +205,8 @@ public class EasSyncService extends AbstractSyncService {
     public ContentResolver mContentResolver;
     private String[] mBindArguments = new String[2];
     private ArrayList<String> mPingChangeList;
+    // The email mailboxes that the last Ping reported as changed (synced by syncPingChanges)
+    private ArrayList<Long> mPingSyncList = new ArrayList<Long>();
     // The HttpPost in progress
     private volatile HttpPost mPendingPost = null;
     // Our heartbeat when we are waiting for ping boxes to be ready
@@ -234,6 +248,28 @@ public class EasSyncService extends AbstractSyncService {
         super(prefix);
     }
 
+    /**
+     * Create a service for one of the account's mailboxes that shares the connection state of
+     * the account mailbox's service; this is used by syncPingChanges, which syncs mailboxes
+     * from within the account mailbox's thread
+     */
+    private EasSyncService(EasSyncService accountService, Mailbox mailbox) {
+        super(accountService.mContext, mailbox);
+        mContentResolver = accountService.mContentResolver;
+        mThread = accountService.mThread;
+        mSynchronizer = accountService.mSynchronizer;
+        TAG = accountService.TAG;
+        mProtocolVersion = accountService.mProtocolVersion;
+        mProtocolVersionDouble = accountService.mProtocolVersionDouble;
+        mDeviceId = accountService.mDeviceId;
+        mHostAddress = accountService.mHostAddress;
+        mUserName = accountService.mUserName;
+        mPassword = accountService.mPassword;
+        mSsl = accountService.mSsl;
+        mTrustSsl = accountService.mTrustSsl;
+        mSyncReason = SyncManager.SYNC_PING;
+    }
+
     public EasSyncService() {
         this("EAS Validation");
     }
@@ -1759,6 +1795,7 @@ public class EasSyncService extends AbstractSyncService {
                 if (mStop) return;
 
                 long pingTime = SystemClock.elapsedRealtime();
+                boolean syncChanges = false;
                 try {
                     // Send the ping, wrapped by appropriate timeout/alarm
                     if (forcePing) {
@@ -1784,6 +1821,9 @@ public class EasSyncService extends AbstractSyncService {
                         InputStream is = res.getEntity().getContent();
                         if (len != 0) {
                             int pingResult = parsePingResult(is, mContentResolver, pingErrorMap);
+                            // Sync the changed mail folders (below), then go back to Ping
+                            syncChanges = pingResult == PROTOCOL_PING_STATUS_CHANGES_FOUND &&
+                                    !mPingSyncList.isEmpty();
                             // If our ping completed (status = 1), and we weren't forced and we're
                             // not at the maximum, try increasing timeout by two minutes
                             if (pingResult == PROTOCOL_PING_STATUS_COMPLETED && !forcePing) {
@@ -1849,6 +1889,20 @@ public class EasSyncService extends AbstractSyncService {
                         throw e;
                     }
                 }
+                // This is outside the Ping's try, so that a failed Sync isn't taken as a sign of
+                // the Ping's heartbeat being too long
+                if (syncChanges) {
+                    try {
+                        syncPingChanges(mPingSyncList);
+                    } catch (IOException e) {
+                        // The folders not synced are handed back to SyncManager (see
+                        // syncPingChanges), so just go back to Ping
+                        userLog("IOException in ping sync: " + e.getMessage());
+                        if (mExitStatus == EXIT_LOGIN_FAILURE) {
+                            throw e;
+                        }
+                    }
+                }
             } else if (forcePing) {
                 // In this case, there aren't any boxes that are pingable, but there are boxes
                 // waiting (for IOExceptions)
@@ -1902,6 +1956,7 @@ public class EasSyncService extends AbstractSyncService {
             // syncList has the serverId's of the mailboxes...
             mBindArguments[0] = Long.toString(mAccount.mId);
             mPingChangeList = pp.getSyncList();
+            mPingSyncList.clear();
             for (String serverId: mPingChangeList) {
                 mBindArguments[1] = serverId;
                 Cursor c = cr.query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
@@ -1951,8 +2006,15 @@ public class EasSyncService extends AbstractSyncService {
                         }
 
                         // If there were no problems with previous sync, we'll start another one
-                        SyncManager.startManualSync(c.getLong(Mailbox.CONTENT_ID_COLUMN),
-                                SyncManager.SYNC_PING, null);
+                        // Mail is synced by the ping loop itself; PIM data gets its own service
+                        long mailboxId = c.getLong(Mailbox.CONTENT_ID_COLUMN);
+                        int mailboxType = c.getInt(Mailbox.CONTENT_TYPE_COLUMN);
+                        if (mailboxType == Mailbox.TYPE_CONTACTS ||
+                                mailboxType == Mailbox.TYPE_CALENDAR) {
+                            SyncManager.startManualSync(mailboxId, SyncManager.SYNC_PING, null);
+                        } else {
+                            mPingSyncList.add(mailboxId);
+                        }
                     }
                 } finally {
                     c.close();
@@ -1993,6 +2055,297 @@ public class EasSyncService extends AbstractSyncService {
         return filter;
     }
 
+    /**
+     * Add GetChanges, the window size, and the options for a collection to a Sync command.  This
+     * must not be sent with an initial (syncKey "0") sync.
+     *
+     * @param s the Serializer for the Sync command
+     * @param className the class of the collection (Email, Calendar, or Contacts)
+     * @param windowSize the maximum number of changes the server should send
+     * @throws IOException
+     */
+    private void addSyncOptions(Serializer s, String className, String windowSize)
+            throws IOException {
+        s.tag(Tags.SYNC_DELETES_AS_MOVES);
+        s.tag(Tags.SYNC_GET_CHANGES);
+        s.data(Tags.SYNC_WINDOW_SIZE, windowSize);
+        // Handle options
+        s.start(Tags.SYNC_OPTIONS);
+        // Set the lookback appropriately (EAS calls this a "filter") for all but Contacts
+        String filter = getFilter(className);
+        if (filter != null) {
+            s.data(Tags.SYNC_FILTER_TYPE, filter);
+        }
+        // Set the truncation amount for all classes
+        if (mProtocolVersionDouble >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE) {
+            s.start(Tags.BASE_BODY_PREFERENCE)
+            // HTML for email; plain text for everything else
+            .data(Tags.BASE_TYPE, (className.equals("Email") ? Eas.BODY_PREFERENCE_HTML
+                    : Eas.BODY_PREFERENCE_TEXT))
+                    .data(Tags.BASE_TRUNCATION_SIZE, Eas.EAS12_TRUNCATION_SIZE)
+                    .end();
+        } else {
+            s.data(Tags.SYNC_TRUNCATION, Eas.EAS2_5_TRUNCATION_SIZE);
+        }
+        s.end();
+    }
+
+    /**
+     * Sync exactly those mail folders that a Ping reported as changed, using a single Sync command
+     * with one collection per folder.  This runs in the account mailbox's thread, so that we can
+     * go back to the Ping as soon as the changes are committed, rather than starting a service
+     * thread per folder (each of which would stop the Ping when it starts).  Folders that are
+     * already syncing are skipped; folders that report MoreAvailable, or that fail, are handed
+     * back to SyncManager for a regular sync.
+     *
+     * @param mailboxIds the ids of the changed mail folders
+     * @throws IOException
+     */
+    private void syncPingChanges(ArrayList<Long> mailboxIds) throws IOException {
+        HashMap<String, EmailSyncAdapter> targets = new HashMap<String, EmailSyncAdapter>();
+        ArrayList<AbstractSyncAdapter> needsSync = null;
+        ArrayList<AbstractSyncAdapter> moreLocalChanges = new ArrayList<AbstractSyncAdapter>();
+        Serializer s = new Serializer();
+        boolean failed = false;
+        try {
+            for (long mailboxId: mailboxIds) {
+                Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mailboxId);
+                if (mailbox == null || !SyncManager.startPingSync(mailboxId)) {
+                    continue;
+                }
+                EmailSyncAdapter target =
+                    new EmailSyncAdapter(mailbox, new EasSyncService(this, mailbox));
+                if (targets.isEmpty()) {
+                    s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+                }
+                targets.put(mailbox.mServerId, target);
+                s.start(Tags.SYNC_COLLECTION)
+                    .data(Tags.SYNC_CLASS, target.getCollectionName())
+                    .data(Tags.SYNC_SYNC_KEY, target.getSyncKey())
+                    .data(Tags.SYNC_COLLECTION_ID, mailbox.mServerId);
+                addSyncOptions(s, target.getCollectionName(),
+                        getWindowSize(target.getCollectionName(), -1));
+                if (target.sendLocalChanges(s)) {
+                    moreLocalChanges.add(target);
+                }
+                s.end();
+                try {
+                    SyncManager.callback().syncMailboxStatus(mailboxId,
+                            EmailServiceStatus.IN_PROGRESS, 0);
+                } catch (RemoteException e1) {
+                    // Don't care if this fails
+                }
+            }
+            if (targets.isEmpty()) return;
+
+            s.end().end().done();
+            userLog("Ping sync for ", targets.size(), " mailbox(es)");
+            HttpResponse resp = sendHttpClientPost("Sync", new ByteArrayEntity(s.toByteArray()),
+                    COMMAND_TIMEOUT);
+            int code = resp.getStatusLine().getStatusCode();
+            if (mStop) return;
+            if (code == HttpStatus.SC_OK) {
+                InputStream is = resp.getEntity().getContent();
+                if (is != null) {
+                    needsSync = EmailSyncAdapter.parseCollections(is, targets);
+                } else {
+                    userLog("Empty input stream in ping sync response");
+                }
+            } else if (isAuthError(code)) {
+                mExitStatus = EXIT_LOGIN_FAILURE;
+                userLog("Authorization error during ping sync: ", code);
+                throw new IOException();
+            } else {
+                userLog("Ping sync response error: ", code);
+            }
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            for (EmailSyncAdapter target: targets.values()) {
+                long mailboxId = target.mMailbox.mId;
+                boolean synced = (needsSync != null) && !needsSync.contains(target)
+                        && !moreLocalChanges.contains(target);
+                if (synced) {
+                    target.cleanup();
+                    // Save the status the same way a service thread would (see run())
+                    ContentValues cv = new ContentValues();
+                    cv.put(Mailbox.SYNC_TIME, System.currentTimeMillis());
+                    cv.put(Mailbox.SYNC_STATUS, "S" + SyncManager.SYNC_PING + ':' +
+                            EmailServiceStatus.SUCCESS + ':' + target.mService.mChangeCount);
+                    mContentResolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI,
+                            mailboxId), cv, null, null);
+                }
+                // A folder that wasn't synced (and didn't fail) gets its status from the sync
+                // SyncManager starts for it
+                if (synced || failed) {
+                    try {
+                        SyncManager.callback().syncMailboxStatus(mailboxId, synced ?
+                                EmailServiceStatus.SUCCESS : EmailServiceStatus.CONNECTION_ERROR,
+                                0);
+                    } catch (RemoteException e1) {
+                        // Don't care if this fails
+                    }
+                }
+                // If the folder wasn't fully synced here, SyncManager will start a sync for it
+                SyncManager.donePingSync(mailboxId, !synced);
+            }
+        }
+    }
+
+    /**
+     * Return the lookback (EAS "filter") for a class of collection
+     * @param className the class of the collection (Email, Calendar, or Contacts)
+     * @return the filter, or null if the class isn't filtered
+     */
+    private String getFilter(String className) {
+        if (className.equals("Email")) {
+            return getEmailFilter();
+        } else if (className.equals("Calendar")) {
+            // TODO Force two weeks for calendar until we can set this!
+            return Eas.FILTER_2_WEEKS;
+        }
+        return null;
+    }
+
+    /**
+     * Return the window size to use for a collection
+     * @param className the class of the collection (Email, Calendar, or Contacts)
+     * @param estimate the server's estimate of pending changes, or -1 if unknown
+     * @return the window size
+     */
+    /*package*/ static String getWindowSize(String className, int estimate) {
+        if (!className.equals("Email")) {
+            return PIM_WINDOW_SIZE;
+        } else if (estimate <= 0) {
+            return EMAIL_WINDOW_SIZE;
+        }
+        int windowSize = estimate / ESTIMATE_ROUNDS;
+        if (windowSize < EMAIL_WINDOW_SIZE_MIN) {
+            windowSize = EMAIL_WINDOW_SIZE_MIN;
+        } else if (windowSize > EMAIL_WINDOW_SIZE_MAX) {
+            windowSize = EMAIL_WINDOW_SIZE_MAX;
+        }
+        return Integer.toString(windowSize);
+    }
+
+    /**
+     * Decide whether it's worth a GetItemEstimate round trip before syncing.  We don't ask for
+     * syncs that are expected to be small (ping, upsync, requests), for initial syncs (the server
+     * can't estimate these), or if the server doesn't support the command.
+     *
+     * @param target the adapter about to be synced
+     * @return whether to ask the server for an estimate
+     */
+    private boolean shouldEstimate(AbstractSyncAdapter target) {
+        if (target.getSyncKey().equals("0")) {
+            return false;
+        }
+        synchronized (sNoEstimateAccounts) {
+            if (sNoEstimateAccounts.contains(mAccount.mId)) {
+                return false;
+            }
+        }
+        switch (mSyncReason) {
+            case SyncManager.SYNC_SERVICE_START_SYNC:
+            case SyncManager.SYNC_SCHEDULED:
+            case SyncManager.SYNC_PUSH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Ask the server how many changes are pending for a collection, using GetItemEstimate
+     *
+     * @param target the adapter about to be synced
+     * @return the estimated number of changes, or -1 if the server can't tell us, or the
+     * request failed (the estimate only sizes the sync, so it isn't worth failing the sync for)
+     */
+    private int getItemEstimate(AbstractSyncAdapter target) {
+        try {
+            String className = target.getCollectionName();
+            String serverId = target.mMailbox.mServerId;
+            String filter = getFilter(className);
+            Serializer s = new Serializer();
+            s.start(Tags.GIE_GET_ITEM_ESTIMATE).start(Tags.GIE_COLLECTIONS)
+                .start(Tags.GIE_COLLECTION);
+            if (mProtocolVersionDouble >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE) {
+                // Exchange 2007 wants the collection id first
+                s.data(Tags.GIE_COLLECTION_ID, serverId);
+                if (filter != null) {
+                    s.data(Tags.SYNC_FILTER_TYPE, filter);
+                }
+                s.data(Tags.SYNC_SYNC_KEY, target.getSyncKey());
+            } else {
+                // Exchange 2003 needs the class
+                s.data(Tags.GIE_CLASS, className)
+                    .data(Tags.SYNC_SYNC_KEY, target.getSyncKey())
+                    .data(Tags.GIE_COLLECTION_ID, serverId);
+                if (filter != null) {
+                    s.data(Tags.SYNC_FILTER_TYPE, filter);
+                }
+            }
+            s.end().end().end().done();
+
+            HttpResponse resp = sendHttpClientPost("GetItemEstimate",
+                    new ByteArrayEntity(s.toByteArray()), COMMAND_TIMEOUT);
+            int code = resp.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_OK) {
+                InputStream is = resp.getEntity().getContent();
+                if (is != null) {
+                    GetItemEstimateParser gp = new GetItemEstimateParser(is, this);
+                    if (gp.parse()) {
+                        Integer estimate = gp.getEstimates().get(serverId);
+                        if (estimate != null) {
+                            return estimate;
+                        }
+                    }
+                }
+            } else if (code == HttpStatus.SC_BAD_REQUEST || code == HttpStatus.SC_NOT_IMPLEMENTED) {
+                // The server doesn't support the command; don't ask again
+                userLog("GetItemEstimate not supported: ", code);
+                synchronized (sNoEstimateAccounts) {
+                    sNoEstimateAccounts.add(mAccount.mId);
+                }
+            } else {
+                // Anything else (e.g. a 503, or an auth error) may be transient, and is left to
+                // the sync itself
+                userLog("GetItemEstimate failed: ", code);
+            }
+        } catch (IOException e) {
+            // Sync with the default window; if the server can't be reached, the sync finds out
+            userLog("IOException in GetItemEstimate: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Send a MoveItems command that was built by a sync adapter, and return the server's result
+     * for each of the items to be moved
+     *
+     * @param s the Serializer holding the complete MoveItems command
+     * @return the results of the moves, or null if the command failed
+     * @throws IOException
+     */
+    public ArrayList<MoveItemsParser.MoveResult> sendMoveItems(Serializer s) throws IOException {
+        HttpResponse resp = sendHttpClientPost("MoveItems", s.toByteArray());
+        int code = resp.getStatusLine().getStatusCode();
+        if (code == HttpStatus.SC_OK) {
+            InputStream is = resp.getEntity().getContent();
+            if (is != null) {
+                MoveItemsParser mp = new MoveItemsParser(is, this);
+                if (mp.parse()) {
+                    return mp.getResults();
+                }
+            }
+        } else {
+            userLog("MoveItems response error: ", code);
+        }
+        return null;
+    }
+
     /**
      * Common code to sync E+PIM data
      *
@@ -2003,6 +2356,15 @@ public class EasSyncService extends AbstractSyncService {
 
         boolean moreAvailable = true;
         int loopingCount = 0;
+
+        // For larger syncs, find out how much data is coming; we use this to size our window and
+        // to report progress.  Without an estimate, we sync exactly as before.
+        int estimate = -1;
+        if (shouldEstimate(target)) {
+            estimate = getItemEstimate(target);
+        }
+        String windowSize = getWindowSize(target.getCollectionName(), estimate);
+        int startChangeCount = mChangeCount;
         while (!mStop && moreAvailable) {
             // If we have no connectivity, just exit cleanly.  SyncManager will start us up again
             // when connectivity has returned
@@ -2063,37 +2425,13 @@ public class EasSyncService extends AbstractSyncService {
                 // appears to cause the server to delay its response in some cases, and this delay
                 // can be long enough to result in an IOException and total failure to sync.
                 // Therefore, we don't send any options with the initial sync.
-                s.tag(Tags.SYNC_DELETES_AS_MOVES);
-                s.tag(Tags.SYNC_GET_CHANGES);
-                s.data(Tags.SYNC_WINDOW_SIZE,
-                        className.equals("Email") ? EMAIL_WINDOW_SIZE : PIM_WINDOW_SIZE);
-                // Handle options
-                s.start(Tags.SYNC_OPTIONS);
-                // Set the lookback appropriately (EAS calls this a "filter") for all but Contacts
-                if (className.equals("Email")) {
-                    s.data(Tags.SYNC_FILTER_TYPE, getEmailFilter());
-                } else if (className.equals("Calendar")) {
-                    // TODO Force two weeks for calendar until we can set this!
-                    s.data(Tags.SYNC_FILTER_TYPE, Eas.FILTER_2_WEEKS);
-                }
-                // Set the truncation amount for all classes
-                if (mProtocolVersionDouble >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE) {
-                    s.start(Tags.BASE_BODY_PREFERENCE)
-                    // HTML for email; plain text for everything else
-                    .data(Tags.BASE_TYPE, (className.equals("Email") ? Eas.BODY_PREFERENCE_HTML
-                            : Eas.BODY_PREFERENCE_TEXT))
-                            .data(Tags.BASE_TRUNCATION_SIZE, Eas.EAS12_TRUNCATION_SIZE)
-                            .end();
-                } else {
-                    s.data(Tags.SYNC_TRUNCATION, Eas.EAS2_5_TRUNCATION_SIZE);
-                }
-                s.end();
+                addSyncOptions(s, className, windowSize);
             } else {
                 // Use enormous timeout for initial sync, which empirically can take a while longer
                 timeout = 120*SECONDS;
             }
             // Send our changes up to the server
-            target.sendLocalChanges(s);
+            boolean moreLocalChanges = target.sendLocalChanges(s);
 
             s.end().end().end().done();
             HttpResponse resp = sendHttpClientPost("Sync", new ByteArrayEntity(s.toByteArray()),
@@ -2115,7 +2453,14 @@ public class EasSyncService extends AbstractSyncService {
                     } else {
                         loopingCount = 0;
                     }
+                    // If some of our local changes had to wait, go around again to send them
+                    if (moreLocalChanges) {
+                        moreAvailable = true;
+                    }
                     target.cleanup();
+                    if (moreAvailable && (estimate > 0)) {
+                        reportProgress(mChangeCount - startChangeCount, estimate);
+                    }
                 } else {
                     userLog("Empty input stream in sync command response");
                 }
@@ -2134,6 +2479,22 @@ public class EasSyncService extends AbstractSyncService {
         mExitStatus = EXIT_DONE;
     }
 
+    /**
+     * Report the progress of a sync for which we have an estimate
+     * @param changes the number of changes received so far
+     * @param estimate the estimated total number of changes
+     */
+    private void reportProgress(int changes, int estimate) {
+        // Estimates are just that; never claim to be done until we are
+        int progress = Math.min((changes * 100) / estimate, 99);
+        try {
+            SyncManager.callback().syncMailboxStatus(mMailboxId, EmailServiceStatus.IN_PROGRESS,
+                    progress);
+        } catch (RemoteException e1) {
+            // Don't care if this fails
+        }
+    }
+
     protected boolean setupService() {
         // Make sure account and mailbox are always the latest from the database
         mAccount = Account.restoreAccountWithId(mContext, mAccount.mId);
@@ -161,6 +161,8 @@ public class SyncManager extends Service implements Runnable {
         + " and " + MailboxColumns.ACCOUNT_KEY + " in (";
     private static final String ACCOUNT_KEY_IN = MailboxColumns.ACCOUNT_KEY + " in (";
     private static final String WHERE_CALENDAR_ID = Events.CALENDAR_ID + "=?";
+    private static final String SYNC_ORDER_INBOX_FIRST =
+        MailboxColumns.TYPE + '=' + Mailbox.TYPE_INBOX + " desc";
 
     // Offsets into the syncStatus data for EAS that indicate type, exit status, and change count
     // The format is S<type_char>:<exit_char>:<change_count>
@@ -190,6 +192,9 @@ public class SyncManager extends Service implements Runnable {
     // Keeps track of running services (by mailbox id)
     private HashMap<Long, AbstractSyncService> mServiceMap =
         new HashMap<Long, AbstractSyncService>();
+    // Keeps track of mailboxes being synced from their account mailbox's ping loop (by mailbox
+    // id); sync requests for these mailboxes are held until that sync is done
+    private HashMap<Long, PingSyncHold> mPingSyncMap = new HashMap<Long, PingSyncHold>();
     // Keeps track of services whose last sync ended with an error (by mailbox id)
     /*package*/ HashMap<Long, SyncError> mSyncErrorMap = new HashMap<Long, SyncError>();
     // Keeps track of which services require a wake lock (by mailbox id)
@@ -1786,6 +1791,15 @@ public class SyncManager extends Service implements Runnable {
         // Don't sync if there's no connectivity
         if (sConnectivityHold || (m == null)) return;
         synchronized (sSyncLock) {
+            // If the ping loop is syncing this mailbox, hold the request until it's done
+            PingSyncHold hold = mPingSyncMap.get(m.mId);
+            if (hold != null) {
+                hold.mReason = reason;
+                if (req != null) {
+                    hold.mRequests.add(req);
+                }
+                return;
+            }
             Account acct = Account.restoreAccountWithId(this, m.mAccountKey);
             if (acct != null) {
                 // Always make sure there's not a running instance of this service
@@ -2042,8 +2056,9 @@ public class SyncManager extends Service implements Runnable {
             log("mAccountObserver null; service died??");
             return nextWait;
         }
+        // Inboxes go first, so that their syncs start ahead of those of other mailboxes
         Cursor c = getContentResolver().query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
-                mAccountObserver.getSyncableEasMailboxWhere(), null, null);
+                mAccountObserver.getSyncableEasMailboxWhere(), null, SYNC_ORDER_INBOX_FIRST);
 
         // Contacts/Calendar obey this setting from ContentResolver
         // Mail is on its own schedule
@@ -2264,7 +2279,8 @@ public class SyncManager extends Service implements Runnable {
         SyncManager syncManager = INSTANCE;
         if (syncManager == null) return PING_STATUS_OK;
         // Already syncing...
-        if (syncManager.mServiceMap.get(mailboxId) != null) {
+        if (syncManager.mServiceMap.get(mailboxId) != null ||
+                syncManager.mPingSyncMap.get(mailboxId) != null) {
             return PING_STATUS_RUNNING;
         }
         // No errors or a transient error, don't ping...
@@ -2295,6 +2311,61 @@ public class SyncManager extends Service implements Runnable {
         return syncManager.mServiceMap.get(mailboxId);
     }
 
+    /**
+     * Sync requests made for a mailbox while it is being synced by the ping loop
+     */
+    private static class PingSyncHold {
+        int mReason = -1;
+        ArrayList<Request> mRequests = new ArrayList<Request>();
+    }
+
+    /**
+     * Called by an account mailbox's ping loop before it syncs one of the account's mailboxes
+     * itself; while the mailbox is held, no service thread will be started for it
+     *
+     * @param mailboxId the id of the mailbox
+     * @return whether the mailbox may be synced (i.e. it isn't already being synced)
+     */
+    static public boolean startPingSync(long mailboxId) {
+        SyncManager syncManager = INSTANCE;
+        if (syncManager == null) return false;
+        synchronized (sSyncLock) {
+            if (syncManager.mServiceMap.get(mailboxId) != null ||
+                    syncManager.mPingSyncMap.get(mailboxId) != null) {
+                return false;
+            }
+            syncManager.mPingSyncMap.put(mailboxId, new PingSyncHold());
+            return true;
+        }
+    }
+
+    /**
+     * Called by an account mailbox's ping loop when it has finished syncing a mailbox.  If the
+     * sync couldn't be completed, or if requests were held during the sync, a service thread
+     * is started for the mailbox.
+     *
+     * @param mailboxId the id of the mailbox
+     * @param needsSync whether the mailbox still requires a sync
+     */
+    static public void donePingSync(long mailboxId, boolean needsSync) {
+        SyncManager syncManager = INSTANCE;
+        if (syncManager == null) return;
+        synchronized (sSyncLock) {
+            PingSyncHold hold = syncManager.mPingSyncMap.remove(mailboxId);
+            if (hold == null) return;
+            if (needsSync || hold.mReason >= 0) {
+                int reason = (hold.mReason >= 0) ? hold.mReason : SYNC_PING;
+                AbstractSyncService service = startManualSync(mailboxId, reason, null);
+                if (service != null) {
+                    for (Request req: hold.mRequests) {
+                        service.addRequest(req);
+                    }
+                }
+            }
+        }
+        kick("ping sync finished");
+    }
+
     // DO NOT CALL THIS IN A LOOP ON THE SERVICEMAP
     static private void stopManualSync(long mailboxId) {
         SyncManager syncManager = INSTANCE;
@@ -45,7 +45,8 @@ public abstract class AbstractSyncAdapter {
     public Account mAccount;
     public final android.accounts.Account mAccountManagerAccount;
 
-    // Create the data for local changes that need to be sent up to the server
+    // Create the data for local changes that need to be sent up to the server; returns true if
+    // there are more local changes than could be sent in this request
     public abstract boolean sendLocalChanges(Serializer s)
         throws IOException;
     // Parse incoming data from the EAS server, creating, modifying, and deleting objects as
@@ -29,6 +29,8 @@ import android.content.Context;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Base class for the Email and PIM sync parsers
@@ -47,6 +49,13 @@ public abstract class AbstractSyncParser extends Parser {
 
     private boolean mLooping;
 
+    // State of the collection being parsed
+    private boolean mMoreAvailable;
+    private boolean mNewSyncKey;
+    private boolean mMailboxUpdated;
+    private ContentValues mMailboxValues;
+    private int mSyncInterval;
+
     public AbstractSyncParser(InputStream in, AbstractSyncAdapter adapter) throws IOException {
         super(in);
         mAdapter = adapter;
@@ -84,6 +93,20 @@ public abstract class AbstractSyncParser extends Parser {
         return mLooping;
     }
 
+    /**
+     * Point the parser at a different adapter (and therefore mailbox); this is used when a single
+     * Sync response contains more than one collection.  Subclasses that keep per-collection state
+     * must override this and reset that state.
+     *
+     * @param adapter the adapter for the collection about to be parsed
+     */
+    protected void setTarget(AbstractSyncAdapter adapter) {
+        mAdapter = adapter;
+        mService = adapter.mService;
+        mMailbox = mService.mMailbox;
+        mAccount = mService.mAccount;
+    }
+
     /**
      * Loop through the top-level structure coming from the Exchange server
      * Sync keys and the more available flag are handled here, whereas specific data parsing
@@ -91,75 +114,174 @@ public abstract class AbstractSyncParser extends Parser {
      */
     @Override
     public boolean parse() throws IOException {
-        int status;
-        boolean moreAvailable = false;
-        boolean newSyncKey = false;
-        int interval = mMailbox.mSyncInterval;
-        mLooping = false;
         // If we're not at the top of the xml tree, throw an exception
         if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
             throw new EasParserException();
         }
 
-        boolean mailboxUpdated = false;
-        ContentValues cv = new ContentValues();
-
+        startCollection();
         // Loop here through the remaining xml
         while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
             if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COLLECTIONS) {
                 // Ignore these tags, since we've only got one collection syncing in this loop
-            } else if (tag == Tags.SYNC_STATUS) {
-                // Status = 1 is success; everything else is a failure
-                status = getValueInt();
-                if (status != 1) {
-                    mService.errorLog("Sync failed: " + status);
-                    // Status = 3 means invalid sync key
-                    if (status == 3) {
-                        // Must delete all of the data and start over with syncKey of "0"
-                        mAdapter.setSyncKey("0", false);
-                        // Make this a push box through the first sync
-                        // TODO Make frequency conditional on user settings!
-                        mMailbox.mSyncInterval = Mailbox.CHECK_INTERVAL_PUSH;
-                        mService.errorLog("Bad sync key; RESET and delete data");
-                        wipe();
-                        // Indicate there's more so that we'll start syncing again
-                        moreAvailable = true;
-                    } else if (status == 8) {
-                        // This is Bad; it means the server doesn't recognize the serverId it
-                        // sent us.  What's needed is a refresh of the folder list.
-                        SyncManager.reloadFolderList(mContext, mAccount.mId, true);
+            } else {
+                parseCollectionTag();
+            }
+        }
+        return finishCollection();
+    }
+
+    /**
+     * Parse a Sync response that contains several collections, each of which belongs to one of
+     * the given adapters.  The data in each collection is committed as soon as the collection
+     * ends.  Note that the SyncKey of a collection precedes its CollectionId, so we hold on to it
+     * until we know which adapter it belongs to.
+     *
+     * @param targets the adapters whose collections were synced, keyed by mailbox serverId
+     * @return the adapters that still need a regular sync (i.e. MoreAvailable or failure)
+     * @throws IOException
+     */
+    public ArrayList<AbstractSyncAdapter> parseCollections(
+            HashMap<String, ? extends AbstractSyncAdapter> targets) throws IOException {
+        ArrayList<AbstractSyncAdapter> needsSync = new ArrayList<AbstractSyncAdapter>();
+        if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+            throw new EasParserException();
+        }
+
+        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+            if (tag == Tags.SYNC_COLLECTION) {
+                AbstractSyncAdapter target = null;
+                String syncKey = null;
+                boolean unknown = false;
+                while (nextTag(Tags.SYNC_COLLECTION) != END) {
+                    if (unknown) {
+                        skipTag();
+                    } else if (target != null) {
+                        parseCollectionTag();
+                    } else if (tag == Tags.SYNC_SYNC_KEY) {
+                        syncKey = getValue();
+                    } else if (tag == Tags.SYNC_COLLECTION_ID) {
+                        String serverId = getValue();
+                        target = targets.get(serverId);
+                        if (target == null) {
+                            mService.errorLog("Sync returned unknown collection: " + serverId);
+                            unknown = true;
+                        } else {
+                            setTarget(target);
+                            startCollection();
+                            if (syncKey != null) {
+                                setNewSyncKey(syncKey);
+                            }
+                        }
+                    } else {
+                        skipTag();
                     }
-                    // TODO Look at other error codes and consider what's to be done
                 }
-            } else if (tag == Tags.SYNC_COMMANDS) {
-                commandsParser();
-            } else if (tag == Tags.SYNC_RESPONSES) {
-                responsesParser();
-            } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
-                moreAvailable = true;
-            } else if (tag == Tags.SYNC_SYNC_KEY) {
-                if (mAdapter.getSyncKey().equals("0")) {
-                    moreAvailable = true;
+                if (target != null && finishCollection()) {
+                    needsSync.add(target);
                 }
-                String newKey = getValue();
-                userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
-                if (!newKey.equals(mMailbox.mSyncKey)) {
-                    mAdapter.setSyncKey(newKey, true);
-                    cv.put(MailboxColumns.SYNC_KEY, newKey);
-                    mailboxUpdated = true;
-                    newSyncKey = true;
-                }
-                // If we were pushing (i.e. auto-start), now we'll become ping-triggered
-                if (mMailbox.mSyncInterval == Mailbox.CHECK_INTERVAL_PUSH) {
-                    mMailbox.mSyncInterval = Mailbox.CHECK_INTERVAL_PING;
+            } else if (tag == Tags.SYNC_STATUS) {
+                // A top-level status means that the whole Sync failed; let each mailbox retry
+                mService.errorLog("Sync failed: " + getValueInt());
+                for (AbstractSyncAdapter target: targets.values()) {
+                    if (!needsSync.contains(target)) {
+                        needsSync.add(target);
+                    }
                 }
-           } else {
+            } else if (tag != Tags.SYNC_COLLECTIONS) {
                 skipTag();
-           }
+            }
+        }
+        return needsSync;
+    }
+
+    /**
+     * Reset the per-collection state of the parser
+     */
+    private void startCollection() {
+        mMoreAvailable = false;
+        mNewSyncKey = false;
+        mMailboxUpdated = false;
+        mMailboxValues = new ContentValues();
+        mSyncInterval = mMailbox.mSyncInterval;
+        mLooping = false;
+    }
+
+    /**
+     * Handle a single tag found within a collection
+     * @throws IOException
+     */
+    private void parseCollectionTag() throws IOException {
+        if (tag == Tags.SYNC_STATUS) {
+            // Status = 1 is success; everything else is a failure
+            int status = getValueInt();
+            if (status != 1) {
+                mService.errorLog("Sync failed: " + status);
+                // Status = 3 means invalid sync key
+                if (status == 3) {
+                    // Must delete all of the data and start over with syncKey of "0"
+                    mAdapter.setSyncKey("0", false);
+                    // Make this a push box through the first sync
+                    // TODO Make frequency conditional on user settings!
+                    mMailbox.mSyncInterval = Mailbox.CHECK_INTERVAL_PUSH;
+                    mService.errorLog("Bad sync key; RESET and delete data");
+                    wipe();
+                    // Indicate there's more so that we'll start syncing again
+                    mMoreAvailable = true;
+                } else if (status == 8) {
+                    // This is Bad; it means the server doesn't recognize the serverId it
+                    // sent us.  What's needed is a refresh of the folder list.
+                    SyncManager.reloadFolderList(mContext, mAccount.mId, true);
+                }
+                // TODO Look at other error codes and consider what's to be done
+            }
+        } else if (tag == Tags.SYNC_COMMANDS) {
+            commandsParser();
+        } else if (tag == Tags.SYNC_RESPONSES) {
+            responsesParser();
+        } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
+            mMoreAvailable = true;
+        } else if (tag == Tags.SYNC_SYNC_KEY) {
+            setNewSyncKey(getValue());
+        } else {
+            skipTag();
         }
+    }
+
+    /**
+     * Handle the SyncKey returned for the current collection
+     * @param newKey the new SyncKey
+     * @throws IOException
+     */
+    private void setNewSyncKey(String newKey) throws IOException {
+        if (mAdapter.getSyncKey().equals("0")) {
+            mMoreAvailable = true;
+        }
+        userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
+        if (!newKey.equals(mMailbox.mSyncKey)) {
+            mAdapter.setSyncKey(newKey, true);
+            mMailboxValues.put(MailboxColumns.SYNC_KEY, newKey);
+            mMailboxUpdated = true;
+            mNewSyncKey = true;
+        }
+        // If we were pushing (i.e. auto-start), now we'll become ping-triggered
+        if (mMailbox.mSyncInterval == Mailbox.CHECK_INTERVAL_PUSH) {
+            mMailbox.mSyncInterval = Mailbox.CHECK_INTERVAL_PING;
+        }
+    }
+
+    /**
+     * Commit the changes found in the current collection and save the state of its mailbox
+     * @return whether the server has more data for the collection
+     * @throws IOException
+     */
+    private boolean finishCollection() throws IOException {
+        boolean moreAvailable = mMoreAvailable;
+        ContentValues cv = mMailboxValues;
+        boolean mailboxUpdated = mMailboxUpdated;
 
         // If we don't have a new sync key, ignore moreAvailable (or we'll loop)
-        if (moreAvailable && !newSyncKey) {
+        if (moreAvailable && !mNewSyncKey) {
             mLooping = true;
         }
 
@@ -169,7 +291,7 @@ public abstract class AbstractSyncParser extends Parser {
         boolean abortSyncs = false;
 
         // If the sync interval has changed, we need to save it
-        if (mMailbox.mSyncInterval != interval) {
+        if (mMailbox.mSyncInterval != mSyncInterval) {
             cv.put(MailboxColumns.SYNC_INTERVAL, mMailbox.mSyncInterval);
             mailboxUpdated = true;
         // If there are changes, and we were bounced from push/ping, try again
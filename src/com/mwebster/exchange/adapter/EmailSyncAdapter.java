@@ -17,6 +17,7 @@
 
 package com.mwebster.exchange.adapter;
 
+import com.mwebster.iemail.Snippet;
 import com.mwebster.iemail.Utility;
 import com.mwebster.iemail.mail.Address;
 import com.mwebster.iemail.mail.MeetingInfo;
@@ -43,6 +44,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.webkit.MimeTypeMap;
@@ -52,6 +54,10 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.TimeZone;
 
 /**
@@ -60,13 +66,18 @@ import java.util.TimeZone;
  */
 public class EmailSyncAdapter extends AbstractSyncAdapter {
 
-    private static final int UPDATES_READ_COLUMN = 0;
-    private static final int UPDATES_MAILBOX_KEY_COLUMN = 1;
-    private static final int UPDATES_SERVER_ID_COLUMN = 2;
-    private static final int UPDATES_FLAG_COLUMN = 3;
+    private static final int UPDATES_ID_COLUMN = 0;
+    private static final int UPDATES_READ_COLUMN = 1;
+    private static final int UPDATES_MAILBOX_KEY_COLUMN = 2;
+    private static final int UPDATES_SERVER_ID_COLUMN = 3;
+    private static final int UPDATES_FLAG_COLUMN = 4;
     private static final String[] UPDATES_PROJECTION =
-        {MessageColumns.FLAG_READ, MessageColumns.MAILBOX_KEY, SyncColumns.SERVER_ID,
-            MessageColumns.FLAG_FAVORITE};
+        {Message.RECORD_ID, MessageColumns.FLAG_READ, MessageColumns.MAILBOX_KEY,
+            SyncColumns.SERVER_ID, MessageColumns.FLAG_FAVORITE};
+
+    // The maximum number of local changes (deletions, moves, and read/favorite changes) that we'll
+    // send to the server at once; any others wait for the next round of the sync loop
+    /*package*/ static final int MAX_LOCAL_CHANGES = 100;
 
     private static final int MESSAGE_ID_SUBJECT_ID_COLUMN = 0;
     private static final int MESSAGE_ID_SUBJECT_SUBJECT_COLUMN = 1;
@@ -80,6 +91,18 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
 
     ArrayList<Long> mDeletedIdList = new ArrayList<Long>();
     ArrayList<Long> mUpdatedIdList = new ArrayList<Long>();
+    // Set when some local changes have been held back (see MAX_LOCAL_CHANGES)
+    boolean mMoreLocalChanges = false;
+
+    /**
+     * The state of a message, as far as sending local changes is concerned
+     */
+    private static class MessageState {
+        String mServerId;
+        long mMailboxKey;
+        int mRead;
+        int mFlag;
+    }
 
     // Holds the parser's value for isLooping()
     boolean mIsLooping = false;
@@ -97,6 +120,22 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
         return res;
     }
 
+    /**
+     * Parse a Sync response containing collections for several email mailboxes, as sent by
+     * EasSyncService when handling the results of a Ping
+     *
+     * @param is the InputStream of the Sync response
+     * @param targets the adapters whose collections were synced, keyed by mailbox serverId
+     * @return the adapters that still need a regular sync
+     * @throws IOException
+     */
+    public static ArrayList<AbstractSyncAdapter> parseCollections(InputStream is,
+            HashMap<String, EmailSyncAdapter> targets) throws IOException {
+        EmailSyncAdapter adapter = targets.values().iterator().next();
+        EasEmailSyncParser p = adapter.new EasEmailSyncParser(is, adapter);
+        return p.parseCollections(targets);
+    }
+
     /**
      * Return the value of isLooping() as returned from the parser
      */
@@ -116,6 +155,7 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
             SyncColumns.SERVER_ID + "=? and " + MessageColumns.MAILBOX_KEY + "=?";
 
         private String mMailboxIdAsString;
+        private EmailSyncAdapter mEmailAdapter;
 
         ArrayList<Message> newEmails = new ArrayList<Message>();
         ArrayList<Long> deletedEmails = new ArrayList<Long>();
@@ -124,6 +164,17 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
         public EasEmailSyncParser(InputStream in, EmailSyncAdapter adapter) throws IOException {
             super(in, adapter);
             mMailboxIdAsString = Long.toString(mMailbox.mId);
+            mEmailAdapter = adapter;
+        }
+
+        @Override
+        protected void setTarget(AbstractSyncAdapter adapter) {
+            super.setTarget(adapter);
+            mMailboxIdAsString = Long.toString(mMailbox.mId);
+            mEmailAdapter = (EmailSyncAdapter)adapter;
+            newEmails.clear();
+            deletedEmails.clear();
+            changedEmails.clear();
         }
 
         @Override
@@ -199,6 +250,7 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
             if (atts.size() > 0) {
                 msg.mAttachments = atts;
             }
+            msg.mSnippet = Snippet.fromBody(msg.mText, msg.mHtml);
         }
 
         /**
@@ -522,6 +574,47 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
         public void responsesParser() {
         }
 
+        /**
+         * Remove any new messages that we already have in this mailbox.  This happens when the
+         * server reports a message that we moved here ourselves (with MoveItems), since the
+         * message will already have been given its new serverId.
+         */
+        private void removeExistingMessages(ArrayList<Message> emails) {
+            if (emails.isEmpty()) return;
+            StringBuilder selection = new StringBuilder(MessageColumns.MAILBOX_KEY + '=' +
+                    mMailbox.mId + " and " + SyncColumns.SERVER_ID + " in (");
+            boolean first = true;
+            for (Message msg: emails) {
+                if (msg.mServerId == null) continue;
+                if (!first) {
+                    selection.append(',');
+                }
+                DatabaseUtils.appendEscapedSQLString(selection, msg.mServerId);
+                first = false;
+            }
+            if (first) return;
+            selection.append(')');
+            HashSet<String> existing = new HashSet<String>();
+            Cursor c = mContentResolver.query(Message.CONTENT_URI,
+                    new String[] {SyncColumns.SERVER_ID}, selection.toString(), null, null);
+            try {
+                while (c.moveToNext()) {
+                    existing.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            if (existing.isEmpty()) return;
+            Iterator<Message> iterator = emails.iterator();
+            while (iterator.hasNext()) {
+                Message msg = iterator.next();
+                if (existing.contains(msg.mServerId)) {
+                    userLog("Skipping existing message: ", msg.mServerId);
+                    iterator.remove();
+                }
+            }
+        }
+
         @Override
         public void commit() {
             int notifyCount = 0;
@@ -529,15 +622,16 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
             // Use a batch operation to handle the changes
             // TODO New mail notifications?  Who looks for these?
             ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            removeExistingMessages(newEmails);
             for (Message msg: newEmails) {
                 if (!msg.mFlagRead) {
                     notifyCount++;
                 }
-                msg.addSaveOps(ops);
             }
             for (Long id : deletedEmails) {
                 ops.add(ContentProviderOperation.newDelete(
-                        ContentUris.withAppendedId(Message.CONTENT_URI, id)).build());
+                        ContentUris.withAppendedId(Message.CONTENT_URI, id))
+                            .withYieldAllowed(true).build());
                 AttachmentProvider.deleteAllAttachmentFiles(mContext, mAccount.mId, id);
             }
             if (!changedEmails.isEmpty()) {
@@ -553,6 +647,7 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
                     ops.add(ContentProviderOperation.newUpdate(
                             ContentUris.withAppendedId(Message.CONTENT_URI, change.id))
                                 .withValues(cv)
+                                .withYieldAllowed(true)
                                 .build());
                 }
             }
@@ -564,12 +659,16 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
                     ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailbox.mId))
                         .withValues(mailboxValues).build());
 
-            addCleanupOps(ops);
+            mEmailAdapter.addCleanupOps(ops);
 
             // No commits if we're stopped
             synchronized (mService.getSynchronizer()) {
                 if (mService.isStopped()) return;
                 try {
+                    // The new messages are imported first, so that the sync key is never saved
+                    // without them; if the batch then fails, the server sends them again, and
+                    // removeExistingMessages() skips them
+                    Message.importMessages(mContext, newEmails);
                     mContentResolver.applyBatch(EmailProvider.EMAIL_AUTHORITY, ops);
                     userLog(mMailbox.mDisplayName, " SyncKey saved as: ", mMailbox.mSyncKey);
                 } catch (RemoteException e) {
@@ -697,6 +796,11 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
         deletedIds.clear();
         try {
             while (c.moveToNext()) {
+                // Leave the rest for the next request if we've got enough to send
+                if (deletedIds.size() >= MAX_LOCAL_CHANGES) {
+                    mMoreLocalChanges = true;
+                    break;
+                }
                 String serverId = c.getString(Message.LIST_SERVER_ID_COLUMN);
                 // Keep going if there's no serverId
                 if (serverId == null) {
@@ -720,133 +824,288 @@ public class EmailSyncAdapter extends AbstractSyncAdapter {
        return first;
     }
 
-    @Override
-    public boolean sendLocalChanges(Serializer s) throws IOException {
+    /**
+     * Read the state of a set of messages from the given table; used both for the original state
+     * of updated messages (as saved in the updated table) and for their current state
+     *
+     * @param uri the table to read from
+     * @param selection the selection for the messages we want
+     * @return a map of message id to state, in the table's order
+     */
+    private LinkedHashMap<Long, MessageState> getMessageStates(Uri uri, String selection) {
+        LinkedHashMap<Long, MessageState> states = new LinkedHashMap<Long, MessageState>();
+        Cursor c = mContext.getContentResolver().query(uri, UPDATES_PROJECTION, selection, null,
+                null);
+        try {
+            while (c.moveToNext()) {
+                MessageState state = new MessageState();
+                state.mServerId = c.getString(UPDATES_SERVER_ID_COLUMN);
+                state.mMailboxKey = c.getLong(UPDATES_MAILBOX_KEY_COLUMN);
+                state.mRead = c.getInt(UPDATES_READ_COLUMN);
+                state.mFlag = c.getInt(UPDATES_FLAG_COLUMN);
+                states.put(c.getLong(UPDATES_ID_COLUMN), state);
+            }
+        } finally {
+            c.close();
+        }
+        return states;
+    }
+
+    /**
+     * Send one MoveItems command for each destination mailbox, and record the results locally.
+     * Messages the server moved are given their new serverId; messages it wouldn't move are put
+     * back in this mailbox, since that's where they remain on the server.
+     *
+     * @param moves the messages to move (id to serverId), keyed by destination mailbox
+     * @throws IOException
+     */
+    private void sendMoves(HashMap<Mailbox, LinkedHashMap<Long, String>> moves)
+            throws IOException {
         ContentResolver cr = mContext.getContentResolver();
+        for (Mailbox destination: moves.keySet()) {
+            LinkedHashMap<Long, String> messages = moves.get(destination);
+            Serializer s = new Serializer();
+            s.start(Tags.MOVE_MOVE_ITEMS);
+            for (String serverId: messages.values()) {
+                s.start(Tags.MOVE_MOVE)
+                    .data(Tags.MOVE_SRCMSGID, serverId)
+                    .data(Tags.MOVE_SRCFLDID, mMailbox.mServerId)
+                    .data(Tags.MOVE_DSTFLDID, destination.mServerId)
+                    .end();
+            }
+            s.end().done();
+            userLog("Moving " + messages.size() + " message(s) to ", destination.mDisplayName);
+
+            HashMap<String, MoveItemsParser.MoveResult> results =
+                new HashMap<String, MoveItemsParser.MoveResult>();
+            ArrayList<MoveItemsParser.MoveResult> resultList = mService.sendMoveItems(s);
+            if (resultList == null) {
+                // Leave these for the next sync
+                continue;
+            }
+            for (MoveItemsParser.MoveResult result: resultList) {
+                results.put(result.mSrcMsgId, result);
+            }
 
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            for (Long id: messages.keySet()) {
+                MoveItemsParser.MoveResult result = results.get(messages.get(id));
+                ContentValues cv = new ContentValues();
+                if (result == null) {
+                    // The server didn't tell us anything about this one; try again next time
+                    continue;
+                } else if (result.mStatus == MoveItemsParser.STATUS_SUCCESS &&
+                        result.mDstMsgId != null) {
+                    cv.put(SyncColumns.SERVER_ID, result.mDstMsgId);
+                } else {
+                    cv.put(MessageColumns.MAILBOX_KEY, mMailbox.mId);
+                }
+                // Note that this (unsynced) update also removes the message from the updated table
+                ops.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(Message.CONTENT_URI, id))
+                            .withValues(cv).build());
+            }
+            try {
+                cr.applyBatch(EmailProvider.EMAIL_AUTHORITY, ops);
+            } catch (RemoteException e) {
+                // There is nothing to be done here; the moves will be retried
+            } catch (OperationApplicationException e) {
+                // There is nothing to be done here; the moves will be retried
+            }
+        }
+    }
+
+    /**
+     * Serialize a Change command for the read and/or favorite (flagged) state of a message
+     *
+     * @param s the Serializer we're using to create post data
+     * @param serverId the serverId of the message
+     * @param read the new read state, or null if it hasn't changed
+     * @param flag the new favorite state, or null if it hasn't changed
+     * @throws IOException
+     */
+    private void sendChange(Serializer s, String serverId, Integer read, Integer flag)
+            throws IOException {
+        // Send the change to "read" and "favorite" (flagged)
+        s.start(Tags.SYNC_CHANGE)
+            .data(Tags.SYNC_SERVER_ID, serverId)
+            .start(Tags.SYNC_APPLICATION_DATA);
+        if (read != null) {
+            s.data(Tags.EMAIL_READ, Integer.toString(read));
+        }
+        // "Flag" is a relatively complex concept in EAS 12.0 and above.  It is not only
+        // the boolean "favorite" that we think of in Gmail, but it also represents a
+        // follow up action, which can include a subject, start and due dates, and even
+        // recurrences.  We don't support any of this as yet, but EAS 12.0 and higher
+        // require that a flag contain a status, a type, and four date fields, two each
+        // for start date and end (due) date.
+        if (flag != null) {
+            if (flag != 0) {
+                // Status 2 = set flag
+                s.start(Tags.EMAIL_FLAG).data(Tags.EMAIL_FLAG_STATUS, "2");
+                // "FollowUp" is the standard type
+                s.data(Tags.EMAIL_FLAG_TYPE, "FollowUp");
+                long now = System.currentTimeMillis();
+                Calendar calendar =
+                    GregorianCalendar.getInstance(TimeZone.getTimeZone("GMT"));
+                calendar.setTimeInMillis(now);
+                // Flags are required to have a start date and end date (duplicated)
+                // First, we'll set the current date/time in GMT as the start time
+                String utc = formatDateTime(calendar);
+                s.data(Tags.TASK_START_DATE, utc).data(Tags.TASK_UTC_START_DATE, utc);
+                // And then we'll use one week from today for completion date
+                calendar.setTimeInMillis(now + 1*WEEKS);
+                utc = formatDateTime(calendar);
+                s.data(Tags.TASK_DUE_DATE, utc).data(Tags.TASK_UTC_DUE_DATE, utc);
+                s.end();
+            } else {
+                s.tag(Tags.EMAIL_FLAG);
+            }
+        }
+        s.end().end(); // SYNC_APPLICATION_DATA, SYNC_CHANGE
+    }
+
+    /**
+     * Local changes are sent as the net difference between each updated message's original state
+     * (as saved in the updated table) and its current state, so that a message that was read and
+     * then marked unread (for example) costs nothing.  Messages moved to other mailboxes are sent
+     * in one MoveItems command per destination before the Sync, and no more than
+     * MAX_LOCAL_CHANGES changes are sent at once; if any had to wait, we return true so that the
+     * sync loop will come around again.
+     */
+    @Override
+    public boolean sendLocalChanges(Serializer s) throws IOException {
         // Never upsync from these folders
         if (mMailbox.mType == Mailbox.TYPE_DRAFTS || mMailbox.mType == Mailbox.TYPE_OUTBOX) {
             return false;
         }
 
         // This code is split out for unit testing purposes
+        mMoreLocalChanges = false;
         boolean firstCommand = sendDeletedItems(s, mDeletedIdList, true);
+        int changeCount = mDeletedIdList.size();
 
         // Find our trash mailbox, since deletions will have been moved there...
         long trashMailboxId =
             Mailbox.findMailboxOfType(mContext, mMailbox.mAccountKey, Mailbox.TYPE_TRASH);
 
-        // Do the same now for updated items
-        Cursor c = cr.query(Message.UPDATED_CONTENT_URI, Message.LIST_PROJECTION,
-                MessageColumns.MAILBOX_KEY + '=' + mMailbox.mId, null, null);
-
         // We keep track of the list of updated item id's as we did above with deleted items
         mUpdatedIdList.clear();
-        try {
-            while (c.moveToNext()) {
-                long id = c.getLong(Message.LIST_ID_COLUMN);
-                // Say we've handled this update
-                mUpdatedIdList.add(id);
-                // We have the id of the changed item.  But first, we have to find out its current
-                // state, since the updated table saves the opriginal state
-                Cursor currentCursor = cr.query(ContentUris.withAppendedId(Message.CONTENT_URI, id),
-                        UPDATES_PROJECTION, null, null, null);
-                try {
-                    // If this item no longer exists (shouldn't be possible), just move along
-                    if (!currentCursor.moveToFirst()) {
-                         continue;
-                    }
-                    // Keep going if there's no serverId
-                    String serverId = currentCursor.getString(UPDATES_SERVER_ID_COLUMN);
-                    if (serverId == null) {
-                        continue;
-                    }
-                    // If the message is now in the trash folder, it has been deleted by the user
-                    if (currentCursor.getLong(UPDATES_MAILBOX_KEY_COLUMN) == trashMailboxId) {
-                         if (firstCommand) {
-                            s.start(Tags.SYNC_COMMANDS);
-                            firstCommand = false;
-                        }
-                        // Send the command to delete this message
-                        s.start(Tags.SYNC_DELETE).data(Tags.SYNC_SERVER_ID, serverId).end();
-                        continue;
-                    }
 
-                    boolean flagChange = false;
-                    boolean readChange = false;
-
-                    int flag = 0;
+        // Find the original state of our updated items, and then (in a single query) their current
+        // state, since the updated table saves the original state
+        LinkedHashMap<Long, MessageState> originals = getMessageStates(Message.UPDATED_CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + '=' + mMailbox.mId);
+        if (originals.isEmpty()) {
+            if (!firstCommand) {
+                s.end(); // SYNC_COMMANDS
+            }
+            return mMoreLocalChanges;
+        }
+        StringBuilder selection = new StringBuilder(Message.RECORD_ID + " in (");
+        boolean firstId = true;
+        for (Long id: originals.keySet()) {
+            if (!firstId) {
+                selection.append(',');
+            }
+            selection.append(id);
+            firstId = false;
+        }
+        selection.append(')');
+        HashMap<Long, MessageState> currents =
+            getMessageStates(Message.CONTENT_URI, selection.toString());
+
+        HashMap<Long, Mailbox> destinations = new HashMap<Long, Mailbox>();
+        HashMap<Mailbox, LinkedHashMap<Long, String>> moves =
+            new HashMap<Mailbox, LinkedHashMap<Long, String>>();
+        for (Long id: originals.keySet()) {
+            MessageState original = originals.get(id);
+            MessageState current = currents.get(id);
+            // If this item no longer exists (shouldn't be possible), or if there's no serverId,
+            // there's nothing to send; just say we've handled it
+            if (current == null || current.mServerId == null) {
+                mUpdatedIdList.add(id);
+                continue;
+            }
 
-                    // We can only send flag changes to the server in 12.0 or later
-                    if (mService.mProtocolVersionDouble >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE) {
-                        flag = currentCursor.getInt(UPDATES_FLAG_COLUMN);
-                        if (flag != c.getInt(Message.LIST_FAVORITE_COLUMN)) {
-                            flagChange = true;
-                        }
-                    }
+            Mailbox destination = null;
+            boolean delete = false;
+            if (current.mMailboxKey == trashMailboxId) {
+                // If the message is now in the trash folder, it has been deleted by the user
+                delete = true;
+            } else if (current.mMailboxKey != mMailbox.mId) {
+                // Otherwise, it's been moved to another mailbox; make sure that the server can
+                // move it there
+                destination = destinations.get(current.mMailboxKey);
+                if (destination == null) {
+                    destination = Mailbox.restoreMailboxWithId(mContext, current.mMailboxKey);
+                    destinations.put(current.mMailboxKey, destination);
+                }
+                if (destination == null || destination.mServerId == null ||
+                        destination.mAccountKey != mMailbox.mAccountKey ||
+                        destination.mType == Mailbox.TYPE_DRAFTS ||
+                        destination.mType == Mailbox.TYPE_OUTBOX) {
+                    destination = null;
+                }
+            }
 
-                    int read = currentCursor.getInt(UPDATES_READ_COLUMN);
-                    if (read != c.getInt(Message.LIST_READ_COLUMN)) {
-                        readChange = true;
-                    }
+            Integer flag = null;
+            Integer read = null;
+            // We can only send flag changes to the server in 12.0 or later
+            if (mService.mProtocolVersionDouble >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE &&
+                    current.mFlag != original.mFlag) {
+                flag = current.mFlag;
+            }
+            if (current.mRead != original.mRead) {
+                read = current.mRead;
+            }
 
-                    if (!flagChange && !readChange) {
-                        // In this case, we've got nothing to send to the server
-                        continue;
-                    }
+            if (!delete && destination == null && flag == null && read == null) {
+                // The changes cancelled each other out (or can't be sent); nothing to send
+                mUpdatedIdList.add(id);
+                continue;
+            }
 
-                    if (firstCommand) {
-                        s.start(Tags.SYNC_COMMANDS);
-                        firstCommand = false;
-                    }
-                    // Send the change to "read" and "favorite" (flagged)
-                    s.start(Tags.SYNC_CHANGE)
-                        .data(Tags.SYNC_SERVER_ID, c.getString(Message.LIST_SERVER_ID_COLUMN))
-                        .start(Tags.SYNC_APPLICATION_DATA);
-                    if (readChange) {
-                        s.data(Tags.EMAIL_READ, Integer.toString(read));
-                    }
-                    // "Flag" is a relatively complex concept in EAS 12.0 and above.  It is not only
-                    // the boolean "favorite" that we think of in Gmail, but it also represents a
-                    // follow up action, which can include a subject, start and due dates, and even
-                    // recurrences.  We don't support any of this as yet, but EAS 12.0 and higher
-                    // require that a flag contain a status, a type, and four date fields, two each
-                    // for start date and end (due) date.
-                    if (flagChange) {
-                        if (flag != 0) {
-                            // Status 2 = set flag
-                            s.start(Tags.EMAIL_FLAG).data(Tags.EMAIL_FLAG_STATUS, "2");
-                            // "FollowUp" is the standard type
-                            s.data(Tags.EMAIL_FLAG_TYPE, "FollowUp");
-                            long now = System.currentTimeMillis();
-                            Calendar calendar =
-                                GregorianCalendar.getInstance(TimeZone.getTimeZone("GMT"));
-                            calendar.setTimeInMillis(now);
-                            // Flags are required to have a start date and end date (duplicated)
-                            // First, we'll set the current date/time in GMT as the start time
-                            String utc = formatDateTime(calendar);
-                            s.data(Tags.TASK_START_DATE, utc).data(Tags.TASK_UTC_START_DATE, utc);
-                            // And then we'll use one week from today for completion date
-                            calendar.setTimeInMillis(now + 1*WEEKS);
-                            utc = formatDateTime(calendar);
-                            s.data(Tags.TASK_DUE_DATE, utc).data(Tags.TASK_UTC_DUE_DATE, utc);
-                            s.end();
-                        } else {
-                            s.tag(Tags.EMAIL_FLAG);
-                        }
-                    }
-                    s.end().end(); // SYNC_APPLICATION_DATA, SYNC_CHANGE
-                } finally {
-                    currentCursor.close();
+            // Hold the rest for the next request if we've already got enough to send
+            if (changeCount >= MAX_LOCAL_CHANGES) {
+                mMoreLocalChanges = true;
+                continue;
+            }
+            changeCount++;
+
+            if (destination != null) {
+                // Moves are sent separately, before the Sync.  Any read/favorite change made
+                // along with the move is not sent, as the message has a new serverId once moved
+                LinkedHashMap<Long, String> messages = moves.get(destination);
+                if (messages == null) {
+                    messages = new LinkedHashMap<Long, String>();
+                    moves.put(destination, messages);
                 }
+                messages.put(id, current.mServerId);
+                continue;
             }
-        } finally {
-            c.close();
+
+            if (firstCommand) {
+                s.start(Tags.SYNC_COMMANDS);
+                firstCommand = false;
+            }
+            if (delete) {
+                // Send the command to delete this message
+                s.start(Tags.SYNC_DELETE).data(Tags.SYNC_SERVER_ID, current.mServerId).end();
+            } else {
+                sendChange(s, current.mServerId, read, flag);
+            }
+            // Say we've handled this update
+            mUpdatedIdList.add(id);
+        }
+
+        if (!moves.isEmpty()) {
+            sendMoves(moves);
         }
 
         if (!firstCommand) {
             s.end(); // SYNC_COMMANDS
         }
-        return false;
+        return mMoreLocalChanges;
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.exchange.adapter;
+
+import com.mwebster.exchange.EasSyncService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Parse the result of a GetItemEstimate command.
+ *
+ * The estimate for each collection that the server was able to estimate is stored in a map keyed
+ * by the collection's serverId; collections with an error status are left out.
+ */
+public class GetItemEstimateParser extends Parser {
+    private EasSyncService mService;
+    private HashMap<String, Integer> mEstimates = new HashMap<String, Integer>();
+
+    public GetItemEstimateParser(InputStream in, EasSyncService service) throws IOException {
+        super(in);
+        mService = service;
+    }
+
+    public HashMap<String, Integer> getEstimates() {
+        return mEstimates;
+    }
+
+    public void parseCollection(boolean valid) throws IOException {
+        String serverId = null;
+        int estimate = -1;
+        while (nextTag(Tags.GIE_COLLECTION) != END) {
+            if (tag == Tags.GIE_COLLECTION_ID) {
+                serverId = getValue();
+            } else if (tag == Tags.GIE_ESTIMATE) {
+                estimate = getValueInt();
+            } else {
+                skipTag();
+            }
+        }
+        if (valid && (serverId != null) && (estimate >= 0)) {
+            mService.userLog("Estimate for ", serverId, ": " + estimate);
+            mEstimates.put(serverId, estimate);
+        }
+    }
+
+    public void parseResponse() throws IOException {
+        boolean valid = true;
+        while (nextTag(Tags.GIE_RESPONSE) != END) {
+            if (tag == Tags.GIE_STATUS) {
+                int status = getValueInt();
+                if (status != 1) {
+                    mService.userLog("Error in GetItemEstimate: ", status);
+                    valid = false;
+                }
+            } else if (tag == Tags.GIE_COLLECTION) {
+                parseCollection(valid);
+            } else {
+                skipTag();
+            }
+        }
+    }
+
+    @Override
+    public boolean parse() throws IOException {
+        if (nextTag(START_DOCUMENT) != Tags.GIE_GET_ITEM_ESTIMATE) {
+            throw new IOException();
+        }
+        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+            if (tag == Tags.GIE_RESPONSE) {
+                parseResponse();
+            } else {
+                skipTag();
+            }
+        }
+        return !mEstimates.isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.exchange.adapter;
+
+import com.mwebster.exchange.EasSyncService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Parse the result of a MoveItems command.  There is one result for each item to be moved.
+ */
+public class MoveItemsParser extends Parser {
+    // The EAS MoveItems status for a successful move
+    public static final int STATUS_SUCCESS = 3;
+
+    private EasSyncService mService;
+    private ArrayList<MoveResult> mResults = new ArrayList<MoveResult>();
+
+    public static class MoveResult {
+        public String mSrcMsgId;
+        public String mDstMsgId;
+        public int mStatus;
+    }
+
+    public MoveItemsParser(InputStream in, EasSyncService service) throws IOException {
+        super(in);
+        mService = service;
+    }
+
+    public ArrayList<MoveResult> getResults() {
+        return mResults;
+    }
+
+    public void parseResponse() throws IOException {
+        MoveResult result = new MoveResult();
+        while (nextTag(Tags.MOVE_RESPONSE) != END) {
+            if (tag == Tags.MOVE_SRCMSGID) {
+                result.mSrcMsgId = getValue();
+            } else if (tag == Tags.MOVE_DSTMSGID) {
+                result.mDstMsgId = getValue();
+            } else if (tag == Tags.MOVE_STATUS) {
+                result.mStatus = getValueInt();
+            } else {
+                skipTag();
+            }
+        }
+        if (result.mStatus != STATUS_SUCCESS) {
+            mService.userLog("Error moving " + result.mSrcMsgId + ": ", result.mStatus);
+        }
+        mResults.add(result);
+    }
+
+    @Override
+    public boolean parse() throws IOException {
+        if (nextTag(START_DOCUMENT) != Tags.MOVE_MOVE_ITEMS) {
+            throw new IOException();
+        }
+        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+            if (tag == Tags.MOVE_RESPONSE) {
+                parseResponse();
+            } else {
+                skipTag();
+            }
+        }
+        return !mResults.isEmpty();
+    }
+}
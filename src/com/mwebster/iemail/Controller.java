@@ -27,25 +27,32 @@ import com.mwebster.iemail.provider.EmailContent.Mailbox;
 import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
 import com.mwebster.iemail.provider.EmailContent.Message;
 import com.mwebster.iemail.provider.EmailContent.MessageColumns;
+import com.mwebster.iemail.provider.EmailProvider;
 import com.mwebster.iemail.service.EmailServiceStatus;
 import com.mwebster.iemail.service.IEmailService;
 import com.mwebster.iemail.service.IEmailServiceCallback;
 
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * New central controller/dispatcher for Email activities that may require remote operations.
@@ -74,6 +81,15 @@ public class Controller {
     };
     private static int MESSAGEID_TO_MAILBOXID_COLUMN_MAILBOXID = 1;
 
+    private static String[] MESSAGEID_TO_ACCOUNT_AND_MAILBOX_PROJECTION = new String[] {
+        EmailContent.RECORD_ID,
+        EmailContent.MessageColumns.ACCOUNT_KEY,
+        EmailContent.MessageColumns.MAILBOX_KEY
+    };
+    private static int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ID = 0;
+    private static int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ACCOUNTID = 1;
+    private static int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_MAILBOXID = 2;
+
     protected Controller(Context _context) {
         mContext = _context;
         mProviderContext = _context;
@@ -575,6 +591,35 @@ public class Controller {
         }.start();
     }
 
+    /**
+     * Bring existing data up to date with the database in the background: delete any bodies
+     * whose messages are gone, compact any bodies that predate body files and compression, and
+     * add any messages that predate the search index to it.  Each batch is done in a
+     * transaction of its own, so that the UI isn't locked out of the database for long; and
+     * the work resumes where it left off if the process is killed.
+     */
+    public void updateDatabaseInBackground() {
+        new Thread() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ContentResolver resolver = mProviderContext.getContentResolver();
+                ContentValues cv = new ContentValues();
+                while (resolver.update(EmailProvider.DELETE_ORPHAN_BODIES_URI, cv, null, null)
+                        > 0) {
+                    // Keep going until there are no orphans left
+                }
+                // Bodies first, so that indexing doesn't read long content from the database
+                while (resolver.update(EmailProvider.COMPACT_BODIES_URI, cv, null, null) > 0) {
+                    // Keep going until there's nothing left to compact
+                }
+                while (resolver.update(EmailProvider.SEARCH_INDEX_URI, cv, null, null) > 0) {
+                    // Keep going until there's nothing left to index
+                }
+            }
+        }.start();
+    }
+
     /**
      * Increase the load count for a given mailbox, and trigger a refresh.  Applies only to
      * IMAP and POP.
@@ -755,6 +800,160 @@ public class Controller {
         }
     }
 
+    /**
+     * Delete a set of messages (e.g. a multi-selection) by moving them to the trash, or deleting
+     * them from the trash.  All of the changes are made in a single provider batch (which may
+     * yield the database between messages), and each account is kicked only once, so that the
+     * whole selection is sent to the server together.
+     *
+     * @param messageIds the ids of the messages to "delete"
+     */
+    public void deleteMessages(Set<Long> messageIds) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        // Map of account id to the id of its trash mailbox
+        HashMap<Long, Long> trashMailboxIds = new HashMap<Long, Long>();
+        Cursor c = queryMessages(messageIds);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                long messageId = c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ID);
+                long accountId = c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ACCOUNTID);
+                Long trashMailboxId = trashMailboxIds.get(accountId);
+                if (trashMailboxId == null) {
+                    trashMailboxId = findOrCreateMailboxOfType(accountId, Mailbox.TYPE_TRASH);
+                    trashMailboxIds.put(accountId, trashMailboxId);
+                }
+
+                // Drop non-essential data for the message (e.g. attachment files)
+                AttachmentProvider.deleteAllAttachmentFiles(mProviderContext, accountId,
+                        messageId);
+
+                Uri uri = ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
+                        messageId);
+                if (c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_MAILBOXID)
+                        == trashMailboxId) {
+                    // Delete from trash
+                    ops.add(ContentProviderOperation.newDelete(uri).withYieldAllowed(true)
+                            .build());
+                } else {
+                    // Move to trash
+                    ops.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(EmailContent.MessageColumns.MAILBOX_KEY, trashMailboxId)
+                            .withYieldAllowed(true)
+                            .build());
+                }
+            }
+        } finally {
+            c.close();
+        }
+        applyMessageOps(ops, trashMailboxIds.keySet());
+    }
+
+    /**
+     * Move a set of messages (e.g. a multi-selection) to another mailbox of the same account.  As
+     * with deleteMessages(), the changes are made in a single provider batch, and the
+     * account is kicked only once.
+     *
+     * @param messageIds the ids of the messages to move
+     * @param targetMailboxId the id of the mailbox to move them to
+     */
+    public void moveMessages(Set<Long> messageIds, long targetMailboxId) {
+        Mailbox target = Mailbox.restoreMailboxWithId(mProviderContext, targetMailboxId);
+        if (target == null) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        Cursor c = queryMessages(messageIds);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                // Messages can only be moved within their own account
+                if (c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ACCOUNTID)
+                        != target.mAccountKey ||
+                        c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_MAILBOXID)
+                        == targetMailboxId) {
+                    continue;
+                }
+                Uri uri = ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
+                        c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ID));
+                ops.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(EmailContent.MessageColumns.MAILBOX_KEY, targetMailboxId)
+                        .withYieldAllowed(true)
+                        .build());
+            }
+        } finally {
+            c.close();
+        }
+        HashSet<Long> accountIds = new HashSet<Long>();
+        accountIds.add(target.mAccountKey);
+        applyMessageOps(ops, accountIds);
+    }
+
+    /**
+     * Look up the account and mailbox of a set of messages, with a single query
+     *
+     * @param messageIds the ids of the messages
+     * @return a cursor with MESSAGEID_TO_ACCOUNT_AND_MAILBOX_PROJECTION, or null if there are no
+     * messages to look up
+     */
+    private Cursor queryMessages(Set<Long> messageIds) {
+        if (messageIds.isEmpty()) {
+            return null;
+        }
+        StringBuilder selection = new StringBuilder(EmailContent.RECORD_ID + " in (");
+        boolean first = true;
+        for (Long id: messageIds) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(id);
+            first = false;
+        }
+        selection.append(')');
+        return mProviderContext.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                MESSAGEID_TO_ACCOUNT_AND_MAILBOX_PROJECTION, selection.toString(), null, null);
+    }
+
+    /**
+     * Apply a batch of synced message operations in one transaction, and then kick
+     * MessagingController (once) for each of the accounts involved.  The sync service runs
+     * automatically.
+     *
+     * @param ops the operations to apply
+     * @param accountIds the accounts of the messages involved
+     */
+    private void applyMessageOps(ArrayList<ContentProviderOperation> ops, Set<Long> accountIds) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            mProviderContext.getContentResolver().applyBatch(EmailProvider.EMAIL_AUTHORITY, ops);
+        } catch (RemoteException e) {
+            Log.d(Email.LOG_TAG, "Unable to apply message changes: " + e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.d(Email.LOG_TAG, "Unable to apply message changes: " + e);
+            return;
+        }
+
+        for (long accountId: accountIds) {
+            Account account = Account.restoreAccountWithId(mProviderContext, accountId);
+            if (isMessagingController(account)) {
+                final long syncAccountId = accountId;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        mLegacyController.processPendingActions(syncAccountId);
+                    }
+                }.start();
+            }
+        }
+    }
+
     /**
      * Set/clear the unread status of a message
      *
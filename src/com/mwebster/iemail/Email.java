@@ -271,6 +271,9 @@ public class Email extends Application {
         // Reset all accounts to default visible window
         Controller.getInstance(this).resetVisibleLimits();
 
+        // Finish bringing existing data up to date with the database (e.g. the search index)
+        Controller.getInstance(this).updateDatabaseInBackground();
+
         /*
          * We have to give MimeMessage a temp directory because File.createTempFile(String, String)
          * doesn't work in Android and MimeMessage does not have access to a Context.
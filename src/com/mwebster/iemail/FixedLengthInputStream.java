@@ -69,6 +69,15 @@ public class FixedLengthInputStream extends InputStream {
         return read(b, 0, b.length);
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        long d = mIn.skip(Math.min(n, mLength - mCount));
+        if (d > 0) {
+            mCount += d;
+        }
+        return d;
+    }
+
     @Override
     public String toString() {
         return String.format("FixedLengthInputStream(in=%s, length=%d)", mIn.toString(), mLength);
@@ -232,6 +232,8 @@ public class LegacyConversions {
         if (sbIntroText != null && sbIntroText.length() != 0) {
             body.mIntroText = sbIntroText.toString();
         }
+        // The list shows this preview, so that it needn't load bodies
+        localMessage.mSnippet = Snippet.fromBody(body.mTextContent, body.mHtmlContent);
         return true;
     }
 
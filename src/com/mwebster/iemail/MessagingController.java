@@ -53,6 +53,7 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -93,6 +94,20 @@ public class MessagingController implements Runnable {
      */
     private static final int MAX_SMALL_MESSAGE_SIZE = (25 * 1024);
 
+    /**
+     * The most new message envelopes held before they're imported into the provider, so that a
+     * large sync makes progress (and doesn't hold every envelope) as it goes.
+     */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    /**
+     * How often a sync lists every message in the window, to find the messages deleted from the
+     * server, when the store can't report deletions; other syncs just ask for new messages.
+     */
+    private static final long FULL_SYNC_INTERVAL = 60 * 60 * 1000;
+    // The mailbox persistent data key of the time of the last full sync
+    private static final String FULL_SYNC_TIME_KEY = "sync.fullTime";
+
     private static Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
     private static Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
 
@@ -437,6 +452,72 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Keeps a remote folder's persistent data (e.g. the IMAP sync state) in its mailbox's sync
+     * key, which POP3 and IMAP don't otherwise use, as "key=value" lines.
+     */
+    private class MailboxPersistentData implements Folder.PersistentDataCallbacks {
+        private final Mailbox mMailbox;
+        private final HashMap<String, String> mValues = new HashMap<String, String>();
+
+        public MailboxPersistentData(Mailbox mailbox) {
+            mMailbox = mailbox;
+            if (mailbox.mSyncKey != null) {
+                for (String line : mailbox.mSyncKey.split("\n")) {
+                    int equals = line.indexOf('=');
+                    if (equals > 0) {
+                        mValues.put(line.substring(0, equals), line.substring(equals + 1));
+                    }
+                }
+            }
+        }
+
+        public String getPersistentString(String key, String defaultValue) {
+            String value = mValues.get(key);
+            return value != null ? value : defaultValue;
+        }
+
+        public void setPersistentString(String key, String value) {
+            mValues.put(key, value);
+            StringBuilder sb = new StringBuilder();
+            for (String k : mValues.keySet()) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(k).append('=').append(mValues.get(k));
+            }
+            mMailbox.mSyncKey = sb.toString();
+            ContentValues values = new ContentValues();
+            values.put(MailboxColumns.SYNC_KEY, mMailbox.mSyncKey);
+            mContext.getContentResolver().update(
+                    ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailbox.mId),
+                    values, null, null);
+        }
+
+        /**
+         * Only the value is supported.  No remote folder commits message flags together with
+         * its persistent data (ImapFolder only calls setPersistentString), so there is nothing
+         * here to map the folder's flags onto the provider's message columns.
+         */
+        public void setPersistentStringAndMessageFlags(String key, String value,
+                Flag[] setFlags, Flag[] clearFlags) throws MessagingException {
+            if (setFlags != null || clearFlags != null) {
+                throw new MessagingException("Not implemented");
+            }
+            if (key != null) {
+                setPersistentString(key, value);
+            }
+        }
+    }
+
+    /**
+     * Return whether a local message's server id is a remote UID, i.e. it isn't a message that
+     * was never synced (or upsynced)
+     */
+    private static boolean isRemoteUid(String serverId) {
+        return serverId != null && !serverId.startsWith(LOCAL_SERVERID_PREFIX);
+    }
+
     private void saveOrUpdate(EmailContent content) {
         if (content.isSaved()) {
             content.update(mContext, content.toContentValues());
@@ -525,8 +606,10 @@ public class MessagingController implements Runnable {
             }
         }
 
-        // 3, Open the remote folder. This pre-loads certain metadata like message count.
-        remoteFolder.open(OpenMode.READ_WRITE, null);
+        // 3, Open the remote folder. This pre-loads certain metadata like message count, and
+        // (if the store can tell) the changes since the last sync.
+        MailboxPersistentData persistentData = new MailboxPersistentData(folder);
+        remoteFolder.open(OpenMode.READ_WRITE, persistentData);
 
         // 4. Trash any remote messages that are marked as trashed locally.
         // TODO - this comment was here, but no code was here.
@@ -542,13 +625,57 @@ public class MessagingController implements Runnable {
             visibleLimit = info.mVisibleLimitDefault;
         }
 
+        // 6a. If the store can tell us which messages have arrived since the last sync, we can
+        // skip listing the messages in the window, and just add those (and apply the changed
+        // flags and deleted messages, if it can tell those too).  Deletions it can't tell are
+        // found by listing the window, which is done less often - and whenever the local window
+        // needs filling, e.g. after deletions or with a larger limit.
+        long now = System.currentTimeMillis();
+        long lastFullSync = 0;
+        try {
+            lastFullSync = Long.parseLong(
+                    persistentData.getPersistentString(FULL_SYNC_TIME_KEY, "0"));
+        } catch (NumberFormatException e) {
+            // Then it's due
+        }
+        Message[] changedMessages = remoteFolder.getChangedMessages();
+        String[] deletedUids = remoteFolder.getDeletedUids();
+        boolean fullSync = localMessageMap.size() < Math.min(visibleLimit, remoteMessageCount)
+                || (deletedUids == null
+                        && (now - lastFullSync >= FULL_SYNC_INTERVAL || now < lastFullSync));
+        Message[] arrivedMessages = fullSync ? null : remoteFolder.getNewMessages();
+        boolean incremental = arrivedMessages != null && arrivedMessages.length <= visibleLimit;
+
         // 7.  Create a list of messages to download
         Message[] remoteMessages = new Message[0];
         final ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
         HashMap<String, Message> remoteUidMap = new HashMap<String, Message>();
 
         int newMessageCount = 0;
-        if (remoteMessageCount > 0) {
+        if (incremental) {
+            // Download the new messages, and retry the unread messages that failed to download
+            // on the last sync
+            remoteMessages = arrivedMessages;
+            for (Message message : arrivedMessages) {
+                if (!localMessageMap.containsKey(message.getUid())) {
+                    newMessageCount++;
+                    unsyncedMessages.add(message);
+                }
+            }
+            HashSet<String> deletedUidSet = new HashSet<String>();
+            if (deletedUids != null) {
+                deletedUidSet.addAll(Arrays.asList(deletedUids));
+            }
+            for (LocalMessageInfo localMessage : localMessageMap.values()) {
+                if ((localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED
+                        || localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)
+                        && !localMessage.mFlagRead
+                        && isRemoteUid(localMessage.mServerId)
+                        && !deletedUidSet.contains(localMessage.mServerId)) {
+                    unsyncedMessages.add(remoteFolder.createMessage(localMessage.mServerId));
+                }
+            }
+        } else if (remoteMessageCount > 0) {
             /*
              * Message numbers start at 1.
              */
@@ -605,6 +732,9 @@ public class MessagingController implements Runnable {
             fp.add(FetchProfile.Item.ENVELOPE);
             final HashMap<String, LocalMessageInfo> localMapCopy =
                 new HashMap<String, LocalMessageInfo>(localMessageMap);
+            // New messages are imported together, rather than saved one by one
+            final ArrayList<EmailContent.Message> importMessages =
+                new ArrayList<EmailContent.Message>();
 
             remoteFolder.fetch(unsyncedMessages.toArray(new Message[0]), fp,
                     new MessageRetrievalListener() {
@@ -628,7 +758,16 @@ public class MessagingController implements Runnable {
                                         LegacyConversions.updateMessageFields(localMessage,
                                                 message, account.mId, folder.mId);
                                         // Commit the message to the local store
-                                        saveOrUpdate(localMessage);
+                                        if (localMessageInfo == null) {
+                                            importMessages.add(localMessage);
+                                            if (importMessages.size() >= IMPORT_BATCH_SIZE) {
+                                                EmailContent.Message.importMessages(mContext,
+                                                        importMessages);
+                                                importMessages.clear();
+                                            }
+                                        } else {
+                                            saveOrUpdate(localMessage);
+                                        }
                                         // Track the "new" ness of the downloaded message
                                         if (!message.isSet(Flag.SEEN)) {
                                             newMessages.add(message);
@@ -649,12 +788,29 @@ public class MessagingController implements Runnable {
                         public void messageStarted(String uid, int number, int ofTotal) {
                         }
                     });
+            EmailContent.Message.importMessages(mContext, importMessages);
         }
 
-        // 9. Refresh the flags for any messages in the local store that we didn't just download.
+        // 9. Refresh the flags for any messages in the local store that we didn't just download,
+        // or just for those whose flags have changed, if the store can tell.
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
-        remoteFolder.fetch(remoteMessages, fp, null);
+        Message[] flagMessages = changedMessages;
+        if (flagMessages == null) {
+            if (incremental) {
+                // The window wasn't listed, so check the local messages by UID
+                ArrayList<Message> checkMessages =
+                    new ArrayList<Message>(Arrays.asList(arrivedMessages));
+                for (String uid : localMessageMap.keySet()) {
+                    if (isRemoteUid(uid)) {
+                        checkMessages.add(remoteFolder.createMessage(uid));
+                    }
+                }
+                remoteMessages = checkMessages.toArray(new Message[checkMessages.size()]);
+            }
+            remoteFolder.fetch(remoteMessages, fp, null);
+            flagMessages = remoteMessages;
+        }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
         for (Flag flag : remoteFolder.getPermanentFlags()) {
@@ -667,7 +823,7 @@ public class MessagingController implements Runnable {
         }
         // Update the SEEN & FLAGGED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged) {
-            for (Message remoteMessage : remoteMessages) {
+            for (Message remoteMessage : flagMessages) {
                 LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
                 if (localMessageInfo == null) {
                     continue;
@@ -724,7 +880,16 @@ public class MessagingController implements Runnable {
         // 11. Remove any messages that are in the local store but no longer on the remote store.
 
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
-        localUidsToDelete.removeAll(remoteUidMap.keySet());
+        if (incremental) {
+            if (deletedUids != null) {
+                localUidsToDelete.retainAll(Arrays.asList(deletedUids));
+            } else {
+                // Left for the next full sync
+                localUidsToDelete.clear();
+            }
+        } else {
+            localUidsToDelete.removeAll(remoteUidMap.keySet());
+        }
         for (String uidToDelete : localUidsToDelete) {
             LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
 
@@ -829,6 +994,11 @@ public class MessagingController implements Runnable {
 
         // 15. Clean up and report results
 
+        // Every change found has been applied, so the next sync can start from here
+        remoteFolder.saveSyncState();
+        if (!incremental) {
+            persistentData.setPersistentString(FULL_SYNC_TIME_KEY, Long.toString(now));
+        }
         remoteFolder.close(false);
         // TODO - more
 
@@ -1258,9 +1428,17 @@ public class MessagingController implements Runnable {
             Store remoteStore = null;
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
+            // Moves are collected here, keyed by source and then target mailbox, so that each
+            // group can be sent to the server with a single copy
+            HashMap<Long, HashMap<Long, ArrayList<EmailContent.Message[]>>> moves =
+                new HashMap<Long, HashMap<Long, ArrayList<EmailContent.Message[]>>>();
+            // Flag changes are collected here, keyed by mailbox, so that each mailbox's changes
+            // can be sent to the server together
+            HashMap<Long, ArrayList<EmailContent.Message[]>> flagChanges =
+                new HashMap<Long, ArrayList<EmailContent.Message[]>>();
             // loop through messages marked as needing updates
             while (updates.moveToNext()) {
-                boolean changeMoveToTrash = false;
+                boolean changeMove = false;
                 boolean changeRead = false;
                 boolean changeFlagged = false;
 
@@ -1273,25 +1451,42 @@ public class MessagingController implements Runnable {
                     if (mailbox == null || mailbox.mId != newMessage.mMailboxKey) {
                         mailbox = Mailbox.restoreMailboxWithId(mContext, newMessage.mMailboxKey);
                     }
-                    changeMoveToTrash = (oldMessage.mMailboxKey != newMessage.mMailboxKey)
-                            && (mailbox.mType == Mailbox.TYPE_TRASH);
+                    changeMove = (oldMessage.mMailboxKey != newMessage.mMailboxKey)
+                            && (mailbox != null);
                     changeRead = oldMessage.mFlagRead != newMessage.mFlagRead;
                     changeFlagged = oldMessage.mFlagFavorite != newMessage.mFlagFavorite;
                 }
 
                 // Load the remote store if it will be needed
-                if (remoteStore == null && (changeMoveToTrash || changeRead || changeFlagged)) {
+                if (remoteStore == null && (changeMove || changeRead || changeFlagged)) {
                     remoteStore = Store.getInstance(account.getStoreUri(mContext), mContext, null);
                 }
 
                 // Dispatch here for specific change types
-                if (changeMoveToTrash) {
-                    // Move message to trash
-                    processPendingMoveToTrash(remoteStore, account, mailbox, oldMessage,
-                            newMessage);
+                if (changeMove) {
+                    // Hold the move (and its update record) until we have all of them
+                    HashMap<Long, ArrayList<EmailContent.Message[]>> targets =
+                        moves.get(oldMessage.mMailboxKey);
+                    if (targets == null) {
+                        targets = new HashMap<Long, ArrayList<EmailContent.Message[]>>();
+                        moves.put(oldMessage.mMailboxKey, targets);
+                    }
+                    ArrayList<EmailContent.Message[]> group = targets.get(mailbox.mId);
+                    if (group == null) {
+                        group = new ArrayList<EmailContent.Message[]>();
+                        targets.put(mailbox.mId, group);
+                    }
+                    group.add(new EmailContent.Message[] { oldMessage, newMessage });
+                    continue;
                 } else if (changeRead || changeFlagged) {
-                    processPendingFlagChange(remoteStore, mailbox, changeRead, changeFlagged,
-                            newMessage);
+                    // Hold the change (and its update record) until we have all of them
+                    ArrayList<EmailContent.Message[]> group = flagChanges.get(mailbox.mId);
+                    if (group == null) {
+                        group = new ArrayList<EmailContent.Message[]>();
+                        flagChanges.put(mailbox.mId, group);
+                    }
+                    group.add(new EmailContent.Message[] { oldMessage, newMessage });
+                    continue;
                 }
 
                 // Finally, delete the update
@@ -1300,6 +1495,38 @@ public class MessagingController implements Runnable {
                 resolver.delete(uri, null, null);
             }
 
+            // Send the flag changes, one mailbox at a time
+            for (Long mailboxId: flagChanges.keySet()) {
+                ArrayList<EmailContent.Message[]> group = flagChanges.get(mailboxId);
+                Mailbox flagMailbox = Mailbox.restoreMailboxWithId(mContext, mailboxId);
+                if (flagMailbox != null) {
+                    processPendingFlagChanges(remoteStore, flagMailbox, group);
+                }
+                // Delete the updates
+                for (EmailContent.Message[] pair: group) {
+                    lastMessageId = pair[0].mId;
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.UPDATED_CONTENT_URI, pair[0].mId);
+                    resolver.delete(uri, null, null);
+                }
+            }
+
+            // Now send the moves, one group at a time
+            for (HashMap<Long, ArrayList<EmailContent.Message[]>> targets: moves.values()) {
+                for (Long targetId: targets.keySet()) {
+                    ArrayList<EmailContent.Message[]> group = targets.get(targetId);
+                    Mailbox targetMailbox = Mailbox.restoreMailboxWithId(mContext, targetId);
+                    processPendingMoves(remoteStore, account, targetMailbox, group);
+                    // Delete the updates
+                    for (EmailContent.Message[] pair: group) {
+                        lastMessageId = pair[0].mId;
+                        Uri uri = ContentUris.withAppendedId(
+                                EmailContent.Message.UPDATED_CONTENT_URI, pair[0].mId);
+                        resolver.delete(uri, null, null);
+                    }
+                }
+            }
+
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
             // no point in continuing through the rest of the pending updates.
@@ -1360,25 +1587,58 @@ public class MessagingController implements Runnable {
     }
 
     /**
-     * Upsync changes to read or flagged
+     * Upsync changes to read or flagged, all in the same mailbox.  The messages are grouped by
+     * the change made to them, and the groups are sent to the server together, so that the
+     * changes cost about one round trip however many messages there are.
      *
-     * @param remoteStore
-     * @param mailbox
-     * @param changeRead
-     * @param changeFlagged
-     * @param newMessage
+     * @param remoteStore the remote store we're working in
+     * @param mailbox the mailbox the messages are in
+     * @param messages The changed messages; for each, the copy that was saved in the updates
+     * shadow table, and then the message as it is now
      */
-    private void processPendingFlagChange(Store remoteStore, Mailbox mailbox, boolean changeRead,
-            boolean changeFlagged, EmailContent.Message newMessage) throws MessagingException {
-        
-        // 0. No remote update if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+    private void processPendingFlagChanges(Store remoteStore, Mailbox mailbox,
+            ArrayList<EmailContent.Message[]> messages) throws MessagingException {
+
+        // 0. No remote update for DRAFTS or OUTBOX
+        if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
             return;
         }
 
-        // 1. No remote update for DRAFTS or OUTBOX
-        if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
+        // 1. Group the messages by change, skipping those that are local-only
+        ArrayList<EmailContent.Message> setRead = new ArrayList<EmailContent.Message>();
+        ArrayList<EmailContent.Message> clearRead = new ArrayList<EmailContent.Message>();
+        ArrayList<EmailContent.Message> setFlagged = new ArrayList<EmailContent.Message>();
+        ArrayList<EmailContent.Message> clearFlagged = new ArrayList<EmailContent.Message>();
+        for (EmailContent.Message[] pair: messages) {
+            EmailContent.Message oldMessage = pair[0];
+            EmailContent.Message newMessage = pair[1];
+            if (newMessage.mServerId == null || newMessage.mServerId.equals("")
+                    || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+                continue;
+            }
+            if (Email.DEBUG) {
+                Log.d(Email.LOG_TAG,
+                        "Update flags for msg id=" + newMessage.mId
+                        + " read=" + newMessage.mFlagRead
+                        + " flagged=" + newMessage.mFlagFavorite);
+            }
+            if (oldMessage.mFlagRead != newMessage.mFlagRead) {
+                if (newMessage.mFlagRead) {
+                    setRead.add(newMessage);
+                } else {
+                    clearRead.add(newMessage);
+                }
+            }
+            if (oldMessage.mFlagFavorite != newMessage.mFlagFavorite) {
+                if (newMessage.mFlagFavorite) {
+                    setFlagged.add(newMessage);
+                } else {
+                    clearFlagged.add(newMessage);
+                }
+            }
+        }
+        if (setRead.isEmpty() && clearRead.isEmpty() && setFlagged.isEmpty()
+                && clearFlagged.isEmpty()) {
             return;
         }
 
@@ -1392,78 +1652,104 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
-        }
-        if (Email.DEBUG) {
-            Log.d(Email.LOG_TAG,
-                    "Update flags for msg id=" + newMessage.mId
-                    + " read=" + newMessage.mFlagRead
-                    + " flagged=" + newMessage.mFlagFavorite);
-        }
-        Message[] messages = new Message[] { remoteMessage };
-        if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
-        }
-        if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
+        // 3. Finally, apply the changes.  A message that's gone from the server is simply not
+        // changed, so there's no need to look each one up first.
+        Folder.FlagChange[] changes = new Folder.FlagChange[] {
+                new Folder.FlagChange(toRemoteMessages(remoteFolder, setRead),
+                        FLAG_LIST_SEEN, true),
+                new Folder.FlagChange(toRemoteMessages(remoteFolder, clearRead),
+                        FLAG_LIST_SEEN, false),
+                new Folder.FlagChange(toRemoteMessages(remoteFolder, setFlagged),
+                        FLAG_LIST_FLAGGED, true),
+                new Folder.FlagChange(toRemoteMessages(remoteFolder, clearFlagged),
+                        FLAG_LIST_FLAGGED, false),
+        };
+        remoteFolder.setFlags(changes);
+    }
+
+    /**
+     * Return remote messages, by UID only, for local messages
+     */
+    private Message[] toRemoteMessages(Folder remoteFolder,
+            ArrayList<EmailContent.Message> localMessages) throws MessagingException {
+        Message[] remoteMessages = new Message[localMessages.size()];
+        for (int i = 0, count = remoteMessages.length; i < count; i++) {
+            remoteMessages[i] = remoteFolder.createMessage(localMessages.get(i).mServerId);
         }
+        return remoteMessages;
     }
 
     /**
-     * Process a pending trash message command.
+     * Process a group of pending move commands, all from the same mailbox to the same mailbox.
+     * The messages are copied to the remote target folder with a single command, and then
+     * deleted from the remote source folder with a single command.
      *
      * @param remoteStore the remote store we're working in
      * @param account The account in which we are working
-     * @param newMailbox The local trash mailbox
-     * @param oldMessage The message copy that was saved in the updates shadow table
-     * @param newMessage The message that was moved to the mailbox
+     * @param newMailbox The local mailbox the messages were moved to (e.g. the trash)
+     * @param messages The moved messages; for each, the copy that was saved in the updates shadow
+     * table, and then the message as it is now
      */
-    private void processPendingMoveToTrash(Store remoteStore,
-            EmailContent.Account account, Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+    private void processPendingMoves(Store remoteStore, EmailContent.Account account,
+            Mailbox newMailbox, ArrayList<EmailContent.Message[]> messages)
+            throws MessagingException {
 
-        // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+        // 0. No remote move if the messages are local-only
+        final HashMap<String, EmailContent.Message> newMessages =
+            new HashMap<String, EmailContent.Message>();
+        for (EmailContent.Message[] pair: messages) {
+            EmailContent.Message newMessage = pair[1];
+            if (newMessage.mServerId == null || newMessage.mServerId.equals("")
+                    || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+                continue;
+            }
+            newMessages.put(pair[0].mServerId, newMessage);
+        }
+        if (newMessages.isEmpty() || newMailbox == null) {
             return;
         }
 
         // 1. Escape early if we can't find the local mailbox
         // TODO smaller projection here
-        Mailbox oldMailbox = Mailbox.restoreMailboxWithId(mContext, oldMessage.mMailboxKey);
+        EmailContent.Message firstMessage = messages.get(0)[0];
+        Mailbox oldMailbox = Mailbox.restoreMailboxWithId(mContext, firstMessage.mMailboxKey);
         if (oldMailbox == null) {
             // can't find old mailbox, it may have been deleted.  just return.
             return;
         }
-        // 2. We don't support delete-from-trash here
-        if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
+        // 2. We don't support delete-from-trash here, or moves to and from the drafts and outbox
+        if (oldMailbox.mType == Mailbox.TYPE_TRASH || oldMailbox.mType == Mailbox.TYPE_DRAFTS
+                || oldMailbox.mType == Mailbox.TYPE_OUTBOX
+                || newMailbox.mType == Mailbox.TYPE_DRAFTS
+                || newMailbox.mType == Mailbox.TYPE_OUTBOX) {
             return;
         }
 
-        // 3. If DELETE_POLICY_NEVER, simply write back the deleted sentinel and return
+        // 3. If DELETE_POLICY_NEVER, simply write back the deleted sentinels and return
         //
-        // This sentinel takes the place of the server-side message, and locally "deletes" it
+        // Each sentinel takes the place of the server-side message, and locally "deletes" it
         // by inhibiting future sync or display of the message.  It will eventually go out of
         // scope when it becomes old, or is deleted on the server, and the regular sync code
         // will clean it up for us.
-        if (account.getDeletePolicy() == Account.DELETE_POLICY_NEVER) {
-            EmailContent.Message sentinel = new EmailContent.Message();
-            sentinel.mAccountKey = oldMessage.mAccountKey;
-            sentinel.mMailboxKey = oldMessage.mMailboxKey;
-            sentinel.mFlagLoaded = EmailContent.Message.FLAG_LOADED_DELETED;
-            sentinel.mFlagRead = true;
-            sentinel.mServerId = oldMessage.mServerId;
-            sentinel.save(mContext);
-
+        if (newMailbox.mType == Mailbox.TYPE_TRASH
+                && account.getDeletePolicy() == Account.DELETE_POLICY_NEVER) {
+            for (EmailContent.Message[] pair: messages) {
+                EmailContent.Message oldMessage = pair[0];
+                if (!newMessages.containsKey(oldMessage.mServerId)) continue;
+                EmailContent.Message sentinel = new EmailContent.Message();
+                sentinel.mAccountKey = oldMessage.mAccountKey;
+                sentinel.mMailboxKey = oldMessage.mMailboxKey;
+                sentinel.mFlagLoaded = EmailContent.Message.FLAG_LOADED_DELETED;
+                sentinel.mFlagRead = true;
+                sentinel.mServerId = oldMessage.mServerId;
+                sentinel.save(mContext);
+            }
             return;
         }
 
-        // The rest of this method handles server-side deletion
+        // The rest of this method handles server-side moves
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
+        // 4.  Find the remote mailbox (that we moved from), and open it
         Folder remoteFolder = remoteStore.getFolder(oldMailbox.mDisplayName);
         if (!remoteFolder.exists()) {
             return;
@@ -1475,65 +1761,103 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
+        // 5. Find the remote original messages
+        String[] uids = newMessages.keySet().toArray(new String[newMessages.size()]);
+        Message[] remoteMessages = getRemoteMessages(remoteFolder, uids);
+        if (remoteMessages.length == 0) {
             remoteFolder.close(false);
             return;
         }
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mDisplayName);
-        if (!remoteTrashFolder.exists()) {
+        // 6. Find the remote target folder, and create it if not found
+        Folder remoteTargetFolder = remoteStore.getFolder(newMailbox.mDisplayName);
+        if (!remoteTargetFolder.exists()) {
             /*
-             * If the remote trash folder doesn't exist we try to create it.
+             * If the remote target folder doesn't exist we try to create it.
              */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+            remoteTargetFolder.create(FolderType.HOLDS_MESSAGES);
         }
 
-        // 7.  Try to copy the message into the remote trash folder
+        // 7.  Try to copy the messages into the remote target folder
         // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
+        boolean copied = false;
+        if (remoteTargetFolder.exists()) {
             /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
+             * Because remoteTargetFolder may be new, we need to explicitly open it
              */
-            remoteTrashFolder.open(OpenMode.READ_WRITE, null);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
+            remoteTargetFolder.open(OpenMode.READ_WRITE, null);
+            if (remoteTargetFolder.getMode() != OpenMode.READ_WRITE) {
                 remoteFolder.close(false);
-                remoteTrashFolder.close(false);
+                remoteTargetFolder.close(false);
                 return;
             }
 
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
+            remoteFolder.copyMessages(remoteMessages, remoteTargetFolder,
                     new Folder.MessageUpdateCallbacks() {
                 public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.Message.SERVER_ID, newUid);
-                    mContext.getContentResolver().update(newMessage.getUri(), cv, null, null);
+                    // update the UID in the local target folder, because some stores will
+                    // have to change it when copying to remoteTargetFolder
+                    EmailContent.Message newMessage = newMessages.get(message.getUid());
+                    if (newMessage != null) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(EmailContent.Message.SERVER_ID, newUid);
+                        mContext.getContentResolver().update(newMessage.getUri(), cv, null, null);
+                    }
                 }
 
                 /**
-                 * This will be called if the deleted message doesn't exist and can't be
-                 * deleted (e.g. it was already deleted from the server.)  In this case,
+                 * This will be called if a moved message doesn't exist and can't be
+                 * moved (e.g. it was already deleted from the server.)  In this case,
                  * attempt to delete the local copy as well.
                  */
                 public void onMessageNotFound(Message message) {
-                    mContext.getContentResolver().delete(newMessage.getUri(), null, null);
+                    EmailContent.Message newMessage = newMessages.get(message.getUid());
+                    if (newMessage != null) {
+                        mContext.getContentResolver().delete(newMessage.getUri(), null, null);
+                    }
                 }
 
             }
             );
-            remoteTrashFolder.close(false);
+            remoteTargetFolder.close(false);
+            copied = true;
         }
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
+        // 8. Delete the messages from the remote source folder.  Unless they're being deleted
+        // (i.e. moved to the trash), that's only once they've been copied, or they'd be lost
+        // (e.g. a move in a POP3 account, which has no remote folders but the inbox)
+        if (!copied && newMailbox.mType != Mailbox.TYPE_TRASH) {
+            remoteFolder.close(false);
+            return;
+        }
+        remoteFolder.setFlags(remoteMessages, new Flag[] { Flag.DELETED }, true);
         remoteFolder.expunge();
         remoteFolder.close(false);
     }
 
+    /**
+     * Look up the remote messages for a set of UIDs.  Stores that can't look up UIDs in bulk
+     * (e.g. POP3) throw UnsupportedOperationException, so fall back to looking them up one at
+     * a time; messages that are no longer on the server are skipped.
+     *
+     * Public for testing with the individual stores.
+     */
+    public static Message[] getRemoteMessages(Folder remoteFolder, String[] uids)
+            throws MessagingException {
+        try {
+            return remoteFolder.getMessages(uids, null);
+        } catch (UnsupportedOperationException uoe) {
+            ArrayList<Message> messages = new ArrayList<Message>(uids.length);
+            for (String uid : uids) {
+                Message message = remoteFolder.getMessage(uid);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            return messages.toArray(new Message[messages.size()]);
+        }
+    }
+
     /**
      * Process a pending trash message command.
      *
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail;
+
+/**
+ * Makes the short plain text previews of message bodies shown in message lists (see
+ * MessageColumns.SNIPPET).  A snippet is made in a single pass over the start of the body: html
+ * tags are dropped (along with the contents of style, script and title elements), the common
+ * entities are decoded, and runs of whitespace become a single space.  This is not an html
+ * parser; it only needs to be good enough for a one line preview, and cheap enough to run on
+ * every message synced.
+ */
+public class Snippet {
+    // The longest snippet made, which is longer than a message list line will show
+    public static final int MAX_SNIPPET_LENGTH = 200;
+
+    // Elements whose content isn't text shown to the user
+    private static final String[] SKIPPED_ELEMENTS = new String[] {"style", "script", "title"};
+    // Elements that separate words, e.g. "one<br>two" is two words (but "one<b>two</b>" is one)
+    private static final String[] BREAKING_ELEMENTS = new String[] {
+        "br", "p", "div", "li", "td", "th", "tr", "table", "h1", "h2", "h3", "h4", "h5", "h6",
+        "blockquote", "hr"
+    };
+    // The longest entity decoded, e.g. "&#x10ffff;"
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private Snippet() {
+    }
+
+    /**
+     * Return the snippet of a plain text body, or null if there's no text
+     */
+    public static String fromPlainText(String text) {
+        return fromText(text, false);
+    }
+
+    /**
+     * Return the snippet of an html body, or null if there's no html
+     */
+    public static String fromHtmlText(String html) {
+        return fromText(html, true);
+    }
+
+    /**
+     * Return the snippet of a body, preferring its plain text to its html
+     */
+    public static String fromBody(String text, String html) {
+        if (text != null && text.length() > 0) {
+            return fromPlainText(text);
+        }
+        return fromHtmlText(html);
+    }
+
+    private static String fromText(String text, boolean html) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(MAX_SNIPPET_LENGTH);
+        int length = text.length();
+        boolean space = false;
+        int i = 0;
+        while (i < length && sb.length() < MAX_SNIPPET_LENGTH) {
+            char c = text.charAt(i);
+            if (html && c == '<') {
+                int tagEnd = findTagEnd(text, i);
+                String name = getTagName(text, i + 1, tagEnd);
+                if (isOneOf(name, BREAKING_ELEMENTS)) {
+                    space = true;
+                }
+                if (isOneOf(name, SKIPPED_ELEMENTS)) {
+                    tagEnd = findClosingTagEnd(text, tagEnd, name);
+                }
+                i = tagEnd;
+                continue;
+            }
+            if (html && c == '&') {
+                int entityEnd = findEntityEnd(text, i);
+                if (entityEnd > 0) {
+                    int decoded = decodeEntity(text.substring(i + 1, entityEnd));
+                    if (decoded != -1) {
+                        c = (char) decoded;
+                        i = entityEnd;
+                    }
+                }
+            }
+            i++;
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                space = true;
+            } else {
+                if (space && sb.length() > 0) {
+                    // Don't end with a space
+                    if (sb.length() + 1 >= MAX_SNIPPET_LENGTH) {
+                        break;
+                    }
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the index of the ';' ending the entity starting at the given '&', or -1 if there's
+     * no entity there
+     */
+    private static int findEntityEnd(String html, int start) {
+        int end = Math.min(html.length(), start + MAX_ENTITY_LENGTH + 1);
+        for (int i = start + 1; i < end; i++) {
+            if (html.charAt(i) == ';') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index after the end of the tag (or comment) starting at the given '<'
+     */
+    private static int findTagEnd(String html, int start) {
+        if (html.startsWith("<!--", start)) {
+            int end = html.indexOf("-->", start + 4);
+            return end < 0 ? html.length() : end + 3;
+        }
+        int end = html.indexOf('>', start);
+        return end < 0 ? html.length() : end + 1;
+    }
+
+    /**
+     * Return the lower case name of an opening tag, or null for a comment or a closing tag (other
+     * than one that breaks words)
+     */
+    private static String getTagName(String html, int start, int end) {
+        int nameEnd = start;
+        while (nameEnd < end && Character.isLetterOrDigit(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == start) {
+            // A closing tag still breaks words, e.g. "</p>"
+            if (start < end && html.charAt(start) == '/') {
+                String name = getTagName(html, start + 1, end);
+                return isOneOf(name, BREAKING_ELEMENTS) ? name : null;
+            }
+            return null;
+        }
+        return html.substring(start, nameEnd).toLowerCase();
+    }
+
+    /**
+     * Return the index after the closing tag of an element whose content is skipped
+     */
+    private static int findClosingTagEnd(String html, int start, String name) {
+        int length = html.length();
+        for (int i = html.indexOf("</", start); i >= 0; i = html.indexOf("</", i + 2)) {
+            if (html.regionMatches(true, i + 2, name, 0, name.length())) {
+                return findTagEnd(html, i);
+            }
+        }
+        return length;
+    }
+
+    private static boolean isOneOf(String name, String[] names) {
+        if (name != null) {
+            for (String n: names) {
+                if (n.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the character named by an entity (without its '&' and ';'), or -1 if it isn't one
+     * that's decoded.  A numeric entity must be all digits (no sign), and name a character in
+     * the basic plane (0 to 0xFFFF); characters beyond aren't worth a surrogate pair here.
+     */
+    private static int decodeEntity(String entity) {
+        if (entity.length() > 1 && entity.charAt(0) == '#') {
+            int radix = 10;
+            int start = 1;
+            if (entity.charAt(1) == 'x' || entity.charAt(1) == 'X') {
+                radix = 16;
+                start = 2;
+            }
+            if (start == entity.length()) {
+                return -1;
+            }
+            int c = 0;
+            for (int i = start; i < entity.length(); i++) {
+                int digit = Character.digit(entity.charAt(i), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                c = c * radix + digit;
+                if (c > 0xffff) {
+                    return -1;
+                }
+            }
+            return c;
+        }
+        if ("amp".equals(entity)) return '&';
+        if ("lt".equals(entity)) return '<';
+        if ("gt".equals(entity)) return '>';
+        if ("quot".equals(entity)) return '"';
+        if ("apos".equals(entity)) return '\'';
+        if ("nbsp".equals(entity)) return '\u00a0';
+        return -1;
+    }
+}
@@ -30,8 +30,6 @@ import com.mwebster.iemail.provider.EmailContent;
 import com.mwebster.iemail.provider.EmailContent.Account;
 import com.mwebster.iemail.provider.EmailContent.Mailbox;
 import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
-import com.mwebster.iemail.provider.EmailContent.Message;
-import com.mwebster.iemail.provider.EmailContent.MessageColumns;
 import com.mwebster.iemail.service.MailService;
 import com.mwebster.iemail.Preferences;
 
@@ -116,38 +114,28 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
         MailboxColumns.FLAG_VISIBLE, MailboxColumns.FLAGS
     };
 
-    private static final String FAVORITE_COUNT_SELECTION =
-        MessageColumns.FLAG_FAVORITE + "= 1";
-
-    private static final String MAILBOX_TYPE_SELECTION =
-        MailboxColumns.TYPE + " =?";
-
-    private static final String MAILBOX_ID_SELECTION =
-        MessageColumns.MAILBOX_KEY + " =?";
-
-    private static final String[] MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION = new String [] {
-        "sum(" + MailboxColumns.UNREAD_COUNT + ")"
-    };
-
-    private static final String MAILBOX_INBOX_SELECTION =
-        MailboxColumns.ACCOUNT_KEY + " =?" + " AND " + MailboxColumns.TYPE +" = "
-        + Mailbox.TYPE_INBOX;
-
-    private static final String MAILBOX_ALL_SELECTION =
-        MailboxColumns.ACCOUNT_KEY + " =?" + " AND (" +
-        MailboxColumns.TYPE + " = " + Mailbox.TYPE_INBOX + " OR " +
-        MailboxColumns.TYPE + " = " + Mailbox.TYPE_MAIL + ") AND " +
-        MailboxColumns.FLAG_VISIBLE + "=1";
-
-    private static final int MAILBOX_UNREAD_COUNT_COLUMN_UNREAD_COUNT = 0;
-    private static final String[] MAILBOX_UNREAD_COUNT_PROJECTION = new String [] {
-        MailboxColumns.UNREAD_COUNT
+    /**
+     * The counts shown by the summary mailboxes, all read at once from the counts that the
+     * provider keeps for each mailbox and account
+     */
+    private static final int SUMMARY_COUNT_INBOX_UNREAD = 0;
+    private static final int SUMMARY_COUNT_ALL_UNREAD = 1;
+    private static final int SUMMARY_COUNT_FAVORITES = 2;
+    private static final int SUMMARY_COUNT_DRAFTS = 3;
+    private static final int SUMMARY_COUNT_OUTBOX = 4;
+    private static final String[] SUMMARY_COUNT_PROJECTION = new String[] {
+        "sum(case " + MailboxColumns.TYPE + " when " + Mailbox.TYPE_INBOX + " then " +
+                MailboxColumns.UNREAD_COUNT + " else 0 end)",
+        "sum(case when " + MailboxColumns.TYPE + " in (" + Mailbox.TYPE_INBOX + ',' +
+                Mailbox.TYPE_MAIL + ") and " + MailboxColumns.FLAG_VISIBLE + "=1 then " +
+                MailboxColumns.UNREAD_COUNT + " else 0 end)",
+        "sum(" + MailboxColumns.FAVORITE_COUNT + ")",
+        "sum(case " + MailboxColumns.TYPE + " when " + Mailbox.TYPE_DRAFTS + " then " +
+                MailboxColumns.MESSAGE_COUNT + " else 0 end)",
+        "sum(case " + MailboxColumns.TYPE + " when " + Mailbox.TYPE_OUTBOX + " then " +
+                MailboxColumns.MESSAGE_COUNT + " else 0 end)"
     };
 
-    private static final String ALL_UNREAD_COUNT_FOLDERS = "(" +
-        MailboxColumns.TYPE + " = " + Mailbox.TYPE_INBOX + " OR " +
-        MailboxColumns.TYPE + " = " + Mailbox.TYPE_MAIL + ")";
-
     /**
      * Start the Accounts list activity.  Uses the CLEAR_TOP flag which means that other stacked
      * activities may be killed in order to get back to Accounts.
@@ -251,56 +239,23 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
         }
     }
 
-    private static int getUnreadCountByMailboxType(Context context, int type) {
-        int count = 0;
+    /**
+     * Return the counts shown by the summary mailboxes (see SUMMARY_COUNT_PROJECTION)
+     */
+    private static int[] getSummaryCounts(Context context) {
+        int[] counts = new int[SUMMARY_COUNT_PROJECTION.length];
         Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION,
-                MAILBOX_TYPE_SELECTION,
-                new String[] { String.valueOf(type) }, null);
-
+                SUMMARY_COUNT_PROJECTION, null, null, null);
         try {
             if (c.moveToFirst()) {
-                return c.getInt(0);
-            }
-        } finally {
-            c.close();
-        }
-        return count;
-    }
-
-    private static int getUnreadCountAllFolders(Context context) {
-        int count = 0;
-        Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION, ALL_UNREAD_COUNT_FOLDERS, null, null);
-        try {
-            c.moveToPosition(-1);
-            while (c.moveToNext()) {
-                count = count + c.getInt(0);
-            }
-        } finally {
-            c.close();
-        }
-        return count;
-    }
-
-    private static int getCountByMailboxType(Context context, int type) {
-        int count = 0;
-        Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                EmailContent.ID_PROJECTION, MAILBOX_TYPE_SELECTION,
-                new String[] { String.valueOf(type) }, null);
-
-        try {
-            c.moveToPosition(-1);
-            while (c.moveToNext()) {
-                count += EmailContent.count(context, Message.CONTENT_URI,
-                        MAILBOX_ID_SELECTION,
-                        new String[] {
-                            String.valueOf(c.getLong(EmailContent.ID_PROJECTION_COLUMN)) });
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = c.getInt(i);
+                }
             }
         } finally {
             c.close();
         }
-        return count;
+        return counts;
     }
 
     /**
@@ -315,20 +270,16 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
      * TODO: This simple list is incomplete.  For example, we probably want drafts, outbox, and
      * (maybe) sent (again, these would be displayed only when non-empty).
      *
-     * TODO: We need a way to count total unread in all inboxes (probably with some provider help)
-     *
-     * TODO: We need a way to count total # messages in all other summary boxes (probably with
-     * some provider help).
-     *
      * TODO use narrower account projection (see LoadAccountsTask)
      */
     private MatrixCursor getSummaryChildCursor() {
         MatrixCursor childCursor = new MatrixCursor(MAILBOX_PROJECTION);
+        int[] counts = getSummaryCounts(this);
         int count;
         RowBuilder row;
         // INBOX only unread count or ALL mailboxes?
-        count = includeAllMailboxesUnread ? getUnreadCountAllFolders(this):
-                getUnreadCountByMailboxType(this, Mailbox.TYPE_INBOX);
+        count = counts[includeAllMailboxesUnread ? SUMMARY_COUNT_ALL_UNREAD
+                : SUMMARY_COUNT_INBOX_UNREAD];
         row = childCursor.newRow();
         row.add(Long.valueOf(Mailbox.QUERY_ALL_INBOXES));   // MAILBOX_COLUMN_ID = 0;
         row.add(getString(R.string.account_folder_list_summary_inbox)); // MAILBOX_DISPLAY_NAME
@@ -336,7 +287,7 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
         row.add(Integer.valueOf(Mailbox.TYPE_INBOX));           // MAILBOX_TYPE = 3;
         row.add(Integer.valueOf(count));                        // MAILBOX_UNREAD_COUNT = 4;
         // TYPE_MAIL (FAVORITES)
-        count = EmailContent.count(this, Message.CONTENT_URI, FAVORITE_COUNT_SELECTION, null);
+        count = counts[SUMMARY_COUNT_FAVORITES];
         if (count > 0) {
             row = childCursor.newRow();
             row.add(Long.valueOf(Mailbox.QUERY_ALL_FAVORITES)); // MAILBOX_COLUMN_ID = 0;
@@ -347,7 +298,7 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
             row.add(Integer.valueOf(count));                        // MAILBOX_UNREAD_COUNT = 4;
         }
         // TYPE_DRAFTS
-        count = getCountByMailboxType(this, Mailbox.TYPE_DRAFTS);
+        count = counts[SUMMARY_COUNT_DRAFTS];
         if (count > 0) {
             row = childCursor.newRow();
             row.add(Long.valueOf(Mailbox.QUERY_ALL_DRAFTS));    // MAILBOX_COLUMN_ID = 0;
@@ -357,7 +308,7 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
             row.add(Integer.valueOf(count));                        // MAILBOX_UNREAD_COUNT = 4;
         }
         // TYPE_OUTBOX
-        count = getCountByMailboxType(this, Mailbox.TYPE_OUTBOX);
+        count = counts[SUMMARY_COUNT_OUTBOX];
         if (count > 0) {
             row = childCursor.newRow();
             row.add(Long.valueOf(Mailbox.QUERY_ALL_OUTBOX));    // MAILBOX_COLUMN_ID = 0;
@@ -873,30 +824,9 @@ public class AccountFolderList extends ListActivity implements OnItemClickListen
                 emailView.setVisibility(View.VISIBLE);
             }
 
-            int unreadMessageCount = 0;
-            Cursor c;
-            if (includeAllMailboxesUnread) {
-            c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                    MAILBOX_UNREAD_COUNT_PROJECTION,
-                    MAILBOX_ALL_SELECTION,
-                    new String[] { String.valueOf(accountId) }, null); }
-            else {
-            c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                    MAILBOX_UNREAD_COUNT_PROJECTION,
-                    MAILBOX_INBOX_SELECTION,
-                    new String[] { String.valueOf(accountId) }, null);
-            }
-            try {
-                c.move(-1);
-                while (c.moveToNext()) {
-                    String count = c.getString(MAILBOX_UNREAD_COUNT_COLUMN_UNREAD_COUNT);
-                    if (count != null) {
-                        unreadMessageCount += Integer.valueOf(count);
-                    }
-                }
-            } finally {
-                c.close();
-            }
+            int unreadMessageCount = cursor.getInt(includeAllMailboxesUnread
+                    ? Account.CONTENT_ALL_UNREAD_COUNT_COLUMN
+                    : Account.CONTENT_UNREAD_COUNT_COLUMN);
 
             view.findViewById(R.id.all_message_count).setVisibility(View.GONE);
             TextView unreadCountView = (TextView) view.findViewById(R.id.new_message_count);
@@ -29,8 +29,6 @@ import com.mwebster.iemail.provider.EmailContent.Account;
 import com.mwebster.iemail.provider.EmailContent.AccountColumns;
 import com.mwebster.iemail.provider.EmailContent.Mailbox;
 import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
-import com.mwebster.iemail.provider.EmailContent.Message;
-import com.mwebster.iemail.provider.EmailContent.MessageColumns;
 import com.mwebster.iemail.service.IEmailService;
 
 import android.accounts.AccountManager;
@@ -77,8 +75,6 @@ public class MailboxList extends ListActivity implements OnItemClickListener, On
         + " AND " + MailboxColumns.FLAG_VISIBLE + "=1";
     private static final String MAILBOX_SELECTION_ALL = MailboxColumns.ACCOUNT_KEY + "=?"
     + " AND " + MailboxColumns.TYPE + "<" + Mailbox.TYPE_NOT_EMAIL;
-    private static final String MESSAGE_MAILBOX_ID_SELECTION =
-        MessageColumns.MAILBOX_KEY + "=?";
 
     // UI support
     private ListView mListView;
@@ -398,14 +394,16 @@ public class MailboxList extends ListActivity implements OnItemClickListener, On
             Cursor c;
             if (showHidden) {
                 c = MailboxList.this.managedQuery(
-                        EmailContent.Mailbox.CONTENT_URI,
+                        EmailContent.uriWithNotifyAccount(EmailContent.Mailbox.CONTENT_URI,
+                                mAccountKey),
                         MailboxList.this.mListAdapter.PROJECTION,
                         MAILBOX_SELECTION_ALL,
                         new String[] { String.valueOf(mAccountKey) },
                         MailboxColumns.TYPE + "," + MailboxColumns.DISPLAY_NAME);
             } else {
                 c = MailboxList.this.managedQuery(
-                        EmailContent.Mailbox.CONTENT_URI,
+                        EmailContent.uriWithNotifyAccount(EmailContent.Mailbox.CONTENT_URI,
+                                mAccountKey),
                         MailboxList.this.mListAdapter.PROJECTION,
                         MAILBOX_SELECTION,
                         new String[] { String.valueOf(mAccountKey) },
@@ -444,16 +442,12 @@ public class MailboxList extends ListActivity implements OnItemClickListener, On
         protected int[] doInBackground(Void... params) {
             int[] counts = new int[2];
             if (mDraftMailboxKey != -1) {
-                counts[0] = EmailContent.count(MailboxList.this, Message.CONTENT_URI,
-                        MESSAGE_MAILBOX_ID_SELECTION,
-                        new String[] { String.valueOf(mDraftMailboxKey)});
+                counts[0] = Mailbox.getMessageCount(MailboxList.this, mDraftMailboxKey);
             } else {
                 counts[0] = -1;
             }
             if (mTrashMailboxKey != -1) {
-                counts[1] = EmailContent.count(MailboxList.this, Message.CONTENT_URI,
-                        MESSAGE_MAILBOX_ID_SELECTION,
-                        new String[] { String.valueOf(mTrashMailboxKey)});
+                counts[1] = Mailbox.getMessageCount(MailboxList.this, mTrashMailboxKey);
             } else {
                 counts[1] = -1;
             }
@@ -18,6 +18,7 @@ package com.mwebster.iemail.activity;
 
 import com.mwebster.iemail.Controller;
 import com.mwebster.iemail.Email;
+import com.mwebster.iemail.Preferences;
 import com.mwebster.iemail.R;
 import com.mwebster.iemail.Utility;
 import com.mwebster.iemail.activity.setup.AccountSecurity;
@@ -57,6 +58,9 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -69,6 +73,7 @@ import android.view.View.OnClickListener;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.view.animation.Animation.AnimationListener;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.CursorAdapter;
@@ -77,6 +82,7 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.OnItemClickListener;
 
 import java.lang.reflect.Array;
@@ -88,7 +94,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 public class MessageList extends ListActivity implements OnItemClickListener, OnClickListener,
-        AnimationListener {
+        OnScrollListener, AnimationListener {
     // Intent extras (internal to this activity)
     private static final String EXTRA_ACCOUNT_ID = "com.mwebster.iemail.activity._ACCOUNT_ID";
     private static final String EXTRA_MAILBOX_TYPE = "com.mwebster.iemail.activity.MAILBOX_TYPE";
@@ -107,6 +113,10 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
 
     private static final int REQUEST_SECURITY = 0;
 
+    // The list is loaded this many messages at a time (see LoadPageTask); a page fills the screen
+    // several times over
+    private static final int MESSAGE_PAGE_SIZE = 50;
+
     // UI support
     private ListView mListView;
     private View mMultiSelectPanel;
@@ -137,9 +147,14 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
     private ContentResolver mResolver;
     private long mMailboxId = -1;
     private LoadMessagesTask mLoadMessagesTask;
+    private LoadPageTask mLoadPageTask;
+    // The mailbox view shown in the list, and whether it has messages past the pages loaded
+    private Uri mMailboxViewUri;
+    private boolean mHasMorePages = false;
     private FindMailboxTask mFindMailboxTask;
     private SetTitleTask mSetTitleTask;
     private SetFooterTask mSetFooterTask;
+    private SelectAllTask mSelectAllTask;
 
     public final static String[] MAILBOX_FIND_INBOX_PROJECTION = new String[] {
         EmailContent.RECORD_ID, MailboxColumns.TYPE, MailboxColumns.FLAG_VISIBLE
@@ -184,7 +199,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         EmailContent.RECORD_ID, MessageColumns.MAILBOX_KEY, MessageColumns.ACCOUNT_KEY,
         MessageColumns.DISPLAY_NAME, MessageColumns.SUBJECT, MessageColumns.TIMESTAMP,
         MessageColumns.FLAG_READ, MessageColumns.FLAG_FAVORITE, MessageColumns.FLAG_ATTACHMENT,
-        MessageColumns.FLAGS,
+        MessageColumns.FLAGS, MessageColumns.SNIPPET,
     };
 
     /**
@@ -321,6 +336,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         ((Button) findViewById(R.id.account_title_button)).setOnClickListener(this);
 
         mListView.setOnItemClickListener(this);
+        mListView.setOnScrollListener(this);
         mListView.setItemsCanFocus(false);
         registerForContextMenu(mListView);
 
@@ -407,18 +423,46 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         autoRefreshStaleMailbox();
     }
 
+    /**
+     * The list's cursor isn't managed (each page loaded replaces it), so it's deactivated here
+     * as a managed cursor would be, and requeried in onRestart
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        Utility.cancelTaskInterrupt(mLoadPageTask);
+        mLoadPageTask = null;
+        Cursor cursor = mListAdapter.getCursor();
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.deactivate();
+        }
+    }
+
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+        Cursor cursor = mListAdapter.getCursor();
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.requery();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
         Utility.cancelTaskInterrupt(mLoadMessagesTask);
         mLoadMessagesTask = null;
+        Utility.cancelTaskInterrupt(mLoadPageTask);
+        mLoadPageTask = null;
         Utility.cancelTaskInterrupt(mFindMailboxTask);
         mFindMailboxTask = null;
         Utility.cancelTaskInterrupt(mSetTitleTask);
         mSetTitleTask = null;
         Utility.cancelTaskInterrupt(mSetFooterTask);
         mSetFooterTask = null;
+        Utility.cancelTaskInterrupt(mSelectAllTask);
+        mSelectAllTask = null;
         Utility.cancelTaskInterrupt(mGetFolderListTask);
         mGetFolderListTask = null;
         mListAdapter.changeCursor(null);
@@ -475,6 +519,22 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         }
     }
 
+    /**
+     * Load the next page of the list as the user scrolls towards the end of the loaded pages
+     */
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mHasMorePages && mLoadPageTask == null
+                && firstVisibleItem + visibleItemCount
+                        >= mListAdapter.getCount() - MESSAGE_PAGE_SIZE / 2) {
+            mLoadPageTask = new LoadPageTask(false);
+            mLoadPageTask.execute();
+        }
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         if (view != mListFooterView) {
             MessageListItem itemView = (MessageListItem) view;
@@ -721,17 +781,15 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         showMultiPanel(false);
     }
 
+    /**
+     * Select every message in the view, including those on pages not loaded yet
+     */
     private void onSelectAll() {
         int nummsgs = mListAdapter.getCount();
-        if (nummsgs == 0) { return; }
-        Cursor c = mListAdapter.getCursor();
-        c.moveToPosition(-1);
-        while (c.moveToNext()) {
-            long id = c.getInt(MessageListAdapter.COLUMN_ID);
-            mListAdapter.addToSelectedSet(id);
-        }
-        onRefresh();
-        showMultiPanel(true);
+        if (nummsgs == 0 || mMailboxViewUri == null) { return; }
+        Utility.cancelTaskInterrupt(mSelectAllTask);
+        mSelectAllTask = new SelectAllTask();
+        mSelectAllTask.execute();
     }
 
     private void onOpenMessage(long messageId, long mailboxId) {
@@ -836,9 +894,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
                     return;
                 targetFolderId = mFolderId.get(which);
                 HashSet<Long> cloneSet = new HashSet<Long>(selectedSet);
-                for (Long id : cloneSet) {
-                    mController.moveMessage(id, mMailboxId, targetFolderId);
-                }
+                mController.moveMessages(cloneSet, targetFolderId);
                 Toast.makeText(MessageList.this, getResources().getQuantityString(
                         R.plurals.message_moved_toast, cloneSet.size()), Toast.LENGTH_SHORT).show();
                 selectedSet.clear();
@@ -899,9 +955,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
     private void onMultiDelete(Set<Long> selectedSet) {
         // Clone the set, because deleting is going to thrash things
         HashSet<Long> cloneSet = new HashSet<Long>(selectedSet);
-        for (Long id : cloneSet) {
-            mController.deleteMessage(id, -1);
-        }
+        mController.deleteMessages(cloneSet);
         Toast.makeText(this, getResources().getQuantityString(
                 R.plurals.message_deleted_toast, cloneSet.size()), Toast.LENGTH_SHORT).show();
         selectedSet.clear();
@@ -1351,18 +1405,16 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
     }
 
     /**
-     * Async task for loading a single folder out of the UI thread
-     *
-     * The code here (for merged boxes) is a placeholder/hack and should be replaced.  Some
-     * specific notes:
-     * TODO:  Move the double query into a specialized URI that returns all inbox messages
-     * and do the dirty work in raw SQL in the provider.
-     * TODO:  Generalize the query generation so we can reuse it in MessageView (for next/prev)
+     * Async task for loading a single folder out of the UI thread.  The provider resolves the
+     * merged boxes itself (see Message.getMailboxViewUri), as it does for MessageView's next/prev.
+     * Only the first page of the folder is loaded here; LoadPageTask loads the rest on scrolling.
      */
     private class LoadMessagesTask extends AsyncTask<Void, Void, Cursor> {
 
         private long mMailboxKey;
         private long mAccountKey;
+        private int mPageSize;
+        private Uri mViewUri;
 
         /**
          * Special constructor to cache some local info
@@ -1370,17 +1422,17 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         public LoadMessagesTask(long mailboxKey, long accountKey) {
             mMailboxKey = mailboxKey;
             mAccountKey = accountKey;
-            Context context = getApplicationContext();
+            // Load enough to restore the saved position of the list
+            mPageSize = Math.max(MESSAGE_PAGE_SIZE, mSavedItemPosition + MESSAGE_PAGE_SIZE);
         }
 
         @Override
         protected Cursor doInBackground(Void... params) {
-            String selection =
-                Utility.buildMailboxIdSelection(MessageList.this.mResolver, mMailboxKey, mContext);
-            Cursor c = MessageList.this.managedQuery(
-                    EmailContent.Message.CONTENT_URI, MESSAGE_PROJECTION,
-                    selection, null, EmailContent.MessageColumns.TIMESTAMP + " DESC");
-            return c;
+            Preferences prefs = Preferences.getPreferences(mContext);
+            mViewUri = EmailContent.Message.getMailboxViewUri(mMailboxKey,
+                    prefs.getShowAllMailboxesCombined(), prefs.getShowOnlyUnreadCombined());
+            return Message.queryMailboxViewPage(MessageList.this, mViewUri, MESSAGE_PROJECTION,
+                    0, -1, mPageSize);
         }
 
         @Override
@@ -1388,7 +1440,11 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
             if (cursor == null || cursor.isClosed()) {
                 return;
             }
-            MessageList.this.mListAdapter.changeCursor(cursor);
+            // Any page still loading belongs to the list being replaced
+            mLoadPageTask = null;
+            mMailboxViewUri = mViewUri;
+            mHasMorePages = cursor.getCount() >= mPageSize;
+            MessageList.this.mListAdapter.changeCursor(new PagedCursor(cursor));
             // changeCursor occurs the jumping of position in ListView, so it's need to restore
             // the position;
             restoreListPosition();
@@ -1397,6 +1453,117 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
             }
         }
 
+    /**
+     * Re-fetch the pages of the list loaded so far, when the provider notifies of a change.  Rows
+     * further down the view aren't queried until the user scrolls to them.
+     */
+    private void refreshMessagePages() {
+        if (mMailboxViewUri == null) {
+            // The first page is still loading
+            return;
+        }
+        // This supersedes any page already loading (see LoadPageTask.onPostExecute)
+        mLoadPageTask = new LoadPageTask(true);
+        mLoadPageTask.execute();
+    }
+
+    /**
+     * Async task for loading the next page of the list (see Message.queryMailboxViewPage), or
+     * for re-fetching the pages loaded so far.  Pages are found from the timestamp and id of the
+     * last row loaded, so a page costs the same however far down the list it is.
+     */
+    private class LoadPageTask extends AsyncTask<Void, Void, Cursor> {
+        private final boolean mRefresh;
+        private final Uri mViewUri = mMailboxViewUri;
+        private final boolean mHadMorePages = mHasMorePages;
+        private final Cursor mFrom = mListAdapter.getCursor();
+        private long mLastTimestamp = 0;
+        private long mLastId = -1;
+
+        /**
+         * @param refresh true to re-fetch the pages loaded, false to load the next page
+         */
+        public LoadPageTask(boolean refresh) {
+            mRefresh = refresh;
+            if (mFrom != null && !mFrom.isClosed() && mFrom.moveToLast()) {
+                mLastTimestamp = mFrom.getLong(MessageListAdapter.COLUMN_DATE);
+                mLastId = mFrom.getLong(MessageListAdapter.COLUMN_ID);
+            }
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            if (!mRefresh) {
+                return Message.queryMailboxViewPage(MessageList.this, mViewUri,
+                        MESSAGE_PROJECTION, mLastTimestamp, mLastId, MESSAGE_PAGE_SIZE);
+            } else if (mLastId == -1) {
+                return Message.queryMailboxViewPage(MessageList.this, mViewUri,
+                        MESSAGE_PROJECTION, 0, -1, MESSAGE_PAGE_SIZE);
+            } else if (!mHadMorePages) {
+                // The whole view was loaded, so any message added past the end belongs in it too
+                return mResolver.query(mViewUri, MESSAGE_PROJECTION, null, null,
+                        Message.KEY_TIMESTAMP_ID_DESC);
+            } else {
+                return Message.queryMailboxViewThrough(MessageList.this, mViewUri,
+                        MESSAGE_PROJECTION, mLastTimestamp, mLastId);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            // Only the latest task may change the list, and only if it's still the one paged from
+            if (this != mLoadPageTask || mListAdapter.getCursor() != mFrom) {
+                cursor.close();
+                return;
+            }
+            mLoadPageTask = null;
+            if (mRefresh) {
+                if (mLastId == -1) {
+                    mHasMorePages = cursor.getCount() >= MESSAGE_PAGE_SIZE;
+                }
+                mListAdapter.changeCursor(new PagedCursor(cursor));
+            } else {
+                mHasMorePages = cursor.getCount() >= MESSAGE_PAGE_SIZE;
+                if (cursor.getCount() == 0) {
+                    cursor.close();
+                    return;
+                }
+                mListAdapter.changeCursor(((PagedCursor) mFrom).withPage(cursor));
+            }
+        }
+    }
+
+    /**
+     * Async task for selecting all of the view.  Only the pages scrolled to are in the list's
+     * cursor, so the ids of the whole view are queried (see Message.queryMailboxViewIds).
+     */
+    private class SelectAllTask extends AsyncTask<Void, Void, long[]> {
+        private final Uri mViewUri = mMailboxViewUri;
+
+        @Override
+        protected long[] doInBackground(Void... params) {
+            return Message.queryMailboxViewIds(MessageList.this, mViewUri);
+        }
+
+        @Override
+        protected void onPostExecute(long[] ids) {
+            // The list may have been switched to another view meanwhile
+            if (ids == null || this != mSelectAllTask || !mViewUri.equals(mMailboxViewUri)) {
+                return;
+            }
+            mSelectAllTask = null;
+            for (long id : ids) {
+                mListAdapter.addToSelectedSet(id);
+            }
+            mListView.invalidateViews();
+            onRefresh();
+            showMultiPanel(true);
+        }
+    }
+
     private class SetTitleTask extends AsyncTask<Void, Void, Object[]> {
 
         private long mMailboxKey;
@@ -1545,7 +1712,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
                     }
                     break;
                 case MSG_REQUERY_LIST:
-                    mListAdapter.doRequery();
+                    refreshMessagePages();
                     if (mMultiSelectPanel.getVisibility() == View.VISIBLE) {
                         updateFooterButtonNames();
                     }
@@ -1752,6 +1919,7 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
         public static final int COLUMN_FAVORITE = 7;
         public static final int COLUMN_ATTACHMENTS = 8;
         public static final int COLUMN_FLAGS = 9;
+        public static final int COLUMN_SNIPPET = 10;
 
         Context mContext;
         private LayoutInflater mInflater;
@@ -1816,14 +1984,6 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
             }
         }
 
-        /**
-         * Called in UI thread only, from Handler, to complete the requery that we
-         * intercepted in onContentChanged().
-         */
-        public void doRequery() {
-            super.onContentChanged();
-        }
-
         class RefreshTimer extends Timer {
             private TimerTask timerTask = null;
 
@@ -1893,7 +2053,21 @@ public class MessageList extends ListActivity implements OnItemClickListener, On
 
             TextView subjectView = (TextView) view.findViewById(R.id.subject);
             text = cursor.getString(COLUMN_SUBJECT);
-            subjectView.setText(text);
+            String snippet = cursor.getString(COLUMN_SNIPPET);
+            if (snippet != null && snippet.length() > 0) {
+                // The preview follows the subject, in the secondary text color
+                SpannableStringBuilder ssb = new SpannableStringBuilder();
+                if (text != null) {
+                    ssb.append(text).append(" - ");
+                }
+                int start = ssb.length();
+                ssb.append(snippet);
+                ssb.setSpan(new ForegroundColorSpan(mTextColorSecondary.getDefaultColor()),
+                        start, ssb.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                subjectView.setText(ssb);
+            } else {
+                subjectView.setText(text);
+            }
             text = null;
             if (mMailboxId < -1) {
                 TextView folderView = (TextView) view.findViewById(R.id.folder);
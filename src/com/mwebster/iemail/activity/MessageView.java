@@ -18,6 +18,7 @@ package com.mwebster.iemail.activity;
 
 import com.mwebster.iemail.Controller;
 import com.mwebster.iemail.Email;
+import com.mwebster.iemail.Preferences;
 import com.mwebster.iemail.R;
 import com.mwebster.iemail.Utility;
 import com.mwebster.iemail.mail.Address;
@@ -1149,11 +1150,12 @@ public class MessageView extends Activity implements OnClickListener {
 
         @Override
         protected Cursor doInBackground(Void... params) {
-            String selection = Utility.buildMailboxIdSelection(getContentResolver(),
-                    mLocalMailboxId, getBaseContext());
-            Cursor c = getContentResolver().query(EmailContent.Message.CONTENT_URI,
+            Preferences prefs = Preferences.getPreferences(MessageView.this);
+            Uri uri = EmailContent.Message.getMailboxViewUri(mLocalMailboxId,
+                    prefs.getShowAllMailboxesCombined(), prefs.getShowOnlyUnreadCombined());
+            Cursor c = getContentResolver().query(uri,
                     EmailContent.ID_PROJECTION,
-                    selection, null,
+                    null, null,
                     EmailContent.MessageColumns.TIMESTAMP + " DESC");
             return c;
         }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.activity;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+/**
+ * A list of messages loaded a page at a time (see Message.queryMailboxViewPage).  Adding a page
+ * makes a new cursor over the same pages and the new one, so that the rows already loaded are
+ * not queried again; the new cursor takes over the pages, so closing the old one (as
+ * CursorAdapter.changeCursor does) leaves them open.
+ */
+/* package */ class PagedCursor extends MergeCursor {
+    private final Cursor[] mPages;
+    private boolean mPagesTaken = false;
+
+    /* package */ PagedCursor(Cursor firstPage) {
+        this(new Cursor[] {firstPage});
+    }
+
+    private PagedCursor(Cursor[] pages) {
+        super(pages);
+        mPages = pages;
+    }
+
+    /**
+     * Return a cursor over this cursor's pages followed by another; this cursor must not be used
+     * afterwards, other than to close it.
+     */
+    /* package */ PagedCursor withPage(Cursor page) {
+        Cursor[] pages = new Cursor[mPages.length + 1];
+        System.arraycopy(mPages, 0, pages, 0, mPages.length);
+        pages[mPages.length] = page;
+        mPagesTaken = true;
+        return new PagedCursor(pages);
+    }
+
+    @Override
+    public void close() {
+        // Once taken, the pages belong to the cursor that took them
+        if (!mPagesTaken) {
+            super.close();
+        }
+    }
+}
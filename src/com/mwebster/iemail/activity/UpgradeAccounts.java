@@ -680,7 +680,7 @@ public class UpgradeAccounts extends ListActivity implements OnClickListener {
                     if (makeDeleteSentinels && oldMessage.isSet(Flag.DELETED)) {
                         // Special case for POP3 locally-deleted messages.
                         // Creates a local "deleted message sentinel" which hides the message
-                        // Echos provider code in MessagingController.processPendingMoveToTrash()
+                        // Echos provider code in MessagingController.processPendingMoves()
                         newMessage.mAccountKey = newAccount.mId;
                         newMessage.mMailboxKey = conversion.mailbox.mId;
                         newMessage.mFlagLoaded = EmailContent.Message.FLAG_LOADED_DELETED;
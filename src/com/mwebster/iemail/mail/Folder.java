@@ -141,6 +141,17 @@ public abstract class Folder {
     public abstract void setFlags(Message[] messages, Flag[] flags, boolean value)
             throws MessagingException;
 
+    /**
+     * Make several changes to flags at once, each as setFlags() would.  This is not abstract
+     * because by default the changes are simply made one at a time; stores that can send them
+     * together override it.
+     */
+    public void setFlags(FlagChange[] changes) throws MessagingException {
+        for (FlagChange change : changes) {
+            setFlags(change.mMessages, change.mFlags, change.mValue);
+        }
+    }
+
     public abstract Message[] expunge() throws MessagingException;
 
     public abstract void fetch(Message[] messages, FetchProfile fp,
@@ -180,6 +191,50 @@ public abstract class Folder {
         // Do nothing - return immediately
     }
 
+    /**
+     * Return the messages whose flags have changed since the sync state saved by
+     * saveSyncState(), with their flags fetched.  This can include new messages.  Only valid
+     * after open() was given callbacks to read the saved state.
+     *
+     * This is not abstract because most stores can't tell, and return null.
+     *
+     * @return the changed messages (empty if there were none), or null if the store can't tell,
+     * in which case the flags of every message must be checked
+     */
+    public Message[] getChangedMessages() throws MessagingException {
+        return null;
+    }
+
+    /**
+     * Return the UIDs of the messages deleted since the sync state saved by saveSyncState();
+     * see getChangedMessages().
+     *
+     * @return the deleted UIDs (empty if there were none), or null if the store can't tell
+     */
+    public String[] getDeletedUids() throws MessagingException {
+        return null;
+    }
+
+    /**
+     * Return the messages that have arrived since the sync state saved by saveSyncState(), by
+     * UID only; see getChangedMessages().
+     *
+     * @return the new messages (empty if there were none), or null if the store can't tell, in
+     * which case every message must be listed to find them
+     */
+    public Message[] getNewMessages() throws MessagingException {
+        return null;
+    }
+
+    /**
+     * Save the folder's sync state (with the callbacks given to open()), so that the next sync
+     * can ask for just the changes since this one.  Call this once every change found by this
+     * sync has been applied.
+     */
+    public void saveSyncState() throws MessagingException {
+        // Do nothing - there is no state to save
+    }
+
     /**
      * Create an empty message of the appropriate type for the Folder.
      */
@@ -219,6 +274,21 @@ public abstract class Folder {
                 Flag[] setFlags, Flag[] clearFlags) throws MessagingException;
     }
 
+    /**
+     * A change to flags, for setFlags(FlagChange[]): flags to set or clear on some messages
+     */
+    public static class FlagChange {
+        public final Message[] mMessages;
+        public final Flag[] mFlags;
+        public final boolean mValue;
+
+        public FlagChange(Message[] messages, Flag[] flags, boolean value) {
+            mMessages = messages;
+            mFlags = flags;
+            mValue = value;
+        }
+    }
+
     /**
      * Callback interface by which a folder can report UID changes caused by certain operations.
      */
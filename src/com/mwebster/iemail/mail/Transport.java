@@ -120,6 +120,12 @@ public interface Transport {
      */
     public void reopenTls() throws MessagingException;
     
+    /**
+     * Compress everything sent and received from now on as a DEFLATE stream (RFC 1951), once
+     * the protocol has agreed to (e.g. IMAP COMPRESS, RFC 4978).
+     */
+    public void startCompression() throws IOException;
+
     /**
      * @return true if the connection is open
      */
@@ -18,7 +18,6 @@ package com.mwebster.iemail.mail.store;
 
 import com.mwebster.iemail.Email;
 import com.mwebster.iemail.FixedLengthInputStream;
-import com.mwebster.iemail.PeekableInputStream;
 import com.mwebster.iemail.mail.MessagingException;
 import com.mwebster.iemail.mail.transport.DiscourseLogger;
 import com.mwebster.iemail.mail.transport.LoggingInputStream;
@@ -28,6 +27,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -43,7 +43,25 @@ public class ImapResponseParser {
     // handled by Locale.US
     private final static SimpleDateFormat DATE_TIME_FORMAT =
             new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
-    private final PeekableInputStream mIn;
+
+    // The most read from the stream at once
+    private static final int BUFFER_SIZE = 4096;
+    // Atoms that most responses contain, which are returned as these strings rather than new
+    // ones for each response
+    private static final String[] COMMON_ATOMS = {
+        "OK", "NO", "BAD", "BYE", "FETCH", "UID", "FLAGS", "MODSEQ", "RFC822.SIZE",
+        "INTERNALDATE", "BODY", "BODYSTRUCTURE", "HEADER.FIELDS", "EXISTS", "RECENT", "EXPUNGE",
+        "VANISHED", "NIL", "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft",
+        "\\Recent", "TEXT", "PLAIN", "HTML", "CHARSET", "UTF-8", "7BIT", "8BIT", "BASE64",
+        "QUOTED-PRINTABLE",
+    };
+
+    private final InputStream mIn;
+    // Bytes read from mIn, of which those from mPos to mLimit are yet to be parsed
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private final InputStream mLiteralSource = new LiteralSource();
     private InputStream mActiveLiteral;
 
     /**
@@ -57,22 +75,92 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && Config.LOGD && Email.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        this.mIn = new PeekableInputStream(in);
+        this.mIn = in;
         mDiscourseLogger = discourseLogger;
     }
 
+    /**
+     * Make sure there's at least one byte in {@link #mBuffer} to parse, reading a block from
+     * {@link #mIn} if there isn't.  Return false when EOF.
+     */
+    private boolean fill() throws IOException {
+        if (mPos < mLimit) {
+            return true;
+        }
+        int count = mIn.read(mBuffer, 0, BUFFER_SIZE);
+        if (count <= 0) {
+            return false;
+        }
+        mPos = 0;
+        mLimit = count;
+        return true;
+    }
+
+    /**
+     * Return the next byte without consuming it, or -1 when EOF.
+     */
+    private int peek() throws IOException {
+        return fill() ? mBuffer[mPos] & 0xff : -1;
+    }
+
     /**
      * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
      * Return -1 when EOF.
      */
     private int readByte() throws IOException {
-        int ret = mIn.read();
-        if (ret != -1) {
-            mDiscourseLogger.addReceivedByte(ret);
+        if (!fill()) {
+            return -1;
         }
+        int ret = mBuffer[mPos++] & 0xff;
+        mDiscourseLogger.addReceivedByte(ret);
         return ret;
     }
 
+    /**
+     * Consume the bytes of {@link #mBuffer} from {@link #mPos} to end, putting them in
+     * {@link #mDiscourseLogger}.
+     */
+    private void consume(int end) {
+        for (int i = mPos; i < end; i++) {
+            mDiscourseLogger.addReceivedByte(mBuffer[i] & 0xff);
+        }
+        mPos = end;
+    }
+
+    /**
+     * Return a string of the bytes of {@link #mBuffer} from start to end, one char per byte
+     */
+    @SuppressWarnings("deprecation")
+    private String makeString(int start, int end) {
+        int length = end - start;
+        for (String atom : COMMON_ATOMS) {
+            if (atom.length() == length && matches(atom, start)) {
+                return atom;
+            }
+        }
+        // This is the (deprecated) constructor that maps each byte to the same char, as
+        // ISO-8859-1 does, without decoding
+        return new String(mBuffer, 0, start, length);
+    }
+
+    private boolean matches(String atom, int start) {
+        for (int i = 0, length = atom.length(); i < length; i++) {
+            if (mBuffer[start + i] != atom.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip the rest of a literal the caller hasn't read
+     */
+    private void skipActiveLiteral() throws IOException {
+        while (mActiveLiteral.skip(Long.MAX_VALUE) > 0)
+            ;
+        mActiveLiteral = null;
+    }
+
     /**
      * Reads the next response available on the stream and returns an
      * ImapResponse object that represents it.
@@ -82,11 +170,9 @@ public class ImapResponseParser {
         try {
             ImapResponse response = new ImapResponse();
             if (mActiveLiteral != null) {
-                while (mActiveLiteral.read() != -1)
-                    ;
-                mActiveLiteral = null;
+                skipActiveLiteral();
             }
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 readTokens(response);
@@ -108,6 +194,10 @@ public class ImapResponseParser {
             // Parser crash -- log network activities.
             onParseError(e);
             throw e;
+        } catch (SocketTimeoutException e) {
+            // Not a parse error, e.g. the wait for a change in IDLE is over; reading more here
+            // would just wait again
+            throw e;
         } catch (IOException e) {
             // Network error, or received an unexpected char.
             onParseError(e);
@@ -171,12 +261,10 @@ public class ImapResponseParser {
 
     private Object parseToken() throws IOException {
         if (mActiveLiteral != null) {
-            while (mActiveLiteral.read() != -1)
-                ;
-            mActiveLiteral = null;
+            skipActiveLiteral();
         }
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList('(', ")");
             } else if (ch == ')') {
@@ -251,35 +339,64 @@ public class ImapResponseParser {
         return list;
     }
 
+    /**
+     * Read an atom.  It's made from the bytes in the buffer where it fits, as most do.
+     */
     private String parseAtom() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int ch;
+        StringBuilder sb = null;
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
+            if (!fill()) {
                 if (Config.LOGD && Email.DEBUG) {
                     Log.d(Email.LOG_TAG, "parseAtom(): end of stream reached");
                 }
                 throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
-                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+            }
+            int start = mPos;
+            int end = start;
+            while (end < mLimit && isAtomChar(mBuffer[end] & 0xff)) {
+                end++;
+            }
+            if (end < mLimit) {
+                if (sb == null) {
+                    if (end == start) {
+                        int ch = mBuffer[end] & 0xff;
+                        throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+                    }
+                    String atom = makeString(start, end);
+                    consume(end);
+                    return atom;
                 }
+                appendChars(sb, start, end);
+                consume(end);
                 return sb.toString();
-            } else {
-                sb.append((char)readByte());
             }
+            // The atom continues past the buffer
+            if (sb == null) {
+                sb = new StringBuilder();
+            }
+            appendChars(sb, start, end);
+            consume(end);
+        }
+    }
+
+    private static boolean isAtomChar(int ch) {
+        return !(ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                // ']' is not part of atom (it's in resp-specials)
+                ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f);
+    }
+
+    private void appendChars(StringBuilder sb, int start, int end) {
+        for (int i = start; i < end; i++) {
+            sb.append((char) (mBuffer[i] & 0xff));
         }
     }
 
@@ -295,7 +412,7 @@ public class ImapResponseParser {
         int size = Integer.parseInt(readStringUntil('}'));
         expect('\r');
         expect('\n');
-        FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+        FixedLengthInputStream fixed = new FixedLengthInputStream(mLiteralSource, size);
         return fixed;
     }
 
@@ -312,14 +429,31 @@ public class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuffer sb = new StringBuffer();
-        int ch;
-        while ((ch = readByte()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
+        StringBuilder sb = null;
+        while (fill()) {
+            int start = mPos;
+            int stop = start;
+            while (stop < mLimit && mBuffer[stop] != end) {
+                stop++;
             }
+            if (stop < mLimit) {
+                String string;
+                if (sb == null) {
+                    string = makeString(start, stop);
+                } else {
+                    appendChars(sb, start, stop);
+                    string = sb.toString();
+                }
+                // Consume the end too
+                consume(stop + 1);
+                return string;
+            }
+            // The string continues past the buffer
+            if (sb == null) {
+                sb = new StringBuilder();
+            }
+            appendChars(sb, start, stop);
+            consume(stop);
         }
         if (Config.LOGD && Email.DEBUG) {
             Log.d(Email.LOG_TAG, "readQuotedString(): end of stream reached");
@@ -339,6 +473,45 @@ public class ImapResponseParser {
         return d;
     }
 
+    /**
+     * The stream literals are read from: what's left in the buffer, and then {@link #mIn}.
+     * Literals aren't put in {@link #mDiscourseLogger}.
+     */
+    private class LiteralSource extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return fill() ? mBuffer[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mPos == mLimit && length >= BUFFER_SIZE) {
+                // Nothing's buffered, and copying through the buffer would gain nothing
+                return mIn.read(b, offset, length);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, b, offset, count);
+            mPos += count;
+            return count;
+        }
+
+        /**
+         * Skip what's buffered (reading a block if nothing is), so this returns 0 only when EOF
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !fill()) {
+                return 0;
+            }
+            int count = (int) Math.min(n, mLimit - mPos);
+            mPos += count;
+            return count;
+        }
+    }
+
     /**
      * Represents an IMAP LIST response and is also the base class for the
      * ImapResponse.
@@ -451,7 +624,14 @@ public class ImapResponseParser {
         }
         
         /*
-         * Nail down the last element that possibly is FixedLengthInputStream literal. 
+         * Nail down the last element that possibly is FixedLengthInputStream literal.
+         *
+         * Literals aren't spooled to temp files here.  Literals that can be large (message
+         * bodies and parts in FETCH responses) are the last element of their response, so
+         * they're never nailed down; they are streamed straight into MIME parsing through the
+         * FixedLengthInputStream.  A literal nailed down here is one in the middle of a
+         * response (e.g. a mailbox name in LIST), which callers read with getString(), and
+         * which is short.
          */
         public void nailDown() throws IOException {
             int last = size() - 1;
@@ -459,8 +639,15 @@ public class ImapResponseParser {
                 Object o = get(last);
                 if (o instanceof FixedLengthInputStream) {
                     FixedLengthInputStream is = (FixedLengthInputStream) o;
-                    byte[] buffer = new byte[is.available()];
-                    is.read(buffer);
+                    int length = is.available();
+                    byte[] buffer = new byte[length];
+                    for (int offset = 0; offset < length; ) {
+                        int count = is.read(buffer, offset, length - offset);
+                        if (count == -1) {
+                            throw new IOException("nailDown(): end of stream reached");
+                        }
+                        offset += count;
+                    }
                     set(last, new String(buffer));
                 }
             }
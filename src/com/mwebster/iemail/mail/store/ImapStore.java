@@ -46,6 +46,7 @@ import com.beetstra.jutf7.CharsetProvider;
 
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.Base64;
 import android.util.Config;
@@ -54,6 +55,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
@@ -62,8 +64,10 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -93,6 +97,43 @@ public class ImapStore extends Store {
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED, Flag.SEEN, Flag.FLAGGED };
 
+    private static final String CAPABILITY_IDLE = "IDLE";
+    private static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    private static final String CAPABILITY_QRESYNC = "QRESYNC";
+    private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
+
+    // The folder persistent data key of a folder's sync state; see ImapSyncState
+    private static final String SYNC_STATE_KEY = "imap.syncState";
+    // The most VANISHED UIDs expanded; beyond this, the deletions are found by a full sync
+    private static final int MAX_VANISHED_UIDS = 5000;
+
+    // The most pipelined commands sent ahead of their completions, so that neither end blocks
+    // writing while the other's buffers are full
+    private static final int MAX_PIPELINE_DEPTH = 16;
+    // Commands that are never pipelined: those that change the connection's state, wait on the
+    // server, or use message sequence numbers, which an EXPUNGE would make ambiguous (RFC 3501
+    // section 5.5); see ImapConnection.executePipelinedCommands
+    private static final String[] SERIAL_COMMANDS = {
+        "LOGIN", "AUTHENTICATE", "STARTTLS", "COMPRESS", "ENABLE", "IDLE", "SELECT", "EXAMINE",
+        "CLOSE", "LOGOUT", "APPEND", "EXPUNGE", "FETCH", "STORE", "SEARCH", "COPY"
+    };
+
+    // The most connections kept for reuse; more are closed as they're released
+    private static final int MAX_POOLED_CONNECTIONS = 3;
+    // A pooled connection idle longer than this is checked with a NOOP before it's reused; one
+    // used more recently is reused as is, and reconnected if its first command fails
+    private static final long CONNECTION_PROBE_IDLE_TIME = 60 * 1000;
+    // A pooled connection idle longer than this is closed rather than reused, since the server
+    // may well have logged it out (RFC 3501 allows that after 30 minutes)
+    private static final long CONNECTION_MAX_IDLE_TIME = 25 * 60 * 1000;
+
+    /**
+     * The changes to a folder reported while waiting in {@link ImapFolder#idle}
+     */
+    public static final int IDLE_CHANGE_EXISTS = 1 << 0;    // new messages
+    public static final int IDLE_CHANGE_EXPUNGE = 1 << 1;   // deleted messages
+    public static final int IDLE_CHANGE_FETCH = 1 << 2;     // changed flags
+
     private String mHost;
     private Context mContext;
     private Transport mRootTransport;
@@ -103,8 +144,16 @@ public class ImapStore extends Store {
     private String mIdPhrase = null;
     private static String sImapId = null;
 
+    // The pooled connections, most recently used first
     private LinkedList<ImapConnection> mConnections =
             new LinkedList<ImapConnection>();
+    // Connection pool counters (guarded by mConnections); see getConnectionStats()
+    /* package */ int mCheckoutCount;
+    /* package */ int mReuseCount;
+    /* package */ int mProbeCount;
+    /* package */ int mDiscardCount;
+    private long mCheckoutTime;
+    private long mConnectionProbeIdleTime = CONNECTION_PROBE_IDLE_TIME;
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
@@ -196,6 +245,13 @@ public class ImapStore extends Store {
         mRootTransport = testTransport;
     }
 
+    /**
+     * For testing only.  Sets how long a pooled connection may be idle before it's probed.
+     */
+    /* package */ void setConnectionProbeIdleTime(long idleTime) {
+        mConnectionProbeIdleTime = idleTime;
+    }
+
     /**
      * Return, or create and return, an string suitable for use in an IMAP ID message.
      * This is constructed similarly to the way the browser sets up its user-agent strings.
@@ -266,6 +322,166 @@ public class ImapStore extends Store {
         return id.toString();
     }
 
+    /**
+     * Join a list of UIDs into an IMAP sequence set, compacting runs of consecutive UIDs into
+     * ranges (e.g. "1:3,5,7:9"), so that commands on large selections stay short.  If any of the
+     * UIDs isn't a number, they're simply listed as given.
+     *
+     * @param uids the UIDs to join
+     * @return the sequence set
+     */
+    /* package */ static String joinUidSet(String[] uids) {
+        long[] values = new long[uids.length];
+        try {
+            for (int i = 0; i < uids.length; i++) {
+                values[i] = Long.parseLong(uids[i]);
+            }
+        } catch (NumberFormatException e) {
+            return Utility.combine(uids, ',');
+        }
+        Arrays.sort(values);
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < values.length) {
+            long start = values[i];
+            long end = start;
+            // Extend the range over consecutive (or duplicate) UIDs
+            while (i + 1 < values.length && values[i + 1] <= end + 1) {
+                end = values[++i];
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start);
+            if (end != start) {
+                sb.append(':').append(end);
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split an IMAP sequence set of UIDs (e.g. "1:3,5") into the UIDs it holds; the reverse of
+     * joinUidSet().
+     *
+     * @param set the sequence set
+     * @param limit the most UIDs returned
+     * @return the UIDs, or null if the set is malformed or holds more than limit UIDs
+     */
+    /* package */ static ArrayList<String> splitUidSet(String set, int limit) {
+        ArrayList<String> uids = new ArrayList<String>();
+        try {
+            for (String range : set.split(",")) {
+                int colon = range.indexOf(':');
+                long start = Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+                long end = colon < 0 ? start : Long.parseLong(range.substring(colon + 1));
+                if (end < start) {
+                    long swap = start;
+                    start = end;
+                    end = swap;
+                }
+                if (uids.size() + (end - start) >= limit) {
+                    return null;
+                }
+                for (long uid = start; uid <= end; uid++) {
+                    uids.add(Long.toString(uid));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return uids;
+    }
+
+    /**
+     * A command for ImapConnection.executePipelinedCommands(), and once it's been executed, its
+     * responses: the untagged responses read while it was the oldest command awaiting
+     * completion, and then its tagged completion.
+     */
+    /* package */ static class PipelinedCommand {
+        final String mCommand;
+        String mTag;
+        final ArrayList<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+
+        PipelinedCommand(String command) {
+            mCommand = command;
+        }
+
+        /**
+         * Return the tagged completion, or null if the command hasn't completed
+         */
+        ImapResponse getCompletion() {
+            int size = mResponses.size();
+            ImapResponse last = size > 0 ? mResponses.get(size - 1) : null;
+            return last != null && last.mTag != null ? last : null;
+        }
+
+        /**
+         * Return whether the command completed OK
+         */
+        boolean isOk() {
+            ImapResponse completion = getCompletion();
+            return completion != null && completion.size() > 0 && "OK".equals(completion.get(0));
+        }
+    }
+
+    /**
+     * Return whether a command may be sent while others are awaiting completion
+     */
+    /* package */ static boolean canPipeline(String command) {
+        // A command with a literal waits for the server's continuation
+        if (command.endsWith("}")) {
+            return false;
+        }
+        int space = command.indexOf(' ');
+        String name = (space < 0 ? command : command.substring(0, space)).toUpperCase();
+        return !Utility.arrayContains(SERIAL_COMMANDS, name);
+    }
+
+    /**
+     * The state of a folder at a sync, from which the next sync can ask for just the changes
+     * (CONDSTORE and QRESYNC, RFC 4551 and RFC 5162), or at least just the messages that have
+     * arrived (by UIDNEXT): its UIDVALIDITY, HIGHESTMODSEQ (0 if the
+     * server doesn't keep mod-sequences for it), UIDNEXT (0 if unknown) and message count.
+     * It's saved as those four numbers, separated by spaces.
+     */
+    /* package */ static class ImapSyncState {
+        long mUidValidity;
+        long mHighestModSeq;
+        long mUidNext;
+        int mMessageCount;
+
+        /**
+         * @return the state saved as the given string, or null if there's none (or it's
+         * malformed)
+         */
+        static ImapSyncState fromString(String s) {
+            if (s == null) {
+                return null;
+            }
+            String[] values = s.split(" ");
+            if (values.length != 4) {
+                return null;
+            }
+            ImapSyncState state = new ImapSyncState();
+            try {
+                state.mUidValidity = Long.parseLong(values[0]);
+                state.mHighestModSeq = Long.parseLong(values[1]);
+                state.mUidNext = Long.parseLong(values[2]);
+                state.mMessageCount = Integer.parseInt(values[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return state;
+        }
+
+        @Override
+        public String toString() {
+            return mUidValidity + " " + mHighestModSeq + " " + mUidNext + " " + mMessageCount;
+        }
+    }
+
     /**
      * Helper function that actually builds the static part of the IMAP ID string.  This is
      * separated from getImapId for testability.  There is no escaping or encoding in IMAP ID so
@@ -360,6 +576,15 @@ public class ImapStore extends Store {
         return folder;
     }
 
+    /**
+     * Return a new folder for waiting for changes with {@link ImapFolder#idle}.  Unlike those from
+     * getFolder, it isn't shared (IDLE ties up its connection), so syncs of the same folder go on
+     * as usual while it waits.
+     */
+    public ImapFolder getIdleFolder(String name) {
+        return new ImapFolder(name);
+    }
+
     @Override
     public Folder[] getPersonalNamespaces() throws MessagingException {
         ImapConnection connection = getConnection();
@@ -410,30 +635,99 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Gets a connection if one is available for reuse, or creates a new one if not.
+     * Gets a connection if one is available for reuse, or creates a new one if not.  A pooled
+     * connection is checked with a NOOP only if it's been idle a while, and closed instead if
+     * it's been idle so long the server has probably dropped it; one reused unchecked reconnects
+     * if its first command fails (see ImapConnection.executeSimpleCommand).
      * @return
      */
     private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection = null;
-            while ((connection = mConnections.poll()) != null) {
+        long start = System.nanoTime();
+        ImapConnection connection = null;
+        boolean reused = false;
+        boolean probed = false;
+        while (connection == null) {
+            synchronized (mConnections) {
+                connection = mConnections.poll();
+            }
+            if (connection == null) {
+                connection = new ImapConnection();
+                break;
+            }
+            long idleTime = SystemClock.elapsedRealtime() - connection.mLastUsedTime;
+            if (idleTime > CONNECTION_MAX_IDLE_TIME) {
+                discardConnection(connection);
+                connection = null;
+            } else if (idleTime > mConnectionProbeIdleTime) {
+                // The probe is made outside the lock, so other checkouts needn't wait for it
+                probed = true;
                 try {
                     connection.executeSimpleCommand("NOOP");
-                    break;
+                    reused = true;
                 }
                 catch (IOException ioe) {
-                    connection.close();
+                    discardConnection(connection);
+                    connection = null;
                 }
+                catch (MessagingException me) {
+                    discardConnection(connection);
+                    connection = null;
+                }
+            } else {
+                connection.mUnverified = true;
+                reused = true;
             }
-            if (connection == null) {
-                connection = new ImapConnection();
+        }
+        synchronized (mConnections) {
+            mCheckoutCount++;
+            if (reused) {
+                mReuseCount++;
             }
-            return connection;
+            if (probed) {
+                mProbeCount++;
+            }
+            mCheckoutTime += System.nanoTime() - start;
         }
+        return connection;
     }
 
     private void releaseConnection(ImapConnection connection) {
-        mConnections.offer(connection);
+        if (connection == null || !connection.isTransportOpen()) {
+            // There's nothing to reuse; it reconnects from scratch anyway
+            return;
+        }
+        connection.mLastUsedTime = SystemClock.elapsedRealtime();
+        synchronized (mConnections) {
+            if (mConnections.size() < MAX_POOLED_CONNECTIONS) {
+                mConnections.addFirst(connection);
+                return;
+            }
+        }
+        discardConnection(connection);
+    }
+
+    private void discardConnection(ImapConnection connection) {
+        connection.close();
+        synchronized (mConnections) {
+            mDiscardCount++;
+        }
+        if (Config.LOGD && Email.DEBUG) {
+            Log.d(Email.LOG_TAG, "IMAP connection pool: " + getConnectionStats());
+        }
+    }
+
+    /**
+     * Return the connection pool's counters, for logging: the checkouts, how many of them
+     * reused a pooled connection, and how many had to probe one first; how many pooled
+     * connections were closed, as idle too long, dead or surplus; and the mean time a checkout
+     * took (a new connection isn't opened until it's first used, so that isn't included).
+     */
+    public String getConnectionStats() {
+        synchronized (mConnections) {
+            long meanTime = mCheckoutCount == 0 ? 0 : mCheckoutTime / mCheckoutCount / 1000;
+            return mCheckoutCount + " checkouts, " + mReuseCount + " reused (" + mProbeCount
+                    + " probed), " + mDiscardCount + " closed, " + meanTime + "us each";
+        }
     }
 
     private String encodeFolderName(String name) {
@@ -471,12 +765,23 @@ public class ImapStore extends Store {
         }
     }
 
-    class ImapFolder extends Folder {
+    public class ImapFolder extends Folder {
         private String mName;
         private int mMessageCount = -1;
         private ImapConnection mConnection;
         private OpenMode mMode;
         private boolean mExists;
+        // Whether the connection is in IDLE, and stopIdle() may end it; guarded by this
+        private boolean mIdling;
+        // For a sync (an open() given callbacks): the state saved by the last sync (or null),
+        // the state found by this open(), and the changes since the last sync, as far as
+        // they're known (see getChangedMessages)
+        private PersistentDataCallbacks mCallbacks;
+        private ImapSyncState mSavedState;
+        private ImapSyncState mState;
+        private ArrayList<Message> mChangedMessages;
+        private ArrayList<String> mDeletedUids;
+        private boolean mFetchChangedSince;
 
         public ImapFolder(String name) {
             this.mName = name;
@@ -485,7 +790,8 @@ public class ImapStore extends Store {
         @Override
         public void open(OpenMode mode, PersistentDataCallbacks callbacks)
                 throws MessagingException {
-            if (isOpen() && mMode == mode) {
+            // A sync needs the changes since the last sync, which only a new SELECT reports
+            if (isOpen() && mMode == mode && callbacks == null) {
                 // Make sure the connection is valid. If it's not we'll close it down and continue
                 // on to get a new one.
                 try {
@@ -497,7 +803,15 @@ public class ImapStore extends Store {
                 }
             }
             synchronized (this) {
-                mConnection = getConnection();
+                if (mConnection == null) {
+                    mConnection = getConnection();
+                }
+            }
+            mCallbacks = callbacks;
+            mSavedState = null;
+            if (callbacks != null) {
+                mSavedState = ImapSyncState.fromString(
+                        callbacks.getPersistentString(SYNC_STATE_KEY, null));
             }
             // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
             // $MDNSent)
@@ -508,10 +822,29 @@ public class ImapStore extends Store {
             // * OK [UIDVALIDITY 1125022061] UIDs valid
             // * OK [UIDNEXT 57576] Predicted next UID
             // 2 OK [READ-WRITE] Select completed.
+            // A sync asks for the changes since the last: with QRESYNC, the server reports the
+            // UIDs deleted since then and the flags changed since then, e.g.
+            // * VANISHED (EARLIER) 41,43:116
+            // * 49 FETCH (UID 117 FLAGS (\Seen) MODSEQ (90060128194045007))
+            // * OK [HIGHESTMODSEQ 90060128194045007] Highest
+            // with CONDSTORE alone, just its HIGHESTMODSEQ.
+            mMessageCount = -1;
+            mState = new ImapSyncState();
+            ArrayList<Message> changedMessages = new ArrayList<Message>();
+            ArrayList<String> vanished = new ArrayList<String>();
             try {
-                List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                        String.format("SELECT \"%s\"",
-                                encodeFolderName(mName)));
+                // Log in first, to know the capabilities
+                mConnection.open();
+                String command = String.format("SELECT \"%s\"", encodeFolderName(mName));
+                boolean qresync = mConnection.isQresyncEnabled();
+                if (mSavedState != null && mSavedState.mHighestModSeq != 0 && qresync) {
+                    command += String.format(" (QRESYNC (%d %d))", mSavedState.mUidValidity,
+                            mSavedState.mHighestModSeq);
+                } else if (callbacks != null && !qresync
+                        && mConnection.hasCapability(CAPABILITY_CONDSTORE)) {
+                    command += " (CONDSTORE)";
+                }
+                List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
                 /*
                  * If the command succeeds we expect the folder has been opened read-write
                  * unless we are notified otherwise in the responses.
@@ -521,7 +854,40 @@ public class ImapStore extends Store {
                 for (ImapResponse response : responses) {
                     if (response.mTag == null && response.get(1).equals("EXISTS")) {
                         mMessageCount = response.getNumber(0);
-                    } else if (response.mTag != null) {
+                    } else if (response.mTag == null && response.get(1).equals("FETCH")) {
+                        Message message = parseChangedMessage(response);
+                        if (message != null) {
+                            changedMessages.add(message);
+                        }
+                    } else if (response.mTag == null && response.get(0).equals("VANISHED")) {
+                        ArrayList<String> uids = vanished == null ? null : splitUidSet(
+                                response.getString(response.size() - 1),
+                                MAX_VANISHED_UIDS - vanished.size());
+                        if (uids != null) {
+                            vanished.addAll(uids);
+                        } else {
+                            // Too many (or unreadable); a full sync will find them
+                            vanished = null;
+                        }
+                    } else if (response.mTag == null) {
+                        // * OK [UIDVALIDITY 1125022061] UIDs valid
+                        ImapList responseList = response.getListOrNull(1);
+                        if (responseList != null) {
+                            String atom = responseList.getStringOrNull(0);
+                            String value = responseList.getStringOrNull(1);
+                            try {
+                                if ("UIDVALIDITY".equalsIgnoreCase(atom)) {
+                                    mState.mUidValidity = Long.parseLong(value);
+                                } else if ("HIGHESTMODSEQ".equalsIgnoreCase(atom)) {
+                                    mState.mHighestModSeq = Long.parseLong(value);
+                                } else if ("UIDNEXT".equalsIgnoreCase(atom)) {
+                                    mState.mUidNext = Long.parseLong(value);
+                                }
+                            } catch (NumberFormatException e) {
+                                // Then it's as if the server hadn't said
+                            }
+                        }
+                    } else {
                         ImapList responseList = response.getListOrNull(1);
                         if (responseList != null) {
                             String atom = responseList.getStringOrNull(0);
@@ -539,6 +905,8 @@ public class ImapStore extends Store {
                             "Did not find message count during select");
                 }
                 mExists = true;
+                mState.mMessageCount = mMessageCount;
+                findChanges(qresync, changedMessages, vanished);
 
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
@@ -562,6 +930,9 @@ public class ImapStore extends Store {
             }
             // TODO implement expunge
             mMessageCount = -1;
+            mCallbacks = null;
+            mChangedMessages = null;
+            mDeletedUids = null;
             synchronized (this) {
                 releaseConnection(mConnection);
                 mConnection = null;
@@ -661,7 +1032,7 @@ public class ImapStore extends Store {
             }
             try {
                 mConnection.executeSimpleCommand(String.format("UID COPY %s \"%s\"",
-                        Utility.combine(uids, ','),
+                        joinUidSet(uids),
                         encodeFolderName(folder.getName())));
             }
             catch (IOException ioe) {
@@ -890,25 +1261,7 @@ public class ImapStore extends Store {
                         }
 
                         if (fp.contains(FetchProfile.Item.FLAGS)) {
-                            ImapList flags = fetchList.getKeyedList("FLAGS");
-                            ImapMessage imapMessage = (ImapMessage) message;
-                            if (flags != null) {
-                                for (int i = 0, count = flags.size(); i < count; i++) {
-                                    String flag = flags.getString(i);
-                                    if (flag.equals("\\Deleted")) {
-                                        imapMessage.setFlagInternal(Flag.DELETED, true);
-                                    }
-                                    else if (flag.equals("\\Answered")) {
-                                        imapMessage.setFlagInternal(Flag.ANSWERED, true);
-                                    }
-                                    else if (flag.equals("\\Seen")) {
-                                        imapMessage.setFlagInternal(Flag.SEEN, true);
-                                    }
-                                    else if (flag.equals("\\Flagged")) {
-                                        imapMessage.setFlagInternal(Flag.FLAGGED, true);
-                                    }
-                                }
-                            }
+                            parseFlags((ImapMessage) message, fetchList.getKeyedList("FLAGS"));
                         }
                         if (fp.contains(FetchProfile.Item.ENVELOPE)) {
                             Date internalDate = fetchList.getKeyedDate("INTERNALDATE");
@@ -980,6 +1333,321 @@ public class ImapStore extends Store {
             return PERMANENT_FLAGS;
         }
 
+        /**
+         * Set a message's flags from the FLAGS of a FETCH response
+         */
+        private void parseFlags(ImapMessage message, ImapList flags) throws MessagingException {
+            if (flags == null) {
+                return;
+            }
+            for (int i = 0, count = flags.size(); i < count; i++) {
+                String flag = flags.getString(i);
+                if (flag.equals("\\Deleted")) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                }
+                else if (flag.equals("\\Answered")) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                }
+                else if (flag.equals("\\Seen")) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                }
+                else if (flag.equals("\\Flagged")) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                }
+            }
+        }
+
+        /**
+         * Make a message, with its flags, from a FETCH response reporting changed flags
+         * @return the message, or null if the response has no UID
+         */
+        private Message parseChangedMessage(ImapResponse response) throws MessagingException {
+            ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+            String uid = fetchList == null ? null : fetchList.getKeyedString("UID");
+            if (uid == null) {
+                return null;
+            }
+            ImapMessage message = new ImapMessage(uid, this);
+            parseFlags(message, fetchList.getKeyedList("FLAGS"));
+            return message;
+        }
+
+        /**
+         * Work out which of the changes since the last sync are known, from the state saved by
+         * the last sync and what the SELECT reported
+         */
+        private void findChanges(boolean qresync, ArrayList<Message> changedMessages,
+                ArrayList<String> vanished) {
+            mChangedMessages = null;
+            mDeletedUids = null;
+            mFetchChangedSince = false;
+            ImapSyncState saved = mSavedState;
+            if (saved == null || saved.mUidValidity != mState.mUidValidity
+                    || saved.mHighestModSeq == 0 || mState.mHighestModSeq == 0) {
+                // Nothing to compare with, so every message must be checked
+                return;
+            }
+            if (qresync) {
+                mChangedMessages = changedMessages;
+                mDeletedUids = vanished;
+                return;
+            }
+            if (mState.mHighestModSeq == saved.mHighestModSeq) {
+                mChangedMessages = new ArrayList<Message>();
+            } else {
+                // Ask for them if they're wanted
+                mFetchChangedSince = true;
+            }
+            // Without QRESYNC, deletions are only known when there weren't any: no message has
+            // arrived, and there are as many as there were
+            if (!hasNewMessages() && saved.mMessageCount == mState.mMessageCount) {
+                mDeletedUids = new ArrayList<String>();
+            }
+        }
+
+        @Override
+        public Message[] getChangedMessages() throws MessagingException {
+            checkOpen();
+            if (mFetchChangedSince) {
+                // * 5 FETCH (UID 42 FLAGS (\Seen) MODSEQ (12121231000))
+                ArrayList<Message> messages = new ArrayList<Message>();
+                if (mMessageCount > 0) {
+                    try {
+                        List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                                String.format("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE %d)",
+                                        mSavedState.mHighestModSeq));
+                        for (ImapResponse response : responses) {
+                            if (response.mTag == null && response.get(1).equals("FETCH")) {
+                                Message message = parseChangedMessage(response);
+                                if (message != null) {
+                                    messages.add(message);
+                                }
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        throw ioExceptionHandler(mConnection, ioe);
+                    }
+                }
+                mChangedMessages = messages;
+                mFetchChangedSince = false;
+            }
+            return mChangedMessages == null ? null
+                    : mChangedMessages.toArray(new Message[mChangedMessages.size()]);
+        }
+
+        @Override
+        public String[] getDeletedUids() throws MessagingException {
+            checkOpen();
+            return mDeletedUids == null ? null
+                    : mDeletedUids.toArray(new String[mDeletedUids.size()]);
+        }
+
+        /**
+         * Return whether UIDNEXT shows that messages may have arrived since the last sync
+         */
+        private boolean hasNewMessages() {
+            return !isUidNextKnown() || mSavedState.mUidNext != mState.mUidNext;
+        }
+
+        /**
+         * Return whether both the UIDNEXT saved by the last sync and the current one are known,
+         * and comparable
+         */
+        private boolean isUidNextKnown() {
+            return mSavedState != null && mState != null && mSavedState.mUidNext != 0
+                    && mState.mUidNext != 0 && mSavedState.mUidValidity == mState.mUidValidity;
+        }
+
+        @Override
+        public Message[] getNewMessages() throws MessagingException {
+            checkOpen();
+            if (!isUidNextKnown()) {
+                return null;
+            }
+            if (!hasNewMessages()) {
+                return new Message[0];
+            }
+            // Every new message has a UID of at least the last UIDNEXT.  (As "*" is the highest
+            // UID, "n:*" matches the last message even if n is above it, so check.)
+            ArrayList<Message> messages = new ArrayList<Message>();
+            try {
+                List<ImapResponse> responses = mConnection.executeSimpleCommand(String.format(
+                        "UID SEARCH UID %d:* NOT DELETED", mSavedState.mUidNext));
+                for (ImapResponse response : responses) {
+                    if (response.mTag == null && response.get(0).equals("SEARCH")) {
+                        for (int i = 1, count = response.size(); i < count; i++) {
+                            String uid = response.getString(i);
+                            try {
+                                if (Long.parseLong(uid) >= mSavedState.mUidNext) {
+                                    messages.add(new ImapMessage(uid, this));
+                                }
+                            } catch (NumberFormatException e) {
+                                return null;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+            return messages.toArray(new Message[messages.size()]);
+        }
+
+        @Override
+        public void saveSyncState() throws MessagingException {
+            if (mCallbacks != null && mState != null && mState.mUidValidity != 0) {
+                mCallbacks.setPersistentString(SYNC_STATE_KEY, mState.toString());
+            }
+        }
+
+        /**
+         * Return whether the server supports waiting for changes with IDLE.  The folder must be
+         * open.
+         */
+        public boolean isIdleSupported() throws MessagingException {
+            checkOpen();
+            return mConnection.hasCapability(CAPABILITY_IDLE);
+        }
+
+        /**
+         * Wait, with IDLE (RFC 2177), for the server to report a change to the open folder: new
+         * messages (EXISTS), deleted messages (EXPUNGE) or changed flags (FETCH).  This returns
+         * when a change is reported, when stopIdle() is called (e.g. by an alarm, if the device
+         * sleeps), or when the timeout passes with nothing reported, always leaving the
+         * connection out of IDLE and ready for other commands.
+         *
+         * @param timeout the longest to wait, in ms; servers may drop a connection that's been
+         * idle for 30 minutes, so this should be less
+         * @return the changes reported, as IDLE_CHANGE_* bits, or 0 if there were none
+         * @throws MessagingException if the server doesn't support IDLE, or on a network error
+         */
+        public int idle(int timeout) throws MessagingException {
+            checkOpen();
+            if (!mConnection.hasCapability(CAPABILITY_IDLE)) {
+                throw new MessagingException("IDLE not supported");
+            }
+            ImapConnection connection = mConnection;
+            int changes = 0;
+            try {
+                connection.sendCommand("IDLE", false);
+                ImapResponse response;
+                do {
+                    response = connection.readResponse();
+                    changes |= handleIdleResponse(response);
+                } while (response.mTag == null && !response.mCommandContinuationRequested);
+                if (response.mTag != null) {
+                    // The server refused to idle
+                    throw new ImapException(response.toString(), response.getAlertText());
+                }
+
+                synchronized (this) {
+                    mIdling = true;
+                }
+                boolean ended = false;
+                connection.mTransport.setSoTimeout(timeout);
+                try {
+                    while (changes == 0) {
+                        try {
+                            response = connection.readResponse();
+                        } catch (SocketTimeoutException e) {
+                            break;
+                        }
+                        if (response.mTag != null) {
+                            // The server ended the IDLE, or answered a DONE from stopIdle()
+                            ended = true;
+                            break;
+                        }
+                        changes |= handleIdleResponse(response);
+                    }
+                } finally {
+                    connection.mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+                }
+
+                if (ended) {
+                    synchronized (this) {
+                        mIdling = false;
+                    }
+                } else {
+                    sendIdleDone();
+                    // Changes reported before the DONE was read are still changes
+                    do {
+                        response = connection.readResponse();
+                        changes |= handleIdleResponse(response);
+                    } while (response.mTag == null);
+                }
+                return changes;
+            } catch (IOException ioe) {
+                synchronized (this) {
+                    mIdling = false;
+                }
+                throw ioExceptionHandler(connection, ioe);
+            }
+        }
+
+        /**
+         * End a wait in idle() from another thread.  This does nothing if the folder isn't
+         * waiting; idle() returns once the server has answered.
+         */
+        public void stopIdle() {
+            try {
+                sendIdleDone();
+            } catch (IOException ioe) {
+                // Then idle() sees the broken connection too
+                abortIdle();
+            }
+        }
+
+        /**
+         * Close the connection of a wait in idle() from another thread, making idle() fail;
+         * for when the server hasn't answered stopIdle(), i.e. the connection has silently died
+         */
+        public void abortIdle() {
+            ImapConnection connection;
+            synchronized (this) {
+                connection = mConnection;
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
+        /**
+         * End the IDLE, if it hasn't been ended already
+         */
+        private void sendIdleDone() throws IOException {
+            ImapConnection connection;
+            synchronized (this) {
+                if (!mIdling) {
+                    return;
+                }
+                mIdling = false;
+                connection = mConnection;
+            }
+            connection.mTransport.writeLine("DONE", null);
+        }
+
+        /**
+         * Handle an untagged response read while idling
+         * @return the change it reports, as an IDLE_CHANGE_* bit, or 0
+         */
+        private int handleIdleResponse(ImapResponse response) {
+            if (response.mTag != null || response.mCommandContinuationRequested) {
+                return 0;
+            }
+            handleUntaggedResponse(response);
+            String type = response.getStringOrNull(1);
+            if ("EXISTS".equalsIgnoreCase(type)) {
+                return IDLE_CHANGE_EXISTS;
+            } else if ("EXPUNGE".equalsIgnoreCase(type)
+                    || "VANISHED".equalsIgnoreCase(response.getStringOrNull(0))) {
+                // With QRESYNC, deletions are reported as VANISHED (e.g. "* VANISHED 41:43")
+                return IDLE_CHANGE_EXPUNGE;
+            } else if ("FETCH".equalsIgnoreCase(type)) {
+                return IDLE_CHANGE_FETCH;
+            }
+            return 0;
+        }
+
         /**
          * Handle any untagged responses that the caller doesn't care to handle themselves.
          * @param responses
@@ -1269,10 +1937,48 @@ public class ImapStore extends Store {
         public void setFlags(Message[] messages, Flag[] flags, boolean value)
                 throws MessagingException {
             checkOpen();
-            StringBuilder uidList = new StringBuilder();
+            try {
+                mConnection.executeSimpleCommand(getStoreCommand(messages, flags, value));
+            }
+            catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        /**
+         * Make the changes with pipelined UID STOREs, so they cost about one round trip
+         */
+        @Override
+        public void setFlags(FlagChange[] changes) throws MessagingException {
+            checkOpen();
+            ArrayList<PipelinedCommand> commands = new ArrayList<PipelinedCommand>();
+            for (FlagChange change : changes) {
+                if (change.mMessages.length > 0) {
+                    commands.add(new PipelinedCommand(
+                            getStoreCommand(change.mMessages, change.mFlags, change.mValue)));
+                }
+            }
+            try {
+                mConnection.executePipelinedCommands(commands);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+            for (PipelinedCommand command : commands) {
+                handleUntaggedResponses(command.mResponses);
+                if (!command.isOk()) {
+                    ImapResponse completion = command.getCompletion();
+                    throw new ImapException(completion.toString(), completion.getAlertText());
+                }
+            }
+        }
+
+        /**
+         * Return the UID STORE command that sets or clears flags on messages
+         */
+        private String getStoreCommand(Message[] messages, Flag[] flags, boolean value) {
+            String[] uids = new String[messages.length];
             for (int i = 0, count = messages.length; i < count; i++) {
-                if (i > 0) uidList.append(',');
-                uidList.append(messages[i].getUid());
+                uids[i] = messages[i].getUid();
             }
 
             String allFlags = "";
@@ -1290,15 +1996,8 @@ public class ImapStore extends Store {
                 }
                 allFlags = flagList.substring(1);
             }
-            try {
-                mConnection.executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
-                        uidList,
-                        value ? "+" : "-",
-                        allFlags));
-            }
-            catch (IOException ioe) {
-                throw ioExceptionHandler(mConnection, ioe);
-            }
+            return String.format("UID STORE %s %sFLAGS.SILENT (%s)", joinUidSet(uids),
+                    value ? "+" : "-", allFlags);
         }
 
         private void checkOpen() throws MessagingException {
@@ -1339,6 +2038,15 @@ public class ImapStore extends Store {
         /** # of command/response lines to log upon crash. */
         private static final int DISCOURSE_LOGGER_SIZE = 64;
         private final DiscourseLogger mDiscourse = new DiscourseLogger(DISCOURSE_LOGGER_SIZE);
+        // The capabilities the server has announced (upper case)
+        private final HashSet<String> mCapabilities = new HashSet<String>();
+        // Whether QRESYNC has been enabled for the session (RFC 5161 ENABLE)
+        private boolean mQresyncEnabled;
+        // When the connection was last released to the pool (SystemClock.elapsedRealtime())
+        long mLastUsedTime;
+        // Whether the connection was reused from the pool without a probe, and hasn't sent a
+        // command since, so it may have been dropped while it was idle
+        boolean mUnverified;
 
         public void open() throws IOException, MessagingException {
             if (mTransport != null && mTransport.isOpen()) {
@@ -1346,6 +2054,7 @@ public class ImapStore extends Store {
             }
 
             mNextCommandTag = 1;
+            mQresyncEnabled = false;
 
             try {
                 // copy configuration into a clean transport, if necessary
@@ -1362,11 +2071,7 @@ public class ImapStore extends Store {
                 mParser.readResponse();
 
                 // CAPABILITY
-                List<ImapResponse> response = executeSimpleCommand("CAPABILITY");
-                if (response.size() != 2) {
-                    throw new MessagingException("Invalid CAPABILITY response received");
-                }
-                String capabilities = response.get(0).toString();
+                String capabilities = readCapabilities();
 
                 if (mTransport.canTryTlsSecurity()) {
                     if (capabilities.contains("STARTTLS")) {
@@ -1377,6 +2082,10 @@ public class ImapStore extends Store {
                         mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
                         mParser = new ImapResponseParser(mTransport.getInputStream(),
                                 mDiscourse);
+
+                        // The capabilities announced before TLS can't be trusted, and may
+                        // change (RFC 3501 6.2.1), so ask again
+                        capabilities = readCapabilities();
                     } else {
                         if (Config.LOGD && Email.DEBUG) {
                             Log.d(Email.LOG_TAG, "TLS not supported but required");
@@ -1411,6 +2120,7 @@ public class ImapStore extends Store {
                     }
                 }
 
+                boolean capabilitiesAnnounced = false;
                 try {
                    if (mHost.endsWith("yahoo.com")) {
                         if (Email.LOGD)
@@ -1420,7 +2130,15 @@ public class ImapStore extends Store {
 
                     // TODO eventually we need to add additional authentication
                     // options such as SASL
-                    executeSimpleCommand(mLoginPhrase, true);
+                    List<ImapResponse> loginResponses = executeSimpleCommand(mLoginPhrase, true);
+                    // Servers may announce more capabilities once logged in, e.g.
+                    // 1 OK [CAPABILITY IMAP4rev1 IDLE ...] Logged in
+                    ImapList code =
+                        loginResponses.get(loginResponses.size() - 1).getListOrNull(1);
+                    if (code != null && "CAPABILITY".equalsIgnoreCase(code.getStringOrNull(0))) {
+                        setCapabilities(code);
+                        capabilitiesAnnounced = true;
+                    }
                 } catch (ImapException ie) {
                     if (Config.LOGD && Email.DEBUG) {
                         Log.d(Email.LOG_TAG, ie.toString());
@@ -1430,6 +2148,49 @@ public class ImapStore extends Store {
                 } catch (MessagingException me) {
                     throw new AuthenticationFailedException(null, me);
                 }
+                if (!capabilitiesAnnounced) {
+                    // Servers needn't announce them, but may have more than before login
+                    readCapabilities();
+                }
+
+                // Compress the rest of the session, if the server can (RFC 4978); the parser
+                // then reads the inflated stream
+                if (hasCapability(CAPABILITY_COMPRESS_DEFLATE)) {
+                    try {
+                        executeSimpleCommand("COMPRESS DEFLATE");
+                        mTransport.startCompression();
+                        mParser = new ImapResponseParser(mTransport.getInputStream(),
+                                mDiscourse);
+                    } catch (ImapException ie) {
+                        // e.g. the TLS layer is compressing already; carry on uncompressed
+                        if (Config.LOGD && Email.DEBUG) {
+                            Log.d(Email.LOG_TAG, ie.toString());
+                        }
+                    }
+                }
+
+                // Ask for the changes to a mailbox since a sync to be reported when it's
+                // selected (see ImapFolder.open)
+                if (hasCapability(CAPABILITY_QRESYNC)) {
+                    try {
+                        // * ENABLED QRESYNC
+                        for (ImapResponse response : executeSimpleCommand("ENABLE QRESYNC")) {
+                            if (response.mTag == null && response.get(0).equals("ENABLED")) {
+                                for (int i = 1, count = response.size(); i < count; i++) {
+                                    if (CAPABILITY_QRESYNC.equalsIgnoreCase(
+                                            response.getStringOrNull(i))) {
+                                        mQresyncEnabled = true;
+                                    }
+                                }
+                            }
+                        }
+                    } catch (ImapException ie) {
+                        // Then syncs just don't get the changes
+                        if (Config.LOGD && Email.DEBUG) {
+                            Log.d(Email.LOG_TAG, ie.toString());
+                        }
+                    }
+                }
             } catch (SSLException e) {
                 if (Config.LOGD && Email.DEBUG) {
                     Log.d(Email.LOG_TAG, e.toString());
@@ -1446,6 +2207,54 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Ask the server for its capabilities, and set them
+         * @return the CAPABILITY response, as a string
+         */
+        private String readCapabilities() throws IOException, MessagingException {
+            List<ImapResponse> response = executeSimpleCommand("CAPABILITY");
+            if (response.size() != 2) {
+                throw new MessagingException("Invalid CAPABILITY response received");
+            }
+            setCapabilities(response.get(0));
+            return response.get(0).toString();
+        }
+
+        /**
+         * Set the capabilities from a CAPABILITY response (or response code)
+         */
+        private void setCapabilities(ImapList capabilityList) {
+            mCapabilities.clear();
+            for (int i = 1, count = capabilityList.size(); i < count; i++) {
+                String capability = capabilityList.getStringOrNull(i);
+                if (capability != null) {
+                    mCapabilities.add(capability.toUpperCase());
+                }
+            }
+        }
+
+        /**
+         * Return whether QRESYNC has been enabled for the session, so that SELECT can ask for
+         * the changes to a mailbox since a sync
+         */
+        public boolean isQresyncEnabled() {
+            return mQresyncEnabled;
+        }
+
+        /**
+         * Return whether the server has announced a capability, e.g. "IDLE"
+         */
+        public boolean hasCapability(String capability) {
+            return mCapabilities.contains(capability);
+        }
+
+        /**
+         * Return whether the connection is open, i.e. using it won't reconnect
+         */
+        public boolean isTransportOpen() {
+            return mTransport != null && mTransport.isOpen();
+        }
+
         public void close() {
 //            if (isOpen()) {
 //                try {
@@ -1474,6 +2283,7 @@ public class ImapStore extends Store {
         public String sendCommand(String command, boolean sensitive)
             throws MessagingException, IOException {
             open();
+            mUnverified = false;
             String tag = Integer.toString(mNextCommandTag++);
             String commandToSend = tag + " " + command;
             mTransport.writeLine(commandToSend, sensitive ? IMAP_DEDACTED_LOG : null);
@@ -1486,8 +2296,29 @@ public class ImapStore extends Store {
             return executeSimpleCommand(command, false);
         }
 
+        /**
+         * Send a command and read its responses.  If it's the first command on a pooled
+         * connection that was reused unchecked, and the connection turns out to be dead, it's
+         * reconnected and the command sent once more.
+         */
         public List<ImapResponse> executeSimpleCommand(String command, boolean sensitive)
                 throws IOException, ImapException, MessagingException {
+            if (mUnverified) {
+                mUnverified = false;
+                try {
+                    return executeSimpleCommandOnce(command, sensitive);
+                } catch (IOException ioe) {
+                    if (Config.LOGD && Email.DEBUG) {
+                        Log.d(Email.LOG_TAG, "Reconnecting a dropped pooled connection: " + ioe);
+                    }
+                    close();
+                }
+            }
+            return executeSimpleCommandOnce(command, sensitive);
+        }
+
+        private List<ImapResponse> executeSimpleCommandOnce(String command, boolean sensitive)
+                throws IOException, ImapException, MessagingException {
             String tag = sendCommand(command, sensitive);
             ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
             ImapResponse response;
@@ -1517,6 +2348,73 @@ public class ImapStore extends Store {
             return responses;
         }
 
+        /**
+         * Execute commands without waiting for each to complete before sending the next, so that
+         * together they cost about one round trip rather than one each.  A command that can't be
+         * pipelined (see canPipeline()) is sent once every earlier command has completed, and
+         * completes before any later one is sent.
+         *
+         * Unlike executeSimpleCommand(), a command that fails doesn't throw; check isOk() on
+         * each command afterwards.
+         */
+        public void executePipelinedCommands(List<PipelinedCommand> commands)
+                throws IOException, MessagingException {
+            LinkedList<PipelinedCommand> pending = new LinkedList<PipelinedCommand>();
+            for (PipelinedCommand command : commands) {
+                boolean serial = !canPipeline(command.mCommand);
+                while (!pending.isEmpty() && (serial || pending.size() >= MAX_PIPELINE_DEPTH)) {
+                    readPipelinedCompletion(pending);
+                }
+                command.mTag = sendCommand(command.mCommand, false);
+                pending.add(command);
+                if (serial) {
+                    readPipelinedCompletion(pending);
+                }
+            }
+            while (!pending.isEmpty()) {
+                readPipelinedCompletion(pending);
+            }
+        }
+
+        /**
+         * Read responses until one of the pending commands completes, and remove it.  Untagged
+         * responses are given to the oldest pending command, which is the one the server is
+         * executing, since it executes them in order.
+         */
+        private void readPipelinedCompletion(LinkedList<PipelinedCommand> pending)
+                throws IOException, MessagingException {
+            ImapResponse previous = null;
+            while (true) {
+                // The same work around as executeSimpleCommand(), to parse a literal in the
+                // middle of a response.
+                if (previous != null && !previous.completed()) {
+                    previous.nailDown();
+                }
+                ImapResponse response = mParser.readResponse();
+                PipelinedCommand command = pending.getFirst();
+                if (response.mTag != null) {
+                    for (PipelinedCommand candidate : pending) {
+                        if (response.mTag.equals(candidate.mTag)) {
+                            command = candidate;
+                            break;
+                        }
+                    }
+                    if (!response.mTag.equals(command.mTag)
+                            && previous != null && !previous.completed()) {
+                        previous.appendAll(response);
+                        response.mTag = null;
+                        continue;
+                    }
+                }
+                command.mResponses.add(response);
+                if (response.mTag != null) {
+                    pending.remove(command);
+                    return;
+                }
+                previous = response;
+            }
+        }
+
         /** @see ImapResponseParser#logLastDiscourse() */
         public void logLastDiscourse() {
             mDiscourse.logLastDiscourse();
@@ -21,6 +21,9 @@ import com.mwebster.iemail.mail.CertificateValidationException;
 import com.mwebster.iemail.mail.MessagingException;
 import com.mwebster.iemail.mail.Transport;
 
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
 import android.util.Config;
 import android.util.Log;
 
@@ -34,6 +37,8 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URI;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.HostnameVerifier;
@@ -67,6 +72,12 @@ public class MailTransport implements Transport {
     private Socket mSocket;
     private InputStream mIn;
     private OutputStream mOut;
+    // With compression, the bytes read and written on the wire, and as they are before
+    // compression (or after decompression); null without
+    private CountingInputStream mWireIn;
+    private CountingInputStream mLogicalIn;
+    private CountingOutputStream mWireOut;
+    private CountingOutputStream mLogicalOut;
 
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to 
@@ -249,6 +260,37 @@ public class MailTransport implements Transport {
         }
     }
 
+    /**
+     * Layer the compressed streams over the current ones.  Data already read into the input
+     * buffer (after the reply agreeing to compress) is compressed, so it's read through it.
+     *
+     * The inflated stream isn't buffered again: InflaterInputStream.available() is 1 until the
+     * end of the stream, so a BufferedInputStream over it would wait to fill its buffer rather
+     * than return the response that has arrived.
+     */
+    public void startCompression() throws IOException {
+        mWireIn = new CountingInputStream(mIn);
+        mLogicalIn = new CountingInputStream(
+                new InflaterInputStream(mWireIn, new Inflater(true), 1024));
+        mIn = mLogicalIn;
+        mWireOut = new CountingOutputStream(mOut);
+        mLogicalOut = new CountingOutputStream(new StoredDeflaterOutputStream(mWireOut));
+        mOut = mLogicalOut;
+    }
+
+    /**
+     * Return the bytes read and written, on the wire and before compression, for logging; or
+     * null if the connection isn't compressed
+     */
+    public String getCompressionStats() {
+        if (mWireIn == null) {
+            return null;
+        }
+        return "read " + mWireIn.getByteCount() + " bytes (" + mLogicalIn.getByteCount()
+                + " inflated), wrote " + mWireOut.getByteCount() + " bytes ("
+                + mLogicalOut.getByteCount() + " before deflating)";
+    }
+
     /**
      * Set the socket timeout.
      * @param timeoutMilliseconds the read timeout value if greater than {@code 0}, or
@@ -267,6 +309,10 @@ public class MailTransport implements Transport {
      * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
      */
     public void close() {
+        if (mWireIn != null && Config.LOGD && Email.DEBUG) {
+            Log.d(Email.LOG_TAG, "*** " + mDebugLabel + " compression: "
+                    + getCompressionStats());
+        }
         try {
             mIn.close();
         } catch (Exception e) {
@@ -285,6 +331,10 @@ public class MailTransport implements Transport {
         mIn = null;
         mOut = null;
         mSocket = null;
+        mWireIn = null;
+        mLogicalIn = null;
+        mWireOut = null;
+        mLogicalOut = null;
     }
 
     public InputStream getInputStream() {
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.mail.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a raw DEFLATE stream (RFC 1951) made of stored, i.e. uncompressed, blocks: each flush()
+ * writes what's been written since as one or more blocks, which the other end can read at once.
+ *
+ * A protocol that deflates a session both ways (e.g. IMAP COMPRESS, RFC 4978) must flush each
+ * command to the server, which java.util.zip.Deflater can't do before Android 4.4 (there's no
+ * SYNC_FLUSH); what's sent is small next to what's received, so it isn't compressed instead.
+ */
+public class StoredDeflaterOutputStream extends FilterOutputStream {
+    // The most data in a stored block
+    private static final int MAX_BLOCK_SIZE = 65535;
+
+    private final byte[] mBuffer = new byte[MAX_BLOCK_SIZE];
+    private int mCount;
+
+    public StoredDeflaterOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mCount == MAX_BLOCK_SIZE) {
+            writeBlock();
+        }
+        mBuffer[mCount++] = (byte) oneByte;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mCount == MAX_BLOCK_SIZE) {
+                writeBlock();
+            }
+            int n = Math.min(len, MAX_BLOCK_SIZE - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the buffered data as a (non-final) stored block.  Blocks stay byte aligned, so the
+     * three header bits (BFINAL 0, BTYPE 00) and their padding are a zero byte, followed by the
+     * length and its complement, least significant byte first.
+     */
+    private void writeBlock() throws IOException {
+        out.write(0);
+        out.write(mCount & 0xff);
+        out.write((mCount >> 8) & 0xff);
+        out.write(~mCount & 0xff);
+        out.write((~mCount >> 8) & 0xff);
+        out.write(mBuffer, 0, mCount);
+        mCount = 0;
+    }
+}
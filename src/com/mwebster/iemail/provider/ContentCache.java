@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.provider;
+
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.HostAuth;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide read-through cache of the Account, Mailbox and HostAuth records restored by id
+ * (restoreAccountWithId and friends), which are read in nearly every sync and UI path but rarely
+ * written.
+ *
+ * The cache holds a snapshot of each row (its values as strings), and each read makes a new
+ * object from the snapshot, so callers may change what they're given without changing the
+ * cache.  Any update or deletion of an Account, Mailbox or HostAuth clears all three caches: the
+ * provider does so directly (so a read right after a write in this process sees the write), and
+ * the caches observe the tables' change notifications for writes made by other processes.
+ *
+ * The unread, message and favorite counts, which are kept by triggers on the Message table, may
+ * be stale in a cached record; read them from the provider (e.g. Mailbox.getMessageCount).
+ */
+public class ContentCache {
+    // The most records of each table kept
+    private static final int MAX_RECORDS = 32;
+
+    public static final ContentCache ACCOUNTS =
+        new ContentCache(Account.CONTENT_URI, Account.CONTENT_PROJECTION);
+    public static final ContentCache MAILBOXES =
+        new ContentCache(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION);
+    public static final ContentCache HOST_AUTHS =
+        new ContentCache(HostAuth.CONTENT_URI, HostAuth.CONTENT_PROJECTION);
+    private static final ContentCache[] ALL_CACHES =
+        new ContentCache[] {ACCOUNTS, MAILBOXES, HOST_AUTHS};
+
+    private final Uri mContentUri;
+    private final String[] mProjection;
+    // The rows, least recently used first
+    private final LinkedHashMap<Long, String[]> mRows =
+        new LinkedHashMap<Long, String[]>(MAX_RECORDS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                return size() > MAX_RECORDS;
+            }
+        };
+    // Counts each invalidation, so that a row read before one isn't cached after it
+    private int mGeneration = 0;
+    private boolean mObserving = false;
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    private ContentCache(Uri contentUri, String[] projection) {
+        mContentUri = contentUri;
+        mProjection = projection;
+    }
+
+    /**
+     * Return a cursor over the record with the given id (positioned before it), or an empty
+     * cursor if there is no such record.  The cursor must be closed.
+     */
+    public Cursor query(Context context, long id) {
+        int generation;
+        synchronized (this) {
+            String[] row = mRows.get(id);
+            if (row != null) {
+                mHits++;
+                return getSnapshotCursor(row);
+            }
+            mMisses++;
+            generation = mGeneration;
+            if (!mObserving) {
+                observe(context);
+            }
+        }
+
+        Cursor c = context.getContentResolver().query(
+                ContentUris.withAppendedId(mContentUri, id), mProjection, null, null, null);
+        if (c == null) {
+            return new MatrixCursor(mProjection, 0);
+        }
+        String[] row;
+        try {
+            if (!c.moveToFirst()) {
+                return new MatrixCursor(mProjection, 0);
+            }
+            row = new String[mProjection.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = c.getString(i);
+            }
+        } finally {
+            c.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mRows.put(id, row);
+            }
+        }
+        return getSnapshotCursor(row);
+    }
+
+    private Cursor getSnapshotCursor(String[] row) {
+        MatrixCursor c = new MatrixCursor(mProjection, 1);
+        c.addRow(row);
+        return c;
+    }
+
+    /**
+     * Observe the table's change notifications, for writes made by other processes
+     */
+    private void observe(Context context) {
+        context.getContentResolver().registerContentObserver(mContentUri, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateAll();
+                    }
+                });
+        mObserving = true;
+    }
+
+    private synchronized void invalidate() {
+        mRows.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Forget every cached record, after a change to any of the cached tables (a change to one
+     * table can change another by trigger, e.g. deleting an account deletes its mailboxes)
+     */
+    public static void invalidateAll() {
+        for (ContentCache cache: ALL_CACHES) {
+            cache.invalidate();
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Return the hit and miss counts of the caches, for logging
+     */
+    public static String getStats() {
+        return "accounts " + ACCOUNTS.getCounts() + ", mailboxes " + MAILBOXES.getCounts() +
+                ", host auths " + HOST_AUTHS.getCounts();
+    }
+
+    private synchronized String getCounts() {
+        return mHits + " hits/" + mMisses + " misses";
+    }
+}
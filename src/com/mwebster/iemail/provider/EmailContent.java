@@ -33,13 +33,20 @@ import android.telephony.TelephonyManager;
 import android.util.Base64;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -49,6 +56,8 @@ import com.mwebster.iemail.service.IEmailService;
 import com.mwebster.exchange.SyncManager;
 import com.mwebster.exchange.utility.DesEncrypter;
 import com.mwebster.iemail.Controller;
+import com.mwebster.iemail.Email;
+import com.mwebster.iemail.Utility;
 
 /**
  * EmailContent is the superclass of the various classes of content stored by EmailProvider.
@@ -91,6 +100,54 @@ public abstract class EmailContent {
     public static final String FIELD_COLUMN_NAME = "field";
     public static final String ADD_COLUMN_NAME = "add";
 
+    /**
+     * Change notifications are scoped by account, mailbox, and message under the notifier uri,
+     * i.e. NOTIFIER_URI/account/<accountId>/mailbox/<mailboxId>/message/<messageId>; an observer
+     * of an account or mailbox is told of changes to anything in it.  The notifier authority
+     * isn't a provider; it's only used for notifications, so that unscoped observers (of
+     * CONTENT_URI) aren't told of changes twice.  To scope the notifications of a query on the
+     * message or mailbox table, add PARAMETER_NOTIFY_MAILBOX or PARAMETER_NOTIFY_ACCOUNT (with
+     * the mailbox or account id) to its uri.
+     */
+    public static final Uri NOTIFIER_URI = Uri.parse("content://" + AUTHORITY + ".notifier");
+    public static final String PARAMETER_NOTIFY_ACCOUNT = "notifyAccount";
+    public static final String PARAMETER_NOTIFY_MAILBOX = "notifyMailbox";
+
+    public static Uri getAccountNotifierUri(long accountId) {
+        return NOTIFIER_URI.buildUpon().appendPath("account")
+                .appendPath(Long.toString(accountId)).build();
+    }
+
+    public static Uri getMailboxNotifierUri(long accountId, long mailboxId) {
+        return getAccountNotifierUri(accountId).buildUpon().appendPath("mailbox")
+                .appendPath(Long.toString(mailboxId)).build();
+    }
+
+    public static Uri getMessageNotifierUri(long accountId, long mailboxId, long messageId) {
+        return getMailboxNotifierUri(accountId, mailboxId).buildUpon().appendPath("message")
+                .appendPath(Long.toString(messageId)).build();
+    }
+
+    /**
+     * Scope the change notifications of a query to a single mailbox
+     * @param uri the uri of the query (message or mailbox table)
+     * @param mailboxId the mailbox whose changes the query's cursor should see
+     */
+    public static Uri uriWithNotifyMailbox(Uri uri, long mailboxId) {
+        return uri.buildUpon().appendQueryParameter(PARAMETER_NOTIFY_MAILBOX,
+                Long.toString(mailboxId)).build();
+    }
+
+    /**
+     * Scope the change notifications of a query to a single account
+     * @param uri the uri of the query (message or mailbox table)
+     * @param accountId the account whose changes the query's cursor should see
+     */
+    public static Uri uriWithNotifyAccount(Uri uri, long accountId) {
+        return uri.buildUpon().appendQueryParameter(PARAMETER_NOTIFY_ACCOUNT,
+                Long.toString(accountId)).build();
+    }
+
     // Newly created objects get this id
     private static final int NOT_SAVED = -1;
     // The base Uri that this piece of content came from
@@ -206,6 +263,15 @@ public abstract class EmailContent {
         public static final String SOURCE_MESSAGE_KEY = "sourceMessageKey";
         // The text to be placed between a reply/forward response and the original message
         public static final String INTRO_TEXT = "introText";
+        // Bit field of the content columns (Body.FILE_COLUMNS) that are stored in files rather
+        // than in the database; each of these columns holds the name of its file instead.  This
+        // column is maintained by the provider, and is null until a body has been checked for
+        // content that's too long for the database.
+        public static final String FILE_FLAGS = "fileFlags";
+        // Bit field (with the same bits as FILE_FLAGS) of the content columns that hold deflated
+        // UTF-8 rather than text.  Also maintained by the provider, and null until a body has
+        // been compacted.
+        public static final String COMPRESSED_FLAGS = "compressedFlags";
     }
 
     public static final class Body extends EmailContent implements BodyColumns {
@@ -220,28 +286,47 @@ public abstract class EmailContent {
         public static final int CONTENT_TEXT_REPLY_COLUMN = 5;
         public static final int CONTENT_SOURCE_KEY_COLUMN = 6;
         public static final int CONTENT_INTRO_TEXT_COLUMN = 7;
+        public static final int CONTENT_FILE_FLAGS_COLUMN = 8;
+        public static final int CONTENT_COMPRESSED_FLAGS_COLUMN = 9;
         public static final String[] CONTENT_PROJECTION = new String[] {
             RECORD_ID, BodyColumns.MESSAGE_KEY, BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT,
             BodyColumns.HTML_REPLY, BodyColumns.TEXT_REPLY, BodyColumns.SOURCE_MESSAGE_KEY,
-            BodyColumns.INTRO_TEXT
+            BodyColumns.INTRO_TEXT, BodyColumns.FILE_FLAGS, BodyColumns.COMPRESSED_FLAGS
         };
 
         public static final String[] COMMON_PROJECTION_TEXT = new String[] {
-            RECORD_ID, BodyColumns.TEXT_CONTENT
+            RECORD_ID, BodyColumns.TEXT_CONTENT, BodyColumns.FILE_FLAGS,
+            BodyColumns.COMPRESSED_FLAGS
         };
         public static final String[] COMMON_PROJECTION_HTML = new String[] {
-            RECORD_ID, BodyColumns.HTML_CONTENT
+            RECORD_ID, BodyColumns.HTML_CONTENT, BodyColumns.FILE_FLAGS,
+            BodyColumns.COMPRESSED_FLAGS
         };
         public static final String[] COMMON_PROJECTION_REPLY_TEXT = new String[] {
-            RECORD_ID, BodyColumns.TEXT_REPLY
+            RECORD_ID, BodyColumns.TEXT_REPLY, BodyColumns.FILE_FLAGS,
+            BodyColumns.COMPRESSED_FLAGS
         };
         public static final String[] COMMON_PROJECTION_REPLY_HTML = new String[] {
-            RECORD_ID, BodyColumns.HTML_REPLY
+            RECORD_ID, BodyColumns.HTML_REPLY, BodyColumns.FILE_FLAGS,
+            BodyColumns.COMPRESSED_FLAGS
         };
         public static final String[] COMMON_PROJECTION_INTRO = new String[] {
-            RECORD_ID, BodyColumns.INTRO_TEXT
+            RECORD_ID, BodyColumns.INTRO_TEXT, BodyColumns.FILE_FLAGS,
+            BodyColumns.COMPRESSED_FLAGS
         };
         public static final int COMMON_PROJECTION_COLUMN_TEXT = 1;
+        public static final int COMMON_PROJECTION_COLUMN_FILE_FLAGS = 2;
+        public static final int COMMON_PROJECTION_COLUMN_COMPRESSED_FLAGS = 3;
+
+        // The content columns that the provider stores in a file when they're too long for the
+        // database; the FILE_FLAGS bit of each is (1 << its index here)
+        public static final String[] FILE_COLUMNS = new String[] {
+            BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT, BodyColumns.HTML_REPLY,
+            BodyColumns.TEXT_REPLY, BodyColumns.INTRO_TEXT
+        };
+
+        // To read a content column stored in a file, open getFileUri(messageId, column)
+        public static final Uri FILE_URI = Uri.parse(EmailContent.CONTENT_URI + "/body/message");
 
         private static final String[] PROJECTION_SOURCE_KEY =
             new String[] { BodyColumns.SOURCE_MESSAGE_KEY };
@@ -253,11 +338,173 @@ public abstract class EmailContent {
         public String mTextReply;
         public long mSourceKey;
         public String mIntroText;
+        // Not written by toContentValues(); the provider maintains FILE_FLAGS itself
+        public int mFileFlags;
 
         public Body() {
             mBaseUri = CONTENT_URI;
         }
 
+        /**
+         * Return the FILE_FLAGS bit of a content column, or 0 if it's never stored in a file
+         */
+        public static int getFileFlag(String column) {
+            for (int i = 0; i < FILE_COLUMNS.length; i++) {
+                if (FILE_COLUMNS[i].equals(column)) {
+                    return 1 << i;
+                }
+            }
+            return 0;
+        }
+
+        public static Uri getFileUri(long messageId, String column) {
+            return FILE_URI.buildUpon().appendPath(Long.toString(messageId)).appendPath(column)
+                    .build();
+        }
+
+        /**
+         * Read a content column of a message's body from its file.  The provider streams the file
+         * (see EmailProvider.openFile), so the content never passes through a CursorWindow.
+         */
+        private static String restoreTextFromFile(Context context, long messageId,
+                String column) {
+            try {
+                InputStream in = context.getContentResolver().openInputStream(
+                        getFileUri(messageId, column));
+                try {
+                    return readText(in, Integer.MAX_VALUE);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(Email.LOG_TAG, "Unable to read body " + column + " of message " +
+                        messageId + ": " + e);
+                return null;
+            }
+        }
+
+        /**
+         * Open a stream onto the UTF-8 content of a column of a message's body, wherever the
+         * provider keeps it: in a file, deflated in the database, or as plain text.  Compressed
+         * content is inflated as the stream is read.
+         *
+         * @return the stream, or null if the message has no body or the column is null
+         */
+        public static InputStream openContentStream(Context context, long messageId,
+                String column) throws IOException {
+            String[] projection = new String[] {
+                RECORD_ID, column, BodyColumns.FILE_FLAGS, BodyColumns.COMPRESSED_FLAGS
+            };
+            Cursor c = context.getContentResolver().query(Body.CONTENT_URI, projection,
+                    Body.MESSAGE_KEY + "=?", new String[] {Long.toString(messageId)}, null);
+            try {
+                if (!c.moveToFirst() || c.isNull(COMMON_PROJECTION_COLUMN_TEXT)) {
+                    return null;
+                }
+                int flag = getFileFlag(column);
+                if ((c.getInt(COMMON_PROJECTION_COLUMN_FILE_FLAGS) & flag) != 0) {
+                    return context.getContentResolver().openInputStream(
+                            getFileUri(messageId, column));
+                } else if ((c.getInt(COMMON_PROJECTION_COLUMN_COMPRESSED_FLAGS) & flag) != 0) {
+                    return new InflaterInputStream(new ByteArrayInputStream(
+                            c.getBlob(COMMON_PROJECTION_COLUMN_TEXT)));
+                } else {
+                    return new ByteArrayInputStream(
+                            Utility.toUtf8(c.getString(COMMON_PROJECTION_COLUMN_TEXT)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        /**
+         * Deflate text, as the provider stores it in columns flagged in COMPRESSED_FLAGS
+         */
+        /*package*/ static byte[] deflateText(String text) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 4);
+            try {
+                DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+                out.write(Utility.toUtf8(text));
+                out.close();
+            } catch (IOException e) {
+                // Not possible when writing to a ByteArrayOutputStream
+                throw new RuntimeException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Inflate (up to maxLength characters of) text written by deflateText()
+         */
+        /*package*/ static String inflateText(byte[] bytes, int maxLength) {
+            if (bytes == null) {
+                return null;
+            }
+            InputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return readText(in, maxLength);
+            } catch (IOException e) {
+                Log.w(Email.LOG_TAG, "Unable to inflate body content: " + e);
+                return null;
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * Read a content column of a body, inflating it if it's flagged in compressedFlags
+         */
+        /*package*/ static String getText(Cursor c, int index, String column,
+                int compressedFlags) {
+            if ((compressedFlags & getFileFlag(column)) != 0) {
+                return inflateText(c.getBlob(index), Integer.MAX_VALUE);
+            }
+            return c.getString(index);
+        }
+
+        /**
+         * Read (up to maxLength characters of) UTF-8 text from a stream
+         */
+        /*package*/ static String readText(InputStream in, int maxLength) throws IOException {
+            Reader reader = new InputStreamReader(in, Utility.UTF_8);
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while (sb.length() < maxLength && (count = reader.read(buffer, 0,
+                    Math.min(buffer.length, maxLength - sb.length()))) > 0) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Replace the names of the files holding any content columns with their content
+         */
+        private void restoreFiles(Context context) {
+            if (mFileFlags == 0) {
+                return;
+            }
+            if ((mFileFlags & getFileFlag(BodyColumns.HTML_CONTENT)) != 0) {
+                mHtmlContent = restoreTextFromFile(context, mMessageKey, BodyColumns.HTML_CONTENT);
+            }
+            if ((mFileFlags & getFileFlag(BodyColumns.TEXT_CONTENT)) != 0) {
+                mTextContent = restoreTextFromFile(context, mMessageKey, BodyColumns.TEXT_CONTENT);
+            }
+            if ((mFileFlags & getFileFlag(BodyColumns.HTML_REPLY)) != 0) {
+                mHtmlReply = restoreTextFromFile(context, mMessageKey, BodyColumns.HTML_REPLY);
+            }
+            if ((mFileFlags & getFileFlag(BodyColumns.TEXT_REPLY)) != 0) {
+                mTextReply = restoreTextFromFile(context, mMessageKey, BodyColumns.TEXT_REPLY);
+            }
+            if ((mFileFlags & getFileFlag(BodyColumns.INTRO_TEXT)) != 0) {
+                mIntroText = restoreTextFromFile(context, mMessageKey, BodyColumns.INTRO_TEXT);
+            }
+            mFileFlags = 0;
+        }
+
         @Override
         public ContentValues toContentValues() {
             ContentValues values = new ContentValues();
@@ -273,30 +520,33 @@ public abstract class EmailContent {
             return values;
         }
 
-        private static Body restoreBodyWithCursor(Cursor cursor) {
+        private static Body restoreBodyWithCursor(Context context, Cursor cursor) {
+            Body body = null;
             try {
                 if (cursor.moveToFirst()) {
-                    return getContent(cursor, Body.class);
-                } else {
-                    return null;
+                    body = getContent(cursor, Body.class);
                 }
             } finally {
                 cursor.close();
             }
+            if (body != null) {
+                body.restoreFiles(context);
+            }
+            return body;
         }
 
         public static Body restoreBodyWithId(Context context, long id) {
             Uri u = ContentUris.withAppendedId(Body.CONTENT_URI, id);
             Cursor c = context.getContentResolver().query(u, Body.CONTENT_PROJECTION,
                     null, null, null);
-            return restoreBodyWithCursor(c);
+            return restoreBodyWithCursor(context, c);
         }
 
         public static Body restoreBodyWithMessageId(Context context, long messageId) {
             Cursor c = context.getContentResolver().query(Body.CONTENT_URI,
                     Body.CONTENT_PROJECTION, Body.MESSAGE_KEY + "=?",
                     new String[] {Long.toString(messageId)}, null);
-            return restoreBodyWithCursor(c);
+            return restoreBodyWithCursor(context, c);
         }
 
         /**
@@ -348,17 +598,23 @@ public abstract class EmailContent {
 
         private static String restoreTextWithMessageId(Context context, long messageId,
                 String[] projection) {
+            String column = projection[COMMON_PROJECTION_COLUMN_TEXT];
             Cursor c = context.getContentResolver().query(Body.CONTENT_URI, projection,
                     Body.MESSAGE_KEY + "=?", new String[] {Long.toString(messageId)}, null);
             try {
-                if (c.moveToFirst()) {
-                    return c.getString(COMMON_PROJECTION_COLUMN_TEXT);
-                } else {
+                if (!c.moveToFirst()) {
                     return null;
+                } else if ((c.getInt(COMMON_PROJECTION_COLUMN_FILE_FLAGS)
+                        & getFileFlag(column)) == 0) {
+                    // Only the requested column is read (and inflated, if it's compressed)
+                    return getText(c, COMMON_PROJECTION_COLUMN_TEXT, column,
+                            c.getInt(COMMON_PROJECTION_COLUMN_COMPRESSED_FLAGS));
                 }
             } finally {
                 c.close();
             }
+            // Too long for the database, so it's in a file
+            return restoreTextFromFile(context, messageId, column);
         }
 
         public static String restoreBodyTextWithMessageId(Context context, long messageId) {
@@ -386,12 +642,20 @@ public abstract class EmailContent {
         public EmailContent.Body restore(Cursor c) {
             mBaseUri = EmailContent.Body.CONTENT_URI;
             mMessageKey = c.getLong(CONTENT_MESSAGE_KEY_COLUMN);
-            mHtmlContent = c.getString(CONTENT_HTML_CONTENT_COLUMN);
-            mTextContent = c.getString(CONTENT_TEXT_CONTENT_COLUMN);
-            mHtmlReply = c.getString(CONTENT_HTML_REPLY_COLUMN);
-            mTextReply = c.getString(CONTENT_TEXT_REPLY_COLUMN);
+            // Compressed columns hold blobs, which can't be read with getString()
+            int compressedFlags = c.getInt(CONTENT_COMPRESSED_FLAGS_COLUMN);
+            mHtmlContent = getText(c, CONTENT_HTML_CONTENT_COLUMN, BodyColumns.HTML_CONTENT,
+                    compressedFlags);
+            mTextContent = getText(c, CONTENT_TEXT_CONTENT_COLUMN, BodyColumns.TEXT_CONTENT,
+                    compressedFlags);
+            mHtmlReply = getText(c, CONTENT_HTML_REPLY_COLUMN, BodyColumns.HTML_REPLY,
+                    compressedFlags);
+            mTextReply = getText(c, CONTENT_TEXT_REPLY_COLUMN, BodyColumns.TEXT_REPLY,
+                    compressedFlags);
             mSourceKey = c.getLong(CONTENT_SOURCE_KEY_COLUMN);
-            mIntroText = c.getString(CONTENT_INTRO_TEXT_COLUMN);
+            mIntroText = getText(c, CONTENT_INTRO_TEXT_COLUMN, BodyColumns.INTRO_TEXT,
+                    compressedFlags);
+            mFileFlags = c.getInt(CONTENT_FILE_FLAGS_COLUMN);
             return this;
         }
 
@@ -442,6 +706,8 @@ public abstract class EmailContent {
 
         // Meeting invitation related information (for now, start time in ms)
         public static final String MEETING_INFO = "meetingInfo";
+        // A short plain text preview of the body, for message lists (see Snippet)
+        public static final String SNIPPET = "snippet";
     }
 
     public static final class Message extends EmailContent implements SyncColumns, MessageColumns {
@@ -457,8 +723,37 @@ public abstract class EmailContent {
             Uri.parse(EmailContent.CONTENT_URI + "/deletedMessage");
         public static final Uri UPDATED_CONTENT_URI =
             Uri.parse(EmailContent.CONTENT_URI + "/updatedMessage");
+        // Query getSearchUri(query) for the messages matching a search, best matches first
+        public static final Uri SEARCH_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/message/search");
+        public static final String PARAMETER_SEARCH_QUERY = "query";
+        // Query getMailboxViewUri() for the messages shown in a mailbox or a combined view
+        public static final Uri MAILBOX_VIEW_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/message/mailbox");
+        public static final String PARAMETER_ALL_MAILBOXES = "allMailboxes";
+        public static final String PARAMETER_UNREAD_ONLY = "unreadOnly";
+        // The most rows a query of getMailboxViewUri() returns
+        public static final String PARAMETER_LIMIT = "limit";
+        // A bulk insert of this uri imports messages with their bodies and attachments; see
+        // importMessages()
+        public static final Uri IMPORT_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/message/import");
+        // In the values of an import, the table each row goes into (bodies and attachments
+        // belong to the message before them); this isn't a column
+        public static final String IMPORT_TABLE = "importTable";
 
         public static final String KEY_TIMESTAMP_DESC = MessageColumns.TIMESTAMP + " desc";
+        // The order of paged mailbox views; (timeStamp, _id) is unique, so the last row of a page
+        // is a key for the next page.  The provider stores a missing timeStamp as 0, so that no
+        // row falls outside the keys (a NULL would match neither range below)
+        public static final String KEY_TIMESTAMP_ID_DESC =
+            MessageColumns.TIMESTAMP + " desc, " + RECORD_ID + " desc";
+        // The rows after (timeStamp, _id) in KEY_TIMESTAMP_ID_DESC order, and those up to and
+        // including it.  The bare range on timeStamp lets the query start in the index at the key
+        /*package*/ static final String PAGE_AFTER_SELECTION = MessageColumns.TIMESTAMP +
+            "<=? and (" + MessageColumns.TIMESTAMP + "<? or " + RECORD_ID + "<?)";
+        /*package*/ static final String PAGE_THROUGH_SELECTION = MessageColumns.TIMESTAMP +
+            ">=? and (" + MessageColumns.TIMESTAMP + ">? or " + RECORD_ID + ">=?)";
 
         public static final int CONTENT_ID_COLUMN = 0;
         public static final int CONTENT_DISPLAY_NAME_COLUMN = 1;
@@ -481,6 +776,7 @@ public abstract class EmailContent {
         public static final int CONTENT_REPLY_TO_COLUMN = 18;
         public static final int CONTENT_SERVER_TIMESTAMP_COLUMN = 19;
         public static final int CONTENT_MEETING_INFO_COLUMN = 20;
+        public static final int CONTENT_SNIPPET_COLUMN = 21;
 
         public static final String[] CONTENT_PROJECTION = new String[] {
             RECORD_ID,
@@ -493,7 +789,8 @@ public abstract class EmailContent {
             MessageColumns.ACCOUNT_KEY, MessageColumns.FROM_LIST,
             MessageColumns.TO_LIST, MessageColumns.CC_LIST,
             MessageColumns.BCC_LIST, MessageColumns.REPLY_TO_LIST,
-            SyncColumns.SERVER_TIMESTAMP, MessageColumns.MEETING_INFO
+            SyncColumns.SERVER_TIMESTAMP, MessageColumns.MEETING_INFO,
+            MessageColumns.SNIPPET
         };
 
         public static final int LIST_ID_COLUMN = 0;
@@ -534,6 +831,106 @@ public abstract class EmailContent {
 
         public static final String[] ID_COLUMN_PROJECTION = new String[] { RECORD_ID };
 
+        /**
+         * Return the uri to query for the messages matching a search.  Each word of the query
+         * matches words starting with it in the subject, senders, recipients or body of a
+         * message, and a message must match all of the words.  The usual selection (e.g. of a
+         * mailbox) can be added to the query, and the results are best matches first unless a
+         * sort order is given.
+         */
+        public static Uri getSearchUri(String query) {
+            return SEARCH_URI.buildUpon().appendQueryParameter(PARAMETER_SEARCH_QUERY, query)
+                    .build();
+        }
+
+        /**
+         * Return the uri to query for the (loaded) messages shown in a mailbox, or in one of the
+         * combined views (Mailbox.QUERY_ALL_*).  The provider finds the mailboxes of a combined
+         * view itself, so the query is the same however many mailboxes there are.  Queries of a
+         * single mailbox hear only of changes to that mailbox.
+         *
+         * @param mailboxId the mailbox, or combined view
+         * @param allMailboxes whether the combined inbox includes all mail mailboxes
+         * @param unreadOnly whether the combined inbox, drafts and outbox show only unread
+         * messages
+         */
+        public static Uri getMailboxViewUri(long mailboxId, boolean allMailboxes,
+                boolean unreadOnly) {
+            Uri.Builder builder = MAILBOX_VIEW_URI.buildUpon()
+                    .appendPath(Long.toString(mailboxId));
+            if (mailboxId >= 0) {
+                builder.appendQueryParameter(PARAMETER_NOTIFY_MAILBOX, Long.toString(mailboxId));
+            } else {
+                if (allMailboxes) {
+                    builder.appendQueryParameter(PARAMETER_ALL_MAILBOXES, "1");
+                }
+                if (unreadOnly) {
+                    builder.appendQueryParameter(PARAMETER_UNREAD_ONLY, "1");
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Query a page of a mailbox view, in KEY_TIMESTAMP_ID_DESC order.  Fetching a page costs
+         * the same however far down the view it is.
+         *
+         * @param viewUri the view (see getMailboxViewUri)
+         * @param timestamp the timestamp of the last row of the previous page (ignored for the
+         * first page)
+         * @param id the id of the last row of the previous page, or -1 for the first page
+         * @param pageSize the most rows to return
+         */
+        public static Cursor queryMailboxViewPage(Context context, Uri viewUri,
+                String[] projection, long timestamp, long id, int pageSize) {
+            Uri uri = viewUri.buildUpon()
+                    .appendQueryParameter(PARAMETER_LIMIT, Integer.toString(pageSize)).build();
+            if (id == -1) {
+                return context.getContentResolver().query(uri, projection, null, null,
+                        KEY_TIMESTAMP_ID_DESC);
+            }
+            return context.getContentResolver().query(uri, projection, PAGE_AFTER_SELECTION,
+                    getPageKeyArgs(timestamp, id), KEY_TIMESTAMP_ID_DESC);
+        }
+
+        /**
+         * Query the rows of a mailbox view from the first down to (and including) the given
+         * one, in KEY_TIMESTAMP_ID_DESC order; i.e. refresh the pages loaded so far
+         */
+        public static Cursor queryMailboxViewThrough(Context context, Uri viewUri,
+                String[] projection, long timestamp, long id) {
+            return context.getContentResolver().query(viewUri, projection,
+                    PAGE_THROUGH_SELECTION, getPageKeyArgs(timestamp, id), KEY_TIMESTAMP_ID_DESC);
+        }
+
+        /**
+         * Return the ids of every message in a mailbox view, however many pages of it have been
+         * loaded (e.g. to select all of the view)
+         *
+         * @param viewUri the view (see getMailboxViewUri)
+         */
+        public static long[] queryMailboxViewIds(Context context, Uri viewUri) {
+            Cursor c = context.getContentResolver().query(viewUri, ID_COLUMN_PROJECTION, null,
+                    null, null);
+            if (c == null) {
+                return new long[0];
+            }
+            try {
+                long[] ids = new long[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    ids[i] = c.getLong(ID_PROJECTION_COLUMN);
+                }
+                return ids;
+            } finally {
+                c.close();
+            }
+        }
+
+        private static String[] getPageKeyArgs(long timestamp, long id) {
+            String time = Long.toString(timestamp);
+            return new String[] {time, time, Long.toString(id)};
+        }
+
         // _id field is in AbstractContent
         public String mDisplayName;
         public long mTimeStamp;
@@ -561,6 +958,8 @@ public abstract class EmailContent {
         // For now, just the start time of a meeting invite, in ms
         public String mMeetingInfo;
 
+        public String mSnippet;
+
         // The following transient members may be used while building and manipulating messages,
         // but they are NOT persisted directly by EmailProvider
         transient public String mText;
@@ -642,6 +1041,8 @@ public abstract class EmailContent {
 
             values.put(MessageColumns.MEETING_INFO, mMeetingInfo);
 
+            values.put(MessageColumns.SNIPPET, mSnippet);
+
             return values;
         }
 
@@ -686,6 +1087,7 @@ public abstract class EmailContent {
             mBcc = c.getString(CONTENT_BCC_LIST_COLUMN);
             mReplyTo = c.getString(CONTENT_REPLY_TO_COLUMN);
             mMeetingInfo = c.getString(CONTENT_MEETING_INFO_COLUMN);
+            mSnippet = c.getString(CONTENT_SNIPPET_COLUMN);
             return this;
         }
 
@@ -754,11 +1156,30 @@ public abstract class EmailContent {
         }
 
         public void addSaveOps(ArrayList<ContentProviderOperation> ops) {
-            // First, save the message
+            // First, save the message; a batch of messages may yield the database between them
             ContentProviderOperation.Builder b = ContentProviderOperation.newInsert(mBaseUri);
-            ops.add(b.withValues(toContentValues()).build());
+            ops.add(b.withValues(toContentValues()).withYieldAllowed(true).build());
 
             // Create and save the body
+            b = ContentProviderOperation.newInsert(Body.CONTENT_URI);
+            b.withValues(getBodyValues());
+            ContentValues backValues = new ContentValues();
+            int messageBackValue = ops.size() - 1;
+            backValues.put(Body.MESSAGE_KEY, messageBackValue);
+            ops.add(b.withValueBackReferences(backValues).build());
+
+            // Create the attaachments, if any
+            if (mAttachments != null) {
+                for (Attachment att: mAttachments) {
+                    ops.add(ContentProviderOperation.newInsert(Attachment.CONTENT_URI)
+                        .withValues(att.toContentValues())
+                        .withValueBackReference(Attachment.MESSAGE_KEY, messageBackValue)
+                        .build());
+                }
+            }
+        }
+
+        private ContentValues getBodyValues() {
             ContentValues cv = new ContentValues();
             if (mText != null) {
                 cv.put(Body.TEXT_CONTENT, mText);
@@ -778,23 +1199,51 @@ public abstract class EmailContent {
             if (mIntroText != null) {
                 cv.put(Body.INTRO_TEXT, mIntroText);
             }
-            b = ContentProviderOperation.newInsert(Body.CONTENT_URI);
-            b.withValues(cv);
-            ContentValues backValues = new ContentValues();
-            int messageBackValue = ops.size() - 1;
-            backValues.put(Body.MESSAGE_KEY, messageBackValue);
-            ops.add(b.withValueBackReferences(backValues).build());
+            return cv;
+        }
 
-            // Create the attaachments, if any
+        /**
+         * Add the rows of a new message, its body (if it has one) and its attachments to the
+         * values of an import (see IMPORT_URI)
+         */
+        public void addImportValues(ArrayList<ContentValues> values) {
+            ContentValues cv = toContentValues();
+            cv.put(IMPORT_TABLE, TABLE_NAME);
+            values.add(cv);
+            // As when one is saved, a message without any content gets no body
+            if (mText != null || mHtml != null || mTextReply != null || mHtmlReply != null) {
+                cv = getBodyValues();
+                cv.put(IMPORT_TABLE, Body.TABLE_NAME);
+                values.add(cv);
+            }
             if (mAttachments != null) {
                 for (Attachment att: mAttachments) {
-                    ops.add(ContentProviderOperation.newInsert(Attachment.CONTENT_URI)
-                        .withValues(att.toContentValues())
-                        .withValueBackReference(Attachment.MESSAGE_KEY, messageBackValue)
-                        .build());
+                    cv = att.toContentValues();
+                    cv.put(IMPORT_TABLE, Attachment.TABLE_NAME);
+                    values.add(cv);
                 }
             }
         }
+
+        /**
+         * Import new messages, with their bodies and attachments.  This is much faster than
+         * saving them one by one (or as a batch of operations), as the provider writes all of
+         * them in one transaction with statements it compiles just once.  The ids of the new
+         * records aren't returned; look the messages up by server id if they're needed.
+         *
+         * @return the number of messages imported
+         */
+        public static int importMessages(Context context, List<Message> messages) {
+            if (messages.isEmpty()) {
+                return 0;
+            }
+            ArrayList<ContentValues> values = new ArrayList<ContentValues>();
+            for (Message message: messages) {
+                message.addImportValues(values);
+            }
+            return context.getContentResolver().bulkInsert(IMPORT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+        }
     }
 
     public interface AccountColumns {
@@ -836,6 +1285,11 @@ public abstract class EmailContent {
         public static final String SECURITY_SYNC_KEY = "securitySyncKey";
         // Signature to use with this account
         public static final String SIGNATURE = "signature";
+        // Cached unread count of the account's inbox (maintained via triggers)
+        public static final String UNREAD_COUNT = "unreadCount";
+        // Cached unread count of the account's visible inbox and mail mailboxes (maintained via
+        // triggers)
+        public static final String ALL_UNREAD_COUNT = "allUnreadCount";
     }
 
     public static final class Account extends EmailContent implements AccountColumns, Parcelable {
@@ -905,6 +1359,9 @@ public abstract class EmailContent {
         public static final int CONTENT_SECURITY_SYNC_KEY_COLUMN = 16;
         public static final int CONTENT_SIGNATURE_COLUMN = 17;
         public static final int CONTENT_COLOR_COLUMN = 18;
+        // The unread counts are maintained by the provider, and aren't restored or saved
+        public static final int CONTENT_UNREAD_COUNT_COLUMN = 19;
+        public static final int CONTENT_ALL_UNREAD_COUNT_COLUMN = 20;
 
         public static final String[] CONTENT_PROJECTION = new String[] {
             RECORD_ID, AccountColumns.DISPLAY_NAME,
@@ -915,7 +1372,8 @@ public abstract class EmailContent {
             AccountColumns.RINGTONE_URI, AccountColumns.PROTOCOL_VERSION,
             AccountColumns.NEW_MESSAGE_COUNT, AccountColumns.SECURITY_FLAGS,
             AccountColumns.SECURITY_SYNC_KEY, AccountColumns.SIGNATURE, 
-            AccountColumns.ACCOUNT_COLOR
+            AccountColumns.ACCOUNT_COLOR, AccountColumns.UNREAD_COUNT,
+            AccountColumns.ALL_UNREAD_COUNT
         };
 
         public static final int CONTENT_MAILBOX_TYPE_COLUMN = 1;
@@ -956,10 +1414,12 @@ public abstract class EmailContent {
             mCompatibilityUuid = UUID.randomUUID().toString();
         }
 
+        /**
+         * Restore an account by id; the account is read through ContentCache, so this seldom
+         * queries the provider
+         */
         public static Account restoreAccountWithId(Context context, long id) {
-            Uri u = ContentUris.withAppendedId(Account.CONTENT_URI, id);
-            Cursor c = context.getContentResolver().query(u, Account.CONTENT_PROJECTION,
-                    null, null, null);
+            Cursor c = ContentCache.ACCOUNTS.query(context, id);
 
             try {
                 if (c.moveToFirst()) {
@@ -1945,6 +2405,10 @@ public abstract class EmailContent {
         public static final String SYNC_TIME = "syncTime";
         // Cached unread count
         public static final String UNREAD_COUNT = "unreadCount";
+        // Cached message count (maintained via triggers)
+        public static final String MESSAGE_COUNT = "messageCount";
+        // Cached count of favorite (starred) messages (maintained via triggers)
+        public static final String FAVORITE_COUNT = "favoriteCount";
         // Visibility of this folder in a list of folders [INDEX]
         public static final String FLAG_VISIBLE = "flagVisible";
         // Other states, as a bit field, e.g. CHILDREN_VISIBLE, HAS_CHILDREN
@@ -2015,6 +2479,10 @@ public abstract class EmailContent {
         private static final String WHERE_TYPE_AND_ACCOUNT_KEY =
             MailboxColumns.TYPE + "=? and " + MailboxColumns.ACCOUNT_KEY + "=?";
 
+        private static final String[] MESSAGE_COUNT_PROJECTION = new String[] {
+            MailboxColumns.MESSAGE_COUNT
+        };
+
         // Types of mailboxes.  The list is ordered to match a typical UI presentation, e.g.
         // placing the inbox at the top.
         // The "main" mailbox for the account, almost always referred to as "Inbox"
@@ -2069,9 +2537,8 @@ public abstract class EmailContent {
          * @return the instantiated Mailbox
          */
         public static Mailbox restoreMailboxWithId(Context context, long id) {
-            Uri u = ContentUris.withAppendedId(Mailbox.CONTENT_URI, id);
-            Cursor c = context.getContentResolver().query(u, Mailbox.CONTENT_PROJECTION,
-                    null, null, null);
+            // Read through ContentCache, so this seldom queries the provider
+            Cursor c = ContentCache.MAILBOXES.query(context, id);
 
             try {
                 if (c.moveToFirst()) {
@@ -2150,6 +2617,24 @@ public abstract class EmailContent {
             return mailboxId;
         }
 
+        /**
+         * Return the number of messages in a mailbox, as counted by the provider
+         *
+         * @param context
+         * @param mailboxId the id of the mailbox
+         * @return the number of messages, or 0 if there's no such mailbox
+         */
+        public static int getMessageCount(Context context, long mailboxId) {
+            Cursor c = context.getContentResolver().query(
+                    ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailboxId),
+                    MESSAGE_COUNT_PROJECTION, null, null, null);
+            try {
+                return c.moveToFirst() ? c.getInt(0) : 0;
+            } finally {
+                c.close();
+            }
+        }
+
         /**
          * Convenience method that returns the mailbox found using the method above
          */
@@ -2235,9 +2720,8 @@ public abstract class EmailContent {
          * @return the instantiated HostAuth
          */
         public static HostAuth restoreHostAuthWithId(Context context, long id) {
-            Uri u = ContentUris.withAppendedId(EmailContent.HostAuth.CONTENT_URI, id);
-            Cursor c = context.getContentResolver().query(u, HostAuth.CONTENT_PROJECTION,
-                    null, null, null);
+            // Read through ContentCache, so this seldom queries the provider
+            Cursor c = ContentCache.HOST_AUTHS.query(context, id);
             mContext = context;
             try {
                 if (c.moveToFirst()) {
@@ -31,6 +31,7 @@ import com.mwebster.iemail.provider.EmailContent.Message;
 import com.mwebster.iemail.provider.EmailContent.MessageColumns;
 import com.mwebster.iemail.provider.EmailContent.SyncColumns;
 import com.mwebster.iemail.Preferences;
+import com.mwebster.iemail.Utility;
 
 
 import android.accounts.AccountManager;
@@ -44,25 +45,74 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public class EmailProvider extends ContentProvider {
 
     private static final String TAG = "EmailProvider";
 
+    // applyBatch reports batches that hold the database lock for longer than this at a stretch
+    private static final long LOCK_HELD_WARNING_MS = 1000;
+
+    // Projections used to find where a message or mailbox lives, for scoped notifications
+    private static final String[] MESSAGE_LOCATION_PROJECTION =
+        new String[] {MessageColumns.ACCOUNT_KEY, MessageColumns.MAILBOX_KEY};
+    private static final String[] MAILBOX_ACCOUNT_PROJECTION =
+        new String[] {MailboxColumns.ACCOUNT_KEY};
+
+    // In applyBatch, notifications for individual rows of these tables are coalesced into one
+    // for the table (or, for the notifier uri, for the mailbox)
+    private static final HashSet<String> COALESCED_PATHS = new HashSet<String>(Arrays.asList(
+            "message", "syncedMessage", "updatedMessage", "deletedMessage", "body", "attachment"));
+
+    // The notifications for the changes made in applyBatch are collected here, and each is sent
+    // just once when the batch is done
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifications =
+        new ThreadLocal<LinkedHashSet<Uri>>();
+
     protected static final String DATABASE_NAME = "IEmailProvider.db";
     protected static final String BODY_DATABASE_NAME = "IEmailProviderBody.db";
 
     public static final Uri INTEGRITY_CHECK_URI =
         Uri.parse("content://" + EmailContent.AUTHORITY + "/integrityCheck");
+    // An update of this uri adds a batch of existing messages to the search index, returning the
+    // number added (0 when the index is complete); see indexMessagesForSearch()
+    public static final Uri SEARCH_INDEX_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/searchIndex");
+    // An update of this uri compacts a batch of existing bodies (moving long content into files
+    // and compressing the rest), returning the number compacted (0 when all have been); see
+    // compactBodies()
+    public static final Uri COMPACT_BODIES_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/compactBodies");
+    // An update of this uri deletes a batch of orphaned bodies (those whose messages are gone,
+    // which delete() missed), returning the number deleted (0 when there are none left); see
+    // deleteOrphanBodies()
+    public static final Uri DELETE_ORPHAN_BODIES_URI =
+        Uri.parse("content://" + EmailContent.AUTHORITY + "/deleteOrphanBodies");
 
     // Definitions for our queries looking for orphaned messages
     private static final String[] ORPHANS_PROJECTION
@@ -90,7 +140,16 @@ public class EmailProvider extends ContentProvider {
     // Version 12: Add content_bytes to attachment table. content is deprecated.
     // version 13: Add accountColor field to the Account table
     // version 14: large # changes requiring app data to be wiped (2 files)
-    public static final int DATABASE_VERSION = 14;
+    // Version 15: Add the MessageSearch full-text index and its triggers
+    // Version 16: Add trigger-maintained message/favorite counts to Mailbox and unread counts to
+    //             Account
+    // Version 17: Add an index of mailboxes by type and visibility, for the combined views
+    // Version 18: Replace the mailboxKey index of Message with (mailboxKey, timestamp) and
+    //             (mailboxKey, syncServerId) indexes
+    // Version 19: Add snippet column to the Message tables
+    // Version 20: Store a missing Message timeStamp as 0, with triggers
+    // Version 21: Leave the sentinels of locally deleted messages out of the search index
+    public static final int DATABASE_VERSION = 21;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -98,7 +157,8 @@ public class EmailProvider extends ContentProvider {
     // Version 4: Database wipe required; changing AccountManager interface w/Exchange
     // Version 5: Database wipe required; changing AccountManager interface w/Exchange
     // Version 6: Adding Body.mIntroText column
-    public static final int BODY_DATABASE_VERSION = 6;
+    // Version 7: Add Body.fileFlags column, for content stored in files
+    public static final int BODY_DATABASE_VERSION = 8;
 
     public static final String EMAIL_AUTHORITY = "com.mwebster.iemail.provider";
 
@@ -118,6 +178,9 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
+    private static final int MESSAGE_MAILBOX_VIEW = MESSAGE_BASE + 4;
+    private static final int MESSAGE_IMPORT = MESSAGE_BASE + 5;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -148,6 +211,7 @@ public class EmailProvider extends ContentProvider {
     private static final int BODY_MESSAGE_ID = BODY_BASE + 2;
     private static final int BODY_HTML = BODY_BASE + 3;
     private static final int BODY_TEXT = BODY_BASE + 4;
+    private static final int BODY_MESSAGE_FILE = BODY_BASE + 5;
 
 
     private static final int BASE_SHIFT = 12;  // 12 bits to the base type: 0, 0x1000, 0x2000, etc.
@@ -180,16 +244,136 @@ public class EmailProvider extends ContentProvider {
         Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
         EmailContent.RECORD_ID + '=';
 
-    private static final String DELETE_ORPHAN_BODIES = "delete from " + Body.TABLE_NAME +
-        " where " + BodyColumns.MESSAGE_KEY + " in " + "(select " + BodyColumns.MESSAGE_KEY +
-        " from " + Body.TABLE_NAME + " except select " + EmailContent.RECORD_ID + " from " +
-        Message.TABLE_NAME + ')';
-
-    private static final String DELETE_BODY = "delete from " + Body.TABLE_NAME +
-        " where " + BodyColumns.MESSAGE_KEY + '=';
+    // The ids of the messages deleted on this connection whose bodies haven't been deleted yet.
+    // A trigger can't delete a body (the Body table is in another database), but a temporary
+    // trigger can record the message; delete() then deletes exactly those bodies, rather than
+    // comparing every body with the Message table.  Both are temporary, so they're made each
+    // time the database is opened.
+    private static final String DELETED_MESSAGE_KEY_TABLE_NAME = "DeletedMessageKey";
+    private static final String CREATE_DELETED_MESSAGE_KEY_TABLE = "create temp table if not " +
+        "exists " + DELETED_MESSAGE_KEY_TABLE_NAME + " (" + BodyColumns.MESSAGE_KEY +
+        " integer primary key)";
+    private static final String CREATE_DELETED_MESSAGE_KEY_TRIGGER = "create temp trigger if " +
+        "not exists message_delete_body after delete on " + Message.TABLE_NAME +
+        " begin insert or ignore into " + DELETED_MESSAGE_KEY_TABLE_NAME + " values (OLD." +
+        EmailContent.RECORD_ID + "); end";
+    private static final String WHERE_DELETED_MESSAGE_BODY = BodyColumns.MESSAGE_KEY +
+        " in (select " + BodyColumns.MESSAGE_KEY + " from " + DELETED_MESSAGE_KEY_TABLE_NAME + ')';
+    private static final String DELETE_DELETED_MESSAGE_KEYS =
+        "delete from " + DELETED_MESSAGE_KEY_TABLE_NAME;
+
+    // The full-text search index of messages, with one row per message (its docid is the id of
+    // the message).  The subject and address columns are maintained by triggers on the Message
+    // table, which also remove the row of a deleted message (so the index agrees with the
+    // Message table whenever a message's body is deleted).  Triggers can't reach the attached
+    // body database, though, so the body column is written here when a Body is changed.
+    /*package*/ static final String SEARCH_TABLE_NAME = "MessageSearch";
+    private static final String SEARCH_DOCID = "docid";
+    private static final String SEARCH_SUBJECT = "searchSubject";
+    private static final String SEARCH_FROM = "searchFrom";
+    private static final String SEARCH_TO = "searchTo";
+    private static final String SEARCH_BODY = "searchBody";
+
+    // Only the start of a very long body is indexed
+    /*package*/ static final int MAX_SEARCH_BODY_LENGTH = 32 * 1024;
+    // The number of existing messages added to the index by each update of SEARCH_INDEX_URI
+    /*package*/ static final int SEARCH_INDEX_BATCH_SIZE = 100;
+
+    private static final String SEARCH_WHERE_DOCID = SEARCH_DOCID + "=?";
+    private static final String SEARCH_BODY_UPDATE = "update " + SEARCH_TABLE_NAME + " set " +
+        SEARCH_BODY + "=? where " + SEARCH_WHERE_DOCID;
+    private static final String SEARCH_MATCH = SEARCH_TABLE_NAME + " match ?";
+    private static final String SEARCH_TABLES = Message.TABLE_NAME + " join " +
+        SEARCH_TABLE_NAME + " on " + Message.TABLE_NAME + '.' + EmailContent.RECORD_ID + '=' +
+        SEARCH_TABLE_NAME + '.' + SEARCH_DOCID;
+    // Messages with the most matches first (offsets() lists each match), then the most recent
+    private static final String SEARCH_ORDER = "length(offsets(" + SEARCH_TABLE_NAME + ")) desc, "
+        + Message.KEY_TIMESTAMP_DESC;
+    private static final String[] SEARCH_HEADER_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, MessageColumns.SUBJECT, MessageColumns.FROM_LIST,
+        MessageColumns.TO_LIST, MessageColumns.CC_LIST
+    };
+    private static final String[] SEARCH_BODY_PROJECTION = new String[] {
+        BodyColumns.MESSAGE_KEY, BodyColumns.TEXT_CONTENT, BodyColumns.HTML_CONTENT,
+        BodyColumns.FILE_FLAGS, BodyColumns.COMPRESSED_FLAGS
+    };
+    private static final String WHERE_BODY_MESSAGE_KEY = BodyColumns.MESSAGE_KEY + "=?";
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+
+    // Body content longer than this (in chars) is kept in a file rather than in the database, so
+    // that reading it doesn't need a huge CursorWindow (or a huge allocation for one); shorter
+    // content stays in the database.  See encodeBodyContent() and Body.getFileUri().
+    /*package*/ static final int BODY_FILE_THRESHOLD = 64 * 1024;
+    // Body content in the database at least this long (in chars) is deflated, if that makes it
+    // any smaller; shorter content isn't worth the trouble
+    /*package*/ static final int MIN_COMPRESSED_LENGTH = 512;
+    // Whether body content is compressed as it's written (and by compactBodies()); bodies written
+    // with this off are stored as plain text, as older versions did
+    /*package*/ static boolean sCompressBodies = true;
+    // The number of existing bodies compacted by each update of COMPACT_BODIES_URI
+    /*package*/ static final int COMPACT_BODIES_BATCH_SIZE = 20;
+    // Like attachments, body files are kept in a directory per account
+    private static final String BODY_FILE_DIRECTORY_SUFFIX = ".db_body";
+
+    private static final String[] BODY_FLAGS_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, BodyColumns.MESSAGE_KEY, BodyColumns.FILE_FLAGS,
+        BodyColumns.COMPRESSED_FLAGS
+    };
+    // The content columns, followed by FILE_FLAGS
+    private static final String[] BODY_FILES_PROJECTION = new String[] {
+        BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT, BodyColumns.HTML_REPLY,
+        BodyColumns.TEXT_REPLY, BodyColumns.INTRO_TEXT, BodyColumns.FILE_FLAGS
+    };
+    // The id, message and FILE_FLAGS of a body, followed by the lengths of its content columns
+    private static final String[] BODY_LENGTHS_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, BodyColumns.MESSAGE_KEY, BodyColumns.FILE_FLAGS,
+        "length(" + BodyColumns.HTML_CONTENT + ')', "length(" + BodyColumns.TEXT_CONTENT + ')',
+        "length(" + BodyColumns.HTML_REPLY + ')', "length(" + BodyColumns.TEXT_REPLY + ')',
+        "length(" + BodyColumns.INTRO_TEXT + ')'
+    };
+    private static final String WHERE_BODY_HAS_FILES = BodyColumns.FILE_FLAGS + ">0";
+    private static final String WHERE_BODY_NOT_COMPACTED =
+        BodyColumns.COMPRESSED_FLAGS + " is null";
+    private static final String WHERE_ORPHAN_BODY = BodyColumns.MESSAGE_KEY + " not in (select " +
+        EmailContent.RECORD_ID + " from " + Message.TABLE_NAME + ')';
+    // The number of orphaned bodies deleted by each update of DELETE_ORPHAN_BODIES_URI
+    /*package*/ static final int DELETE_ORPHAN_BODIES_BATCH_SIZE = 100;
+    private static final String WHERE_ORPHAN_BODY_BATCH = EmailContent.RECORD_ID +
+        " in (select " + EmailContent.RECORD_ID + " from " + Body.TABLE_NAME + " where " +
+        WHERE_ORPHAN_BODY + " limit " + DELETE_ORPHAN_BODIES_BATCH_SIZE + ')';
 
     private static final String ID_EQUALS = EmailContent.RECORD_ID + "=?";
 
+    // The combined views select the messages of every visible mailbox of some types, which this
+    // index finds without a scan of the Mailbox table
+    private static final String CREATE_MAILBOX_TYPE_INDEX = "create index mailbox_" +
+        MailboxColumns.TYPE + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.TYPE + ", " +
+        MailboxColumns.FLAG_VISIBLE + ")";
+
+    // The selections of the messages shown in each mailbox view (see getMailboxViewSelection)
+    private static final String MAILBOX_VIEW_LOADED = MessageColumns.FLAG_LOADED + " in (" +
+        Message.FLAG_LOADED_PARTIAL + "," + Message.FLAG_LOADED_COMPLETE + ")";
+    private static final String MAILBOX_VIEW_OF_TYPES = MAILBOX_VIEW_LOADED + " and " +
+        MessageColumns.MAILBOX_KEY + " in (select " + EmailContent.RECORD_ID + " from " +
+        Mailbox.TABLE_NAME + " where " + MailboxColumns.FLAG_VISIBLE + "=1 and " +
+        MailboxColumns.TYPE;
+    private static final String MAILBOX_VIEW_INBOXES =
+        MAILBOX_VIEW_OF_TYPES + '=' + Mailbox.TYPE_INBOX + ')';
+    private static final String MAILBOX_VIEW_ALL_MAIL = MAILBOX_VIEW_OF_TYPES + " in (" +
+        Mailbox.TYPE_INBOX + ',' + Mailbox.TYPE_MAIL + "))";
+    private static final String MAILBOX_VIEW_DRAFTS =
+        MAILBOX_VIEW_OF_TYPES + '=' + Mailbox.TYPE_DRAFTS + ')';
+    private static final String MAILBOX_VIEW_OUTBOX =
+        MAILBOX_VIEW_OF_TYPES + '=' + Mailbox.TYPE_OUTBOX + ')';
+    private static final String MAILBOX_VIEW_UNREAD_ONLY = " and " + MessageColumns.FLAG_READ +
+        "=0";
+    private static final String MAILBOX_VIEW_UNREAD =
+        MAILBOX_VIEW_LOADED + MAILBOX_VIEW_UNREAD_ONLY;
+    private static final String MAILBOX_VIEW_FAVORITES = MAILBOX_VIEW_LOADED + " and " +
+        MessageColumns.FLAG_FAVORITE + "=1";
+    private static final String MAILBOX_VIEW_MAILBOX = MAILBOX_VIEW_LOADED + " and " +
+        MessageColumns.MAILBOX_KEY + '=';
+
     private static final String TRIGGER_MAILBOX_DELETE =
         "create trigger mailbox_delete before delete on " + Mailbox.TABLE_NAME +
         " begin" +
@@ -227,6 +411,14 @@ public class EmailProvider extends ContentProvider {
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EMAIL_AUTHORITY, "message/#", MESSAGE_ID);
+        // The messages matching a search (query only); see Message.getSearchUri()
+        matcher.addURI(EMAIL_AUTHORITY, "message/search", MESSAGE_SEARCH);
+        // The messages shown in a mailbox or combined view (query only); see
+        // Message.getMailboxViewUri()
+        matcher.addURI(EMAIL_AUTHORITY, "message/mailbox/*", MESSAGE_MAILBOX_VIEW);
+        // New messages with their bodies and attachments (bulk insert only); see
+        // Message.importMessages()
+        matcher.addURI(EMAIL_AUTHORITY, "message/import", MESSAGE_IMPORT);
 
         // A specific attachment
         matcher.addURI(EMAIL_AUTHORITY, "attachment", ATTACHMENT);
@@ -248,6 +440,8 @@ public class EmailProvider extends ContentProvider {
         matcher.addURI(EMAIL_AUTHORITY, "body/#/html", BODY_HTML);
         // The plain text part of a specific mail body
         matcher.addURI(EMAIL_AUTHORITY, "body/#/text", BODY_TEXT);
+        // The file holding a content column of the body for a specific message (openFile only)
+        matcher.addURI(EMAIL_AUTHORITY, "body/message/#/*", BODY_MESSAGE_FILE);
 
         // All hostauth records
         matcher.addURI(EMAIL_AUTHORITY, "hostauth", HOSTAUTH);
@@ -296,6 +490,46 @@ public class EmailProvider extends ContentProvider {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /*
+     * Internal helper method for creating an index on two columns, e.g.
+     * "create index message_mailboxKey_timeStamp on Message (mailboxKey, timeStamp);"
+     */
+    /* package */
+    static String createIndex(String tableName, String firstColumnName,
+            String secondColumnName) {
+        return "create index " + tableName.toLowerCase() + '_' + firstColumnName + '_'
+            + secondColumnName + " on " + tableName + " (" + firstColumnName + ", "
+            + secondColumnName + ");";
+    }
+
+    /**
+     * Create the composite indexes of the Message table.  The mailbox's messages in date order
+     * (message lists), a server id within a mailbox (sync adapters) and a mailbox's messages
+     * (MessagingController, which also names the account) are each found from one index; either
+     * index also serves any query on mailboxKey alone.
+     */
+    static void createMessageMailboxIndexes(SQLiteDatabase db) {
+        db.execSQL(createIndex(Message.TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                MessageColumns.TIMESTAMP));
+        db.execSQL(createIndex(Message.TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                SyncColumns.SERVER_ID));
+    }
+
+    /**
+     * Create the triggers that store a missing Message timeStamp as 0.  Paged message lists
+     * (see Message.KEY_TIMESTAMP_ID_DESC) key on the timeStamp, which a NULL would escape, and
+     * 0 keeps the (mailboxKey, timeStamp) index usable, where ifnull(timeStamp, 0) wouldn't be.
+     */
+    static void createMessageTimestampTriggers(SQLiteDatabase db) {
+        String setZero = " when NEW." + MessageColumns.TIMESTAMP + " is null" +
+                " begin update " + Message.TABLE_NAME + " set " + MessageColumns.TIMESTAMP +
+                "=0 where " + EmailContent.RECORD_ID + "=NEW." + EmailContent.RECORD_ID + "; end";
+        db.execSQL("create trigger message_timestamp_insert after insert on " +
+                Message.TABLE_NAME + setZero);
+        db.execSQL("create trigger message_timestamp_update after update of " +
+                MessageColumns.TIMESTAMP + " on " + Message.TABLE_NAME + setZero);
+    }
+
     static void createMessageTable(SQLiteDatabase db) {
         String messageColumns = MessageColumns.DISPLAY_NAME + " text, "
             + MessageColumns.TIMESTAMP + " integer, "
@@ -314,7 +548,8 @@ public class EmailProvider extends ContentProvider {
             + MessageColumns.CC_LIST + " text, "
             + MessageColumns.BCC_LIST + " text, "
             + MessageColumns.REPLY_TO_LIST + " text, "
-            + MessageColumns.MEETING_INFO + " text"
+            + MessageColumns.MEETING_INFO + " text, "
+            + MessageColumns.SNIPPET + " text"
             + ");";
 
         // This String and the following String MUST have the same columns, except for the type
@@ -341,17 +576,19 @@ public class EmailProvider extends ContentProvider {
             MessageColumns.TIMESTAMP,
             MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageMailboxIndexes(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
         // in a separate database, and trigger cannot operate on attached databases.
+        createMessageTimestampTriggers(db);
+
         db.execSQL("create trigger message_delete before delete on " + Message.TABLE_NAME +
                 " begin delete from " + Attachment.TABLE_NAME +
                 "  where " + AttachmentColumns.MESSAGE_KEY + "=old." + EmailContent.RECORD_ID +
@@ -396,8 +633,112 @@ public class EmailProvider extends ContentProvider {
                 " when 0 then -1 else 1 end" +
                 "  where " + EmailContent.RECORD_ID + "=OLD." + MessageColumns.MAILBOX_KEY +
                 "; end");
+
+        createMessageCountTriggers(db);
+        createSearchTable(db);
    }
 
+    /**
+     * Add triggers to keep the message and favorite counts accurate per mailbox
+     */
+    static void createMessageCountTriggers(SQLiteDatabase db) {
+        String oldFavorite =
+            "case OLD." + MessageColumns.FLAG_FAVORITE + " when 1 then 1 else 0 end";
+        String newFavorite =
+            "case NEW." + MessageColumns.FLAG_FAVORITE + " when 1 then 1 else 0 end";
+
+        // Insert a message; add it to the counts of its mailbox
+        db.execSQL("create trigger message_count_insert before insert on " + Message.TABLE_NAME +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
+                '=' + MailboxColumns.MESSAGE_COUNT + "+1, " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "+" + newFavorite +
+                "  where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Delete a message; remove it from the counts of its mailbox
+        db.execSQL("create trigger message_count_delete before delete on " + Message.TABLE_NAME +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
+                '=' + MailboxColumns.MESSAGE_COUNT + "-1, " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "-" + oldFavorite +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Change a message's mailbox; it takes its old favorite state along with it (any change
+        // of that is counted in its new mailbox by message_count_favorite)
+        db.execSQL("create trigger message_count_move before update of " +
+                MessageColumns.MAILBOX_KEY + " on " + Message.TABLE_NAME +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
+                '=' + MailboxColumns.MESSAGE_COUNT + "-1, " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "-" + oldFavorite +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                "; update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT +
+                '=' + MailboxColumns.MESSAGE_COUNT + "+1, " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "+" + oldFavorite +
+                " where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Change a message's favorite state
+        db.execSQL("create trigger message_count_favorite before update of " +
+                MessageColumns.FLAG_FAVORITE + " on " + Message.TABLE_NAME +
+                " when " + oldFavorite + "!=" + newFavorite +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.FAVORITE_COUNT +
+                '=' + MailboxColumns.FAVORITE_COUNT + "+" + newFavorite + "-" + oldFavorite +
+                "  where " + EmailContent.RECORD_ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
+    }
+
+    /**
+     * Return the assignments of an update of the Account table that recount the unread counts of
+     * an account from those of its mailboxes
+     *
+     * @param accountId an expression for the id of the account
+     */
+    private static String getAccountUnreadCounts(String accountId) {
+        String sumOfUnread = "(select coalesce(sum(" + MailboxColumns.UNREAD_COUNT + "),0) from " +
+                Mailbox.TABLE_NAME + " where " + MailboxColumns.ACCOUNT_KEY + '=' + accountId +
+                " and ";
+        return AccountColumns.UNREAD_COUNT + '=' + sumOfUnread + MailboxColumns.TYPE + '=' +
+                Mailbox.TYPE_INBOX + "), " +
+                AccountColumns.ALL_UNREAD_COUNT + '=' + sumOfUnread + MailboxColumns.TYPE +
+                " in (" + Mailbox.TYPE_INBOX + ',' + Mailbox.TYPE_MAIL + ") and " +
+                MailboxColumns.FLAG_VISIBLE + "=1)";
+    }
+
+    /**
+     * Add triggers to keep the unread counts of each account accurate.  The counts are summed
+     * from the account's mailboxes (there are few of them, and they're indexed by account) rather
+     * than adjusted, so they can't drift when a mailbox is deleted along with its messages.
+     */
+    static void createAccountUnreadTriggers(SQLiteDatabase db) {
+        // Insert a mailbox
+        db.execSQL("create trigger account_unread_insert after insert on " + Mailbox.TABLE_NAME +
+                " begin update " + Account.TABLE_NAME + " set " +
+                getAccountUnreadCounts("NEW." + MailboxColumns.ACCOUNT_KEY) +
+                "  where " + EmailContent.RECORD_ID + "=NEW." + MailboxColumns.ACCOUNT_KEY +
+                "; end");
+
+        // Change a mailbox's unread count, or whether it's counted (or by which account)
+        db.execSQL("create trigger account_unread_update after update of " +
+                MailboxColumns.UNREAD_COUNT + ", " + MailboxColumns.TYPE + ", " +
+                MailboxColumns.FLAG_VISIBLE + ", " + MailboxColumns.ACCOUNT_KEY + " on " +
+                Mailbox.TABLE_NAME +
+                " begin update " + Account.TABLE_NAME + " set " +
+                getAccountUnreadCounts("NEW." + MailboxColumns.ACCOUNT_KEY) +
+                "  where " + EmailContent.RECORD_ID + "=NEW." + MailboxColumns.ACCOUNT_KEY +
+                "; update " + Account.TABLE_NAME + " set " +
+                getAccountUnreadCounts("OLD." + MailboxColumns.ACCOUNT_KEY) +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MailboxColumns.ACCOUNT_KEY +
+                " and OLD." + MailboxColumns.ACCOUNT_KEY + "!=NEW." + MailboxColumns.ACCOUNT_KEY +
+                "; end");
+
+        // Delete a mailbox
+        db.execSQL("create trigger account_unread_delete after delete on " + Mailbox.TABLE_NAME +
+                " begin update " + Account.TABLE_NAME + " set " +
+                getAccountUnreadCounts("OLD." + MailboxColumns.ACCOUNT_KEY) +
+                "  where " + EmailContent.RECORD_ID + "=OLD." + MailboxColumns.ACCOUNT_KEY +
+                "; end");
+    }
+
     static void resetMessageTable(SQLiteDatabase db, int oldVersion, int newVersion) {
         try {
             db.execSQL("drop table " + Message.TABLE_NAME);
@@ -405,9 +746,57 @@ public class EmailProvider extends ContentProvider {
             db.execSQL("drop table " + Message.DELETED_TABLE_NAME);
         } catch (SQLException e) {
         }
+        try {
+            db.execSQL("drop table " + SEARCH_TABLE_NAME);
+        } catch (SQLException e) {
+        }
         createMessageTable(db);
     }
 
+    static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + SEARCH_TABLE_NAME + " using fts3 (" +
+                SEARCH_SUBJECT + ", " + SEARCH_FROM + ", " + SEARCH_TO + ", " + SEARCH_BODY +
+                ");");
+
+        createSearchInsertTrigger(db);
+
+        // The address lists are indexed as they're stored; the tokenizer splits the packed
+        // addresses into their names and address parts
+        String to = "coalesce(NEW." + MessageColumns.TO_LIST + ",'') || ' ' || coalesce(NEW." +
+                MessageColumns.CC_LIST + ",'')";
+
+        // Change a message's headers
+        db.execSQL("create trigger message_search_update after update of " +
+                MessageColumns.SUBJECT + ", " + MessageColumns.FROM_LIST + ", " +
+                MessageColumns.TO_LIST + ", " + MessageColumns.CC_LIST + " on " +
+                Message.TABLE_NAME +
+                " begin update " + SEARCH_TABLE_NAME + " set " + SEARCH_SUBJECT + "=NEW." +
+                MessageColumns.SUBJECT + ", " + SEARCH_FROM + "=NEW." + MessageColumns.FROM_LIST +
+                ", " + SEARCH_TO + '=' + to +
+                "  where " + SEARCH_DOCID + "=NEW." + EmailContent.RECORD_ID + "; end");
+
+        // Delete a message (directly, or by cascade from its mailbox)
+        db.execSQL("create trigger message_search_delete after delete on " + Message.TABLE_NAME +
+                " begin delete from " + SEARCH_TABLE_NAME +
+                "  where " + SEARCH_DOCID + "=OLD." + EmailContent.RECORD_ID + "; end");
+    }
+
+    /**
+     * Create the trigger that indexes a message's headers when it's inserted (its body is indexed
+     * when the Body is inserted).  The sentinel left by deleting a message locally, until the
+     * server has deleted it too, isn't indexed; it's nothing a search should find.
+     */
+    static void createSearchInsertTrigger(SQLiteDatabase db) {
+        String to = "coalesce(NEW." + MessageColumns.TO_LIST + ",'') || ' ' || coalesce(NEW." +
+                MessageColumns.CC_LIST + ",'')";
+        db.execSQL("create trigger message_search_insert after insert on " + Message.TABLE_NAME +
+                " when NEW." + MessageColumns.FLAG_LOADED + "!=" + Message.FLAG_LOADED_DELETED +
+                " begin insert into " + SEARCH_TABLE_NAME + " (" + SEARCH_DOCID + ", " +
+                SEARCH_SUBJECT + ", " + SEARCH_FROM + ", " + SEARCH_TO + ") values (NEW." +
+                EmailContent.RECORD_ID + ", NEW." + MessageColumns.SUBJECT + ", NEW." +
+                MessageColumns.FROM_LIST + ", " + to + "); end");
+    }
+
     static void createAccountTable(SQLiteDatabase db) {
         String s = " (" + EmailContent.RECORD_ID + " integer primary key autoincrement, "
             + AccountColumns.DISPLAY_NAME + " text, "
@@ -427,7 +816,9 @@ public class EmailProvider extends ContentProvider {
             + AccountColumns.SECURITY_FLAGS + " integer, "
             + AccountColumns.SECURITY_SYNC_KEY + " text, "
             + AccountColumns.SIGNATURE + " text, "
-            + AccountColumns.ACCOUNT_COLOR + " integer"
+            + AccountColumns.ACCOUNT_COLOR + " integer, "
+            + AccountColumns.UNREAD_COUNT + " integer default 0, "
+            + AccountColumns.ALL_UNREAD_COUNT + " integer default 0"
             + ");";
         db.execSQL("create table " + Account.TABLE_NAME + s);
         // Deleting an account deletes associated Mailboxes and HostAuth's
@@ -487,15 +878,19 @@ public class EmailProvider extends ContentProvider {
             + MailboxColumns.FLAG_VISIBLE + " integer, "
             + MailboxColumns.FLAGS + " integer, "
             + MailboxColumns.VISIBLE_LIMIT + " integer, "
-            + MailboxColumns.SYNC_STATUS + " text"
+            + MailboxColumns.SYNC_STATUS + " text, "
+            + MailboxColumns.MESSAGE_COUNT + " integer default 0, "
+            + MailboxColumns.FAVORITE_COUNT + " integer default 0"
             + ");";
         db.execSQL("create table " + Mailbox.TABLE_NAME + s);
         db.execSQL("create index mailbox_" + MailboxColumns.SERVER_ID
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.SERVER_ID + ")");
         db.execSQL("create index mailbox_" + MailboxColumns.ACCOUNT_KEY
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY + ")");
+        db.execSQL(CREATE_MAILBOX_TYPE_INDEX);
         // Deleting a Mailbox deletes associated Messages in all three tables
         db.execSQL(TRIGGER_MAILBOX_DELETE);
+        createAccountUnreadTriggers(db);
     }
 
     static void resetMailboxTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -540,10 +935,14 @@ public class EmailProvider extends ContentProvider {
             + BodyColumns.HTML_REPLY + " text, "
             + BodyColumns.TEXT_REPLY + " text, "
             + BodyColumns.SOURCE_MESSAGE_KEY + " text, "
-            + BodyColumns.INTRO_TEXT + " text"
+            + BodyColumns.INTRO_TEXT + " text, "
+            + BodyColumns.FILE_FLAGS + " integer, "
+            + BodyColumns.COMPRESSED_FLAGS + " integer"
             + ");";
         db.execSQL("create table " + Body.TABLE_NAME + s);
         db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
+        db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.FILE_FLAGS));
+        db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.COMPRESSED_FLAGS));
     }
 
     static void upgradeBodyTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -563,6 +962,32 @@ public class EmailProvider extends ContentProvider {
             }
             oldVersion = 6;
         }
+        if (oldVersion == 6) {
+            // Existing bodies are left with null fileFlags, and their long content is moved into
+            // files in the background (see compactBodies)
+            try {
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.FILE_FLAGS + " integer");
+                db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.FILE_FLAGS));
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                Log.w(TAG, "Exception upgrading EmailProviderBody.db from v6 to v7", e);
+            }
+            oldVersion = 7;
+        }
+        if (oldVersion == 7) {
+            // Existing bodies are left with null compressedFlags, and are compressed in the
+            // background (see compactBodies)
+            try {
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.COMPRESSED_FLAGS + " integer");
+                db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.COMPRESSED_FLAGS));
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                Log.w(TAG, "Exception upgrading EmailProviderBody.db from v7 to v8", e);
+            }
+            oldVersion = 8;
+        }
     }
 
     private SQLiteDatabase mDatabase;
@@ -589,6 +1014,8 @@ public class EmailProvider extends ContentProvider {
                 String bodyFileName = mBodyDatabase.getPath();
                 mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
             }
+            mDatabase.execSQL(CREATE_DELETED_MESSAGE_KEY_TABLE);
+            mDatabase.execSQL(CREATE_DELETED_MESSAGE_KEY_TRIGGER);
         }
 
         // Check for any orphaned Messages in the updated/deleted tables
@@ -651,6 +1078,595 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Add a batch of the messages that aren't in the search index yet (i.e. those that predate
+     * it) to the index, most recent first, in a transaction of its own.  Messages are indexed by
+     * trigger as they arrive, so the ones left to do are always those older than the oldest one
+     * in the index; there's no other progress to keep, and indexing resumes where it left off if
+     * the process is killed.
+     *
+     * @param db the email database (with the body database attached)
+     * @return the number of messages indexed; 0 once the index is complete
+     */
+    /*package*/ int indexMessagesForSearch(SQLiteDatabase db) {
+        int count = 0;
+        db.beginTransaction();
+        try {
+            // The docid is the primary key of the index's content table, so this is a quick look.
+            // Sentinels of locally deleted messages aren't indexed (see createSearchInsertTrigger)
+            String where = MessageColumns.FLAG_LOADED + "!=" + Message.FLAG_LOADED_DELETED;
+            Cursor c = db.rawQuery("select min(" + SEARCH_DOCID + ") from " + SEARCH_TABLE_NAME +
+                    "_content", null);
+            try {
+                if (c.moveToFirst() && !c.isNull(0)) {
+                    where += " and " + EmailContent.RECORD_ID + '<' + c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            c = db.query(Message.TABLE_NAME, SEARCH_HEADER_PROJECTION, where, null, null, null,
+                    EmailContent.RECORD_ID + " desc", Integer.toString(SEARCH_INDEX_BATCH_SIZE));
+            try {
+                ContentValues cv = new ContentValues();
+                while (c.moveToNext()) {
+                    long messageId = c.getLong(0);
+                    String to = c.getString(3);
+                    String cc = c.getString(4);
+                    cv.put(SEARCH_DOCID, messageId);
+                    cv.put(SEARCH_SUBJECT, c.getString(1));
+                    cv.put(SEARCH_FROM, c.getString(2));
+                    cv.put(SEARCH_TO, (to == null ? "" : to) + ' ' + (cc == null ? "" : cc));
+                    cv.put(SEARCH_BODY, getSearchBody(db, messageId));
+                    db.insert(SEARCH_TABLE_NAME, null, cv);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (Email.LOGD) {
+            Log.v(TAG, "indexMessagesForSearch: indexed " + count + " messages");
+        }
+        return count;
+    }
+
+    /**
+     * Return the indexed text of a message's body, or null if it has no body
+     */
+    private String getSearchBody(SQLiteDatabase db, long messageId) {
+        Cursor c = db.query(Body.TABLE_NAME, SEARCH_BODY_PROJECTION, WHERE_BODY_MESSAGE_KEY,
+                new String[] {Long.toString(messageId)}, null, null, null);
+        try {
+            return c.moveToFirst() ? getSearchText(c) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the indexed text of the body at the cursor's position (in SEARCH_BODY_PROJECTION)
+     */
+    private String getSearchText(Cursor c) {
+        int fileFlags = c.getInt(3);
+        int compressedFlags = c.getInt(4);
+        return getSearchText(
+                getBodyContent(c, 1, BodyColumns.TEXT_CONTENT, fileFlags, compressedFlags,
+                        MAX_SEARCH_BODY_LENGTH),
+                getBodyContent(c, 2, BodyColumns.HTML_CONTENT, fileFlags, compressedFlags,
+                        MAX_SEARCH_BODY_LENGTH * 2));
+    }
+
+    /**
+     * Return the text to index for a body: its text, or failing that its html without the tags,
+     * cut off at MAX_SEARCH_BODY_LENGTH
+     */
+    /*package*/ static String getSearchText(String text, String html) {
+        if (text == null && html != null) {
+            // Don't strip the tags of more html than we could possibly index
+            if (html.length() > MAX_SEARCH_BODY_LENGTH * 2) {
+                html = html.substring(0, MAX_SEARCH_BODY_LENGTH * 2);
+            }
+            text = HTML_TAG.matcher(html).replaceAll(" ");
+        }
+        if (text != null && text.length() > MAX_SEARCH_BODY_LENGTH) {
+            text = text.substring(0, MAX_SEARCH_BODY_LENGTH);
+        }
+        return text;
+    }
+
+    /**
+     * Write the body column of a message's row in the search index.  If the message isn't in the
+     * index yet, this does nothing; indexMessagesForSearch will pick up the body with the rest of
+     * the message.
+     */
+    private static void setSearchBody(SQLiteDatabase db, long messageId, String text) {
+        ContentValues cv = new ContentValues();
+        cv.put(SEARCH_BODY, text);
+        db.update(SEARCH_TABLE_NAME, cv, SEARCH_WHERE_DOCID,
+                new String[] {Long.toString(messageId)});
+    }
+
+    /**
+     * Re-index the bodies selected (after they've been changed)
+     */
+    private void indexBodiesForSearch(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Cursor c = db.query(Body.TABLE_NAME, SEARCH_BODY_PROJECTION, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                setSearchBody(db, c.getLong(0), getSearchText(c));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the messages of the bodies selected (before they're deleted)
+     */
+    private static ArrayList<Long> getBodyMessageKeys(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        ArrayList<Long> messageKeys = new ArrayList<Long>();
+        Cursor c = db.query(Body.TABLE_NAME, SEARCH_BODY_PROJECTION, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                messageKeys.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return messageKeys;
+    }
+
+    /**
+     * Convert the words of a user's search into a full-text match, in which each word matches
+     * the words starting with it, and all of them must match.  Everything but letters and digits
+     * separates words (as in the index), so the user can't write match syntax by accident.
+     *
+     * @param query the user's search
+     * @return the match, or null if there's nothing to search for
+     */
+    /*package*/ static String getSearchMatch(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        int length = query.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean inWord = i < length && Character.isLetterOrDigit(query.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(query, start, i).append('*');
+                start = -1;
+            }
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+    /**
+     * Return the name of the file for a content column of a message's body, relative to the
+     * database directory (this is what's stored in the column)
+     */
+    private static String getBodyFileName(long accountId, long messageId, String column) {
+        return accountId + BODY_FILE_DIRECTORY_SUFFIX + File.separatorChar + messageId + '.' +
+                column;
+    }
+
+    private File getBodyFile(String name) {
+        return new File(getContext().getDatabasePath(DATABASE_NAME).getParentFile(), name);
+    }
+
+    private File getBodyFileDirectory(long accountId) {
+        return getContext().getDatabasePath(accountId + BODY_FILE_DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Return the account of a message, or -1 if there's no such message
+     */
+    private static long getMessageAccount(SQLiteDatabase db, long messageId) {
+        Cursor c = db.query(Message.TABLE_NAME, MESSAGE_LOCATION_PROJECTION, ID_EQUALS,
+                new String[] {Long.toString(messageId)}, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return a content column of a body (at the cursor's position), reading it from its file or
+     * inflating it if that's how it's stored
+     *
+     * @param c the cursor
+     * @param index the index of the column in the cursor
+     * @param column the name of the column
+     * @param fileFlags the FILE_FLAGS of the body
+     * @param compressedFlags the COMPRESSED_FLAGS of the body
+     * @param maxLength the most characters to read from a file or to inflate
+     */
+    private String getBodyContent(Cursor c, int index, String column, int fileFlags,
+            int compressedFlags, int maxLength) {
+        int flag = Body.getFileFlag(column);
+        if ((compressedFlags & flag) != 0) {
+            return Body.inflateText(c.getBlob(index), maxLength);
+        } else if ((fileFlags & flag) == 0) {
+            return c.getString(index);
+        }
+        File file = getBodyFile(c.getString(index));
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                return Body.readText(in, maxLength);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read body file " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Encode content values as they're stored: those too long for the database move into files,
+     * replacing each with the name of its file, and the rest are compressed if that's worthwhile.
+     * Content values that are short enough for the database replace any file their column had,
+     * which is then no longer needed.  FILE_FLAGS and COMPRESSED_FLAGS are put into the values.
+     *
+     * @param db the email database (with the body database attached)
+     * @param messageId the message of the body (or -1 if it has none)
+     * @param values the values being written to the body; these are changed as described
+     * @param fileFlags the FILE_FLAGS of the body before the change (0 for a new body)
+     * @param compressedFlags the COMPRESSED_FLAGS of the body before the change (0 for a new body)
+     * @param obsoleteFiles files no longer needed are added to this list, to be deleted once the
+     * change has been made (may be null if fileFlags is 0)
+     */
+    private void encodeBodyContent(SQLiteDatabase db, long messageId, ContentValues values,
+            int fileFlags, int compressedFlags, ArrayList<File> obsoleteFiles) {
+        long accountId = -1;
+        for (int i = 0; i < Body.FILE_COLUMNS.length; i++) {
+            String column = Body.FILE_COLUMNS[i];
+            if (!values.containsKey(column)) {
+                continue;
+            }
+            int flag = 1 << i;
+            String content = values.getAsString(column);
+            compressedFlags &= ~flag;
+            if (content != null && content.length() > BODY_FILE_THRESHOLD) {
+                if (accountId < 0) {
+                    accountId = getMessageAccount(db, messageId);
+                }
+                // A body without a message will be deleted soon enough, so leave it be
+                if (accountId >= 0) {
+                    String name = getBodyFileName(accountId, messageId, column);
+                    try {
+                        writeBodyFile(getBodyFile(name), content);
+                        values.put(column, name);
+                        fileFlags |= flag;
+                        continue;
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to write body file " + name + ": " + e);
+                    }
+                }
+            }
+            if ((fileFlags & flag) != 0) {
+                if (accountId < 0) {
+                    accountId = getMessageAccount(db, messageId);
+                }
+                obsoleteFiles.add(getBodyFile(getBodyFileName(accountId, messageId, column)));
+                fileFlags &= ~flag;
+            }
+            byte[] compressed = compressBodyContent(content);
+            if (compressed != null) {
+                values.put(column, compressed);
+                compressedFlags |= flag;
+            }
+        }
+        values.put(BodyColumns.FILE_FLAGS, fileFlags);
+        values.put(BodyColumns.COMPRESSED_FLAGS, compressedFlags);
+    }
+
+    /**
+     * Return body content deflated, or null if it should be stored as it is (because compression
+     * is off, or the content is too short or doesn't get any smaller)
+     */
+    private static byte[] compressBodyContent(String content) {
+        if (!sCompressBodies || content == null || content.length() < MIN_COMPRESSED_LENGTH) {
+            return null;
+        }
+        byte[] compressed = Body.deflateText(content);
+        // The content is at least as many bytes of UTF-8 as it is chars
+        return (compressed.length < content.length()) ? compressed : null;
+    }
+
+    /**
+     * Write a body file; the file is written in full before it replaces any existing one
+     */
+    private static void writeBodyFile(File file, String content) throws IOException {
+        File tempFile = createBodyTempFile(file);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), Utility.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        renameBodyTempFile(tempFile, file);
+    }
+
+    private static File createBodyTempFile(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return new File(directory, file.getName() + ".tmp");
+    }
+
+    private static void renameBodyTempFile(File tempFile, File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile);
+        }
+    }
+
+    /**
+     * Copy a content column of a body into a file, a chunk at a time (the column may be too long
+     * to read through a cursor in one piece)
+     */
+    private static void copyBodyColumnToFile(SQLiteDatabase db, long bodyId, String column,
+            File file) throws IOException {
+        File tempFile = createBodyTempFile(file);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), Utility.UTF_8);
+        try {
+            String[] args = new String[] {Long.toString(bodyId)};
+            // substr() counts characters from 1
+            for (int start = 1; ; start += BODY_FILE_THRESHOLD) {
+                Cursor c = db.rawQuery("select substr(" + column + ',' + start + ',' +
+                        BODY_FILE_THRESHOLD + ") from " + Body.TABLE_NAME + " where " +
+                        ID_EQUALS, args);
+                String chunk;
+                try {
+                    chunk = c.moveToFirst() ? c.getString(0) : null;
+                } finally {
+                    c.close();
+                }
+                if (chunk == null || chunk.length() == 0) {
+                    break;
+                }
+                writer.write(chunk);
+                if (chunk.length() < BODY_FILE_THRESHOLD) {
+                    break;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        renameBodyTempFile(tempFile, file);
+    }
+
+    /**
+     * Return the files of the bodies selected (before they're deleted)
+     */
+    private ArrayList<File> getBodyFiles(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        ArrayList<File> files = new ArrayList<File>();
+        Cursor c = db.query(Body.TABLE_NAME, BODY_FILES_PROJECTION,
+                whereWith(WHERE_BODY_HAS_FILES, selection), selectionArgs, null, null, null);
+        try {
+            int fileFlagsColumn = Body.FILE_COLUMNS.length;
+            while (c.moveToNext()) {
+                int fileFlags = c.getInt(fileFlagsColumn);
+                for (int i = 0; i < Body.FILE_COLUMNS.length; i++) {
+                    if ((fileFlags & (1 << i)) != 0) {
+                        files.add(getBodyFile(c.getString(i)));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return files;
+    }
+
+    private static void deleteBodyFiles(ArrayList<File> files) {
+        for (File file: files) {
+            // Best effort; a file that can't be deleted is just wasted space
+            file.delete();
+        }
+    }
+
+    /**
+     * Update the selected bodies.  Content that is too long for the database moves into files
+     * (and content that's short enough moves out of them), and the rest is compressed, which is
+     * done a body at a time.
+     */
+    private int updateBodies(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        boolean hasContent = false;
+        for (String column: Body.FILE_COLUMNS) {
+            hasContent |= values.containsKey(column);
+        }
+        // FILE_FLAGS and COMPRESSED_FLAGS can't be set from outside
+        values.remove(BodyColumns.FILE_FLAGS);
+        values.remove(BodyColumns.COMPRESSED_FLAGS);
+        if (!hasContent) {
+            return db.update(Body.TABLE_NAME, values, selection, selectionArgs);
+        }
+        int result = 0;
+        ArrayList<File> obsoleteFiles = new ArrayList<File>();
+        db.beginTransaction();
+        try {
+            // Compact any of the bodies that haven't been yet, so that the columns not being
+            // changed are also stored as the new flags will say
+            compactBodies(db, selection, selectionArgs, Integer.MAX_VALUE);
+            Cursor c = db.query(Body.TABLE_NAME, BODY_FLAGS_PROJECTION, selection,
+                    selectionArgs, null, null, null);
+            try {
+                String[] bind = new String[1];
+                while (c.moveToNext()) {
+                    ContentValues bodyValues = new ContentValues(values);
+                    Long messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+                    encodeBodyContent(db, (messageKey != null) ? messageKey : c.getLong(1),
+                            bodyValues, c.getInt(2), c.getInt(3), obsoleteFiles);
+                    bind[0] = c.getString(0);
+                    result += db.update(Body.TABLE_NAME, bodyValues, ID_EQUALS, bind);
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deleteBodyFiles(obsoleteFiles);
+        return result;
+    }
+
+    /**
+     * Compact a batch of the bodies that predate body compression (i.e. whose COMPRESSED_FLAGS is
+     * null), in a transaction of its own; see compactBodies(SQLiteDatabase, String, String[], int)
+     *
+     * @param db the email database (with the body database attached)
+     * @return the number of bodies compacted; 0 once all of them have been
+     */
+    /*package*/ int compactBodies(SQLiteDatabase db) {
+        int count;
+        db.beginTransaction();
+        try {
+            count = compactBodies(db, null, null, COMPACT_BODIES_BATCH_SIZE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Delete a batch of orphaned bodies, i.e. those whose messages are gone, in a transaction of
+     * its own.  delete() deletes the bodies of the messages it deletes, so these are only left
+     * by older versions, or by messages deleted some other way.  Finding them compares bodies
+     * with the Message table, so this is left for a background thread.
+     *
+     * @param db the email database (with the body database attached)
+     * @return the number of bodies deleted; 0 once there are none left
+     */
+    /*package*/ int deleteOrphanBodies(SQLiteDatabase db) {
+        ArrayList<File> bodyFiles;
+        int count;
+        db.beginTransaction();
+        try {
+            bodyFiles = getBodyFiles(db, WHERE_ORPHAN_BODY_BATCH, null);
+            count = db.delete(Body.TABLE_NAME, WHERE_ORPHAN_BODY_BATCH, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deleteBodyFiles(bodyFiles);
+        return count;
+    }
+
+    /**
+     * Compact the selected bodies that predate body compression: any content of a body that also
+     * predates body files (i.e. whose FILE_FLAGS is null) that's too long for the database is
+     * moved into files, and the rest is compressed if that's worthwhile.  The bodies compacted get
+     * FILE_FLAGS and COMPRESSED_FLAGS, so compaction resumes where it left off if the process is
+     * killed.  This is called within a transaction.
+     *
+     * @param db the email database (with the body database attached)
+     * @param selection the bodies to compact (null for any)
+     * @param selectionArgs the arguments of the selection
+     * @param limit the most bodies to compact
+     * @return the number of bodies compacted
+     */
+    private int compactBodies(SQLiteDatabase db, String selection, String[] selectionArgs,
+            int limit) {
+        int count = 0;
+        int moved = 0;
+        int compressed = 0;
+        Cursor c = db.query(Body.TABLE_NAME, BODY_LENGTHS_PROJECTION,
+                whereWith(WHERE_BODY_NOT_COMPACTED, selection), selectionArgs, null, null, null,
+                Integer.toString(limit));
+        try {
+            ContentValues cv = new ContentValues();
+            while (c.moveToNext()) {
+                long bodyId = c.getLong(0);
+                long messageId = c.getLong(1);
+                boolean checkFiles = c.isNull(2);
+                int fileFlags = c.getInt(2);
+                int compressedFlags = 0;
+                long accountId = -1;
+                cv.clear();
+                for (int i = 0; i < Body.FILE_COLUMNS.length; i++) {
+                    int flag = 1 << i;
+                    long length = c.getLong(i + 3);
+                    if ((fileFlags & flag) != 0) {
+                        continue;
+                    }
+                    String column = Body.FILE_COLUMNS[i];
+                    if (checkFiles && length > BODY_FILE_THRESHOLD) {
+                        if (accountId < 0) {
+                            accountId = getMessageAccount(db, messageId);
+                        }
+                        // A body without a message will be deleted soon enough
+                        if (accountId >= 0) {
+                            String name = getBodyFileName(accountId, messageId, column);
+                            try {
+                                copyBodyColumnToFile(db, bodyId, column, getBodyFile(name));
+                                cv.put(column, name);
+                                fileFlags |= flag;
+                                moved++;
+                                continue;
+                            } catch (IOException e) {
+                                Log.w(TAG, "Unable to write body file " + name + ": " + e);
+                            }
+                        }
+                    }
+                    if (sCompressBodies && length >= MIN_COMPRESSED_LENGTH) {
+                        byte[] content =
+                            compressBodyContent(getBodyColumn(db, bodyId, column));
+                        if (content != null) {
+                            cv.put(column, content);
+                            compressedFlags |= flag;
+                            compressed++;
+                        }
+                    }
+                }
+                cv.put(BodyColumns.FILE_FLAGS, fileFlags);
+                cv.put(BodyColumns.COMPRESSED_FLAGS, compressedFlags);
+                db.update(Body.TABLE_NAME, cv, ID_EQUALS, new String[] {Long.toString(bodyId)});
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        if (Email.LOGD && count > 0) {
+            Log.v(TAG, "compactBodies: compacted " + count + " bodies, moved " + moved +
+                    " columns to files, compressed " + compressed + " columns");
+        }
+        return count;
+    }
+
+    /**
+     * Return a content column of a body, as it's stored in the database
+     */
+    private static String getBodyColumn(SQLiteDatabase db, long bodyId, String column) {
+        Cursor c = db.query(Body.TABLE_NAME, new String[] {column}, ID_EQUALS,
+                new String[] {Long.toString(bodyId)}, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
     private class BodyDatabaseHelper extends SQLiteOpenHelper {
         BodyDatabaseHelper(Context context, String name) {
             super(context, name, null, BODY_DATABASE_VERSION);
@@ -853,6 +1869,110 @@ public class EmailProvider extends ContentProvider {
                 }
                 oldVersion = 14;
             }
+            if (oldVersion == 14) {
+                // Add the search index; existing messages are added to it in the background
+                // (see indexMessagesForSearch), so that the upgrade stays quick
+                try {
+                    createSearchTable(db);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 14 to 15 " + e);
+                }
+                oldVersion = 15;
+            }
+            if (oldVersion == 15) {
+                // Add the cached counts and their triggers, and count what's already there
+                try {
+                    db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column " +
+                            MailboxColumns.MESSAGE_COUNT + " integer default 0;");
+                    db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column " +
+                            MailboxColumns.FAVORITE_COUNT + " integer default 0;");
+                    db.execSQL("alter table " + Account.TABLE_NAME + " add column " +
+                            AccountColumns.UNREAD_COUNT + " integer default 0;");
+                    db.execSQL("alter table " + Account.TABLE_NAME + " add column " +
+                            AccountColumns.ALL_UNREAD_COUNT + " integer default 0;");
+                    createMessageCountTriggers(db);
+                    createAccountUnreadTriggers(db);
+                    String countMessages = "(select count(*) from " + Message.TABLE_NAME +
+                            " where " + MessageColumns.MAILBOX_KEY + '=' + Mailbox.TABLE_NAME +
+                            '.' + EmailContent.RECORD_ID;
+                    db.execSQL("update " + Mailbox.TABLE_NAME + " set " +
+                            MailboxColumns.MESSAGE_COUNT + '=' + countMessages + "), " +
+                            MailboxColumns.FAVORITE_COUNT + '=' + countMessages + " and " +
+                            MessageColumns.FLAG_FAVORITE + "=1)");
+                    db.execSQL("update " + Account.TABLE_NAME + " set " +
+                            getAccountUnreadCounts(Account.TABLE_NAME + '.' +
+                                    EmailContent.RECORD_ID));
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 15 to 16 " + e);
+                }
+                oldVersion = 16;
+            }
+            if (oldVersion == 16) {
+                try {
+                    db.execSQL(CREATE_MAILBOX_TYPE_INDEX);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 16 to 17 " + e);
+                }
+                oldVersion = 17;
+            }
+            if (oldVersion == 17) {
+                try {
+                    createMessageMailboxIndexes(db);
+                    // Every query on mailboxKey can use the new indexes instead
+                    db.execSQL("drop index if exists " + Message.TABLE_NAME.toLowerCase() + '_' +
+                            MessageColumns.MAILBOX_KEY);
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 17 to 18 " + e);
+                }
+                oldVersion = 18;
+            }
+            if (oldVersion == 18) {
+                // Message: add snippet column into Message tables.  Existing messages have no
+                // snippet until they're next loaded; the list shows them without one
+                try {
+                    db.execSQL("alter table " + Message.TABLE_NAME
+                            + " add column " + MessageColumns.SNIPPET + " text" + ";");
+                    db.execSQL("alter table " + Message.UPDATED_TABLE_NAME
+                            + " add column " + MessageColumns.SNIPPET + " text" + ";");
+                    db.execSQL("alter table " + Message.DELETED_TABLE_NAME
+                            + " add column " + MessageColumns.SNIPPET + " text" + ";");
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 18 to 19 " + e);
+                }
+                oldVersion = 19;
+            }
+            if (oldVersion == 19) {
+                try {
+                    createMessageTimestampTriggers(db);
+                    db.execSQL("update " + Message.TABLE_NAME + " set " +
+                            MessageColumns.TIMESTAMP + "=0 where " + MessageColumns.TIMESTAMP +
+                            " is null");
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 19 to 20 " + e);
+                }
+                oldVersion = 20;
+            }
+            if (oldVersion == 20) {
+                // Stop indexing the sentinels of locally deleted messages, and drop those indexed
+                try {
+                    db.execSQL("drop trigger if exists message_search_insert");
+                    createSearchInsertTrigger(db);
+                    db.execSQL("delete from " + SEARCH_TABLE_NAME + " where " + SEARCH_DOCID +
+                            " in (select " + EmailContent.RECORD_ID + " from " +
+                            Message.TABLE_NAME + " where " + MessageColumns.FLAG_LOADED + '=' +
+                            Message.FLAG_LOADED_DELETED + ')');
+                } catch (SQLException e) {
+                    // Shouldn't be needed unless we're debugging and interrupt the process
+                    Log.w(TAG, "Exception upgrading EmailProvider.db from 20 to 21 " + e);
+                }
+                oldVersion = 21;
+            }
         }
 
         @Override
@@ -878,8 +1998,22 @@ public class EmailProvider extends ContentProvider {
         }
 
         int result = -1;
+        ArrayList<Uri> notifierUris = getNotifierUris(db, match, uri, null);
+        // The files of the bodies deleted, which are deleted once the bodies are
+        ArrayList<File> bodyFiles = null;
 
         try {
+            // A deleted body must also leave the search index (deleted messages are handled by
+            // trigger, so this isn't needed for bodies deleted along with their messages)
+            ArrayList<Long> searchBodyKeys = null;
+            if (match == BODY_ID) {
+                String where = whereWithId(uri.getPathSegments().get(1), selection);
+                searchBodyKeys = getBodyMessageKeys(db, where, selectionArgs);
+                bodyFiles = getBodyFiles(db, where, selectionArgs);
+            } else if (match == BODY) {
+                searchBodyKeys = getBodyMessageKeys(db, selection, selectionArgs);
+                bodyFiles = getBodyFiles(db, selection, selectionArgs);
+            }
             switch (match) {
                 // These are cases in which one or more Messages might get deleted, either by
                 // cascade or explicitly
@@ -894,7 +2028,9 @@ public class EmailProvider extends ContentProvider {
                     // The process is:
                     //  1) Begin a transaction, ensuring that both databases are affected atomically
                     //  2) Do the requested deletion, with cascading deletions handled in triggers
-                    //  3) End the transaction, committing all changes atomically
+                    //     (which also record the deleted messages in DeletedMessageKey)
+                    //  3) Delete the bodies of the messages recorded
+                    //  4) End the transaction, committing all changes atomically
                     //
                     // Bodies are auto-deleted here;  Attachments are auto-deleted via trigger
 
@@ -944,14 +2080,16 @@ public class EmailProvider extends ContentProvider {
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
-            if (messageDeletion) {
-                if (match == MESSAGE_ID) {
-                    // Delete the Body record associated with the deleted message
-                    db.execSQL(DELETE_BODY + id);
-                } else {
-                    // Delete any orphaned Body records
-                    db.execSQL(DELETE_ORPHAN_BODIES);
+            if (searchBodyKeys != null) {
+                for (long messageKey: searchBodyKeys) {
+                    setSearchBody(db, messageKey, null);
                 }
+            }
+            if (messageDeletion) {
+                // Delete the Body records of the deleted messages
+                bodyFiles = getBodyFiles(db, WHERE_DELETED_MESSAGE_BODY, null);
+                db.delete(Body.TABLE_NAME, WHERE_DELETED_MESSAGE_BODY, null);
+                db.execSQL(DELETE_DELETED_MESSAGE_KEYS);
                 db.setTransactionSuccessful();
             }
         } catch (SQLiteException e) {
@@ -962,7 +2100,20 @@ public class EmailProvider extends ContentProvider {
                 db.endTransaction();
             }
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (bodyFiles != null) {
+            deleteBodyFiles(bodyFiles);
+        }
+        if (match == ACCOUNT_ID) {
+            // Its body files are gone, so this removes the (empty) directory
+            getBodyFileDirectory(Long.parseLong(id)).delete();
+        }
+        if (isCachedTable(table)) {
+            ContentCache.invalidateAll();
+        }
+        notifyChange(uri);
+        for (Uri notifierUri: notifierUris) {
+            notifyChange(notifierUri);
+        }
         return result;
     }
 
@@ -981,6 +2132,9 @@ public class EmailProvider extends ContentProvider {
             case MAILBOX_MESSAGES:
             case UPDATED_MESSAGE:
             case MESSAGE:
+            case MESSAGE_SEARCH:
+            case MESSAGE_MAILBOX_VIEW:
+            case MESSAGE_IMPORT:
                 return "vnd.android.cursor.dir/email-message";
             case ACCOUNT_MAILBOXES:
             case MAILBOX:
@@ -1030,8 +2184,23 @@ public class EmailProvider extends ContentProvider {
                 case MAILBOX:
                 case ACCOUNT:
                 case HOSTAUTH:
+                    Long messageKey = null;
+                    String searchText = null;
+                    if (match == BODY) {
+                        messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+                        // Index the content before any of it moves into a file
+                        searchText = getSearchText(
+                                values.getAsString(BodyColumns.TEXT_CONTENT),
+                                values.getAsString(BodyColumns.HTML_CONTENT));
+                        encodeBodyContent(db, (messageKey == null) ? -1 : messageKey, values, 0,
+                                0, null);
+                    }
                     id = db.insert(TABLE_NAMES[table], "foo", values);
                     resultUri = ContentUris.withAppendedId(uri, id);
+                    if (messageKey != null) {
+                        // The message's headers are already indexed; add its body
+                        setSearchBody(db, messageKey, searchText);
+                    }
                     // Clients shouldn't normally be adding rows to these tables, as they are
                     // maintained by triggers.  However, we need to be able to do this for unit
                     // testing, so we allow the insert and then throw the same exception that we
@@ -1073,10 +2242,182 @@ public class EmailProvider extends ContentProvider {
         }
 
         // Notify with the base uri, not the new uri (nobody is watching a new record)
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        // But scoped observers need to know where the new record is
+        if ((match == MESSAGE || match == MAILBOX) && values != null) {
+            Long accountId = values.getAsLong(match == MESSAGE ? MessageColumns.ACCOUNT_KEY
+                    : MailboxColumns.ACCOUNT_KEY);
+            Long mailboxId = (match == MESSAGE) ? values.getAsLong(MessageColumns.MAILBOX_KEY)
+                    : Long.valueOf(ContentUris.parseId(resultUri));
+            if (accountId != null && mailboxId != null) {
+                notifyChange(EmailContent.getMailboxNotifierUri(accountId, mailboxId));
+            }
+        }
         return resultUri;
     }
 
+    /**
+     * A compiled insert of the columns of one set of values into a table, which is reused for
+     * each row with the same columns
+     */
+    private static class InsertStatement {
+        private final String[] mColumns;
+        private final SQLiteStatement mStatement;
+
+        InsertStatement(SQLiteDatabase db, String table, ContentValues values) {
+            mColumns = values.keySet().toArray(new String[values.size()]);
+            StringBuilder sb = new StringBuilder("insert into ").append(table).append(" (");
+            for (int i = 0; i < mColumns.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(mColumns[i]);
+            }
+            sb.append(") values (");
+            for (int i = 0; i < mColumns.length; i++) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            mStatement = db.compileStatement(sb.append(')').toString());
+        }
+
+        /**
+         * Return whether the values have exactly the columns of this statement
+         */
+        boolean matches(ContentValues values) {
+            if (values.size() != mColumns.length) {
+                return false;
+            }
+            for (String column: mColumns) {
+                if (!values.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long insert(ContentValues values) {
+            for (int i = 0; i < mColumns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(mStatement, i + 1, values.get(mColumns[i]));
+            }
+            return mStatement.executeInsert();
+        }
+
+        void close() {
+            mStatement.close();
+        }
+    }
+
+    /**
+     * Insert a row with a compiled statement, compiling one the first time each table is given
+     * a new set of columns (in practice, every row of a table has the same columns)
+     */
+    private static long insertRow(SQLiteDatabase db, HashMap<String, InsertStatement> statements,
+            String table, ContentValues values) {
+        InsertStatement statement = statements.get(table);
+        if (statement == null || !statement.matches(values)) {
+            if (statement != null) {
+                statement.close();
+            }
+            statement = new InsertStatement(db, table, values);
+            statements.put(table, statement);
+        }
+        long id = statement.insert(values);
+        if (id < 0) {
+            throw new SQLiteException("Unable to insert into " + table);
+        }
+        return id;
+    }
+
+    /**
+     * Import new messages with their bodies and attachments (see Message.IMPORT_URI).  Each row
+     * is inserted with a statement compiled once for the import, rather than going through
+     * insert(), and there's one change notification for all of them.  As in applyBatch, the
+     * transaction yields to waiting threads between messages, so a long import doesn't stall
+     * the UI; a message is always committed along with its body and attachments.
+     */
+    private int importMessages(ContentValues[] values) {
+        SQLiteDatabase db = getDatabase(getContext());
+        long start = System.currentTimeMillis();
+        HashMap<String, InsertStatement> statements = new HashMap<String, InsertStatement>();
+        SQLiteStatement searchBodyUpdate = null;
+        LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+        long messageId = -1;
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues cv: values) {
+                String table = cv.getAsString(Message.IMPORT_TABLE);
+                cv.remove(Message.IMPORT_TABLE);
+                if (Message.TABLE_NAME.equals(table)) {
+                    if (messageId >= 0) {
+                        db.yieldIfContendedSafely();
+                    }
+                    messageId = insertRow(db, statements, table, cv);
+                    count++;
+                    Long accountId = cv.getAsLong(MessageColumns.ACCOUNT_KEY);
+                    Long mailboxId = cv.getAsLong(MessageColumns.MAILBOX_KEY);
+                    if (accountId != null && mailboxId != null) {
+                        notifications.add(
+                                EmailContent.getMailboxNotifierUri(accountId, mailboxId));
+                    }
+                } else if (messageId < 0) {
+                    throw new IllegalArgumentException("Import row before a message: " + table);
+                } else if (Body.TABLE_NAME.equals(table)) {
+                    cv.put(BodyColumns.MESSAGE_KEY, messageId);
+                    // Index the content before any of it moves into a file
+                    String searchText = getSearchText(cv.getAsString(BodyColumns.TEXT_CONTENT),
+                            cv.getAsString(BodyColumns.HTML_CONTENT));
+                    encodeBodyContent(db, messageId, cv, 0, 0, null);
+                    insertRow(db, statements, table, cv);
+                    if (searchText != null) {
+                        if (searchBodyUpdate == null) {
+                            searchBodyUpdate = db.compileStatement(SEARCH_BODY_UPDATE);
+                        }
+                        searchBodyUpdate.bindString(1, searchText);
+                        searchBodyUpdate.bindLong(2, messageId);
+                        searchBodyUpdate.execute();
+                    }
+                    notifications.add(Body.CONTENT_URI);
+                } else if (Attachment.TABLE_NAME.equals(table)) {
+                    cv.put(AttachmentColumns.MESSAGE_KEY, messageId);
+                    insertRow(db, statements, table, cv);
+                    notifications.add(Attachment.CONTENT_URI);
+                } else {
+                    throw new IllegalArgumentException("Unknown import table: " + table);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            checkDatabases();
+            throw e;
+        } finally {
+            db.endTransaction();
+            for (InsertStatement statement: statements.values()) {
+                statement.close();
+            }
+            if (searchBodyUpdate != null) {
+                searchBodyUpdate.close();
+            }
+        }
+
+        if (count > 0) {
+            notifyChange(Message.CONTENT_URI);
+        }
+        for (Uri uri: notifications) {
+            notifyChange(uri);
+        }
+        if (Email.LOGD) {
+            Log.d(TAG, "importMessages: " + count + " messages (" + values.length + " rows) in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+        return count;
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sURIMatcher.match(uri) == MESSAGE_IMPORT) {
+            return importMessages(values);
+        }
+        return super.bulkInsert(uri, values);
+    }
+
     @Override
     public boolean onCreate() {
         checkDatabases();
@@ -1090,13 +2431,14 @@ public class EmailProvider extends ContentProvider {
      * will exist after either of the individual databases is deleted due to data corruption.
      */
     public void checkDatabases() {
-        // Uncache the databases
+        // Uncache the databases, and the records read from them
         if (mDatabase != null) {
             mDatabase = null;
         }
         if (mBodyDatabase != null) {
             mBodyDatabase = null;
         }
+        ContentCache.invalidateAll();
         // Look for orphans, and delete as necessary; these must always be in sync
         File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
         File bodyFile = getContext().getDatabasePath(BODY_DATABASE_NAME);
@@ -1123,6 +2465,19 @@ public class EmailProvider extends ContentProvider {
         int table = match >> BASE_SHIFT;
         String id;
 
+        // The caller may want to hear only of changes to one mailbox or account
+        String notifyMailbox = uri.getQueryParameter(EmailContent.PARAMETER_NOTIFY_MAILBOX);
+        String notifyAccount = uri.getQueryParameter(EmailContent.PARAMETER_NOTIFY_ACCOUNT);
+        if (notifyMailbox != null) {
+            long accountId = getMailboxAccount(db, notifyMailbox);
+            if (accountId >= 0) {
+                notificationUri = EmailContent.getMailboxNotifierUri(accountId,
+                        Long.parseLong(notifyMailbox));
+            }
+        } else if (notifyAccount != null) {
+            notificationUri = EmailContent.getAccountNotifierUri(Long.parseLong(notifyAccount));
+        }
+
         if (Email.LOGD) {
             Log.v(TAG, "EmailProvider.query: uri=" + uri + ", match is " + match);
         }
@@ -1159,6 +2514,34 @@ public class EmailProvider extends ContentProvider {
                             whereWith(Attachment.MESSAGE_KEY + "=" + id, selection),
                             selectionArgs, null, null, sortOrder);
                     break;
+                case MESSAGE_SEARCH:
+                    String searchMatch = getSearchMatch(
+                            uri.getQueryParameter(Message.PARAMETER_SEARCH_QUERY));
+                    if (searchMatch == null) {
+                        // There's nothing to search for, so nothing matches
+                        c = db.query(Message.TABLE_NAME, projection, "0", null, null, null, null);
+                        break;
+                    }
+                    // The match comes first in the selection, and so in its arguments
+                    int argCount = (selectionArgs == null) ? 0 : selectionArgs.length;
+                    String[] searchArgs = new String[argCount + 1];
+                    searchArgs[0] = searchMatch;
+                    if (argCount > 0) {
+                        System.arraycopy(selectionArgs, 0, searchArgs, 1, argCount);
+                    }
+                    c = db.query(SEARCH_TABLES, projection, whereWith(SEARCH_MATCH, selection),
+                            searchArgs, null, null, (sortOrder != null) ? sortOrder : SEARCH_ORDER);
+                    break;
+                case MESSAGE_MAILBOX_VIEW:
+                    String limit = uri.getQueryParameter(Message.PARAMETER_LIMIT);
+                    if (limit != null) {
+                        // Don't pass anything but a number through to the sql
+                        limit = Integer.toString(Integer.parseInt(limit));
+                    }
+                    c = db.query(Message.TABLE_NAME, projection,
+                            whereWith(getMailboxViewSelection(uri), selection), selectionArgs,
+                            null, null, sortOrder, limit);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
@@ -1173,6 +2556,35 @@ public class EmailProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Return the selection of the messages shown in a mailbox view (see
+     * Message.getMailboxViewUri); the combined views select their mailboxes in SQL, rather than
+     * listing them
+     */
+    /*package*/ static String getMailboxViewSelection(Uri uri) {
+        long mailboxId = Long.parseLong(uri.getLastPathSegment());
+        String selection;
+        if (mailboxId == Mailbox.QUERY_ALL_INBOXES) {
+            selection = (uri.getQueryParameter(Message.PARAMETER_ALL_MAILBOXES) != null)
+                    ? MAILBOX_VIEW_ALL_MAIL : MAILBOX_VIEW_INBOXES;
+        } else if (mailboxId == Mailbox.QUERY_ALL_DRAFTS) {
+            selection = MAILBOX_VIEW_DRAFTS;
+        } else if (mailboxId == Mailbox.QUERY_ALL_OUTBOX) {
+            selection = MAILBOX_VIEW_OUTBOX;
+        } else if (mailboxId == Mailbox.QUERY_ALL_UNREAD) {
+            return MAILBOX_VIEW_UNREAD;
+        } else if (mailboxId == Mailbox.QUERY_ALL_FAVORITES) {
+            return MAILBOX_VIEW_FAVORITES;
+        } else {
+            return MAILBOX_VIEW_MAILBOX + mailboxId;
+        }
+        // The views of mailbox types may be limited to unread messages
+        if (uri.getQueryParameter(Message.PARAMETER_UNREAD_ONLY) != null) {
+            selection += MAILBOX_VIEW_UNREAD_ONLY;
+        }
+        return selection;
+    }
+
     private String whereWithId(String id, String selection) {
         StringBuilder sb = new StringBuilder(256);
         sb.append("_id=");
@@ -1221,9 +2633,14 @@ public class EmailProvider extends ContentProvider {
         }
 
         // We do NOT allow setting of unreadCount via the provider
-        // This column is maintained via triggers
+        // This column is maintained via triggers (as are the other counts)
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.remove(MailboxColumns.UNREAD_COUNT);
+            values.remove(MailboxColumns.MESSAGE_COUNT);
+            values.remove(MailboxColumns.FAVORITE_COUNT);
+        } else if (match == ACCOUNT_ID || match == ACCOUNT) {
+            values.remove(AccountColumns.UNREAD_COUNT);
+            values.remove(AccountColumns.ALL_UNREAD_COUNT);
         }
 
         // Handle this special case the fastest possible way
@@ -1231,8 +2648,18 @@ public class EmailProvider extends ContentProvider {
             checkDatabases();
             return 0;
         }
+        if (SEARCH_INDEX_URI.equals(uri)) {
+            return indexMessagesForSearch(db);
+        }
+        if (COMPACT_BODIES_URI.equals(uri)) {
+            return compactBodies(db);
+        }
+        if (DELETE_ORPHAN_BODIES_URI.equals(uri)) {
+            return deleteOrphanBodies(db);
+        }
 
         String id;
+        ArrayList<Uri> notifierUris = getNotifierUris(db, match, uri, values);
         try {
             switch (match) {
                 case MAILBOX_ID_ADD_TO_FIELD:
@@ -1265,6 +2692,12 @@ public class EmailProvider extends ContentProvider {
                     db.endTransaction();
                     break;
                 case BODY_ID:
+                    id = uri.getPathSegments().get(1);
+                    result = updateBodies(db, values, whereWithId(id, selection), selectionArgs);
+                    break;
+                case BODY:
+                    result = updateBodies(db, values, selection, selectionArgs);
+                    break;
                 case MESSAGE_ID:
                 case SYNCED_MESSAGE_ID:
                 case UPDATED_MESSAGE_ID:
@@ -1285,7 +2718,6 @@ public class EmailProvider extends ContentProvider {
                     result = db.update(TABLE_NAMES[table], values, whereWithId(id, selection),
                             selectionArgs);
                     break;
-                case BODY:
                 case MESSAGE:
                 case UPDATED_MESSAGE:
                 case ATTACHMENT:
@@ -1297,30 +2729,230 @@ public class EmailProvider extends ContentProvider {
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
+            // Changes to message headers are indexed by trigger, but body changes are indexed here
+            if ((match == BODY_ID || match == BODY) && result > 0
+                    && (values.containsKey(BodyColumns.TEXT_CONTENT)
+                            || values.containsKey(BodyColumns.HTML_CONTENT))) {
+                indexBodiesForSearch(db, (match == BODY_ID)
+                        ? whereWithId(uri.getPathSegments().get(1), selection) : selection,
+                        selectionArgs);
+            }
         } catch (SQLiteException e) {
             checkDatabases();
             throw e;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (isCachedTable(table)) {
+            ContentCache.invalidateAll();
+        }
+        notifyChange(uri);
+        for (Uri notifierUri: notifierUris) {
+            notifyChange(notifierUri);
+        }
         return result;
     }
 
-    /* (non-Javadoc)
-     * @see android.content.ContentProvider#applyBatch(android.content.ContentProviderOperation)
+    /**
+     * Find the scoped notifier uris (see EmailContent.NOTIFIER_URI) for a change.  This must be
+     * called before the change is made, since the change may delete or move the affected row.
+     *
+     * @param db the email database
+     * @param match the match of the uri being changed
+     * @param uri the uri being changed
+     * @param values the values being written (for updates), or null
+     * @return the notifier uris to notify once the change has been made
+     */
+    private ArrayList<Uri> getNotifierUris(SQLiteDatabase db, int match, Uri uri,
+            ContentValues values) {
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        switch (match) {
+            case MESSAGE_ID:
+            case SYNCED_MESSAGE_ID:
+                long messageId = Long.parseLong(uri.getPathSegments().get(1));
+                Cursor c = db.query(Message.TABLE_NAME, MESSAGE_LOCATION_PROJECTION,
+                        ID_EQUALS, new String[] {Long.toString(messageId)}, null, null, null);
+                try {
+                    if (c.moveToFirst()) {
+                        long accountId = c.getLong(0);
+                        long mailboxId = c.getLong(1);
+                        uris.add(EmailContent.getMessageNotifierUri(accountId, mailboxId,
+                                messageId));
+                        // A move changes both mailboxes
+                        Long newMailboxId = (values == null) ? null
+                                : values.getAsLong(MessageColumns.MAILBOX_KEY);
+                        if (newMailboxId != null && newMailboxId != mailboxId) {
+                            uris.add(EmailContent.getMessageNotifierUri(accountId, newMailboxId,
+                                    messageId));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                break;
+            case MAILBOX_ID:
+            case MAILBOX_ID_ADD_TO_FIELD:
+                String mailboxId = uri.getPathSegments().get(1);
+                long accountId = getMailboxAccount(db, mailboxId);
+                if (accountId >= 0) {
+                    uris.add(EmailContent.getMailboxNotifierUri(accountId,
+                            Long.parseLong(mailboxId)));
+                }
+                break;
+            case ACCOUNT_ID:
+            case ACCOUNT_ID_ADD_TO_FIELD:
+                uris.add(EmailContent.getAccountNotifierUri(
+                        Long.parseLong(uri.getPathSegments().get(1))));
+                break;
+            case MESSAGE:
+            case MAILBOX:
+            case ACCOUNT:
+                // We can't tell which rows are affected, so everyone has to hear about it
+                uris.add(EmailContent.NOTIFIER_URI);
+                break;
+        }
+        return uris;
+    }
+
+    /**
+     * Return the account of a mailbox, or -1 if there's no such mailbox
+     */
+    private long getMailboxAccount(SQLiteDatabase db, String mailboxId) {
+        Cursor c = db.query(Mailbox.TABLE_NAME, MAILBOX_ACCOUNT_PROJECTION, ID_EQUALS,
+                new String[] {mailboxId}, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return whether the records of a table are kept in ContentCache
+     */
+    private static boolean isCachedTable(int table) {
+        return table == (ACCOUNT_BASE >> BASE_SHIFT) || table == (MAILBOX_BASE >> BASE_SHIFT)
+                || table == (HOSTAUTH_BASE >> BASE_SHIFT);
+    }
+
+    /**
+     * Send a change notification.  In applyBatch, the notification is held until the batch is
+     * done, and notifications for individual messages (and their bodies and attachments) are
+     * coalesced into one for their table or mailbox.
+     */
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> batchNotifications = mBatchNotifications.get();
+        if (batchNotifications == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+        List<String> segments = uri.getPathSegments();
+        int size = segments.size();
+        if (size >= 2 && COALESCED_PATHS.contains(segments.get(size - 2))) {
+            Uri.Builder builder = uri.buildUpon().path(null);
+            // For the notifier uri, drop the "message" segment too, leaving the mailbox
+            int keep = EmailContent.NOTIFIER_URI.getAuthority().equals(uri.getAuthority())
+                    ? size - 2 : size - 1;
+            for (int i = 0; i < keep; i++) {
+                builder.appendPath(segments.get(i));
+            }
+            uri = builder.build();
+        }
+        batchNotifications.add(uri);
+    }
+
+    /**
+     * Open the file holding a content column of a message's body (see Body.getFileUri).  Only
+     * content that's too long for the database is kept in a file, so it's simplest to use the
+     * restore methods of Body, which read it from wherever it is.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sURIMatcher.match(uri) != BODY_MESSAGE_FILE) {
+            throw new FileNotFoundException("Unknown URI " + uri);
+        }
+        List<String> segments = uri.getPathSegments();
+        String messageId = segments.get(2);
+        String column = segments.get(3);
+        int flag = Body.getFileFlag(column);
+        if (flag == 0) {
+            throw new FileNotFoundException("Not a content column: " + uri);
+        }
+        SQLiteDatabase db = getDatabase(getContext());
+        String name = null;
+        Cursor c = db.query(Body.TABLE_NAME, new String[] {column, BodyColumns.FILE_FLAGS},
+                WHERE_BODY_MESSAGE_KEY, new String[] {messageId}, null, null, null);
+        try {
+            if (c.moveToFirst() && (c.getInt(1) & flag) != 0) {
+                name = c.getString(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (name == null) {
+            throw new FileNotFoundException("Not stored in a file: " + uri);
+        }
+        return ParcelFileDescriptor.open(getBodyFile(name), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Apply a batch of operations in a transaction.  Large batches (e.g. a window of synced
+     * messages) would hold the database lock for seconds, stalling the UI's queries; so before
+     * any operation marked as yield-allowed (i.e. the start of a new logical record, such as a
+     * message with its body and attachments), we let any waiting thread have the database.  This
+     * commits the operations so far, so a batch is only atomic between its yield points; batches
+     * without yield-allowed operations are applied in a single transaction, as before.
+     * Back-references work across yields, since all operations share the one results array.
+     *
+     * Change notifications are held until the batch is done; see notifyChange().
      */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        long batchStart = System.currentTimeMillis();
+        long lockStart = batchStart;
+        long lockHeld = 0;
+        long maxLockHeld = 0;
+        int yieldCount = 0;
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
         db.beginTransaction();
         try {
-            ContentProviderResult[] results = super.applyBatch(operations);
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    long now = System.currentTimeMillis();
+                    if (db.yieldIfContendedSafely()) {
+                        long held = now - lockStart;
+                        lockHeld += held;
+                        maxLockHeld = Math.max(maxLockHeld, held);
+                        yieldCount++;
+                        lockStart = System.currentTimeMillis();
+                    }
+                }
+                results[i] = operation.apply(this, results, i);
+            }
             db.setTransactionSuccessful();
             return results;
         } finally {
             db.endTransaction();
+            // Now that the changes are visible, tell observers about them (once each)
+            LinkedHashSet<Uri> notifications = mBatchNotifications.get();
+            mBatchNotifications.remove();
+            for (Uri uri: notifications) {
+                notifyChange(uri);
+            }
+            long now = System.currentTimeMillis();
+            long held = now - lockStart;
+            lockHeld += held;
+            maxLockHeld = Math.max(maxLockHeld, held);
+            if (Email.LOGD || maxLockHeld > LOCK_HELD_WARNING_MS) {
+                Log.d(TAG, "applyBatch: " + numOperations + " operations in " +
+                        (now - batchStart) + "ms; lock held " + lockHeld + "ms (max " +
+                        maxLockHeld + "ms), yielded " + yieldCount + " times");
+            }
         }
     }
 }
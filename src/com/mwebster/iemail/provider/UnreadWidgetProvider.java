@@ -2,8 +2,8 @@ package com.mwebster.iemail.provider;
 
 import com.mwebster.iemail.R;
 import com.mwebster.iemail.activity.Welcome;
-import com.mwebster.iemail.provider.EmailContent.Mailbox;
-import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.AccountColumns;
 
 
 import android.app.PendingIntent;
@@ -55,10 +55,10 @@ public class UnreadWidgetProvider extends AppWidgetProvider {
 
     public static class UpdateWidgetService extends Service {
 
-        private static final String[] MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION = new String [] {
-                "sum(" + MailboxColumns.UNREAD_COUNT + ")"};
-        private static final String ALL_UNREAD_COUNT_FOLDERS = MailboxColumns.TYPE +
-                " IN (" + Mailbox.TYPE_INBOX + "," + Mailbox.TYPE_MAIL + ")";
+        // The provider keeps each account's unread count of its (visible) inbox and mail
+        // mailboxes
+        private static final String[] ACCOUNT_SUM_OF_UNREAD_COUNT_PROJECTION = new String [] {
+                "sum(" + AccountColumns.ALL_UNREAD_COUNT + ")"};
 
         @Override
         public void onStart(Intent intent, int serviceId) {
@@ -82,9 +82,8 @@ public class UnreadWidgetProvider extends AppWidgetProvider {
         public RemoteViews buildUpdate(Context context) {
             int count = 0;
             if (unreadCount == 0) {   // if this is first time thru
-                Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                        MAILBOX_SUM_OF_UNREAD_COUNT_PROJECTION,
-                        ALL_UNREAD_COUNT_FOLDERS, null, null);
+                Cursor c = context.getContentResolver().query(Account.CONTENT_URI,
+                        ACCOUNT_SUM_OF_UNREAD_COUNT_PROJECTION, null, null, null);
                 try {
                     c.moveToPosition(-1);
                     while (c.moveToNext()) {
@@ -33,6 +33,7 @@ public class BootReceiver extends BroadcastReceiver {
             // Returns true if there are any accounts
             if (Email.setServicesEnabled(context)) {
                 MailService.actionReschedule(context);
+                PruneService.actionReschedule(context);
             }
         }
         else if (Intent.ACTION_DEVICE_STORAGE_LOW.equals(intent.getAction())) {
@@ -41,5 +42,11 @@ public class BootReceiver extends BroadcastReceiver {
         else if (Intent.ACTION_DEVICE_STORAGE_OK.equals(intent.getAction())) {
             MailService.actionReschedule(context);
         }
+        else if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+            PruneService.actionSchedule(context);
+        }
+        else if (Intent.ACTION_POWER_DISCONNECTED.equals(intent.getAction())) {
+            PruneService.actionCancel(context);
+        }
     }
 }
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.service;
+
+import com.mwebster.iemail.Controller;
+import com.mwebster.iemail.Email;
+import com.mwebster.iemail.mail.Folder.OpenMode;
+import com.mwebster.iemail.mail.MessagingException;
+import com.mwebster.iemail.mail.Store;
+import com.mwebster.iemail.mail.store.ImapStore;
+import com.mwebster.iemail.mail.store.ImapStore.ImapFolder;
+import com.mwebster.iemail.provider.EmailContent;
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.AccountColumns;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Config;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Background service that pushes new mail from IMAP servers, for IMAP accounts set to push.
+ * For each pushed mailbox (the inbox, and any other mailbox set to push) a thread keeps a
+ * connection waiting in IDLE (RFC 2177); when the server reports new, deleted or changed
+ * messages, that mailbox alone is synced.  A wake lock is held only while a change is handled.
+ *
+ * Servers may drop a connection that's been idle for 30 minutes, and a sleeping device doesn't
+ * notice a dropped connection, so a repeating alarm ends and restarts each IDLE well before then
+ * (and reconnects any that didn't answer the last time).  Accounts whose servers don't support
+ * IDLE are polled by MailService instead, every POLLING_INTERVAL minutes (see isPolling).
+ */
+public class ImapPushService extends Service {
+    private static final String LOG_TAG = "Email-ImapPushService";
+
+    private static final String ACTION_RESCHEDULE =
+        "com.mwebster.iemail.intent.action.IMAP_PUSH_SERVICE_RESCHEDULE";
+    private static final String ACTION_REFRESH =
+        "com.mwebster.iemail.intent.action.IMAP_PUSH_SERVICE_REFRESH";
+
+    // How long each IDLE lasts before it's restarted
+    private static final int IDLE_REFRESH_INTERVAL = 25 * 60 * 1000;   // 25 minutes
+    // How long to wait before reconnecting after an error (or the next refresh, if sooner)
+    private static final long RETRY_DELAY = 5 * 60 * 1000;             // 5 minutes
+    // The longest the device is kept awake to handle a change, or a refresh
+    private static final long SYNC_WAKE_LOCK_TIMEOUT = 5 * 60 * 1000;  // 5 minutes
+    private static final long REFRESH_WAKE_LOCK_TIMEOUT = 30 * 1000;   // 30 seconds
+
+    /**
+     * The interval (in minutes) at which MailService polls push accounts whose servers don't
+     * support IDLE
+     */
+    public static final int POLLING_INTERVAL = 15;
+
+    // The pushed mailboxes of an account: its inbox, and any others set to push
+    private static final String WHERE_PUSHED_MAILBOX = MailboxColumns.ACCOUNT_KEY + "=? and (" +
+        MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX + " or " + MailboxColumns.SYNC_INTERVAL +
+        "=" + Mailbox.CHECK_INTERVAL_PUSH + ')';
+    private static final String[] MAILBOX_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, MailboxColumns.DISPLAY_NAME
+    };
+    private static final String WHERE_PUSH_ACCOUNT =
+        AccountColumns.SYNC_INTERVAL + "=" + Account.CHECK_INTERVAL_PUSH;
+
+    /**
+     * Push accounts whose servers don't support IDLE.  This is only kept for the life of the
+     * process; a new process tries IDLE again.
+     */
+    private static final HashSet<Long> sPollingAccounts = new HashSet<Long>();
+
+    // The pushers, by mailbox id
+    private final HashMap<Long, Pusher> mPushers = new HashMap<Long, Pusher>();
+    private final Controller.Result mControllerCallback = new ControllerResults();
+    private PowerManager.WakeLock mRefreshWakeLock;
+
+    /**
+     * Start or stop pushing to match the accounts' settings; called by MailService whenever it
+     * reschedules
+     */
+    public static void actionReschedule(Context context) {
+        Intent i = new Intent();
+        i.setClass(context, ImapPushService.class);
+        i.setAction(ACTION_RESCHEDULE);
+        context.startService(i);
+    }
+
+    /**
+     * Return whether a push account's server doesn't support IDLE, so that it must be polled
+     */
+    public static boolean isPolling(long accountId) {
+        synchronized (sPollingAccounts) {
+            return sPollingAccounts.contains(accountId);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
+        mRefreshWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+        mRefreshWakeLock.setReferenceCounted(false);
+        Controller.getInstance(getApplication()).addResultCallback(mControllerCallback);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // A restart after the process was killed has no intent
+        String action = (intent == null) ? ACTION_RESCHEDULE : intent.getAction();
+        if (ACTION_REFRESH.equals(action)) {
+            if (Config.LOGD && Email.DEBUG) {
+                Log.d(LOG_TAG, "action: refresh");
+            }
+            // Stay awake long enough for the pushers to restart their IDLEs
+            mRefreshWakeLock.acquire(REFRESH_WAKE_LOCK_TIMEOUT);
+            final ArrayList<Pusher> pushers;
+            synchronized (mPushers) {
+                pushers = new ArrayList<Pusher>(mPushers.values());
+            }
+            // Ending an IDLE writes to its connection, which mustn't be done on the main thread
+            new Thread() {
+                @Override
+                public void run() {
+                    for (Pusher pusher : pushers) {
+                        pusher.refresh();
+                    }
+                }
+            }.start();
+        } else {
+            if (Config.LOGD && Email.DEBUG) {
+                Log.d(LOG_TAG, "action: reschedule");
+            }
+            reschedule();
+        }
+        synchronized (mPushers) {
+            if (mPushers.isEmpty()) {
+                stopSelf(startId);
+                return START_NOT_STICKY;
+            }
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mPushers) {
+            for (Pusher pusher : mPushers.values()) {
+                pusher.stopPushing();
+            }
+            mPushers.clear();
+        }
+        setRefreshAlarm(false);
+        Controller.getInstance(getApplication()).removeResultCallback(mControllerCallback);
+    }
+
+    /**
+     * Start a pusher for each mailbox that should be pushed, and stop the rest
+     */
+    private void reschedule() {
+        HashMap<Long, Pusher> pushers = new HashMap<Long, Pusher>();
+        Cursor c = getContentResolver().query(Account.CONTENT_URI, EmailContent.ID_PROJECTION,
+                WHERE_PUSH_ACCOUNT, null, null);
+        ArrayList<Long> accountIds = new ArrayList<Long>();
+        try {
+            while (c.moveToNext()) {
+                accountIds.add(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        for (long accountId : accountIds) {
+            if (isPolling(accountId)) {
+                continue;
+            }
+            Account account = Account.restoreAccountWithId(this, accountId);
+            if (account == null) {
+                continue;
+            }
+            String storeUri = account.getStoreUri(this);
+            if (storeUri == null || !storeUri.startsWith(Store.STORE_SCHEME_IMAP)) {
+                continue;
+            }
+            c = getContentResolver().query(Mailbox.CONTENT_URI, MAILBOX_PROJECTION,
+                    WHERE_PUSHED_MAILBOX, new String[] {Long.toString(accountId)}, null);
+            try {
+                while (c.moveToNext()) {
+                    pushers.put(c.getLong(0),
+                            new Pusher(accountId, c.getLong(0), c.getString(1), storeUri));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        synchronized (mPushers) {
+            // Stop the pushers no longer wanted (or whose settings have changed)
+            Iterator<Pusher> iterator = mPushers.values().iterator();
+            while (iterator.hasNext()) {
+                Pusher pusher = iterator.next();
+                if (!pusher.isSameAs(pushers.get(pusher.mMailboxId))) {
+                    pusher.stopPushing();
+                    iterator.remove();
+                }
+            }
+            for (Pusher pusher : pushers.values()) {
+                if (!mPushers.containsKey(pusher.mMailboxId)) {
+                    mPushers.put(pusher.mMailboxId, pusher);
+                    pusher.start();
+                }
+            }
+            setRefreshAlarm(!mPushers.isEmpty());
+        }
+    }
+
+    private void setRefreshAlarm(boolean set) {
+        AlarmManager alarmManager = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
+        Intent i = new Intent();
+        i.setClass(this, ImapPushService.class);
+        i.setAction(ACTION_REFRESH);
+        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
+        if (set) {
+            alarmManager.setRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    SystemClock.elapsedRealtime() + IDLE_REFRESH_INTERVAL,
+                    IDLE_REFRESH_INTERVAL, pi);
+        } else {
+            alarmManager.cancel(pi);
+        }
+    }
+
+    /**
+     * Stop pushing an account whose server doesn't support IDLE, and have MailService poll it
+     */
+    private void fallBackToPolling(long accountId) {
+        Log.w(LOG_TAG, "IDLE not supported for account " + accountId + "; polling instead");
+        synchronized (sPollingAccounts) {
+            sPollingAccounts.add(accountId);
+        }
+        synchronized (mPushers) {
+            Iterator<Pusher> iterator = mPushers.values().iterator();
+            while (iterator.hasNext()) {
+                Pusher pusher = iterator.next();
+                if (pusher.mAccountId == accountId) {
+                    pusher.stopPushing();
+                    iterator.remove();
+                }
+            }
+            if (mPushers.isEmpty()) {
+                setRefreshAlarm(false);
+                stopSelf();
+            }
+        }
+        MailService.actionReschedule(this);
+    }
+
+    /**
+     * The thread pushing one mailbox
+     */
+    private class Pusher extends Thread {
+        final long mAccountId;
+        final long mMailboxId;
+        final String mFolderName;
+        final String mStoreUri;
+        private final PowerManager.WakeLock mSyncWakeLock;
+        private volatile boolean mStopped = false;
+        // The rest are guarded by this
+        private ImapFolder mFolder;
+        // Whether the IDLE has been asked to stop, and hasn't restarted since
+        private boolean mRefreshing = false;
+        private boolean mSyncing = false;
+        private boolean mSyncAgain = false;
+
+        Pusher(long accountId, long mailboxId, String folderName, String storeUri) {
+            super("ImapPusher " + mailboxId);
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mFolderName = folderName;
+            mStoreUri = storeUri;
+            PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
+            mSyncWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getName());
+            mSyncWakeLock.setReferenceCounted(false);
+        }
+
+        boolean isSameAs(Pusher other) {
+            return other != null && other.mFolderName.equals(mFolderName)
+                    && other.mStoreUri.equals(mStoreUri);
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                try {
+                    ImapStore store =
+                        (ImapStore)Store.getInstance(mStoreUri, ImapPushService.this, null);
+                    ImapFolder folder = store.getIdleFolder(mFolderName);
+                    folder.open(OpenMode.READ_WRITE, null);
+                    try {
+                        if (!folder.isIdleSupported()) {
+                            fallBackToPolling(mAccountId);
+                            return;
+                        }
+                        synchronized (this) {
+                            mFolder = folder;
+                        }
+                        // Catch up with any changes made while not connected
+                        sync();
+                        while (!mStopped) {
+                            synchronized (this) {
+                                mRefreshing = false;
+                            }
+                            if (folder.idle(IDLE_REFRESH_INTERVAL) != 0) {
+                                sync();
+                            }
+                        }
+                    } finally {
+                        synchronized (this) {
+                            mFolder = null;
+                        }
+                        folder.close(false);
+                    }
+                } catch (MessagingException e) {
+                    if (mStopped) {
+                        break;
+                    }
+                    Log.w(LOG_TAG, "Push of mailbox " + mMailboxId + " failed: " + e);
+                    waitToRetry();
+                } catch (RuntimeException e) {
+                    // e.g. a response the store didn't expect; don't let it end the pushing
+                    if (mStopped) {
+                        break;
+                    }
+                    Log.w(LOG_TAG, "Push of mailbox " + mMailboxId + " failed", e);
+                    waitToRetry();
+                }
+            }
+        }
+
+        /**
+         * Wait to retry a failed push: for RETRY_DELAY, or until the next refresh
+         */
+        private synchronized void waitToRetry() {
+            try {
+                wait(RETRY_DELAY);
+            } catch (InterruptedException ie) {
+            }
+        }
+
+        /**
+         * Restart the IDLE, or, if it didn't answer the last time, the connection; or retry a
+         * failed connection now
+         */
+        synchronized void refresh() {
+            if (mFolder == null) {
+                notify();
+            } else if (mRefreshing) {
+                mFolder.abortIdle();
+            } else {
+                mRefreshing = true;
+                mFolder.stopIdle();
+            }
+        }
+
+        synchronized void stopPushing() {
+            mStopped = true;
+            if (mFolder != null) {
+                mFolder.abortIdle();
+            }
+            notify();
+            mSyncWakeLock.release();
+        }
+
+        /**
+         * Sync the mailbox, unless it's being synced already (in which case it's synced again
+         * afterwards), keeping the device awake until the sync is finished
+         */
+        private void sync() {
+            synchronized (this) {
+                if (mSyncing) {
+                    mSyncAgain = true;
+                    return;
+                }
+                mSyncing = true;
+            }
+            mSyncWakeLock.acquire(SYNC_WAKE_LOCK_TIMEOUT);
+            Controller.getInstance(getApplication()).updateMailbox(mAccountId, mMailboxId, null);
+        }
+
+        /**
+         * Called when a sync of the mailbox is finished
+         * @return whether it was started by this pusher
+         */
+        boolean onSyncFinished() {
+            synchronized (this) {
+                if (!mSyncing) {
+                    // MailService's, or the user's
+                    return false;
+                }
+                mSyncing = false;
+                if (!mSyncAgain || mStopped) {
+                    mSyncWakeLock.release();
+                    return true;
+                }
+                mSyncAgain = false;
+            }
+            sync();
+            return true;
+        }
+    }
+
+    private class ControllerResults implements Controller.Result {
+        public void updateMailboxCallback(MessagingException result, long accountId,
+                long mailboxId, int progress, int numNewMessages) {
+            if (result == null && progress < 100) {
+                return;
+            }
+            Pusher pusher;
+            synchronized (mPushers) {
+                pusher = mPushers.get(mailboxId);
+            }
+            if (pusher == null || !pusher.onSyncFinished() || numNewMessages == 0) {
+                return;
+            }
+            // Count the new messages for the notification, as the Exchange sync does
+            ContentValues cv = new ContentValues();
+            cv.put(EmailContent.FIELD_COLUMN_NAME, AccountColumns.NEW_MESSAGE_COUNT);
+            cv.put(EmailContent.ADD_COLUMN_NAME, numNewMessages);
+            getContentResolver().update(
+                    ContentUris.withAppendedId(Account.ADD_TO_FIELD_URI, accountId), cv,
+                    null, null);
+            MailService.actionNotifyNewMessages(ImapPushService.this, accountId, mailboxId);
+        }
+
+        public void loadMessageForViewCallback(MessagingException result, long messageId,
+                int progress) {
+        }
+
+        public void loadAttachmentCallback(MessagingException result, long messageId,
+                long attachmentId, int progress) {
+        }
+
+        public void updateMailboxListCallback(MessagingException result, long accountId,
+                int progress) {
+        }
+
+        public void serviceCheckMailCallback(MessagingException result, long accountId,
+                long mailboxId, int progress, long tag) {
+        }
+
+        public void sendMailCallback(MessagingException result, long accountId, long messageId,
+                int progress) {
+        }
+    }
+}
@@ -216,6 +216,8 @@ public class MailService extends Service {
             // Finally, scan for the next needing update, and set an alarm for it
             AlarmManager alarmManager = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
             reschedule(alarmManager);
+            // IMAP accounts set to push are pushed (or polled) according to the same settings
+            ImapPushService.actionReschedule(this);
             stopSelf(startId);
         } else if (ACTION_NOTIFY_MAIL.equals(action)) {
             long accountId = intent.getLongExtra(EXTRA_CHECK_ACCOUNT, -1);
@@ -483,6 +485,12 @@ public class MailService extends Service {
                 int flags = c.getInt(Account.CONTENT_FLAGS_COLUMN);
                 String ringtoneString = c.getString(Account.CONTENT_RINGTONE_URI_COLUMN);
 
+                // Push accounts whose servers can't push are polled instead
+                if (syncInterval == Account.CHECK_INTERVAL_PUSH
+                        && ImapPushService.isPolling(c.getLong(Account.CONTENT_ID_COLUMN))) {
+                    syncInterval = ImapPushService.POLLING_INTERVAL;
+                }
+
                 // For debugging only
                 if (DEBUG_FORCE_QUICK_REFRESH && syncInterval >= 0) {
                     syncInterval = 1;
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.service;
+
+import com.mwebster.iemail.Email;
+import com.mwebster.iemail.mail.Store;
+import com.mwebster.iemail.provider.AttachmentProvider;
+import com.mwebster.iemail.provider.EmailContent;
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.Attachment;
+import com.mwebster.iemail.provider.EmailContent.AttachmentColumns;
+import com.mwebster.iemail.provider.EmailContent.Body;
+import com.mwebster.iemail.provider.EmailContent.BodyColumns;
+import com.mwebster.iemail.provider.EmailContent.HostAuth;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
+import com.mwebster.iemail.provider.EmailContent.Message;
+import com.mwebster.iemail.provider.EmailContent.MessageColumns;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.os.BatteryManager;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Background service that prunes each mailbox to its sync window, deleting the local copies of
+ * messages older than an Exchange account's lookback, or beyond the visible limit of an IMAP or
+ * POP3 mailbox.  These are left behind when the window is shrunk (and, for IMAP, in mailboxes
+ * that aren't synced), and they slow every list query of their mailbox.  The server isn't told
+ * of the deletions.  Favorites, drafts, the outbox, and messages that are only local (those not
+ * yet uploaded, and those in the folders of a POP3 account other than the inbox) are never
+ * pruned.
+ *
+ * Pruning runs only while the device is charging (the alarm is set when power is connected, and
+ * cancelled when it's disconnected) with its screen off.  It deletes a small batch of messages
+ * at a time, and stops as soon as the device is in use or unplugged.
+ */
+public class PruneService extends Service {
+    private static final String LOG_TAG = "Email-PruneService";
+
+    private static final String ACTION_PRUNE =
+        "com.mwebster.iemail.intent.action.PRUNE_SERVICE_PRUNE";
+
+    // How often to prune while charging; when there's nothing to prune, a pass is one query of
+    // each mailbox
+    private static final long PRUNE_INTERVAL = AlarmManager.INTERVAL_HOUR;
+    // The most messages deleted at a time
+    /*package*/ static final int PRUNE_BATCH_SIZE = 50;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String[] MAILBOX_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, MailboxColumns.ACCOUNT_KEY, MailboxColumns.VISIBLE_LIMIT,
+        MailboxColumns.TYPE
+    };
+    private static final int MAILBOX_ID_COLUMN = 0;
+    private static final int MAILBOX_ACCOUNT_KEY_COLUMN = 1;
+    private static final int MAILBOX_VISIBLE_LIMIT_COLUMN = 2;
+    private static final int MAILBOX_TYPE_COLUMN = 3;
+    // The mailboxes that may be pruned: those holding mail, but not drafts or unsent messages
+    private static final String WHERE_PRUNABLE_MAILBOX = MailboxColumns.TYPE + "<" +
+        Mailbox.TYPE_NOT_EMAIL + " and " + MailboxColumns.TYPE + " not in (" +
+        Mailbox.TYPE_DRAFTS + ',' + Mailbox.TYPE_OUTBOX + ')';
+
+    // The orders sync windows are by, newest last: an Exchange account's by time, an IMAP
+    // mailbox's by UID (as the sequence numbers the window is fetched by are in the same order),
+    // and a POP3 inbox's by the order messages were downloaded in (as POP3 UIDs have no order)
+    /*package*/ static final String ORDER_TIMESTAMP = MessageColumns.TIMESTAMP;
+    /*package*/ static final String ORDER_UID = "cast(" + Message.SERVER_ID + " as integer)";
+    /*package*/ static final String ORDER_DOWNLOAD = EmailContent.RECORD_ID;
+
+    // The messages of a mailbox that are on the server (i.e. not only local)
+    private static final String WHERE_MAILBOX_ON_SERVER = MessageColumns.MAILBOX_KEY +
+        "=? and " + Message.SERVER_ID + " not null and " + Message.SERVER_ID +
+        " not like 'Local-%'";
+
+    private static final String[] ATTACHMENT_ID_PROJECTION =
+        new String[] {EmailContent.RECORD_ID};
+    // The message and FILE_FLAGS of a body, followed by the stored length of each of its
+    // FILE_COLUMNS (in bytes, for those compressed)
+    private static final String[] BODY_LENGTHS_PROJECTION = new String[] {
+        BodyColumns.MESSAGE_KEY, BodyColumns.FILE_FLAGS,
+        "length(" + BodyColumns.HTML_CONTENT + ')', "length(" + BodyColumns.TEXT_CONTENT + ')',
+        "length(" + BodyColumns.HTML_REPLY + ')', "length(" + BodyColumns.TEXT_REPLY + ')',
+        "length(" + BodyColumns.INTRO_TEXT + ')'
+    };
+
+    private Thread mPruneThread;
+
+    /**
+     * The messages pruned, and the bytes of their bodies and attachment files
+     */
+    /*package*/ static class PruneStats {
+        int mMessages;
+        long mBytes;
+    }
+
+    /**
+     * Prune periodically, for as long as the device is charging; called when power is connected
+     */
+    public static void actionSchedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+                PRUNE_INTERVAL, createAlarmIntent(context));
+    }
+
+    /**
+     * Prune periodically if the device is charging; called at boot, since power connected
+     * before then isn't broadcast
+     */
+    public static void actionReschedule(Context context) {
+        if (isCharging(context)) {
+            actionSchedule(context);
+        }
+    }
+
+    /**
+     * Stop pruning periodically; called when power is disconnected
+     */
+    public static void actionCancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(createAlarmIntent(context));
+    }
+
+    private static PendingIntent createAlarmIntent(Context context) {
+        Intent i = new Intent(ACTION_PRUNE);
+        i.setClass(context, PruneService.class);
+        return PendingIntent.getService(context, 0, i, 0);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (mPruneThread == null && isIdleAndCharging(this)) {
+            mPruneThread = new Thread() {
+                @Override
+                public void run() {
+                    prune();
+                }
+            };
+            mPruneThread.start();
+        } else if (mPruneThread == null) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void prune() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+        wakeLock.acquire();
+        try {
+            long start = System.currentTimeMillis();
+            PruneStats stats = new PruneStats();
+            boolean finished = pruneMailboxes(this, stats);
+            if (stats.mMessages > 0 || Email.DEBUG) {
+                Log.i(LOG_TAG, "Pruned " + stats.mMessages + " messages, reclaiming " +
+                        stats.mBytes + " bytes, in " + (System.currentTimeMillis() - start) +
+                        "ms" + (finished ? "" : " (stopped early)"));
+            }
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Unable to prune: " + e);
+        } finally {
+            wakeLock.release();
+            stopSelf();
+        }
+    }
+
+    /**
+     * Return whether the device is charging and not in use, i.e. whether this is a good time to
+     * prune
+     */
+    /*package*/ static boolean isIdleAndCharging(Context context) {
+        if (!isCharging(context)) {
+            return false;
+        }
+        PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        return !pm.isScreenOn();
+    }
+
+    private static boolean isCharging(Context context) {
+        // The battery status is sticky, so this returns it without registering anything
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Prune every mailbox, a batch at a time, for as long as the device is idle and charging
+     *
+     * @return whether every mailbox was pruned
+     */
+    private static boolean pruneMailboxes(Context context, PruneStats stats) {
+        ArrayList<long[]> mailboxes = new ArrayList<long[]>();
+        Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI, MAILBOX_PROJECTION,
+                WHERE_PRUNABLE_MAILBOX, null, null);
+        try {
+            while (c.moveToNext()) {
+                mailboxes.add(new long[] {c.getLong(MAILBOX_ID_COLUMN),
+                        c.getLong(MAILBOX_ACCOUNT_KEY_COLUMN),
+                        c.getInt(MAILBOX_VISIBLE_LIMIT_COLUMN),
+                        c.getInt(MAILBOX_TYPE_COLUMN)});
+            }
+        } finally {
+            c.close();
+        }
+
+        long now = System.currentTimeMillis();
+        // For each account, its lookback time (Exchange) or default visible limit (IMAP/POP3)
+        HashMap<Long, Long> accountWindows = new HashMap<Long, Long>();
+        for (long[] mailbox: mailboxes) {
+            long mailboxId = mailbox[0];
+            long accountId = mailbox[1];
+            Account account = Account.restoreAccountWithId(context, accountId);
+            if (account == null) {
+                continue;
+            }
+            HostAuth hostAuth = HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv);
+            boolean eas = hostAuth != null && "eas".equals(hostAuth.mProtocol);
+            boolean pop3 = hostAuth != null && "pop3".equals(hostAuth.mProtocol);
+            if (pop3 && mailbox[3] != Mailbox.TYPE_INBOX) {
+                // A POP3 account's other folders are only local; nothing in them is on the
+                // server to be synced again
+                continue;
+            }
+            Long window = accountWindows.get(accountId);
+            if (window == null) {
+                window = eas ? getLookbackTime(account.mSyncLookback, now)
+                        : getDefaultVisibleLimit(context, account);
+                accountWindows.put(accountId, window);
+            }
+            String order;
+            long cutoff;
+            if (eas) {
+                order = ORDER_TIMESTAMP;
+                cutoff = window;
+            } else {
+                order = pop3 ? ORDER_DOWNLOAD : ORDER_UID;
+                int visibleLimit = (int)mailbox[2];
+                cutoff = getVisibleLimitCutoff(context, mailboxId,
+                        visibleLimit > 0 ? visibleLimit : window.intValue(), order);
+            }
+            if (cutoff <= 0) {
+                continue;
+            }
+            while (pruneBatch(context, accountId, mailboxId, order, cutoff, stats) > 0) {
+                if (!isIdleAndCharging(context)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the time before which messages are outside an Exchange account's sync lookback, or
+     * 0 if it syncs all of them.  A day is allowed for the server's idea of a message's date
+     * differing from ours, so that nothing the server would sync is pruned.
+     */
+    /*package*/ static long getLookbackTime(int syncLookback, long now) {
+        int days;
+        switch (syncLookback) {
+            case com.mwebster.iemail.Account.SYNC_WINDOW_1_DAY:
+                days = 1;
+                break;
+            case com.mwebster.iemail.Account.SYNC_WINDOW_3_DAYS:
+                days = 3;
+                break;
+            case com.mwebster.iemail.Account.SYNC_WINDOW_1_WEEK:
+                days = 7;
+                break;
+            case com.mwebster.iemail.Account.SYNC_WINDOW_2_WEEKS:
+                days = 14;
+                break;
+            case com.mwebster.iemail.Account.SYNC_WINDOW_1_MONTH:
+                days = 31;
+                break;
+            default:
+                return 0;
+        }
+        return now - (days + 1) * DAY_MS;
+    }
+
+    /**
+     * Return the visible limit of the mailboxes of an IMAP or POP3 account that don't have
+     * their own, or 0 if there's none
+     */
+    private static long getDefaultVisibleLimit(Context context, Account account) {
+        Store.StoreInfo info = Store.StoreInfo.getStoreInfo(account.getStoreUri(context),
+                context);
+        return (info != null && info.mVisibleLimitDefault > 0) ? info.mVisibleLimitDefault : 0;
+    }
+
+    /**
+     * Return the oldest of the newest messages of a mailbox on the server (those within its
+     * visible limit), as its value in the order given, or 0 if there are no more messages than
+     * that.  Messages before this in the order are outside the limit.
+     */
+    /*package*/ static long getVisibleLimitCutoff(Context context, long mailboxId,
+            int visibleLimit, String order) {
+        if (visibleLimit <= 0) {
+            return 0;
+        }
+        Cursor c = context.getContentResolver().query(Message.CONTENT_URI,
+                new String[] {order}, WHERE_MAILBOX_ON_SERVER,
+                new String[] {Long.toString(mailboxId)}, order + " desc");
+        try {
+            if (c.getCount() > visibleLimit && c.moveToPosition(visibleLimit - 1)) {
+                return c.getLong(0);
+            }
+            return 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Delete the oldest batch of the messages of a mailbox on the server that are before a
+     * cutoff in the order given (other than favorites), with their bodies and attachment files
+     *
+     * @return the number of messages deleted; 0 once there are none left to prune
+     */
+    /*package*/ static int pruneBatch(Context context, long accountId, long mailboxId,
+            String order, long cutoff, PruneStats stats) {
+        ContentResolver resolver = context.getContentResolver();
+        StringBuilder ids = new StringBuilder();
+        int count = 0;
+        String selection = EmailContent.RECORD_ID + " in (select " + EmailContent.RECORD_ID +
+                " from " + Message.TABLE_NAME + " where " + WHERE_MAILBOX_ON_SERVER + " and " +
+                MessageColumns.FLAG_FAVORITE + "=0 and " + order + "<? order by " + order +
+                " limit " + PRUNE_BATCH_SIZE + ')';
+        Cursor c = resolver.query(Message.CONTENT_URI, Message.ID_COLUMN_PROJECTION,
+                selection, new String[] {Long.toString(mailboxId), Long.toString(cutoff)}, null);
+        try {
+            while (c.moveToNext()) {
+                ids.append(count++ == 0 ? "" : ",").append(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        if (count == 0) {
+            return 0;
+        }
+        String in = " in (" + ids + ')';
+
+        // Find the attachment files (and measure the bodies) before the records are deleted
+        ArrayList<File> files = new ArrayList<File>();
+        c = resolver.query(Attachment.CONTENT_URI, ATTACHMENT_ID_PROJECTION,
+                AttachmentColumns.MESSAGE_KEY + in, null, null);
+        try {
+            while (c.moveToNext()) {
+                files.add(AttachmentProvider.getAttachmentFilename(context, accountId,
+                        c.getLong(0)));
+            }
+        } finally {
+            c.close();
+        }
+        long bytes = getBodyBytes(resolver, BodyColumns.MESSAGE_KEY + in);
+
+        resolver.delete(Message.CONTENT_URI, EmailContent.RECORD_ID + in, null);
+        for (File file: files) {
+            bytes += file.length();
+            // Best effort; a file that can't be deleted is just wasted space
+            file.delete();
+        }
+        stats.mMessages += count;
+        stats.mBytes += bytes;
+        return count;
+    }
+
+    /**
+     * Return the bytes taken by the bodies selected, in the database and in files
+     */
+    private static long getBodyBytes(ContentResolver resolver, String selection) {
+        long bytes = 0;
+        Cursor c = resolver.query(Body.CONTENT_URI, BODY_LENGTHS_PROJECTION, selection, null,
+                null);
+        try {
+            while (c.moveToNext()) {
+                int fileFlags = c.getInt(1);
+                for (int i = 0; i < Body.FILE_COLUMNS.length; i++) {
+                    if ((fileFlags & (1 << i)) == 0) {
+                        bytes += c.getLong(i + 2);
+                        continue;
+                    }
+                    try {
+                        ParcelFileDescriptor fd = resolver.openFileDescriptor(
+                                Body.getFileUri(c.getLong(0), Body.FILE_COLUMNS[i]), "r");
+                        bytes += fd.getStatSize();
+                        fd.close();
+                    } catch (FileNotFoundException e) {
+                        // Then it takes no space
+                    } catch (IOException e) {
+                        // Only the count is lost
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return bytes;
+    }
+}
@@ -202,6 +202,25 @@ public class LegacyConversionsTests extends ProviderTestCase2<EmailProvider> {
         assertNull(localBody.mTextContent);
     }
 
+    /**
+     * Test that converting the body parts also makes the message's snippet, from the html when
+     * there's no plain text
+     */
+    public void testUpdateBodyFieldsSnippet() throws MessagingException {
+        EmailContent.Body localBody = new EmailContent.Body();
+        EmailContent.Message localMessage = new EmailContent.Message();
+        ArrayList<Part> viewables = new ArrayList<Part>();
+        viewables.add(new MimeBodyPart(new TextBody("<p>Hello</p>\r\n<b>wor</b>ld &amp; all"),
+                "text/html"));
+
+        assertTrue(LegacyConversions.updateBodyFields(localBody, localMessage, viewables));
+        assertEquals("Hello world & all", localMessage.mSnippet);
+
+        viewables.add(new MimeBodyPart(new TextBody("Hello\r\n  text"), "text/plain"));
+        assertTrue(LegacyConversions.updateBodyFields(localBody, localMessage, viewables));
+        assertEquals("Hello text", localMessage.mSnippet);
+    }
+
     /**
      * Sunny day test of adding attachments from an IMAP/POP message.
      */
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of the Snippet class.  These tests must be locally complete - no server(s) required.
+ */
+@SmallTest
+public class SnippetTests extends AndroidTestCase {
+
+    public void testPlainText() {
+        assertNull(Snippet.fromPlainText(null));
+        assertEquals("", Snippet.fromPlainText(""));
+        assertEquals("", Snippet.fromPlainText(" \r\n\t "));
+        assertEquals("Hi there, how are you?",
+                Snippet.fromPlainText("  Hi there,\r\n\r\n  how   are\tyou?\r\n"));
+        // Plain text is left alone, other than its whitespace
+        assertEquals("1 < 2 & <b>", Snippet.fromPlainText("1 < 2 & <b>"));
+    }
+
+    public void testHtml() {
+        assertNull(Snippet.fromHtmlText(null));
+        assertEquals("Hello world", Snippet.fromHtmlText(
+                "<html><head><title>Title</title><style type=\"text/css\">p { color: red; }" +
+                "</style></head><body><p>Hello</p>\n<p>world</p></body></html>"));
+        // Inline elements don't break words, block elements do
+        assertEquals("bold one two", Snippet.fromHtmlText("<b>bo</b>ld one<br/>two"));
+        assertEquals("one two", Snippet.fromHtmlText("one<div>two</div>"));
+        // Comments and scripts are dropped
+        assertEquals("a b", Snippet.fromHtmlText(
+                "a <!-- <p>comment</p> --> <SCRIPT>var x = '<p>';</SCRIPT> b"));
+    }
+
+    public void testEntities() {
+        assertEquals("1 < 2 & 3 > 2 \"q\" 'a'",
+                Snippet.fromHtmlText("1 &lt; 2 &amp; 3 &gt; 2 &quot;q&quot; &apos;a&apos;"));
+        assertEquals("A B \u00e9", Snippet.fromHtmlText("&#65;&nbsp;&#x42; &#233;"));
+        // Unknown entities, and ampersands that aren't entities, are kept
+        assertEquals("&eacute; a & b", Snippet.fromHtmlText("&eacute; a & b"));
+        // So are numeric entities that aren't plain numbers, or are outside 0 to 0xFFFF
+        assertEquals("&#-65; &#+65; &#x; &#x1F600; &#9999999;", Snippet.fromHtmlText(
+                "&#-65; &#+65; &#x; &#x1F600; &#9999999;"));
+    }
+
+    public void testLength() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Snippet.MAX_SNIPPET_LENGTH; i++) {
+            sb.append("<p>word</p>\r\n");
+        }
+        String snippet = Snippet.fromHtmlText(sb.toString());
+        assertTrue(snippet.length() <= Snippet.MAX_SNIPPET_LENGTH);
+        assertTrue(snippet.length() > Snippet.MAX_SNIPPET_LENGTH - "word ".length());
+        assertTrue(snippet.startsWith("word word "));
+        assertTrue(snippet.endsWith("word"));
+    }
+
+    public void testFromBody() {
+        assertNull(Snippet.fromBody(null, null));
+        assertEquals("text", Snippet.fromBody("text", "<p>html</p>"));
+        assertEquals("html", Snippet.fromBody("", "<p>html</p>"));
+        assertEquals("html", Snippet.fromBody(null, "<p>html</p>"));
+    }
+}
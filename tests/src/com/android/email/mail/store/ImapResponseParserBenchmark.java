@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.mail.store;
+
+import com.mwebster.iemail.mail.store.ImapResponseParser.ImapList;
+import com.mwebster.iemail.mail.store.ImapResponseParser.ImapResponse;
+import com.mwebster.iemail.mail.transport.DiscourseLogger;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Measures what parsing FETCH responses costs: the time, and the objects and bytes allocated,
+ * for each response.  The results are logged.
+ *
+ * You can run this test case with:
+ *   runtest -c com.mwebster.iemail.mail.store.ImapResponseParserBenchmark email
+ */
+@LargeTest
+public class ImapResponseParserBenchmark extends AndroidTestCase {
+    private static final String TAG = "ImapResponseParserBenchmark";
+
+    private static final int RESPONSE_COUNT = 2000;
+
+    /**
+     * Return the FETCH responses a sync of flags and envelopes gets, different for each message
+     */
+    private static byte[] makeResponses() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= RESPONSE_COUNT; i++) {
+            String header = "Date: Mon, 1 Feb 2010 10:" + (i % 60) + ":00 -0800\r\n"
+                    + "Subject: Message number " + i + "\r\n"
+                    + "From: sender" + i + "@example.com\r\n"
+                    + "To: recipient@example.com\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\n"
+                    + "Message-ID: <" + i + ".example@example.com>\r\n\r\n";
+            sb.append("* ").append(i).append(" FETCH (UID ").append(1000 + i)
+                    .append(" FLAGS (\\Seen").append(i % 3 == 0 ? " \\Flagged" : "")
+                    .append(") INTERNALDATE \"01-Feb-2010 10:00:00 -0800\" RFC822.SIZE ")
+                    .append(4000 + i).append(" BODY[HEADER.FIELDS (date subject from")
+                    .append(" content-type to cc message-id)] {").append(header.length())
+                    .append("}\r\n").append(header).append(")\r\n");
+        }
+        sb.append("7 OK FETCH completed\r\n");
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Parse the responses as ImapFolder.fetch() does, reading each header literal
+     */
+    private static void parse(byte[] responses) throws IOException {
+        ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(responses),
+                new DiscourseLogger(64));
+        byte[] buffer = new byte[1024];
+        ImapResponse response;
+        do {
+            response = parser.readResponse();
+            if (response.mTag == null) {
+                ImapList fetchList = response.getList(2);
+                assertNotNull(fetchList.getKeyedString("UID"));
+                while (fetchList.getLiteral(fetchList.size() - 1).read(buffer) != -1) {
+                }
+            }
+            while (response.more());
+        } while (response.mTag == null);
+    }
+
+    public void testParseFetchResponses() throws IOException {
+        byte[] responses = makeResponses();
+        // Warm up, so that what's measured is the parsing alone
+        parse(responses);
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        parse(responses);
+        long time = (System.nanoTime() - start) / 1000;
+        Debug.stopAllocCounting();
+
+        Log.d(TAG, RESPONSE_COUNT + " FETCH responses: " + time / RESPONSE_COUNT + "us, "
+                + Debug.getThreadAllocCount() / RESPONSE_COUNT + " objects and "
+                + Debug.getThreadAllocSize() / RESPONSE_COUNT + " bytes allocated, each");
+    }
+}
@@ -21,12 +21,17 @@ import com.mwebster.iemail.mail.MessagingException;
 import com.mwebster.iemail.mail.store.ImapResponseParser.ImapList;
 import com.mwebster.iemail.mail.store.ImapResponseParser.ImapResponse;
 import com.mwebster.iemail.mail.transport.DiscourseLogger;
+import com.mwebster.iemail.mail.transport.StoredDeflaterOutputStream;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * This is a series of unit tests for the ImapStore class.  These tests must be locally
@@ -174,4 +179,123 @@ public class ImapResponseParserUnitTests extends AndroidTestCase {
         assertNull(list2.getListOrNull(20));
         assertNull(list2.getStringOrNull(20));
     }
+
+    /**
+     * An InputStream that returns at most a few bytes from each read, as a slow network might
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        public TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 3));
+        }
+    }
+
+    /**
+     * Test that tokens are parsed whole however the stream is read, including those longer
+     * than the parser's buffer
+     */
+    public void testParseAcrossReads() throws IOException {
+        StringBuilder longAtom = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            longAtom.append((char) ('a' + i % 26));
+        }
+        InputStream is = new TrickleInputStream(
+                ("* 1 FETCH (UID 12 FLAGS (\\Seen) BODY[TEXT] {10}\r\n"
+                + "0123456789 INTERNALDATE \"01-Jan-2009 11:20:39 -0800\")\r\n"
+                + "* OK [" + longAtom + "] \"" + longAtom + "\"\r\n"
+                + "7 OK FETCH completed\r\n")
+                .getBytes());
+        ImapResponseParser parser = new ImapResponseParser(is, new DiscourseLogger(4));
+
+        ImapResponse line1 = parser.readResponse();
+        assertFalse(line1.completed());
+        ImapList fetchList = line1.getList(2);
+        assertEquals("12", fetchList.getKeyedString("UID"));
+        assertEquals("\\Seen", fetchList.getKeyedList("FLAGS").getString(0));
+        InputStream literal = fetchList.getLiteral(fetchList.size() - 1);
+        byte[] buffer = new byte[10];
+        for (int offset = 0; offset < 10; ) {
+            offset += literal.read(buffer, offset, 10 - offset);
+        }
+        assertEquals("0123456789", new String(buffer));
+        assertTrue(line1.more());
+        assertTrue(line1.completed());
+        assertEquals("01-Jan-2009 11:20:39 -0800", line1.getKeyedString("INTERNALDATE"));
+
+        ImapResponse line2 = parser.readResponse();
+        assertEquals(longAtom.toString(), line2.getList(1).getString(0));
+        assertEquals(longAtom.toString(), line2.getString(2));
+
+        ImapResponse line3 = parser.readResponse();
+        assertEquals("7", line3.mTag);
+        assertEquals(3, line3.size());
+    }
+
+    /**
+     * Test that a literal the caller doesn't read is skipped
+     */
+    public void testSkipLiteral() throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(
+                ("* 1 FETCH (BODY[] {10}\r\n"
+                + "0123456789)\r\n"
+                + "7 OK FETCH completed\r\n")
+                .getBytes());
+        ImapResponseParser parser = new ImapResponseParser(is, new DiscourseLogger(4));
+
+        ImapResponse line1 = parser.readResponse();
+        assertFalse(line1.completed());
+        assertTrue(line1.more());
+        assertTrue(line1.completed());
+        ImapResponse line2 = parser.readResponse();
+        assertEquals("7", line2.mTag);
+    }
+
+    /**
+     * Test that the atoms most responses contain are shared, rather than new strings
+     */
+    public void testCommonAtoms() throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(
+                ("* 1 FETCH (UID 12 FLAGS (\\Seen))\r\n").getBytes());
+        ImapResponseParser parser = new ImapResponseParser(is, new DiscourseLogger(4));
+
+        ImapResponse line1 = parser.readResponse();
+        assertSame("FETCH", line1.getString(1));
+        ImapList fetchList = line1.getList(2);
+        assertSame("UID", fetchList.getString(0));
+        assertSame("FLAGS", fetchList.getString(2));
+        assertSame("\\Seen", fetchList.getList(3).getString(0));
+        assertEquals("12", fetchList.getString(1));
+    }
+
+    /**
+     * Test that a response is parsed as soon as it has arrived on a compressed connection,
+     * when much less than a buffer's worth has (as MailTransport.startCompression() reads it)
+     */
+    public void testParseDeflated() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StoredDeflaterOutputStream deflater = new StoredDeflaterOutputStream(out);
+        deflater.write("* OK hello\r\n".getBytes());
+        deflater.flush();
+        // Reading past what the server has sent would wait for more, so that fails here
+        InputStream wire = new ByteArrayInputStream(out.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (available() == 0) {
+                    fail("Read past the flushed data");
+                }
+                return super.read(b, off, len);
+            }
+        };
+        ImapResponseParser parser = new ImapResponseParser(
+                new InflaterInputStream(wire, new Inflater(true), 1024), new DiscourseLogger(4));
+
+        ImapResponse line1 = parser.readResponse();
+        assertNull(line1.mTag);
+        assertEquals("OK", line1.getString(0));
+        assertEquals("hello", line1.getString(1));
+    }
 }
@@ -98,6 +98,30 @@ public class ImapStoreUnitTests extends AndroidTestCase {
      * TODO: Test calling getMessageCount(), getMessages(), etc.
      */
 
+    /**
+     * Test the compaction of UID lists into IMAP sequence sets
+     */
+    public void testJoinUidSet() {
+        assertEquals("7", ImapStore.joinUidSet(new String[] {"7"}));
+        assertEquals("1:3,5,7:9",
+                ImapStore.joinUidSet(new String[] {"9", "1", "2", "3", "5", "7", "8"}));
+        assertEquals("1:2,4", ImapStore.joinUidSet(new String[] {"2", "1", "2", "4"}));
+        // Non-numeric UIDs are just listed
+        assertEquals("a,2", ImapStore.joinUidSet(new String[] {"a", "2"}));
+    }
+
+    /**
+     * Test the expansion of IMAP sequence sets into UIDs
+     */
+    public void testSplitUidSet() {
+        assertEquals("[7]", ImapStore.splitUidSet("7", 10).toString());
+        assertEquals("[1, 2, 3, 5]", ImapStore.splitUidSet("1:3,5", 10).toString());
+        assertEquals("[4, 5, 6]", ImapStore.splitUidSet("6:4", 10).toString());
+        // Too many, or malformed
+        assertNull(ImapStore.splitUidSet("1:3,5", 3));
+        assertNull(ImapStore.splitUidSet("1:*", 10));
+    }
+
     /**
      * Test the generation of the IMAP ID keys
      */
@@ -389,6 +413,16 @@ public class ImapStoreUnitTests extends AndroidTestCase {
      */
     private void setupOpenFolder(MockTransport mockTransport, String[] imapIdResponse,
             String readWriteMode) {
+        setupOpenFolder(mockTransport, imapIdResponse, readWriteMode,
+                "OK user authenticated (Success)");
+    }
+
+    /**
+     * Helper which stuffs the mock with enough strings to satisfy a call to ImapFolder.open()
+     * Also allows setting a custom IMAP ID, and a custom (untagged) LOGIN response.
+     */
+    private void setupOpenFolder(MockTransport mockTransport, String[] imapIdResponse,
+            String readWriteMode, String loginResponse) {
         // Fix the tag # of the ID response
         String last = imapIdResponse[imapIdResponse.length-1];
         last = "2 " + last;
@@ -399,17 +433,24 @@ public class ImapStoreUnitTests extends AndroidTestCase {
                 "* CAPABILITY IMAP4rev1 STARTTLS AUTH=GSSAPI LOGINDISABLED",
                 "1 OK CAPABILITY completed"});
         mockTransport.expect("2 ID \\(.*\\)", imapIdResponse);
-        mockTransport.expect("3 LOGIN user \"password\"", 
-                "3 OK user authenticated (Success)");
-        mockTransport.expect("4 SELECT \"INBOX\"", new String[] {
+        mockTransport.expect("3 LOGIN user \"password\"", "3 " + loginResponse);
+        mNextTag = 4;
+        if (!loginResponse.contains("[CAPABILITY")) {
+            // The capabilities are asked for again once logged in
+            mockTransport.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                    "* CAPABILITY IMAP4rev1 AUTH=GSSAPI",
+                    getNextTag(false) + " OK CAPABILITY completed"});
+            getNextTag(true);
+        }
+        mockTransport.expect(getNextTag(false) + " SELECT \"INBOX\"", new String[] {
                 "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
                 "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
                 "* 0 EXISTS",
                 "* 0 RECENT",
                 "* OK [UNSEEN 0]",
                 "* OK [UIDNEXT 1]",
-                "4 OK [" + readWriteMode + "] INBOX selected. (Success)"});
-        mNextTag = 5;
+                getNextTag(false) + " OK [" + readWriteMode + "] INBOX selected. (Success)"});
+        getNextTag(true);
     }
 
     /**
@@ -599,4 +640,415 @@ public class ImapStoreUnitTests extends AndroidTestCase {
         assertEquals("13", message.getUid());
         assertEquals(7, mFolder.getMessageCount());
     }
+
+    /**
+     * Test that IDLE is only used when the server announces it, here after login
+     */
+    public void testIdleSupported() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertFalse(mFolder.isIdleSupported());
+        try {
+            mFolder.idle(1000);
+            fail("IDLE used without the capability");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    /**
+     * Test that the capabilities are asked for again after STARTTLS, and after a login that
+     * doesn't announce them
+     */
+    public void testCapabilitiesRefreshed() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.setSecurity(Transport.CONNECTION_SECURITY_TLS, false);
+        mock.setTlsAllowed(true);
+        mock.expect(null, "* OK Imap 2000 Ready To Assist You");
+        mock.expect("1 CAPABILITY", new String[] {
+                "* CAPABILITY IMAP4rev1 STARTTLS LOGINDISABLED",
+                "1 OK CAPABILITY completed"});
+        mock.expect("2 STARTTLS", "2 OK Begin TLS negotiation now");
+        mock.expect("3 CAPABILITY", new String[] {
+                "* CAPABILITY IMAP4rev1 AUTH=PLAIN",
+                "3 OK CAPABILITY completed"});
+        mock.expect("4 ID \\(.*\\)", new String[] {"* ID NIL", "4 OK"});
+        mock.expect("5 LOGIN user \"password\"", "5 OK user authenticated (Success)");
+        mock.expect("6 CAPABILITY", new String[] {
+                "* CAPABILITY IMAP4rev1 IDLE",
+                "6 OK CAPABILITY completed"});
+        mock.expect("7 SELECT \"INBOX\"", new String[] {
+                "* 0 EXISTS",
+                "7 OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertTrue(mock.getTlsReopened());
+        assertTrue(mFolder.isIdleSupported());
+    }
+
+    /**
+     * Test waiting in IDLE for a change, which ends the IDLE
+     */
+    public void testIdle() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock, new String[] {"* ID NIL", "OK"}, "READ-WRITE",
+                "OK [CAPABILITY IMAP4rev1 IDLE] user authenticated (Success)");
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertTrue(mFolder.isIdleSupported());
+
+        mock.expect(getNextTag(false) + " IDLE", new String[] {
+                "+ idling",
+                "* 3 EXISTS",
+                "* 1 RECENT"});
+        mock.expectLiterally("DONE", new String[] {
+                "* 2 FETCH (FLAGS (\\Seen))",
+                getNextTag(true) + " OK IDLE terminated"});
+        assertEquals(ImapStore.IDLE_CHANGE_EXISTS | ImapStore.IDLE_CHANGE_FETCH,
+                mFolder.idle(1000));
+        assertEquals(3, mFolder.getMessageCount());
+    }
+
+    /**
+     * Helper which stuffs the mock with a login announcing the given capabilities, starting
+     * compression and enabling QRESYNC if they include them.  The next command (the SELECT)
+     * then has the tag mNextTag.
+     */
+    private void setupLogin(MockTransport mockTransport, String capabilities) {
+        mockTransport.expect(null, "* OK Imap 2000 Ready To Assist You");
+        mockTransport.expect("1 CAPABILITY", new String[] {
+                "* CAPABILITY IMAP4rev1 STARTTLS AUTH=GSSAPI LOGINDISABLED",
+                "1 OK CAPABILITY completed"});
+        mockTransport.expect("2 ID \\(.*\\)", new String[] {"* ID NIL", "2 OK"});
+        mockTransport.expect("3 LOGIN user \"password\"",
+                "3 OK [CAPABILITY IMAP4rev1 " + capabilities + "] user authenticated (Success)");
+        mNextTag = 4;
+        if (capabilities.contains("COMPRESS=DEFLATE")) {
+            mockTransport.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                    getNextTag(false) + " OK DEFLATE active");
+            getNextTag(true);
+        }
+        if (capabilities.contains("QRESYNC")) {
+            mockTransport.expect(getNextTag(false) + " ENABLE QRESYNC", new String[] {
+                    "* ENABLED QRESYNC",
+                    getNextTag(false) + " OK ENABLE completed"});
+            getNextTag(true);
+        }
+    }
+
+    /**
+     * Test that the session is compressed when the server can
+     */
+    public void testCompress() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "IDLE COMPRESS=DEFLATE");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\"", new String[] {
+                "* 0 EXISTS",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertTrue(mock.getCompressionStarted());
+    }
+
+    /**
+     * Test that a refusal to compress isn't an error
+     */
+    public void testCompressRefused() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* OK Imap 2000 Ready To Assist You");
+        mock.expect("1 CAPABILITY", new String[] {
+                "* CAPABILITY IMAP4rev1 STARTTLS AUTH=GSSAPI LOGINDISABLED",
+                "1 OK CAPABILITY completed"});
+        mock.expect("2 ID \\(.*\\)", new String[] {"* ID NIL", "2 OK"});
+        mock.expect("3 LOGIN user \"password\"",
+                "3 OK [CAPABILITY IMAP4rev1 COMPRESS=DEFLATE] user authenticated (Success)");
+        mock.expect("4 COMPRESS DEFLATE", "4 NO [COMPRESSIONACTIVE] TLS is compressing");
+        mock.expect("5 SELECT \"INBOX\"", new String[] {
+                "* 0 EXISTS",
+                "5 OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertFalse(mock.getCompressionStarted());
+    }
+
+    /**
+     * Persistent data kept in memory, as the sync state of a mailbox
+     */
+    private static class MockPersistentData implements Folder.PersistentDataCallbacks {
+        final HashMap<String, String> mValues = new HashMap<String, String>();
+
+        public String getPersistentString(String key, String defaultValue) {
+            String value = mValues.get(key);
+            return value != null ? value : defaultValue;
+        }
+
+        public void setPersistentString(String key, String value) {
+            mValues.put(key, value);
+        }
+
+        public void setPersistentStringAndMessageFlags(String key, String value,
+                Flag[] setFlags, Flag[] clearFlags) {
+            mValues.put(key, value);
+        }
+    }
+
+    /**
+     * Test that a QRESYNC SELECT of an unchanged mailbox reports no changes
+     */
+    public void testQresyncUnchanged() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "IDLE QRESYNC");
+        MockPersistentData data = new MockPersistentData();
+        data.mValues.put("imap.syncState", "100 500 20 7");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\" \\(QRESYNC \\(100 500\\)\\)",
+                new String[] {
+                "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
+                "* 7 EXISTS",
+                "* 0 RECENT",
+                "* OK [UIDVALIDITY 100] UIDs valid",
+                "* OK [UIDNEXT 20] Predicted next UID",
+                "* OK [HIGHESTMODSEQ 500] Highest",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, data);
+        assertEquals(7, mFolder.getMessageCount());
+        assertEquals(0, mFolder.getChangedMessages().length);
+        assertEquals(0, mFolder.getDeletedUids().length);
+        assertEquals(0, mFolder.getNewMessages().length);
+        mFolder.saveSyncState();
+        assertEquals("100 500 20 7", data.mValues.get("imap.syncState"));
+    }
+
+    /**
+     * Test that a QRESYNC SELECT reports the messages deleted and the flags changed
+     */
+    public void testQresyncChanges() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "QRESYNC");
+        MockPersistentData data = new MockPersistentData();
+        data.mValues.put("imap.syncState", "100 500 20 7");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\" \\(QRESYNC \\(100 500\\)\\)",
+                new String[] {
+                "* 5 EXISTS",
+                "* OK [UIDVALIDITY 100] UIDs valid",
+                "* OK [UIDNEXT 20] Predicted next UID",
+                "* OK [HIGHESTMODSEQ 510] Highest",
+                "* VANISHED (EARLIER) 3:4,9",
+                "* 4 FETCH (UID 15 FLAGS (\\Seen) MODSEQ (510))",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, data);
+        MoreAsserts.assertEquals(new String[] {"3", "4", "9"}, mFolder.getDeletedUids());
+        Message[] changed = mFolder.getChangedMessages();
+        assertEquals(1, changed.length);
+        assertEquals("15", changed[0].getUid());
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        assertFalse(changed[0].isSet(Flag.FLAGGED));
+        assertEquals(0, mFolder.getNewMessages().length);
+        mFolder.saveSyncState();
+        assertEquals("100 510 20 5", data.mValues.get("imap.syncState"));
+    }
+
+    /**
+     * Test that changes aren't reported after the mailbox's UIDVALIDITY has changed
+     */
+    public void testQresyncUidValidityChanged() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "QRESYNC");
+        MockPersistentData data = new MockPersistentData();
+        data.mValues.put("imap.syncState", "99 500 20 7");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\" \\(QRESYNC \\(99 500\\)\\)",
+                new String[] {
+                "* 7 EXISTS",
+                "* OK [UIDVALIDITY 100] UIDs valid",
+                "* OK [UIDNEXT 20] Predicted next UID",
+                "* OK [HIGHESTMODSEQ 500] Highest",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, data);
+        assertNull(mFolder.getChangedMessages());
+        assertNull(mFolder.getDeletedUids());
+        assertNull(mFolder.getNewMessages());
+    }
+
+    /**
+     * Test that, without CONDSTORE, the new messages are found from UIDNEXT
+     */
+    public void testUidNextNewMessages() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "IDLE");
+        MockPersistentData data = new MockPersistentData();
+        data.mValues.put("imap.syncState", "100 0 20 7");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\"", new String[] {
+                "* 9 EXISTS",
+                "* OK [UIDVALIDITY 100] UIDs valid",
+                "* OK [UIDNEXT 23] Predicted next UID",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, data);
+        assertNull(mFolder.getChangedMessages());
+        assertNull(mFolder.getDeletedUids());
+
+        // The last message (19) matches too, if the new ones have been deleted
+        mock.expect(getNextTag(false) + " UID SEARCH UID 20:\\* NOT DELETED", new String[] {
+                "* SEARCH 19 22",
+                getNextTag(true) + " OK SEARCH completed"});
+        Message[] messages = mFolder.getNewMessages();
+        assertEquals(1, messages.length);
+        assertEquals("22", messages[0].getUid());
+        mFolder.saveSyncState();
+        assertEquals("100 0 23 9", data.mValues.get("imap.syncState"));
+    }
+
+    /**
+     * Test that, with CONDSTORE alone, the changed flags are fetched with CHANGEDSINCE
+     */
+    public void testCondstoreChangedSince() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupLogin(mock, "CONDSTORE");
+        MockPersistentData data = new MockPersistentData();
+        data.mValues.put("imap.syncState", "100 500 20 7");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\" \\(CONDSTORE\\)", new String[] {
+                "* 7 EXISTS",
+                "* OK [UIDVALIDITY 100] UIDs valid",
+                "* OK [UIDNEXT 20] Predicted next UID",
+                "* OK [HIGHESTMODSEQ 510] Highest",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, data);
+        // Nothing arrived and the count is the same, so nothing was deleted
+        assertEquals(0, mFolder.getDeletedUids().length);
+
+        mock.expect(getNextTag(false) +
+                " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 500\\)", new String[] {
+                "* 2 FETCH (UID 12 FLAGS (\\Flagged) MODSEQ (505))",
+                getNextTag(true) + " OK FETCH completed"});
+        Message[] changed = mFolder.getChangedMessages();
+        assertEquals(1, changed.length);
+        assertEquals("12", changed[0].getUid());
+        assertTrue(changed[0].isSet(Flag.FLAGGED));
+    }
+
+    /**
+     * Test that several flag changes are sent without waiting for each to complete, and that
+     * the responses are matched back to them
+     */
+    public void testSetFlagsPipelined() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+
+        // The first command is answered only after the second is sent
+        String firstTag = getNextTag(false);
+        mock.expect(firstTag + " UID STORE 1,3 \\+FLAGS.SILENT \\(\\\\Seen\\)", null);
+        String secondTag = getNextTag(true);
+        mock.expect(secondTag + " UID STORE 2 -FLAGS.SILENT \\(\\\\Flagged\\)",
+                new String[] {
+                "* 4 EXISTS",
+                firstTag + " OK STORE completed",
+                secondTag + " OK STORE completed"});
+        mFolder.setFlags(new Folder.FlagChange[] {
+                new Folder.FlagChange(new Message[] {
+                        mFolder.createMessage("1"), mFolder.createMessage("3") },
+                        new Flag[] { Flag.SEEN }, true),
+                new Folder.FlagChange(new Message[0], new Flag[] { Flag.SEEN }, false),
+                new Folder.FlagChange(new Message[] { mFolder.createMessage("2") },
+                        new Flag[] { Flag.FLAGGED }, false)});
+        // The untagged response was seen
+        assertEquals(4, mFolder.getMessageCount());
+    }
+
+    /**
+     * Test that a flag change that fails is reported, once the others have completed
+     */
+    public void testSetFlagsPipelinedFailure() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+
+        String firstTag = getNextTag(false);
+        mock.expect(firstTag + " UID STORE 1 \\+FLAGS.SILENT \\(\\\\Seen\\)", null);
+        String secondTag = getNextTag(true);
+        mock.expect(secondTag + " UID STORE 2 \\+FLAGS.SILENT \\(\\\\Flagged\\)",
+                new String[] {
+                firstTag + " NO [ALERT] Mailbox is read-only",
+                secondTag + " OK STORE completed"});
+        try {
+            mFolder.setFlags(new Folder.FlagChange[] {
+                    new Folder.FlagChange(new Message[] { mFolder.createMessage("1") },
+                            new Flag[] { Flag.SEEN }, true),
+                    new Folder.FlagChange(new Message[] { mFolder.createMessage("2") },
+                            new Flag[] { Flag.FLAGGED }, true)});
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        // The connection is still usable
+        assertTrue(mFolder.isOpen());
+    }
+
+    /**
+     * Test which commands may be pipelined
+     */
+    public void testCanPipeline() {
+        assertTrue(ImapStore.canPipeline("UID STORE 1 +FLAGS.SILENT (\\Seen)"));
+        assertTrue(ImapStore.canPipeline("UID FETCH 1:* (UID FLAGS)"));
+        assertTrue(ImapStore.canPipeline("STATUS \"INBOX\" (UNSEEN)"));
+        assertTrue(ImapStore.canPipeline("NOOP"));
+        // Commands with literals wait for a continuation
+        assertFalse(ImapStore.canPipeline("UID SEARCH CHARSET UTF-8 SUBJECT {5}"));
+        // Commands that change the connection's state
+        assertFalse(ImapStore.canPipeline("SELECT \"INBOX\""));
+        assertFalse(ImapStore.canPipeline("IDLE"));
+        assertFalse(ImapStore.canPipeline("login user \"password\""));
+        // Commands using sequence numbers
+        assertFalse(ImapStore.canPipeline("FETCH 1:* (FLAGS)"));
+        assertFalse(ImapStore.canPipeline("EXPUNGE"));
+    }
+
+    /**
+     * Test that a connection used recently is reused without a NOOP
+     */
+    public void testConnectionReused() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+        mFolder.close(false);
+
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\"", new String[] {
+                "* 0 EXISTS",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertEquals(2, mStore.mCheckoutCount);
+        assertEquals(1, mStore.mReuseCount);
+        assertEquals(0, mStore.mProbeCount);
+    }
+
+    /**
+     * Test that a connection idle a while is checked with a NOOP before it's reused
+     */
+    public void testConnectionProbed() throws MessagingException {
+        mStore.setConnectionProbeIdleTime(-1);
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+        mFolder.close(false);
+
+        mock.expect(getNextTag(false) + " NOOP", getNextTag(true) + " OK NOOP completed");
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\"", new String[] {
+                "* 0 EXISTS",
+                getNextTag(true) + " OK [READ-WRITE] INBOX selected. (Success)"});
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertEquals(1, mStore.mReuseCount);
+        assertEquals(1, mStore.mProbeCount);
+    }
+
+    /**
+     * Test that a connection reused without a probe reconnects if the server has dropped it
+     */
+    public void testConnectionReconnected() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+        mFolder.close(false);
+
+        mock.closeInputStream();
+        mock.expect(getNextTag(false) + " SELECT \"INBOX\"");
+        mock.expectClose();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE, null);
+        assertEquals(1, mStore.mReuseCount);
+        assertEquals(0, mStore.mProbeCount);
+        assertEquals(0, mFolder.getMessageCount());
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.mwebster.iemail.mail.store;
 
+import com.mwebster.iemail.MessagingController;
 import com.mwebster.iemail.mail.Address;
 import com.mwebster.iemail.mail.FetchProfile;
 import com.mwebster.iemail.mail.Flag;
@@ -352,6 +353,47 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         assertTrue("message with uid2", msg2 != null);
     }
 
+    /**
+     * Test the remote half of a POP3 move/delete:  POP3 can't look up UIDs in bulk, so
+     * MessagingController must fall back to looking them up one at a time, and then delete
+     * the ones it found.
+     */
+    public void testMoveToTrashByUid() throws MessagingException {
+
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        setupOpenFolder(mockTransport, 2, null);
+        mFolder.open(OpenMode.READ_WRITE, null);
+
+        String uid1 = getSingleMessageUID(1);
+        String uid2 = getSingleMessageUID(2);
+        String uid3 = getSingleMessageUID(3);
+        String[] uids = new String[] { uid1, uid3, uid2 };
+
+        // bulk lookup is not supported in POP3
+        try {
+            mFolder.getMessages(uids, null);
+            fail("Pop3Folder.getMessages(String[]) should throw");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+
+        // uid3 does not exist, and is skipped
+        setupUidlSequence(mockTransport, 2);
+        Message[] messages = MessagingController.getRemoteMessages(mFolder, uids);
+        assertEquals(2, messages.length);
+        assertEquals(uid1, messages[0].getUid());
+        assertEquals(uid2, messages[1].getUid());
+
+        mockTransport.expect("DELE 1", "+OK message deleted");
+        mockTransport.expect("DELE 2", "+OK message deleted");
+        mFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+        mFolder.expunge();
+
+        mockTransport.expect("QUIT", "+OK bye");
+        mFolder.close(false);
+    }
+
     /**
      * Test the scenario where the transport is "open" but not really (e.g. server closed).  Two
      * things should happen:  We should see an intermediate failure that makes sense, and the next
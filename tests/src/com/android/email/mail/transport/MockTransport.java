@@ -45,6 +45,7 @@ public class MockTransport implements Transport {
     private boolean mTlsAllowed = false;
 
     private boolean mTlsReopened = false;
+    private boolean mCompressionStarted = false;
     
     private boolean mOpen;
     private boolean mInputOpen;
@@ -287,6 +288,18 @@ public class MockTransport implements Transport {
         return mTlsReopened;
     }
 
+    /**
+     * The mock streams aren't compressed; this just records that compression was started
+     */
+    public void startCompression() {
+        SmtpSenderUnitTests.assertTrue(mOpen);
+        mCompressionStarted = true;
+    }
+
+    public boolean getCompressionStarted() {
+        return mCompressionStarted;
+    }
+
     public void setSecurity(int connectionSecurity, boolean trustAllCertificates) {
         mConnectionSecurity = connectionSecurity;
         mTrustCertificates = trustAllCertificates;
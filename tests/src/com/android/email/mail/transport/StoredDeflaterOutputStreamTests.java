@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.mail.transport;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * This is a series of unit tests for the StoredDeflaterOutputStream class.
+ */
+@SmallTest
+public class StoredDeflaterOutputStreamTests extends TestCase {
+
+    /**
+     * Read back a deflated stream
+     */
+    private byte[] inflate(byte[] deflated, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(deflated), new Inflater(true)));
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Test that what's written is only sent on flush(), as a block that inflates to it
+     */
+    public void testFlush() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StoredDeflaterOutputStream deflater = new StoredDeflaterOutputStream(out);
+        deflater.write("1 NOOP\r\n".getBytes());
+        assertEquals(0, out.size());
+        deflater.flush();
+        // A five byte header, and the data
+        assertEquals(13, out.size());
+        MoreAsserts.assertEquals("1 NOOP\r\n".getBytes(), inflate(out.toByteArray(), 8));
+
+        // Nothing more is sent when there's nothing more to send
+        deflater.flush();
+        assertEquals(13, out.size());
+    }
+
+    /**
+     * Test that data longer than a block is split into blocks
+     */
+    public void testLongData() throws IOException {
+        byte[] data = new byte[150000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StoredDeflaterOutputStream deflater = new StoredDeflaterOutputStream(out);
+        deflater.write(data, 0, 100);
+        deflater.write(data, 100, data.length - 100);
+        deflater.flush();
+        assertEquals(data.length + 3 * 5, out.size());
+        MoreAsserts.assertEquals(data, inflate(out.toByteArray(), data.length));
+    }
+}
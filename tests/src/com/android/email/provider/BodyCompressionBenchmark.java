@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.provider;
+
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.Body;
+import com.mwebster.iemail.provider.EmailContent.BodyColumns;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+import com.mwebster.iemail.provider.EmailContent.Message;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures what compressing body content saves in the body database, and what it costs to read
+ * back.  Bodies are written uncompressed (as by older versions), measured, compacted by the
+ * provider, and measured again; the results are logged.
+ *
+ * You can run this test case with:
+ *   runtest -c com.mwebster.iemail.provider.BodyCompressionBenchmark email
+ */
+@LargeTest
+public class BodyCompressionBenchmark extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "BodyCompressionBenchmark";
+
+    private static final int MESSAGE_COUNT = 200;
+    // Each body is read this many times when timing reads
+    private static final int READ_PASSES = 3;
+
+    Context mMockContext;
+
+    public BodyCompressionBenchmark() {
+        super(EmailProvider.class, EmailProvider.EMAIL_AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    /**
+     * Return an html body much like a typical newsletter's, different for each message
+     */
+    private static String makeHtml(int n) {
+        StringBuilder sb = new StringBuilder("<html><head><style type=\"text/css\">" +
+                "td { font-family: Arial, sans-serif; font-size: 12px; }</style></head>" +
+                "<body><table width=\"600\" cellpadding=\"0\" cellspacing=\"0\">");
+        for (int i = 0; i < 40; i++) {
+            sb.append("<tr><td class=\"item\"><a href=\"http://www.example.com/item?id=")
+                    .append(n * 100 + i).append("&amp;src=newsletter\">Item ").append(i)
+                    .append(" of issue ").append(n).append("</a></td><td align=\"right\">$")
+                    .append((n * 7 + i * 13) % 1000).append(".99</td></tr>");
+        }
+        return sb.append("</table></body></html>").toString();
+    }
+
+    /**
+     * Return the bytes of the body database in use (i.e. not counting free pages)
+     */
+    private static long getBodyDatabaseSize(SQLiteDatabase db) {
+        // Pages freed by compaction stay in the file (to be reused) until it's vacuumed
+        return (getPragma(db, "page_count") - getPragma(db, "freelist_count"))
+                * getPragma(db, "page_size");
+    }
+
+    private static long getPragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("pragma BodyDatabase." + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the average time (in microseconds) to read the html of each message's body
+     */
+    private long timeReads(long[] messageIds) {
+        long start = System.nanoTime();
+        for (int pass = 0; pass < READ_PASSES; pass++) {
+            for (long messageId: messageIds) {
+                assertNotNull(Body.restoreBodyHtmlWithMessageId(mMockContext, messageId));
+            }
+        }
+        return (System.nanoTime() - start) / 1000 / (READ_PASSES * messageIds.length);
+    }
+
+    public void testCompactBodies() {
+        Context context = mMockContext;
+        ContentResolver cr = context.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("benchmark", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+
+        // Write the bodies as older versions did, and make them look as if they predate
+        // compression
+        long[] messageIds = new long[MESSAGE_COUNT];
+        EmailProvider.sCompressBodies = false;
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                Message message = ProviderTestUtils.setupMessage("message" + i, account.mId,
+                        box.mId, false, false, context);
+                message.mHtml = makeHtml(i);
+                message.save(context);
+                messageIds[i] = message.mId;
+            }
+        } finally {
+            EmailProvider.sCompressBodies = true;
+        }
+        SQLiteDatabase db = getProvider().getDatabase(context);
+        ContentValues cv = new ContentValues();
+        cv.putNull(BodyColumns.COMPRESSED_FLAGS);
+        db.update(Body.TABLE_NAME, cv, null, null);
+
+        long sizeBefore = getBodyDatabaseSize(db);
+        long readBefore = timeReads(messageIds);
+
+        cv.clear();
+        long start = System.nanoTime();
+        while (cr.update(EmailProvider.COMPACT_BODIES_URI, cv, null, null) > 0) {
+            // Keep going until there's nothing left to compact
+        }
+        long compactTime = (System.nanoTime() - start) / 1000000;
+
+        long sizeAfter = getBodyDatabaseSize(db);
+        long readAfter = timeReads(messageIds);
+
+        Log.d(TAG, MESSAGE_COUNT + " bodies: database " + sizeBefore / 1024 + "K before, " +
+                sizeAfter / 1024 + "K after; read " + readBefore + "us before, " + readAfter +
+                "us after; compacted in " + compactTime + "ms");
+        assertTrue(sizeAfter < sizeBefore);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            assertEquals(makeHtml(i), Body.restoreBodyHtmlWithMessageId(context, messageIds[i]));
+        }
+    }
+}
@@ -163,6 +163,7 @@ public class ProviderTestUtils extends Assert {
         message.mReplyTo = "replyto " + name;
 
         message.mMeetingInfo = "123" + accountId + mailboxId + name.length();
+        message.mSnippet = "snippet " + name;
 
         if (addBody) {
             message.mText = "body text " + name;
@@ -337,6 +338,7 @@ public class ProviderTestUtils extends Assert {
         assertEquals(caller + " mReplyTo", expect.mReplyTo, actual.mReplyTo);
 
         assertEquals(caller + " mMeetingInfo", expect.mMeetingInfo, actual.mMeetingInfo);
+        assertEquals(caller + " mSnippet", expect.mSnippet, actual.mSnippet);
 
         assertEquals(caller + " mText", expect.mText, actual.mText);
         assertEquals(caller + " mHtml", expect.mHtml, actual.mHtml);
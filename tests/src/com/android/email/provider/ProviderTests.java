@@ -27,12 +27,16 @@ import com.mwebster.iemail.provider.EmailContent.Mailbox;
 import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
 import com.mwebster.iemail.provider.EmailContent.Message;
 import com.mwebster.iemail.provider.EmailContent.MessageColumns;
+import com.mwebster.iemail.provider.EmailContent.SyncColumns;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
@@ -42,7 +46,9 @@ import android.test.ProviderTestCase2;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Tests of the Email provider.
@@ -703,6 +709,9 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
      * 3. delete first message.
      * 4. delete some other mailbox -- this triggers delete orphan bodies.
      * 5. verify that body for message 2 has not been deleted.
+     * 6. add a body without a message, and delete message 2's mailbox.
+     * 7. verify that only message 2's body was deleted, and that the orphan is deleted in the
+     *    background.
      */
     public void testDeleteOrphanBodies() {
         final ContentResolver resolver = mMockContext.getContentResolver();
@@ -735,6 +744,22 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
 
         // 5. verify body for second message wasn't deleted during "delete orphan bodies"
         assertNotNull(loadBodyForMessageId(message2Id));
+
+        // 6. add an orphan, and delete the mailbox of the second message
+        long orphanMessageId = message2Id + 100;
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.MESSAGE_KEY, orphanMessageId);
+        cv.put(BodyColumns.TEXT_CONTENT, "orphan");
+        resolver.insert(Body.CONTENT_URI, cv);
+        resolver.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, box1Id), null, null);
+
+        // 7. only the bodies of the messages deleted are deleted with them; orphans are left for
+        // the background
+        assertNull(loadBodyForMessageId(message2Id));
+        assertNotNull(loadBodyForMessageId(orphanMessageId));
+        assertEquals(1, resolver.update(EmailProvider.DELETE_ORPHAN_BODIES_URI, cv, null, null));
+        assertEquals(0, resolver.update(EmailProvider.DELETE_ORPHAN_BODIES_URI, cv, null, null));
+        assertNull(loadBodyForMessageId(orphanMessageId));
     }
 
     /**
@@ -1524,6 +1549,378 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(2, getUnreadCount(boxC.mId));
     }
 
+    /**
+     * Return the message and favorite counts of a mailbox, as kept by the provider
+     */
+    private int[] getMessageCounts(long mailboxId) {
+        Cursor c = mMockContext.getContentResolver().query(
+                ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailboxId),
+                new String[] {MailboxColumns.MESSAGE_COUNT, MailboxColumns.FAVORITE_COUNT},
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return new int[] {c.getInt(0), c.getInt(1)};
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the unread counts of an account (of its inbox, and of all its mail), as kept by the
+     * provider
+     */
+    private int[] getAccountUnreadCounts(long accountId) {
+        Cursor c = mMockContext.getContentResolver().query(
+                ContentUris.withAppendedId(Account.CONTENT_URI, accountId),
+                new String[] {AccountColumns.UNREAD_COUNT, AccountColumns.ALL_UNREAD_COUNT},
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return new int[] {c.getInt(0), c.getInt(1)};
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMessageCountTriggers() {
+        Account account = ProviderTestUtils.setupAccount("count-triggers", true, mMockContext);
+        Mailbox boxA = ProviderTestUtils.setupMailbox("boxA", account.mId, true, mMockContext);
+        Mailbox boxB = ProviderTestUtils.setupMailbox("boxB", account.mId, true, mMockContext);
+        MoreAsserts.assertEquals(new int[] {0, 0}, getMessageCounts(boxA.mId));
+
+        // Messages are favorites unless we say otherwise
+        Message message1 = ProviderTestUtils.setupMessage("message1", account.mId, boxA.mId,
+                false, true, mMockContext);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account.mId, boxA.mId,
+                false, false, mMockContext);
+        message2.mFlagFavorite = false;
+        message2.save(mMockContext);
+        MoreAsserts.assertEquals(new int[] {2, 1}, getMessageCounts(boxA.mId));
+        assertEquals(2, Mailbox.getMessageCount(mMockContext, boxA.mId));
+
+        // Saving a message (which rewrites all of its columns) changes nothing
+        message1.save(mMockContext);
+        MoreAsserts.assertEquals(new int[] {2, 1}, getMessageCounts(boxA.mId));
+
+        // Star message 2 and move it to box B at once
+        ContentResolver cr = mMockContext.getContentResolver();
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.MAILBOX_KEY, boxB.mId);
+        cv.put(MessageColumns.FLAG_FAVORITE, 1);
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, message2.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {1, 1}, getMessageCounts(boxA.mId));
+        MoreAsserts.assertEquals(new int[] {1, 1}, getMessageCounts(boxB.mId));
+
+        // Unstar message 1
+        cv.clear();
+        cv.put(MessageColumns.FLAG_FAVORITE, 0);
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, message1.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {1, 0}, getMessageCounts(boxA.mId));
+
+        // Delete message 2
+        cr.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message2.mId), null, null);
+        MoreAsserts.assertEquals(new int[] {0, 0}, getMessageCounts(boxB.mId));
+
+        // The counts can't be set from outside
+        cv.clear();
+        cv.put(MailboxColumns.MESSAGE_COUNT, 10);
+        cv.put(MailboxColumns.FAVORITE_COUNT, 10);
+        cr.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, boxA.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {1, 0}, getMessageCounts(boxA.mId));
+    }
+
+    public void testAccountUnreadCountTriggers() {
+        Account account = ProviderTestUtils.setupAccount("account-unread", true, mMockContext);
+        Account account2 = ProviderTestUtils.setupAccount("account-unread2", true, mMockContext);
+        Mailbox inbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        Mailbox mail = ProviderTestUtils.setupMailbox("mail", account.mId, true, mMockContext);
+        Mailbox trash = ProviderTestUtils.setupMailbox("trash", account.mId, true, mMockContext,
+                Mailbox.TYPE_TRASH);
+        MoreAsserts.assertEquals(new int[] {0, 0}, getAccountUnreadCounts(account.mId));
+
+        Message message1 = setupUnreadMessage("message1", account.mId, inbox.mId, false, true,
+                mMockContext);
+        setupUnreadMessage("message2", account.mId, mail.mId, false, true, mMockContext);
+        setupUnreadMessage("message3", account.mId, trash.mId, false, true, mMockContext);
+        setupUnreadMessage("message4", account.mId, inbox.mId, false, true, mMockContext);
+        MoreAsserts.assertEquals(new int[] {2, 3}, getAccountUnreadCounts(account.mId));
+        MoreAsserts.assertEquals(new int[] {0, 0}, getAccountUnreadCounts(account2.mId));
+
+        // Read a message
+        ContentResolver cr = mMockContext.getContentResolver();
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, 1);
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, message1.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {1, 2}, getAccountUnreadCounts(account.mId));
+
+        // Hidden mailboxes only count towards the inbox
+        cv.clear();
+        cv.put(MailboxColumns.FLAG_VISIBLE, 0);
+        cr.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, mail.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {1, 1}, getAccountUnreadCounts(account.mId));
+
+        // Move the inbox to the other account
+        cv.clear();
+        cv.put(MailboxColumns.ACCOUNT_KEY, account2.mId);
+        cr.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, inbox.mId), cv, null, null);
+        MoreAsserts.assertEquals(new int[] {0, 0}, getAccountUnreadCounts(account.mId));
+        MoreAsserts.assertEquals(new int[] {1, 1}, getAccountUnreadCounts(account2.mId));
+
+        // Delete it, along with its messages
+        cr.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, inbox.mId), null, null);
+        MoreAsserts.assertEquals(new int[] {0, 0}, getAccountUnreadCounts(account2.mId));
+    }
+
+    private Message setupViewMessage(String name, Mailbox box, int flagLoaded, boolean read,
+            boolean favorite) {
+        Message message = ProviderTestUtils.setupMessage(name, box.mAccountKey, box.mId, false,
+                false, mMockContext);
+        message.mFlagLoaded = flagLoaded;
+        message.mFlagRead = read;
+        message.mFlagFavorite = favorite;
+        message.save(mMockContext);
+        return message;
+    }
+
+    /**
+     * Return the ids of the messages in a mailbox view, in order
+     */
+    private long[] getMailboxViewIds(long mailboxId, boolean allMailboxes, boolean unreadOnly) {
+        Cursor c = mMockContext.getContentResolver().query(
+                Message.getMailboxViewUri(mailboxId, allMailboxes, unreadOnly),
+                EmailContent.ID_PROJECTION, null, null, EmailContent.RECORD_ID);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMailboxViews() {
+        Account account1 = ProviderTestUtils.setupAccount("view1", true, mMockContext);
+        Account account2 = ProviderTestUtils.setupAccount("view2", true, mMockContext);
+        Mailbox inbox1 = ProviderTestUtils.setupMailbox("inbox1", account1.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        Mailbox inbox2 = ProviderTestUtils.setupMailbox("inbox2", account2.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        Mailbox mail = ProviderTestUtils.setupMailbox("mail", account1.mId, true, mMockContext);
+        Mailbox hidden = ProviderTestUtils.setupMailbox("hidden", account1.mId, false,
+                mMockContext);
+        hidden.mFlagVisible = false;
+        hidden.save(mMockContext);
+        Mailbox drafts = ProviderTestUtils.setupMailbox("drafts", account2.mId, true,
+                mMockContext, Mailbox.TYPE_DRAFTS);
+
+        int complete = Message.FLAG_LOADED_COMPLETE;
+        Message read1 = setupViewMessage("read1", inbox1, complete, true, false);
+        Message unread1 = setupViewMessage("unread1", inbox1, Message.FLAG_LOADED_PARTIAL, false,
+                true);
+        setupViewMessage("unloaded1", inbox1, Message.FLAG_LOADED_UNLOADED, false, true);
+        Message read2 = setupViewMessage("read2", inbox2, complete, true, true);
+        Message mail1 = setupViewMessage("mail1", mail, complete, false, false);
+        Message hidden1 = setupViewMessage("hidden1", hidden, complete, false, false);
+        Message draft1 = setupViewMessage("draft1", drafts, complete, true, false);
+
+        // Single mailboxes
+        MoreAsserts.assertEquals(new long[] {read1.mId, unread1.mId},
+                getMailboxViewIds(inbox1.mId, false, false));
+        MoreAsserts.assertEquals(new long[] {hidden1.mId},
+                getMailboxViewIds(hidden.mId, true, true));
+
+        // Combined views of mailbox types
+        MoreAsserts.assertEquals(new long[] {read1.mId, unread1.mId, read2.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_INBOXES, false, false));
+        MoreAsserts.assertEquals(new long[] {read1.mId, unread1.mId, read2.mId, mail1.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_INBOXES, true, false));
+        MoreAsserts.assertEquals(new long[] {unread1.mId, mail1.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_INBOXES, true, true));
+        MoreAsserts.assertEquals(new long[] {draft1.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_DRAFTS, false, false));
+        MoreAsserts.assertEquals(new long[0],
+                getMailboxViewIds(Mailbox.QUERY_ALL_OUTBOX, false, false));
+
+        // Combined views of message flags, in every mailbox
+        MoreAsserts.assertEquals(new long[] {unread1.mId, mail1.mId, hidden1.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_UNREAD, false, false));
+        MoreAsserts.assertEquals(new long[] {unread1.mId, read2.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_FAVORITES, false, true));
+
+        // A new inbox joins the combined inbox without any change to the query
+        Account account3 = ProviderTestUtils.setupAccount("view3", true, mMockContext);
+        Mailbox inbox3 = ProviderTestUtils.setupMailbox("inbox3", account3.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        Message read3 = setupViewMessage("read3", inbox3, complete, true, false);
+        MoreAsserts.assertEquals(new long[] {read1.mId, unread1.mId, read2.mId, read3.mId},
+                getMailboxViewIds(Mailbox.QUERY_ALL_INBOXES, false, false));
+    }
+
+    /**
+     * Return the ids and timestamps of the rows of a cursor over a mailbox view, and close it
+     */
+    private static ArrayList<long[]> getPageRows(Cursor c) {
+        ArrayList<long[]> rows = new ArrayList<long[]>();
+        try {
+            while (c.moveToNext()) {
+                rows.add(new long[] {c.getLong(0), c.getLong(1)});
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    public void testMailboxViewPages() {
+        Account account = ProviderTestUtils.setupAccount("pages", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        // Messages whose names are the same length have the same timestamp, so the pages have
+        // to be told apart by id
+        String[] names = {"a", "bb", "c", "dd", "e", "ff", "g", "hh", "i", "j"};
+        for (String name: names) {
+            setupViewMessage(name, box, Message.FLAG_LOADED_COMPLETE, true, false);
+        }
+        Uri viewUri = Message.getMailboxViewUri(box.mId, false, false);
+        String[] projection = new String[] {EmailContent.RECORD_ID, MessageColumns.TIMESTAMP};
+        ArrayList<long[]> all = getPageRows(mMockContext.getContentResolver().query(viewUri,
+                projection, null, null, Message.KEY_TIMESTAMP_ID_DESC));
+        assertEquals(names.length, all.size());
+
+        // Page through the view, three at a time; each row comes once, in order
+        ArrayList<long[]> paged = new ArrayList<long[]>();
+        ArrayList<long[]> page = getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri,
+                projection, 0, -1, 3));
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 3);
+            paged.addAll(page);
+            long[] last = page.get(page.size() - 1);
+            page = getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri, projection,
+                    last[1], last[0], 3));
+        }
+        assertEquals(all.size(), paged.size());
+        for (int i = 0; i < all.size(); i++) {
+            MoreAsserts.assertEquals(all.get(i), paged.get(i));
+        }
+
+        // Re-fetching the rows through the fifth gives exactly the first five
+        long[] fifth = all.get(4);
+        ArrayList<long[]> through = getPageRows(Message.queryMailboxViewThrough(mMockContext,
+                viewUri, projection, fifth[1], fifth[0]));
+        assertEquals(5, through.size());
+        for (int i = 0; i < 5; i++) {
+            MoreAsserts.assertEquals(all.get(i), through.get(i));
+        }
+    }
+
+    /**
+     * Test that the ids of a whole mailbox view (e.g. for select all) include the messages on
+     * pages that haven't been loaded
+     */
+    public void testMailboxViewIds() {
+        Account account = ProviderTestUtils.setupAccount("viewids", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Mailbox other = ProviderTestUtils.setupMailbox("other", account.mId, true, mMockContext);
+        String[] names = {"a", "bb", "c", "dd", "e", "ff", "g"};
+        HashSet<Long> expected = new HashSet<Long>();
+        for (String name: names) {
+            expected.add(setupViewMessage(name, box, Message.FLAG_LOADED_COMPLETE, true,
+                    false).mId);
+        }
+        setupViewMessage("other", other, Message.FLAG_LOADED_COMPLETE, true, false);
+
+        // Only the first page has been loaded...
+        Uri viewUri = Message.getMailboxViewUri(box.mId, false, false);
+        String[] projection = new String[] {EmailContent.RECORD_ID, MessageColumns.TIMESTAMP};
+        assertEquals(3, getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri,
+                projection, 0, -1, 3)).size());
+
+        // ...but every message of the view is found, and no other
+        long[] ids = Message.queryMailboxViewIds(mMockContext, viewUri);
+        assertEquals(names.length, ids.length);
+        HashSet<Long> found = new HashSet<Long>();
+        for (long id : ids) {
+            found.add(id);
+        }
+        assertEquals(expected, found);
+    }
+
+    /**
+     * Test that a message without a timestamp is stored with 0, so that paging reaches it
+     */
+    public void testMailboxViewPagesNoTimestamp() {
+        ContentResolver cr = mMockContext.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("notime", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message dated = setupViewMessage("dated", box, Message.FLAG_LOADED_COMPLETE, true, false);
+        Message updated = setupViewMessage("updated", box, Message.FLAG_LOADED_COMPLETE, true,
+                false);
+        ContentValues cv = new ContentValues();
+        cv.putNull(MessageColumns.TIMESTAMP);
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, updated.mId), cv, null, null);
+        Message inserted = ProviderTestUtils.setupMessage("inserted", account.mId, box.mId,
+                false, false, mMockContext);
+        cv = inserted.toContentValues();
+        cv.putNull(MessageColumns.TIMESTAMP);
+        long insertedId = Long.parseLong(
+                cr.insert(Message.CONTENT_URI, cv).getPathSegments().get(1));
+
+        Uri viewUri = Message.getMailboxViewUri(box.mId, false, false);
+        String[] projection = new String[] {EmailContent.RECORD_ID, MessageColumns.TIMESTAMP};
+        ArrayList<long[]> page = getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri,
+                projection, 0, -1, 1));
+        assertEquals(dated.mId, page.get(0)[0]);
+        page = getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri, projection,
+                page.get(0)[1], page.get(0)[0], 1));
+        MoreAsserts.assertEquals(new long[] {insertedId, 0}, page.get(0));
+        page = getPageRows(Message.queryMailboxViewPage(mMockContext, viewUri, projection,
+                page.get(0)[1], page.get(0)[0], 1));
+        MoreAsserts.assertEquals(new long[] {updated.mId, 0}, page.get(0));
+    }
+
+    public void testContentCache() {
+        ContentResolver cr = mMockContext.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("cache", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+
+        // The second read is a hit, and gives an equal but separate account
+        Account account1 = Account.restoreAccountWithId(mMockContext, account.mId);
+        int hits = ContentCache.ACCOUNTS.getHitCount();
+        int misses = ContentCache.ACCOUNTS.getMissCount();
+        Account account2 = Account.restoreAccountWithId(mMockContext, account.mId);
+        assertEquals(hits + 1, ContentCache.ACCOUNTS.getHitCount());
+        assertEquals(misses, ContentCache.ACCOUNTS.getMissCount());
+        assertNotSame(account1, account2);
+        ProviderTestUtils.assertAccountEqual("testContentCache", account, account2);
+        HostAuth auth = ProviderTestUtils.setupHostAuth("cache", account.mId, true,
+                mMockContext);
+        ProviderTestUtils.assertHostAuthEqual("testContentCache", auth,
+                HostAuth.restoreHostAuthWithId(mMockContext, auth.mId));
+
+        // Changing what was returned doesn't change the cache
+        account2.mDisplayName = "changed";
+        assertEquals(account.mDisplayName,
+                Account.restoreAccountWithId(mMockContext, account.mId).mDisplayName);
+
+        // Writes through the provider are seen at once
+        ContentValues cv = new ContentValues();
+        cv.put(AccountColumns.DISPLAY_NAME, "updated");
+        account.update(mMockContext, cv);
+        assertEquals("updated",
+                Account.restoreAccountWithId(mMockContext, account.mId).mDisplayName);
+        cv.clear();
+        cv.put(MailboxColumns.SYNC_KEY, "key");
+        box.update(mMockContext, cv);
+        assertEquals("key", Mailbox.restoreMailboxWithId(mMockContext, box.mId).mSyncKey);
+
+        // Deleting an account deletes its mailboxes by trigger, which mustn't be left cached
+        cr.delete(ContentUris.withAppendedId(Account.CONTENT_URI, account.mId), null, null);
+        assertNull(Account.restoreAccountWithId(mMockContext, account.mId));
+        assertNull(Mailbox.restoreMailboxWithId(mMockContext, box.mId));
+    }
+
     /**
      * Test for EmailProvider.createIndex().
      * Check that it returns exacly the same string as the one used previously for index creation.
@@ -1533,6 +1930,520 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
             + " on " + Message.TABLE_NAME + " (" + MessageColumns.TIMESTAMP + ");";
         String newStr = EmailProvider.createIndex(Message.TABLE_NAME, MessageColumns.TIMESTAMP);
         assertEquals(newStr, oldStr);
+
+        assertEquals("create index message_mailboxKey_timeStamp on Message" +
+                " (mailboxKey, timeStamp);", EmailProvider.createIndex(Message.TABLE_NAME,
+                        MessageColumns.MAILBOX_KEY, MessageColumns.TIMESTAMP));
+    }
+
+    /**
+     * Test that a batch of messages, which may yield the database between messages, saves each
+     * body with its own message (i.e. that back-references still work)
+     */
+    public void testApplyBatchBackReferences() throws Exception {
+        Account account = ProviderTestUtils.setupAccount("batch", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        Message message1 = ProviderTestUtils.setupMessage("message1", account.mId, box.mId, false,
+                false, mMockContext);
+        message1.mText = "text1";
+        message1.addSaveOps(ops);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account.mId, box.mId, false,
+                false, mMockContext);
+        message2.mText = "text2";
+        message2.addSaveOps(ops);
+        assertTrue(ops.get(2).isYieldAllowed());
+
+        ContentProviderResult[] results =
+            mMockContext.getContentResolver().applyBatch(EmailProvider.EMAIL_AUTHORITY, ops);
+        assertEquals(ops.size(), results.length);
+        long id1 = ContentUris.parseId(results[0].uri);
+        long id2 = ContentUris.parseId(results[2].uri);
+        assertEquals("text1", Body.restoreBodyTextWithMessageId(mMockContext, id1));
+        assertEquals("text2", Body.restoreBodyTextWithMessageId(mMockContext, id2));
+    }
+
+    /**
+     * Test that imported messages are saved as they would be one by one, each with its own body
+     * (if it has one) and attachments, and that their bodies are indexed for search
+     */
+    public void testImportMessages() {
+        Account account = ProviderTestUtils.setupAccount("import", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        assertEquals(0, Message.importMessages(mMockContext, new ArrayList<Message>()));
+
+        ArrayList<Message> messages = new ArrayList<Message>();
+        // With a body and attachments, with neither, and with a body only
+        Message message1 = ProviderTestUtils.setupMessage("message1", account.mId, box.mId, true,
+                false, mMockContext);
+        message1.mText = "importedtext";
+        ArrayList<Attachment> atts = new ArrayList<Attachment>();
+        for (int i = 0; i < 3; i++) {
+            atts.add(ProviderTestUtils.setupAttachment(-1, expectedAttachmentNames[i],
+                    expectedAttachmentSizes[i], false, mMockContext));
+        }
+        message1.mAttachments = atts;
+        messages.add(message1);
+        messages.add(ProviderTestUtils.setupMessage("message2", account.mId, box.mId, false,
+                false, mMockContext));
+        Message message3 = ProviderTestUtils.setupMessage("message3", account.mId, box.mId, true,
+                false, mMockContext);
+        messages.add(message3);
+        assertEquals(3, Message.importMessages(mMockContext, messages));
+
+        Cursor c = mMockContext.getContentResolver().query(Message.CONTENT_URI,
+                Message.CONTENT_PROJECTION, MessageColumns.MAILBOX_KEY + "=?",
+                new String[] {Long.toString(box.mId)}, SyncColumns.SERVER_ID);
+        long[] ids = new long[messages.size()];
+        try {
+            assertEquals(messages.size(), c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                Message actual = EmailContent.getContent(c, Message.class);
+                Message expect = messages.get(i);
+                ids[i] = actual.mId;
+                expect.mId = actual.mId;
+                expect.mText = null;
+                expect.mHtml = null;
+                expect.mTextReply = null;
+                expect.mHtmlReply = null;
+                expect.mSourceKey = 0;
+                expect.mIntroText = null;
+                expect.mAttachments = null;
+                ProviderTestUtils.assertMessageEqual("testImportMessages", expect, actual);
+            }
+        } finally {
+            c.close();
+        }
+
+        assertEquals("importedtext", Body.restoreBodyTextWithMessageId(mMockContext, ids[0]));
+        assertNull(loadBodyForMessageId(ids[1]));
+        assertEquals("body html message3",
+                Body.restoreBodyHtmlWithMessageId(mMockContext, ids[2]));
+        MoreAsserts.assertEquals(new long[] {ids[0]}, searchMessages("importedtext", null, null));
+
+        c = mMockContext.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.CONTENT_PROJECTION, Attachment.MESSAGE_KEY + "=?",
+                new String[] {Long.toString(ids[0])}, Attachment.SIZE);
+        try {
+            assertEquals(atts.size(), c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                Attachment expect = atts.get(i);
+                Attachment actual = EmailContent.getContent(c, Attachment.class);
+                expect.mId = actual.mId;
+                expect.mMessageKey = ids[0];
+                ProviderTestUtils.assertAttachmentEqual("testImportMessages", expect, actual);
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(atts.size(), EmailContent.count(mMockContext, Attachment.CONTENT_URI, null,
+                null));
+    }
+
+    /**
+     * Test that the notifier uris nest (account, mailbox, message), and that queries with a
+     * notification scope still return the same rows
+     */
+    public void testNotifierUris() {
+        Uri accountUri = EmailContent.getAccountNotifierUri(1);
+        Uri mailboxUri = EmailContent.getMailboxNotifierUri(1, 2);
+        Uri messageUri = EmailContent.getMessageNotifierUri(1, 2, 3);
+        assertTrue(mailboxUri.toString().startsWith(accountUri.toString() + "/"));
+        assertTrue(messageUri.toString().startsWith(mailboxUri.toString() + "/"));
+        assertFalse(EmailContent.NOTIFIER_URI.getAuthority().equals(EmailContent.AUTHORITY));
+
+        Account account = ProviderTestUtils.setupAccount("notify", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        ProviderTestUtils.setupMessage("message", account.mId, box.mId, false, true,
+                mMockContext);
+        Uri uri = EmailContent.uriWithNotifyMailbox(Message.CONTENT_URI, box.mId);
+        assertEquals(1, EmailContent.count(mMockContext, uri, null, null));
+        uri = EmailContent.uriWithNotifyAccount(Mailbox.CONTENT_URI, account.mId);
+        assertEquals(1, EmailContent.count(mMockContext, uri, null, null));
+    }
+
+    /**
+     * Return the ids of the messages found by a search, in order
+     */
+    private long[] searchMessages(String query, String selection, String[] selectionArgs) {
+        Cursor c = mMockContext.getContentResolver().query(Message.getSearchUri(query),
+                Message.LIST_PROJECTION, selection, selectionArgs, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(Message.LIST_ID_COLUMN);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testGetSearchMatch() {
+        assertNull(EmailProvider.getSearchMatch(null));
+        assertNull(EmailProvider.getSearchMatch(""));
+        assertNull(EmailProvider.getSearchMatch(" -\"* "));
+        assertEquals("fred*", EmailProvider.getSearchMatch("fred"));
+        assertEquals("fred* example* com*", EmailProvider.getSearchMatch(" fred@example.com "));
+        // Match syntax is taken as words
+        assertEquals("a* OR* b*", EmailProvider.getSearchMatch("a OR \"b\""));
+    }
+
+    public void testGetSearchText() {
+        assertNull(EmailProvider.getSearchText(null, null));
+        assertEquals("text", EmailProvider.getSearchText("text", "<b>html</b>"));
+        assertEquals(" html ", EmailProvider.getSearchText(null, "<b>html</b>"));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= EmailProvider.MAX_SEARCH_BODY_LENGTH) {
+            sb.append("word ");
+        }
+        assertEquals(EmailProvider.MAX_SEARCH_BODY_LENGTH,
+                EmailProvider.getSearchText(sb.toString(), null).length());
+    }
+
+    /**
+     * Test that the search index follows the messages and bodies as they're added, changed and
+     * deleted
+     */
+    public void testMessageSearch() {
+        Context context = mMockContext;
+        ContentResolver cr = context.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("search", true, context);
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account.mId, true, context);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account.mId, true, context);
+        Message message1 = ProviderTestUtils.setupMessage("alpha", account.mId, box1.mId, true,
+                true, context);
+        Message message2 = ProviderTestUtils.setupMessage("beta", account.mId, box2.mId, true,
+                true, context);
+
+        // Subject, senders, recipients and body, with prefixes
+        MoreAsserts.assertEquals(new long[] {message1.mId}, searchMessages("alpha", null, null));
+        MoreAsserts.assertEquals(new long[] {message2.mId}, searchMessages("bet", null, null));
+        assertEquals(2, searchMessages("subj", null, null).length);
+        assertEquals(2, searchMessages("from", null, null).length);
+        assertEquals(2, searchMessages("cc", null, null).length);
+        assertEquals(2, searchMessages("body text", null, null).length);
+        assertEquals(0, searchMessages("body gamma", null, null).length);
+        assertEquals(0, searchMessages("", null, null).length);
+
+        // The sentinel of a locally deleted message isn't found
+        Message deleted = ProviderTestUtils.setupMessage("deleted", account.mId, box1.mId, false,
+                false, context);
+        deleted.mFlagLoaded = Message.FLAG_LOADED_DELETED;
+        deleted.save(context);
+        assertEquals(0, searchMessages("deleted", null, null).length);
+
+        // With a selection
+        MoreAsserts.assertEquals(new long[] {message2.mId}, searchMessages("subject",
+                MessageColumns.MAILBOX_KEY + "=?", new String[] {Long.toString(box2.mId)}));
+
+        // Header changes; and the message matching more often comes first
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "subject subject");
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, message2.mId), cv, null, null);
+        MoreAsserts.assertEquals(new long[] {message2.mId, message1.mId},
+                searchMessages("subject", null, null));
+
+        // Body changes
+        cv.clear();
+        cv.put(BodyColumns.TEXT_CONTENT, "gamma");
+        long bodyId = Body.lookupBodyIdWithMessageId(cr, message1.mId);
+        cr.update(ContentUris.withAppendedId(Body.CONTENT_URI, bodyId), cv, null, null);
+        MoreAsserts.assertEquals(new long[] {message1.mId}, searchMessages("gamma", null, null));
+        cr.delete(ContentUris.withAppendedId(Body.CONTENT_URI, bodyId), null, null);
+        assertEquals(0, searchMessages("gamma", null, null).length);
+
+        // Deletions, directly and by cascade
+        cr.delete(ContentUris.withAppendedId(Message.CONTENT_URI, message1.mId), null, null);
+        assertEquals(0, searchMessages("alpha", null, null).length);
+        cr.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, box2.mId), null, null);
+        assertEquals(0, searchMessages("subject", null, null).length);
+    }
+
+    /**
+     * Test building the search index for messages that predate it
+     */
+    public void testIndexMessagesForSearch() {
+        Context context = mMockContext;
+        ContentResolver cr = context.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("index", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+        int count = EmailProvider.SEARCH_INDEX_BATCH_SIZE + 10;
+        // The sentinel of a locally deleted message isn't indexed, nor counted in a batch
+        Message deleted = ProviderTestUtils.setupMessage("deleted", account.mId, box.mId, false,
+                false, context);
+        deleted.mFlagLoaded = Message.FLAG_LOADED_DELETED;
+        deleted.save(context);
+        for (int i = 0; i < count; i++) {
+            ProviderTestUtils.setupMessage("old" + i, account.mId, box.mId, true, true, context);
+        }
+        // Empty the index, as it would be after an upgrade
+        getProvider().getDatabase(context).execSQL("delete from " +
+                EmailProvider.SEARCH_TABLE_NAME);
+        assertEquals(0, searchMessages("subject", null, null).length);
+
+        // A message that arrives before the index is built is indexed anyway
+        Message message = ProviderTestUtils.setupMessage("new", account.mId, box.mId, true,
+                true, context);
+        MoreAsserts.assertEquals(new long[] {message.mId}, searchMessages("subject", null, null));
+
+        // Then the rest are indexed a batch at a time
+        ContentValues cv = new ContentValues();
+        assertEquals(EmailProvider.SEARCH_INDEX_BATCH_SIZE,
+                cr.update(EmailProvider.SEARCH_INDEX_URI, cv, null, null));
+        assertEquals(10, cr.update(EmailProvider.SEARCH_INDEX_URI, cv, null, null));
+        assertEquals(0, cr.update(EmailProvider.SEARCH_INDEX_URI, cv, null, null));
+        assertEquals(count + 1, searchMessages("subject", null, null).length);
+        assertEquals(count, searchMessages("body old", null, null).length);
+        assertEquals(0, searchMessages("deleted", null, null).length);
+    }
+
+    /**
+     * Return text longer than a body can keep in the database (in more than one chunk)
+     */
+    private static String makeLongText(String word) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= EmailProvider.BODY_FILE_THRESHOLD * 2) {
+            sb.append(word).append(" caf\u00e9 ");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the body file of a message's content column, or null if it's in the database
+     */
+    private File getBodyFile(long messageId, String column) {
+        Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {column, BodyColumns.FILE_FLAGS}, Body.MESSAGE_KEY + "=?",
+                new String[] {Long.toString(messageId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            if ((c.getInt(1) & Body.getFileFlag(column)) == 0) {
+                return null;
+            }
+            return new File(mMockContext.getDatabasePath(EmailProvider.DATABASE_NAME)
+                    .getParentFile(), c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Test that long body content is kept in a file, that it's read back (and searched) as if it
+     * were in the database, and that the file is deleted when it's no longer needed
+     */
+    public void testBodyFiles() {
+        Context context = mMockContext;
+        Account account = ProviderTestUtils.setupAccount("body-files", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+        Message message = ProviderTestUtils.setupMessage("long", account.mId, box.mId, true,
+                false, context);
+        String longHtml = makeLongText("<p>newsletter</p>");
+        message.mHtml = longHtml;
+        message.save(context);
+
+        File file = getBodyFile(message.mId, BodyColumns.HTML_CONTENT);
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertNull(getBodyFile(message.mId, BodyColumns.TEXT_CONTENT));
+        assertEquals(longHtml, Body.restoreBodyHtmlWithMessageId(context, message.mId));
+        assertEquals("body text long", Body.restoreBodyTextWithMessageId(context, message.mId));
+        Body body = Body.restoreBodyWithMessageId(context, message.mId);
+        assertEquals(longHtml, body.mHtmlContent);
+        assertEquals("reply text long", body.mTextReply);
+        MoreAsserts.assertEquals(new long[] {message.mId},
+                searchMessages("newsletter", null, null));
+
+        // Short content replaces the file
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.HTML_CONTENT, "short");
+        Body.updateBodyWithMessageId(context, message.mId, cv);
+        assertFalse(file.exists());
+        assertNull(getBodyFile(message.mId, BodyColumns.HTML_CONTENT));
+        assertEquals("short", Body.restoreBodyHtmlWithMessageId(context, message.mId));
+
+        // And the file is deleted along with the message
+        cv.put(BodyColumns.HTML_CONTENT, longHtml);
+        Body.updateBodyWithMessageId(context, message.mId, cv);
+        assertTrue(file.exists());
+        assertEquals(longHtml, Body.restoreBodyHtmlWithMessageId(context, message.mId));
+        context.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), null, null);
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Return whether a message's content column is compressed in the database
+     */
+    private boolean isBodyCompressed(long messageId, String column) {
+        Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {BodyColumns.COMPRESSED_FLAGS}, Body.MESSAGE_KEY + "=?",
+                new String[] {Long.toString(messageId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return (c.getInt(0) & Body.getFileFlag(column)) != 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return text long enough to be compressed (but not to be kept in a file)
+     */
+    private static String makeCompressibleText(String word) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() <= EmailProvider.MIN_COMPRESSED_LENGTH * 4) {
+            sb.append(word).append(" caf\u00e9 ");
+        }
+        return sb.toString();
+    }
+
+    public void testDeflateText() {
+        String text = makeCompressibleText("<p>deflate</p>");
+        byte[] bytes = Body.deflateText(text);
+        assertTrue(bytes.length < text.length());
+        assertEquals(text, Body.inflateText(bytes, Integer.MAX_VALUE));
+        assertEquals(text.substring(0, 10), Body.inflateText(bytes, 10));
+        assertNull(Body.inflateText(null, Integer.MAX_VALUE));
+        assertEquals("", Body.inflateText(Body.deflateText(""), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Test that body content is compressed in the database, and that it's read back (and
+     * searched) as if it weren't
+     */
+    public void testBodyCompression() throws IOException {
+        Context context = mMockContext;
+        Account account = ProviderTestUtils.setupAccount("body-compression", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+        Message message = ProviderTestUtils.setupMessage("compressed", account.mId, box.mId,
+                true, false, context);
+        String html = makeCompressibleText("<p>newsletter</p>");
+        message.mHtml = html;
+        message.save(context);
+
+        // Short content isn't worth compressing
+        assertTrue(isBodyCompressed(message.mId, BodyColumns.HTML_CONTENT));
+        assertFalse(isBodyCompressed(message.mId, BodyColumns.TEXT_CONTENT));
+        assertNull(getBodyFile(message.mId, BodyColumns.HTML_CONTENT));
+        assertEquals(html, Body.restoreBodyHtmlWithMessageId(context, message.mId));
+        assertEquals("body text compressed",
+                Body.restoreBodyTextWithMessageId(context, message.mId));
+        Body body = Body.restoreBodyWithMessageId(context, message.mId);
+        assertEquals(html, body.mHtmlContent);
+        assertEquals("body text compressed", body.mTextContent);
+        MoreAsserts.assertEquals(new long[] {message.mId},
+                searchMessages("newsletter", null, null));
+
+        // The content can be streamed, however it's stored
+        InputStream in = Body.openContentStream(context, message.mId, BodyColumns.HTML_CONTENT);
+        try {
+            assertEquals(html, Body.readText(in, Integer.MAX_VALUE));
+        } finally {
+            in.close();
+        }
+        in = Body.openContentStream(context, message.mId, BodyColumns.TEXT_CONTENT);
+        try {
+            assertEquals("body text compressed", Body.readText(in, Integer.MAX_VALUE));
+        } finally {
+            in.close();
+        }
+        assertNull(Body.openContentStream(context, message.mId, BodyColumns.INTRO_TEXT));
+
+        // Updated content is compressed (or not) in turn
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.HTML_CONTENT, "short");
+        cv.put(BodyColumns.TEXT_CONTENT, html);
+        Body.updateBodyWithMessageId(context, message.mId, cv);
+        assertFalse(isBodyCompressed(message.mId, BodyColumns.HTML_CONTENT));
+        assertTrue(isBodyCompressed(message.mId, BodyColumns.TEXT_CONTENT));
+        assertEquals("short", Body.restoreBodyHtmlWithMessageId(context, message.mId));
+        assertEquals(html, Body.restoreBodyTextWithMessageId(context, message.mId));
+
+        // Nothing is compressed while compression is off
+        EmailProvider.sCompressBodies = false;
+        try {
+            cv.clear();
+            cv.put(BodyColumns.TEXT_CONTENT, html);
+            Body.updateBodyWithMessageId(context, message.mId, cv);
+            assertFalse(isBodyCompressed(message.mId, BodyColumns.TEXT_CONTENT));
+            assertEquals(html, Body.restoreBodyTextWithMessageId(context, message.mId));
+        } finally {
+            EmailProvider.sCompressBodies = true;
+        }
+    }
+
+    /**
+     * Test compacting bodies that predate body files and compression: long content moves into
+     * files, and the rest is compressed
+     */
+    public void testCompactBodies() {
+        Context context = mMockContext;
+        ContentResolver cr = context.getContentResolver();
+        Account account = ProviderTestUtils.setupAccount("compact-bodies", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+        Message message1 = ProviderTestUtils.setupMessage("message1", account.mId, box.mId, true,
+                true, context);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account.mId, box.mId, true,
+                true, context);
+
+        // Make these look like bodies from before body files, one of them with long content
+        // and the other with content worth compressing
+        String longText = makeLongText("old");
+        String html = makeCompressibleText("<p>old</p>");
+        SQLiteDatabase db = getProvider().getDatabase(context);
+        ContentValues cv = new ContentValues();
+        cv.putNull(BodyColumns.FILE_FLAGS);
+        cv.putNull(BodyColumns.COMPRESSED_FLAGS);
+        db.update(Body.TABLE_NAME, cv, null, null);
+        cv.clear();
+        cv.put(BodyColumns.TEXT_CONTENT, longText);
+        db.update(Body.TABLE_NAME, cv, Body.MESSAGE_KEY + "=" + message1.mId, null);
+        cv.clear();
+        cv.put(BodyColumns.HTML_CONTENT, html);
+        db.update(Body.TABLE_NAME, cv, Body.MESSAGE_KEY + "=" + message2.mId, null);
+
+        cv.clear();
+        assertEquals(2, cr.update(EmailProvider.COMPACT_BODIES_URI, cv, null, null));
+        assertEquals(0, cr.update(EmailProvider.COMPACT_BODIES_URI, cv, null, null));
+        File file = getBodyFile(message1.mId, BodyColumns.TEXT_CONTENT);
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertFalse(isBodyCompressed(message1.mId, BodyColumns.TEXT_CONTENT));
+        assertNull(getBodyFile(message2.mId, BodyColumns.TEXT_CONTENT));
+        assertTrue(isBodyCompressed(message2.mId, BodyColumns.HTML_CONTENT));
+        assertFalse(isBodyCompressed(message2.mId, BodyColumns.TEXT_CONTENT));
+        assertEquals(longText, Body.restoreBodyTextWithMessageId(context, message1.mId));
+        assertEquals("body text message2",
+                Body.restoreBodyTextWithMessageId(context, message2.mId));
+        assertEquals(html, Body.restoreBodyHtmlWithMessageId(context, message2.mId));
+    }
+
+    /**
+     * Test that updating a body that hasn't been compacted compacts the rest of it
+     */
+    public void testUpdateUncompactedBody() {
+        Context context = mMockContext;
+        Account account = ProviderTestUtils.setupAccount("update-uncompacted", true, context);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, context);
+        Message message = ProviderTestUtils.setupMessage("message", account.mId, box.mId, true,
+                true, context);
+        String longText = makeLongText("old");
+        SQLiteDatabase db = getProvider().getDatabase(context);
+        ContentValues cv = new ContentValues();
+        cv.putNull(BodyColumns.FILE_FLAGS);
+        cv.putNull(BodyColumns.COMPRESSED_FLAGS);
+        cv.put(BodyColumns.TEXT_CONTENT, longText);
+        db.update(Body.TABLE_NAME, cv, Body.MESSAGE_KEY + "=" + message.mId, null);
+
+        cv.clear();
+        cv.put(BodyColumns.HTML_CONTENT, "new");
+        Body.updateBodyWithMessageId(context, message.mId, cv);
+        assertNotNull(getBodyFile(message.mId, BodyColumns.TEXT_CONTENT));
+        assertEquals(longText, Body.restoreBodyTextWithMessageId(context, message.mId));
+        assertEquals("new", Body.restoreBodyHtmlWithMessageId(context, message.mId));
+        assertEquals(0, context.getContentResolver().update(EmailProvider.COMPACT_BODIES_URI,
+                cv, null, null));
     }
 
     public void testIdAddToField() {
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.provider;
+
+import com.mwebster.iemail.provider.EmailContent.Body;
+import com.mwebster.iemail.provider.EmailContent.BodyColumns;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+import com.mwebster.iemail.provider.EmailContent.MailboxColumns;
+import com.mwebster.iemail.provider.EmailContent.Message;
+import com.mwebster.iemail.provider.EmailContent.MessageColumns;
+import com.mwebster.iemail.provider.EmailContent.SyncColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.ProviderTestCase2;
+
+import java.util.ArrayList;
+
+/**
+ * Checks the query plans of the provider's hottest queries, so that a schema change (or a change
+ * to one of these queries) that makes SQLite scan a whole table fails here rather than showing
+ * up as a slow message list on a large mailbox.
+ *
+ * You can run this test case with:
+ *   runtest -c com.mwebster.iemail.provider.QueryPlanTests email
+ */
+public class QueryPlanTests extends ProviderTestCase2<EmailProvider> {
+
+    /**
+     * A query that must be answered from an index
+     */
+    private static class HotQuery {
+        final String mName;
+        final String mTable;
+        final String mSelection;
+        final String mSortOrder;
+        // Whether the rows must come out of the index in order, i.e. without a sort
+        final boolean mIndexOrdered;
+
+        HotQuery(String name, String table, String selection, String sortOrder,
+                boolean indexOrdered) {
+            mName = name;
+            mTable = table;
+            mSelection = selection;
+            mSortOrder = sortOrder;
+            mIndexOrdered = indexOrdered;
+        }
+    }
+
+    // The registered hot queries; add new ones here.  The selections are those used by the
+    // callers (the literal "?"s are left unbound, which doesn't change the plan)
+    private static final HotQuery[] HOT_QUERIES = new HotQuery[] {
+        // MessageList, loading the first page of a single mailbox
+        new HotQuery("message list", Message.TABLE_NAME,
+                EmailProvider.getMailboxViewSelection(Message.getMailboxViewUri(1, false, false)),
+                Message.KEY_TIMESTAMP_ID_DESC, true),
+        // MessageList, loading a later page of a single mailbox
+        new HotQuery("message list page", Message.TABLE_NAME,
+                EmailProvider.getMailboxViewSelection(Message.getMailboxViewUri(1, false, false))
+                        + " and " + Message.PAGE_AFTER_SELECTION,
+                Message.KEY_TIMESTAMP_ID_DESC, true),
+        // MessageList, on the combined inbox
+        new HotQuery("combined inbox", Message.TABLE_NAME,
+                EmailProvider.getMailboxViewSelection(
+                        Message.getMailboxViewUri(Mailbox.QUERY_ALL_INBOXES, true, true)),
+                Message.KEY_TIMESTAMP_ID_DESC, false),
+        // EmailSyncAdapter, finding a server id in a mailbox
+        new HotQuery("server id in mailbox", Message.TABLE_NAME,
+                SyncColumns.SERVER_ID + "=? and " + MessageColumns.MAILBOX_KEY + "=?", null,
+                false),
+        // MessagingController.synchronizeMailboxGeneric, step 1
+        new HotQuery("messages of account mailbox", Message.TABLE_NAME,
+                MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY + "=?", null,
+                false),
+        // FolderSyncParser, finding a server id in an account
+        new HotQuery("mailbox server id in account", Mailbox.TABLE_NAME,
+                MailboxColumns.SERVER_ID + "=? and " + MailboxColumns.ACCOUNT_KEY + "=?", null,
+                false),
+        // Body.restoreBodyWithMessageId and friends
+        new HotQuery("body of message", Body.TABLE_NAME, BodyColumns.MESSAGE_KEY + "=?", null,
+                false),
+    };
+
+    public QueryPlanTests() {
+        super(EmailProvider.class, EmailProvider.EMAIL_AUTHORITY);
+    }
+
+    /**
+     * Return the details of each step of the plan of a query
+     */
+    private static ArrayList<String> getQueryPlan(SQLiteDatabase db, HotQuery query) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, query.mTable,
+                new String[] {EmailContent.RECORD_ID}, query.mSelection, null, null,
+                query.mSortOrder, null);
+        ArrayList<String> plan = new ArrayList<String>();
+        Cursor c = db.rawQuery("explain query plan " + sql, null);
+        try {
+            // The detail is the last column, whichever version of SQLite this is
+            int detailColumn = c.getColumnCount() - 1;
+            while (c.moveToNext()) {
+                plan.add(c.getString(detailColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return plan;
+    }
+
+    /**
+     * Return whether a step of a query plan reads every row of a table.  Older versions of SQLite
+     * describe an indexed step as "TABLE Message WITH INDEX ..." and a scan as "TABLE Message";
+     * newer ones use "SEARCH ..." and "SCAN ..."
+     */
+    /*package*/ static boolean isFullScan(String detail) {
+        if (detail.startsWith("SCAN ")) {
+            return true;
+        }
+        return detail.startsWith("TABLE ") && !detail.contains(" INDEX ") &&
+                !detail.contains("PRIMARY KEY");
+    }
+
+    public void testIsFullScan() {
+        assertTrue(isFullScan("TABLE Message"));
+        assertTrue(isFullScan("SCAN TABLE Message"));
+        assertTrue(isFullScan("SCAN Message"));
+        assertFalse(isFullScan("TABLE Message WITH INDEX message_mailboxKey_timeStamp ORDER BY"));
+        assertFalse(isFullScan("TABLE Message USING PRIMARY KEY"));
+        assertFalse(isFullScan(
+                "SEARCH TABLE Message USING INDEX message_mailboxKey_timeStamp (mailboxKey=?)"));
+        assertFalse(isFullScan("USE TEMP B-TREE FOR ORDER BY"));
+    }
+
+    public void testHotQueryPlans() {
+        SQLiteDatabase db = getProvider().getDatabase(getMockContext());
+        StringBuilder failures = new StringBuilder();
+        for (HotQuery query: HOT_QUERIES) {
+            ArrayList<String> plan = getQueryPlan(db, query);
+            for (String detail: plan) {
+                if (isFullScan(detail) ||
+                        (query.mIndexOrdered && detail.contains("TEMP B-TREE"))) {
+                    failures.append('\n').append(query.mName).append(": ").append(plan);
+                    break;
+                }
+            }
+        }
+        if (failures.length() > 0) {
+            fail("Hot queries no longer use an index:" + failures);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mwebster.iemail.service;
+
+import com.mwebster.iemail.provider.AttachmentProvider;
+import com.mwebster.iemail.provider.EmailContent.Account;
+import com.mwebster.iemail.provider.EmailContent.Attachment;
+import com.mwebster.iemail.provider.EmailContent.Body;
+import com.mwebster.iemail.provider.EmailContent.Mailbox;
+import com.mwebster.iemail.provider.EmailContent.Message;
+import com.mwebster.iemail.provider.EmailProvider;
+import com.mwebster.iemail.provider.ProviderTestUtils;
+
+import android.content.Context;
+import android.test.ProviderTestCase2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of the PruneService.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.mwebster.iemail.service.PruneServiceTests email
+ */
+public class PruneServiceTests extends ProviderTestCase2<EmailProvider> {
+
+    Context mMockContext;
+
+    public PruneServiceTests() {
+        super(EmailProvider.class, EmailProvider.EMAIL_AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    private Message setupMessage(String name, long accountId, long mailboxId, long timeStamp,
+            boolean favorite) {
+        Message message =
+            ProviderTestUtils.setupMessage(name, accountId, mailboxId, true, false, mMockContext);
+        message.mTimeStamp = timeStamp;
+        message.mFlagFavorite = favorite;
+        message.save(mMockContext);
+        return message;
+    }
+
+    public void testGetLookbackTime() {
+        long now = 1000L * 24 * 60 * 60 * 1000;
+        long day = 24 * 60 * 60 * 1000L;
+        // A day's margin is allowed beyond the window
+        assertEquals(now - 2 * day,
+                PruneService.getLookbackTime(com.mwebster.iemail.Account.SYNC_WINDOW_1_DAY, now));
+        assertEquals(now - 8 * day,
+                PruneService.getLookbackTime(com.mwebster.iemail.Account.SYNC_WINDOW_1_WEEK, now));
+        // Nothing is pruned from accounts that sync everything
+        assertEquals(0,
+                PruneService.getLookbackTime(com.mwebster.iemail.Account.SYNC_WINDOW_ALL, now));
+        assertEquals(0,
+                PruneService.getLookbackTime(com.mwebster.iemail.Account.SYNC_WINDOW_USER, now));
+    }
+
+    public void testGetVisibleLimitCutoff() {
+        Account account = ProviderTestUtils.setupAccount("limit", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        setupMessage("one", account.mId, box.mId, 1000, false);
+        setupMessage("two", account.mId, box.mId, 2000, false);
+        setupMessage("three", account.mId, box.mId, 3000, false);
+        // A message that's only local isn't counted
+        Message local = setupMessage("local", account.mId, box.mId, 4000, false);
+        local.mServerId = null;
+        local.save(mMockContext);
+
+        // Messages older than the last of the newest two are beyond the limit
+        assertEquals(2000, PruneService.getVisibleLimitCutoff(mMockContext, box.mId, 2,
+                PruneService.ORDER_TIMESTAMP));
+        // No message is beyond a limit as large as the mailbox, or beyond no limit
+        assertEquals(0, PruneService.getVisibleLimitCutoff(mMockContext, box.mId, 3,
+                PruneService.ORDER_TIMESTAMP));
+        assertEquals(0, PruneService.getVisibleLimitCutoff(mMockContext, box.mId, 0,
+                PruneService.ORDER_TIMESTAMP));
+    }
+
+    /**
+     * Test that an IMAP mailbox's window is by UID (numerically), not by time
+     */
+    public void testGetVisibleLimitCutoffByUid() {
+        Account account = ProviderTestUtils.setupAccount("uid", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Message[] messages = new Message[] {
+                setupMessage("one", account.mId, box.mId, 3000, false),
+                setupMessage("two", account.mId, box.mId, 2000, false),
+                setupMessage("three", account.mId, box.mId, 1000, false)};
+        String[] uids = new String[] {"9", "10", "100"};
+        for (int i = 0; i < messages.length; i++) {
+            messages[i].mServerId = uids[i];
+            messages[i].save(mMockContext);
+        }
+
+        assertEquals(10, PruneService.getVisibleLimitCutoff(mMockContext, box.mId, 2,
+                PruneService.ORDER_UID));
+        PruneService.PruneStats stats = new PruneService.PruneStats();
+        assertEquals(1, PruneService.pruneBatch(mMockContext, account.mId, box.mId,
+                PruneService.ORDER_UID, 10, stats));
+        assertNull(Message.restoreMessageWithId(mMockContext, messages[0].mId));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, messages[2].mId));
+    }
+
+    public void testPruneBatch() throws IOException {
+        Account account = ProviderTestUtils.setupAccount("prune", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        Mailbox other = ProviderTestUtils.setupMailbox("other", account.mId, true, mMockContext);
+        Message old = setupMessage("old", account.mId, box.mId, 1000, false);
+        Message favorite = setupMessage("favorite", account.mId, box.mId, 1000, true);
+        Message recent = setupMessage("recent", account.mId, box.mId, 3000, false);
+        Message otherOld = setupMessage("otherOld", account.mId, other.mId, 1000, false);
+        Message localOld = setupMessage("localOld", account.mId, box.mId, 1000, false);
+        localOld.mServerId = null;
+        localOld.save(mMockContext);
+
+        // Give the old message an attachment file
+        Attachment att = ProviderTestUtils.setupAttachment(old.mId, "file", 4, true,
+                mMockContext);
+        File file = AttachmentProvider.getAttachmentFilename(mMockContext, account.mId,
+                att.mId);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4});
+        out.close();
+
+        PruneService.PruneStats stats = new PruneService.PruneStats();
+        assertEquals(1, PruneService.pruneBatch(mMockContext, account.mId, box.mId,
+                PruneService.ORDER_TIMESTAMP, 2000, stats));
+        assertEquals(1, stats.mMessages);
+        // The attachment file and the body are counted
+        assertTrue(stats.mBytes > 4);
+        assertFalse(file.exists());
+        assertNull(Message.restoreMessageWithId(mMockContext, old.mId));
+        assertNull(Attachment.restoreAttachmentWithId(mMockContext, att.mId));
+        assertNull(Body.restoreBodyWithMessageId(mMockContext, old.mId));
+
+        // Favorites, newer messages, messages only local and other mailboxes' messages are kept
+        assertEquals(0, PruneService.pruneBatch(mMockContext, account.mId, box.mId,
+                PruneService.ORDER_TIMESTAMP, 2000, stats));
+        assertEquals(1, stats.mMessages);
+        assertNotNull(Message.restoreMessageWithId(mMockContext, favorite.mId));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, recent.mId));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, otherOld.mId));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, localOld.mId));
+    }
+}
@@ -162,4 +162,24 @@ import java.io.IOException;
         assertEquals(1, headers.length);
         assertEquals("key", headers[0].getValue());
     }
+
+    /**
+     * Test that window sizes follow the server's estimate, within limits
+     */
+    public void testGetWindowSize() {
+        // Without an estimate, we use the defaults
+        assertEquals("5", EasSyncService.getWindowSize("Email", -1));
+        assertEquals("5", EasSyncService.getWindowSize("Email", 0));
+        assertEquals(EasSyncService.PIM_WINDOW_SIZE,
+                EasSyncService.getWindowSize("Contacts", -1));
+        // PIM windows don't change with the estimate
+        assertEquals(EasSyncService.PIM_WINDOW_SIZE,
+                EasSyncService.getWindowSize("Calendar", 1000));
+        // Small estimates don't go below the default
+        assertEquals("5", EasSyncService.getWindowSize("Email", 12));
+        // Larger ones grow the window...
+        assertEquals("12", EasSyncService.getWindowSize("Email", 120));
+        // ...but only so far
+        assertEquals("25", EasSyncService.getWindowSize("Email", 5000));
+    }
 }
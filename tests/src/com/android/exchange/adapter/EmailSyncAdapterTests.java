@@ -22,7 +22,9 @@ import com.mwebster.iemail.provider.EmailContent.Account;
 import com.mwebster.iemail.provider.EmailContent.Body;
 import com.mwebster.iemail.provider.EmailContent.Mailbox;
 import com.mwebster.iemail.provider.EmailContent.Message;
+import com.mwebster.iemail.provider.EmailContent.MessageColumns;
 import com.mwebster.iemail.provider.EmailContent.SyncColumns;
+import com.mwebster.exchange.Eas;
 import com.mwebster.exchange.EasSyncService;
 import com.mwebster.exchange.adapter.EmailSyncAdapter.EasEmailSyncParser;
 import com.mwebster.exchange.adapter.EmailSyncAdapter.EasEmailSyncParser.ServerChange;
@@ -148,6 +150,74 @@ public class EmailSyncAdapterTests extends SyncAdapterTestCase<EmailSyncAdapter>
         assertFalse(deletedIds.contains(msg2.mId));
     }
 
+    public void testSendLocalChanges() throws IOException {
+        EasSyncService service = getTestService();
+        service.mProtocolVersionDouble = Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE;
+        EmailSyncAdapter adapter = new EmailSyncAdapter(service.mMailbox, service);
+        adapter.mContext = mMockContext;
+
+        Account acct = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        adapter.mAccount = acct;
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", acct.mId, true, mMockContext);
+        adapter.mMailbox = box1;
+
+        // Mark msg1 unread and then read again; mark msg2 unread
+        Message msg1 = ProviderTestUtils.setupMessage("message1", acct.mId, box1.mId,
+                true, true, mMockContext);
+        Message msg2 = ProviderTestUtils.setupMessage("message2", acct.mId, box1.mId,
+                true, true, mMockContext);
+        ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, 0);
+        mMockResolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, msg1.mId),
+                values, null, null);
+        mMockResolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, msg2.mId),
+                values, null, null);
+        values.put(MessageColumns.FLAG_READ, 1);
+        mMockResolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, msg1.mId),
+                values, null, null);
+        assertEquals(2, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI, null, null));
+
+        // Both updates are handled, but only msg2's is sent
+        Serializer s = new Serializer();
+        assertFalse(adapter.sendLocalChanges(s));
+        assertEquals(2, adapter.mUpdatedIdList.size());
+        String commands = new String(s.toByteArray());
+        assertFalse(commands.contains(msg1.mServerId));
+        assertTrue(commands.contains(msg2.mServerId));
+    }
+
+    public void testSendLocalChangesLimit() throws IOException {
+        EasSyncService service = getTestService();
+        service.mProtocolVersionDouble = Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE;
+        EmailSyncAdapter adapter = new EmailSyncAdapter(service.mMailbox, service);
+        adapter.mContext = mMockContext;
+
+        Account acct = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        adapter.mAccount = acct;
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", acct.mId, true, mMockContext);
+        adapter.mMailbox = box1;
+
+        // Change more messages than can be sent at once
+        ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, 0);
+        int count = EmailSyncAdapter.MAX_LOCAL_CHANGES + 5;
+        for (int i = 0; i < count; i++) {
+            Message msg = ProviderTestUtils.setupMessage("message" + i, acct.mId, box1.mId,
+                    false, true, mMockContext);
+            mMockResolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, msg.mId),
+                    values, null, null);
+        }
+
+        // The first request holds back the extras, and says so
+        assertTrue(adapter.sendLocalChanges(new Serializer()));
+        assertEquals(EmailSyncAdapter.MAX_LOCAL_CHANGES, adapter.mUpdatedIdList.size());
+        adapter.cleanup();
+
+        // The next one sends the rest
+        assertFalse(adapter.sendLocalChanges(new Serializer()));
+        assertEquals(5, adapter.mUpdatedIdList.size());
+    }
+
     void setupSyncParserAndAdapter(Account account, Mailbox mailbox) throws IOException {
         EasSyncService service = getTestService(account, mailbox);
         mSyncAdapter = new EmailSyncAdapter(mailbox, service);